@@ -0,0 +1,140 @@
+/*
+ * Copyright 2015 Klarna AB
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.klarna.checkout;
+
+import org.json.simple.parser.JSONParser;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Compare the retained heap of orders stored in hash maps and compact maps.
+ *
+ * Not a JMH benchmark, as retained rather than allocated memory is of
+ * interest. Run it from the benchmarks jar with a fixed heap and an
+ * optional order count:
+ *
+ * <pre>
+ * java -Xms1g -Xmx1g -cp target/benchmarks.jar \
+ *     com.klarna.checkout.CompactMapFootprint 100000
+ * </pre>
+ */
+public final class CompactMapFootprint {
+
+    /**
+     * A fetched order with a two item cart.
+     */
+    private static final String ORDER = "{\"id\":\"ABC123\","
+            + "\"merchant_reference\":{\"orderid1\":\"1\"},"
+            + "\"purchase_country\":\"se\",\"purchase_currency\":\"sek\","
+            + "\"locale\":\"sv-se\",\"status\":\"checkout_complete\","
+            + "\"reference\":\"ABC123\",\"reservation\":\"123456\","
+            + "\"started_at\":\"2015-06-02T10:00:00+02:00\","
+            + "\"completed_at\":\"2015-06-02T10:05:00+02:00\","
+            + "\"last_modified_at\":\"2015-06-02T10:05:00+02:00\","
+            + "\"expires_at\":\"2015-06-16T10:05:00+02:00\","
+            + "\"cart\":{\"total_price_excluding_tax\":23600,"
+            + "\"total_tax_amount\":5900,\"total_price_including_tax\":29500,"
+            + "\"items\":[{\"reference\":\"123456789\",\"name\":\"Klarna t-shirt\","
+            + "\"quantity\":2,\"unit_price\":12300,\"discount_rate\":1000,"
+            + "\"tax_rate\":2500,\"total_price_excluding_tax\":17712,"
+            + "\"total_tax_amount\":4428,\"total_price_including_tax\":22140,"
+            + "\"type\":\"physical\"},{\"reference\":\"SHIPPING\","
+            + "\"name\":\"Shipping Fee\",\"quantity\":1,\"unit_price\":4900,"
+            + "\"discount_rate\":0,\"tax_rate\":2500,"
+            + "\"total_price_excluding_tax\":3920,\"total_tax_amount\":980,"
+            + "\"total_price_including_tax\":4900,\"type\":\"shipping_fee\"}]},"
+            + "\"customer\":{\"type\":\"person\"},"
+            + "\"billing_address\":{\"given_name\":\"Testperson-se\","
+            + "\"family_name\":\"Approved\",\"postal_code\":\"12345\","
+            + "\"city\":\"Ankeborg\",\"country\":\"se\","
+            + "\"email\":\"checkout@testdrive.klarna.com\"},"
+            + "\"gui\":{\"layout\":\"desktop\",\"snippet\":\"<div></div>\"},"
+            + "\"merchant\":{\"id\":\"0\"}}";
+
+    /**
+     * Hide constructor for utility class.
+     */
+    private CompactMapFootprint() {
+    }
+
+    /**
+     * Run the comparison.
+     *
+     * @param args optional number of orders to keep
+     * @throws Exception if the order could not be parsed
+     */
+    public static void main(final String[] args) throws Exception {
+        int count = 100000;
+        if (args.length > 0) {
+            count = Integer.parseInt(args[0]);
+        }
+
+        long plain = retained(count, false);
+        long compact = retained(count, true);
+
+        System.out.printf("orders:  %d%n", count);
+        System.out.printf("HashMap: %d bytes/order%n", plain / count);
+        System.out.printf("Compact: %d bytes/order%n", compact / count);
+        System.out.printf(
+                "Saved:   %.1f%%%n", 100.0 * (plain - compact) / plain);
+    }
+
+    /**
+     * Measure the heap retained by a number of parsed orders.
+     *
+     * @param count   number of orders
+     * @param compact whether to use compact storage
+     * @return retained bytes
+     * @throws Exception if the order could not be parsed
+     */
+    @SuppressWarnings("unchecked")
+    private static long retained(final int count, final boolean compact)
+            throws Exception {
+        List<Order> orders = new ArrayList<Order>(count);
+
+        long before = used();
+        for (int i = 0; i < count; i++) {
+            Order order = new Order(null);
+            order.setCompact(compact);
+            order.parse((Map<String, Object>) new JSONParser().parse(ORDER));
+            orders.add(order);
+        }
+        long after = used();
+
+        if (orders.size() != count) {
+            throw new IllegalStateException();
+        }
+        return after - before;
+    }
+
+    /**
+     * Get the used heap after collecting garbage.
+     *
+     * @return used bytes
+     * @throws InterruptedException if interrupted while waiting for the GC
+     */
+    private static long used() throws InterruptedException {
+        Runtime runtime = Runtime.getRuntime();
+        for (int i = 0; i < 5; i++) {
+            System.gc();
+            Thread.sleep(100);
+        }
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+}
@@ -0,0 +1,100 @@
+/*
+ * Copyright 2015 Klarna AB
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.klarna.checkout;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Signing payloads from a string and from a stream.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class DigestBenchmark {
+
+    /**
+     * Size of the payload in bytes.
+     */
+    @Param({"0", "1024", "16384", "131072"})
+    private int size;
+
+    /**
+     * Digest under test.
+     */
+    private Digest digest;
+
+    /**
+     * Payload as a string.
+     */
+    private String text;
+
+    /**
+     * Payload as UTF-8 bytes.
+     */
+    private byte[] bytes;
+
+    /**
+     * Set up the digest and payload.
+     *
+     * @throws Exception if SHA-256 is not supported
+     */
+    @Setup
+    public void setUp() throws Exception {
+        this.digest = new Digest(Fixtures.SECRET);
+        this.text = Fixtures.payload(this.size);
+        this.bytes = Fixtures.utf8(this.text);
+    }
+
+    /**
+     * Sign a payload held as a string.
+     *
+     * @return the digest
+     * @throws IOException if signing fails
+     */
+    @Benchmark
+    public String fromString() throws IOException {
+        return this.digest.create(this.text);
+    }
+
+    /**
+     * Sign a payload read from a stream, as done for request entities.
+     *
+     * @return the digest
+     * @throws IOException if signing fails
+     */
+    @Benchmark
+    public String fromStream() throws IOException {
+        return this.digest.create(new ByteArrayInputStream(this.bytes));
+    }
+}
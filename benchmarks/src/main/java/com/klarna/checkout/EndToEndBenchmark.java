@@ -0,0 +1,180 @@
+/*
+ * Copyright 2015 Klarna AB
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.klarna.checkout;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Fetching and creating orders against a stub server in the same process.
+ *
+ * The server answers from memory, so the results show the cost of the
+ * client side of the request path over loopback. The server is run without
+ * Nagle's algorithm, which otherwise delays every response with a body.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Threads(4)
+@Fork(value = 1, jvmArgsAppend = "-Dsun.net.httpserver.nodelay=true")
+public class EndToEndBenchmark {
+
+    /**
+     * Number of items in the cart of the order.
+     */
+    @Param({"10"})
+    private int items;
+
+    /**
+     * Stub server.
+     */
+    private HttpServer server;
+
+    /**
+     * Threads of the stub server.
+     */
+    private ExecutorService workers;
+
+    /**
+     * Pooled connector shared by the benchmark threads.
+     */
+    private IConnector connector;
+
+    /**
+     * Data of the creates.
+     */
+    private Map<String, Object> data;
+
+    /**
+     * Start the stub server and create the connector.
+     *
+     * @throws Exception if the server could not start
+     */
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        final byte[] order = Fixtures.order("1", this.items);
+
+        this.server = HttpServer.create(
+                new InetSocketAddress("127.0.0.1", 0), 128);
+        final String base =
+                "http://127.0.0.1:" + this.server.getAddress().getPort();
+        this.server.createContext(Order.PATH, new HttpHandler() {
+            @Override
+            public void handle(final HttpExchange exchange)
+                    throws IOException {
+                drain(exchange.getRequestBody());
+                if (exchange.getRequestMethod().equals("POST")
+                        && exchange.getRequestURI().getPath()
+                                .equals(Order.PATH)) {
+                    exchange.getResponseHeaders().set(
+                            "Location", base + Order.PATH + "/1");
+                    exchange.sendResponseHeaders(201, -1);
+                } else {
+                    exchange.getResponseHeaders().set(
+                            "Content-Type", "application/json");
+                    exchange.sendResponseHeaders(200, order.length);
+                    exchange.getResponseBody().write(order);
+                }
+                exchange.close();
+            }
+        });
+        this.workers = Executors.newFixedThreadPool(8);
+        this.server.setExecutor(this.workers);
+        this.server.start();
+
+        this.connector = Connector.create(Fixtures.SECRET, base, 8);
+        this.data = Fixtures.create(this.items);
+    }
+
+    /**
+     * Stop the stub server.
+     */
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        this.server.stop(0);
+        this.workers.shutdownNow();
+    }
+
+    /**
+     * Fetch an order.
+     *
+     * @return the order
+     * @throws IOException if the fetch fails
+     */
+    @Benchmark
+    public Order fetch() throws IOException {
+        Order order = new Order(this.connector);
+        order.setLocation(URI.create(
+                this.connector.getBaseUri() + Order.PATH + "/1"));
+        order.fetch();
+        return order;
+    }
+
+    /**
+     * Create an order.
+     *
+     * @return the order
+     * @throws IOException if the create fails
+     */
+    @Benchmark
+    public Order create() throws IOException {
+        Order order = new Order(this.connector);
+        order.create(this.data);
+        return order;
+    }
+
+    /**
+     * Read a request body to the end.
+     *
+     * @param in request body
+     * @throws IOException if reading fails
+     */
+    private static void drain(final InputStream in) throws IOException {
+        byte[] buffer = new byte[8192];
+        int read = in.read(buffer);
+        while (read >= 0) {
+            read = in.read(buffer);
+        }
+        in.close();
+    }
+}
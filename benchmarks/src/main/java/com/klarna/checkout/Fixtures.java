@@ -0,0 +1,166 @@
+/*
+ * Copyright 2015 Klarna AB
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.klarna.checkout;
+
+import org.json.simple.JSONValue;
+
+import java.io.UnsupportedEncodingException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Realistic order data shared by the benchmarks.
+ */
+final class Fixtures {
+
+    /**
+     * Shared secret the benchmarks sign with.
+     */
+    static final String SECRET = "sharedSecret";
+
+    /**
+     * Hide constructor for utility class.
+     */
+    private Fixtures() {
+    }
+
+    /**
+     * Build the data of a create request.
+     *
+     * @param items number of cart items
+     * @return order data with a cart, merchant and locale
+     */
+    static Map<String, Object> create(final int items) {
+        Map<String, Object> data = new LinkedHashMap<String, Object>();
+        data.put("purchase_country", "SE");
+        data.put("purchase_currency", "SEK");
+        data.put("locale", "sv-se");
+        data.put("cart", cart(items));
+
+        Map<String, Object> merchant = new LinkedHashMap<String, Object>();
+        merchant.put("id", "0");
+        merchant.put("terms_uri", "http://example.com/terms.html");
+        merchant.put("checkout_uri", "http://example.com/checkout.jsp");
+        merchant.put("confirmation_uri",
+                "http://example.com/thank-you.jsp?klarna_order_id={checkout"
+                + ".order.id}");
+        merchant.put("push_uri",
+                "http://example.com/push.jsp?klarna_order_id={checkout"
+                + ".order.id}");
+        data.put("merchant", merchant);
+        return data;
+    }
+
+    /**
+     * Build a cart.
+     *
+     * @param items number of items
+     * @return cart holding the items
+     */
+    static Map<String, Object> cart(final int items) {
+        List<Map<String, Object>> list =
+                new ArrayList<Map<String, Object>>(items);
+        for (int i = 0; i < items; i++) {
+            Map<String, Object> item = new LinkedHashMap<String, Object>();
+            item.put("type", "physical");
+            item.put("reference", "123456789-" + i);
+            item.put("name", "Klarna t-shirt, size " + i);
+            item.put("quantity", 2L);
+            item.put("unit_price", 12300L);
+            item.put("discount_rate", 1000L);
+            item.put("tax_rate", 2500L);
+            item.put("total_price_including_tax", 22140L);
+            list.add(item);
+        }
+
+        Map<String, Object> cart = new HashMap<String, Object>();
+        cart.put("items", list);
+        cart.put("total_price_including_tax", 22140L * items);
+        return cart;
+    }
+
+    /**
+     * Build the JSON of an order as fetched from Klarna.
+     *
+     * @param id    order id
+     * @param items number of cart items
+     * @return UTF-8 encoded order JSON
+     */
+    static byte[] order(final String id, final int items) {
+        Map<String, Object> data = create(items);
+        data.put("id", id);
+        data.put("status", "checkout_incomplete");
+        data.put("started_at", "2015-05-04T13:37:00+02:00");
+        data.put("last_modified_at", "2015-05-04T13:37:42+02:00");
+
+        Map<String, Object> gui = new LinkedHashMap<String, Object>();
+        gui.put("layout", "desktop");
+        gui.put("snippet", snippet(4096));
+        data.put("gui", gui);
+
+        return utf8(JSONValue.toJSONString(data));
+    }
+
+    /**
+     * Build a payload of some size.
+     *
+     * @param size size in bytes
+     * @return the payload
+     */
+    static String payload(final int size) {
+        StringBuilder builder = new StringBuilder(size);
+        while (builder.length() < size) {
+            builder.append("{\"reference\":\"123456789\",\"quantity\":2}");
+        }
+        builder.setLength(size);
+        return builder.toString();
+    }
+
+    /**
+     * Encode a string as UTF-8.
+     *
+     * @param text string to encode
+     * @return the bytes
+     */
+    static byte[] utf8(final String text) {
+        try {
+            return text.getBytes("UTF-8");
+        } catch (UnsupportedEncodingException ex) {
+            throw new IllegalStateException(ex);
+        }
+    }
+
+    /**
+     * Build an HTML snippet like the one rendering the checkout.
+     *
+     * @param size size in characters
+     * @return the snippet
+     */
+    private static String snippet(final int size) {
+        StringBuilder builder = new StringBuilder(size);
+        builder.append("<div id=\"klarna-checkout-container\">");
+        while (builder.length() < size - 6) {
+            builder.append("<script>window._klarnaCheckout();</script>");
+        }
+        builder.setLength(size - 6);
+        builder.append("</div>");
+        return builder.toString();
+    }
+}
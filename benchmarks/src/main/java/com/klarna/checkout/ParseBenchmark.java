@@ -0,0 +1,151 @@
+/*
+ * Copyright 2015 Klarna AB
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.klarna.checkout;
+
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpVersion;
+import org.apache.http.entity.ByteArrayEntity;
+import org.apache.http.message.BasicHttpResponse;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Handling order responses.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ParseBenchmark {
+
+    /**
+     * Number of items in the cart of the order.
+     */
+    @Param({"1", "10", "100"})
+    private int items;
+
+    /**
+     * Connector the orders belong to.
+     */
+    private IConnector connector;
+
+    /**
+     * Order JSON as sent by Klarna.
+     */
+    private byte[] payload;
+
+    /**
+     * Fields selected by a partial fetch.
+     */
+    private Set<String> fields;
+
+    /**
+     * Set up the connector and payload.
+     *
+     * @throws Exception if SHA-256 is not supported
+     */
+    @Setup
+    public void setUp() throws Exception {
+        this.connector = Connector.create(Fixtures.SECRET);
+        this.payload = Fixtures.order("1", this.items);
+        this.fields = new HashSet<String>(
+                Arrays.asList("status", "gui.snippet"));
+    }
+
+    /**
+     * Parse a whole order.
+     *
+     * @return the order
+     * @throws IOException if parsing fails
+     */
+    @Benchmark
+    public Order full() throws IOException {
+        Order order = new Order(this.connector);
+        new Handler(order).handleResponse(this.response());
+        return order;
+    }
+
+    /**
+     * Parse a whole order into compact storage.
+     *
+     * @return the order
+     * @throws IOException if parsing fails
+     */
+    @Benchmark
+    public Order compact() throws IOException {
+        Order order = new Order(this.connector);
+        order.setCompact(true);
+        new Handler(order).handleResponse(this.response());
+        return order;
+    }
+
+    /**
+     * Keep the raw order and read one field of it.
+     *
+     * @return the status of the order
+     * @throws IOException if parsing fails
+     */
+    @Benchmark
+    public Object lazy() throws IOException {
+        Order order = new Order(this.connector);
+        order.setLazy(true);
+        new Handler(order).handleResponse(this.response());
+        return order.get("status");
+    }
+
+    /**
+     * Extract only the selected fields while streaming the order.
+     *
+     * @return the order
+     * @throws IOException if parsing fails
+     */
+    @Benchmark
+    public Order selected() throws IOException {
+        Order order = new Order(this.connector);
+        new Handler(order, this.fields).handleResponse(this.response());
+        return order;
+    }
+
+    /**
+     * Build a fresh response holding the order.
+     *
+     * @return the response
+     */
+    private HttpResponse response() {
+        HttpResponse response =
+                new BasicHttpResponse(HttpVersion.HTTP_1_1, 200, "OK");
+        response.setEntity(new ByteArrayEntity(this.payload));
+        return response;
+    }
+}
@@ -0,0 +1,168 @@
+/*
+ * Copyright 2015 Klarna AB
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.klarna.checkout;
+
+import org.apache.http.client.methods.HttpUriRequest;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.json.simple.JSONValue;
+
+import java.io.UnsupportedEncodingException;
+import java.net.URI;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Building requests and encoding their payloads.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class RequestBenchmark {
+
+    /**
+     * Number of items in the cart.
+     */
+    @Param({"1", "10", "100"})
+    private int items;
+
+    /**
+     * Connector building the requests.
+     */
+    private BasicConnector connector;
+
+    /**
+     * Order to create.
+     */
+    private Order order;
+
+    /**
+     * Data of the create.
+     */
+    private Map<String, Object> data;
+
+    /**
+     * Options of the create.
+     */
+    private ConnectorOptions options;
+
+    /**
+     * Data of the create with the merchant block pre-encoded.
+     */
+    private Map<String, Object> fragmented;
+
+    /**
+     * Set up the connector and data.
+     *
+     * @throws Exception if SHA-256 is not supported
+     */
+    @Setup
+    public void setUp() throws Exception {
+        this.connector = new BasicConnector(new Digest(Fixtures.SECRET));
+        this.order = new Order(this.connector);
+        this.order.setLocation(
+                new URI(IConnector.TEST_BASE_URL + Order.PATH + "/1"));
+        this.data = Fixtures.create(this.items);
+        this.options = new ConnectorOptions();
+        this.options.setURI(
+                URI.create(IConnector.TEST_BASE_URL + Order.PATH));
+        this.options.setData(this.data);
+
+        this.fragmented = Fixtures.create(this.items);
+        this.fragmented.put(
+                "merchant", JsonFragment.of(this.fragmented.get("merchant")));
+    }
+
+    /**
+     * Build a create request, including encoding its payload.
+     *
+     * @return the request
+     * @throws UnsupportedEncodingException if UTF-8 is not supported
+     */
+    @Benchmark
+    public HttpUriRequest createRequest()
+            throws UnsupportedEncodingException {
+        return this.connector.createRequest("POST", this.order, this.options);
+    }
+
+    /**
+     * Build a fetch request.
+     *
+     * @return the request
+     * @throws UnsupportedEncodingException if UTF-8 is not supported
+     */
+    @Benchmark
+    public HttpUriRequest fetchRequest()
+            throws UnsupportedEncodingException {
+        return this.connector.createRequest("GET", this.order, null);
+    }
+
+    /**
+     * Encode a cart the way the connector does.
+     *
+     * @return the payload
+     * @throws UnsupportedEncodingException if UTF-8 is not supported
+     */
+    @Benchmark
+    public byte[] encodePayload() throws UnsupportedEncodingException {
+        return this.connector.createPayload(this.data);
+    }
+
+    /**
+     * Encode a cart with the merchant block pre-encoded.
+     *
+     * @return the payload
+     * @throws UnsupportedEncodingException if UTF-8 is not supported
+     */
+    @Benchmark
+    public byte[] encodePayloadWithFragment()
+            throws UnsupportedEncodingException {
+        return this.connector.createPayload(this.fragmented);
+    }
+
+    /**
+     * Encode a cart with json-simple alone, as a baseline.
+     *
+     * @return the payload
+     */
+    @Benchmark
+    public String encodeBaseline() {
+        return JSONValue.toJSONString(this.data);
+    }
+
+    /**
+     * Format the user agent sent with every request.
+     *
+     * @return the user agent
+     */
+    @Benchmark
+    public String userAgent() {
+        return this.connector.createUserAgent().toString();
+    }
+}
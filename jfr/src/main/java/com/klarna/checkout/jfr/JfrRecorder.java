@@ -0,0 +1,398 @@
+/*
+ * Copyright 2015 Klarna AB
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.klarna.checkout.jfr;
+
+import com.klarna.checkout.BasicConnector;
+import com.klarna.checkout.IResource;
+import com.klarna.checkout.MetricsListener;
+import com.klarna.checkout.Span;
+import com.klarna.checkout.Tracer;
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+import java.io.IOException;
+import java.net.URI;
+import java.util.Collections;
+import java.util.Map;
+
+/**
+ * Emits Java Flight Recorder events of the requests a connector makes.
+ *
+ * The recorder is both a tracer, opening an event per request and phase,
+ * and a metrics listener, adding the sizes and retries of the request in
+ * progress on the calling thread. Attach it to a connector with
+ * {@link #attach(BasicConnector)}, next to the tracer and listener set on
+ * it.
+ */
+public class JfrRecorder implements Tracer, MetricsListener {
+
+    /**
+     * Span of the request in progress on each thread.
+     */
+    private final ThreadLocal<RequestSpan> current =
+            new ThreadLocal<RequestSpan>();
+
+    /**
+     * Add the recorder to the tracers and metrics listeners of a connector.
+     *
+     * @param connector connector to record
+     */
+    public void attach(final BasicConnector connector) {
+        connector.addTracer(this);
+        connector.addMetricsListener(this);
+    }
+
+    /**
+     * Remove the recorder from a connector.
+     *
+     * @param connector connector to stop recording
+     */
+    public void detach(final BasicConnector connector) {
+        connector.removeTracer(this);
+        connector.removeMetricsListener(this);
+    }
+
+    @Override
+    public Span start(
+            final String method, final IResource resource, final URI uri) {
+        RequestEvent event = new RequestEvent();
+        event.method = method;
+        event.resource = resource.getClass().getName();
+        event.path = template(uri);
+        event.begin();
+
+        RequestSpan span = new RequestSpan(event, resource);
+        this.current.set(span);
+        return span;
+    }
+
+    @Override
+    public void requestCreated(
+            final IResource resource,
+            final String method,
+            final long nanos,
+            final long bytes) {
+        RequestSpan span = this.span(resource);
+        if (span != null && bytes > 0) {
+            span.event.bytesSent += bytes;
+        }
+    }
+
+    @Override
+    public void digestCreated(final long nanos) {
+        // Recorded as the digest phase.
+    }
+
+    @Override
+    public void retried(final IResource resource, final IOException error) {
+        RequestSpan span = this.span(resource);
+        if (span != null) {
+            span.event.retries++;
+        }
+    }
+
+    @Override
+    public void responseHandled(
+            final IResource resource,
+            final int status,
+            final long nanos,
+            final long bytes) {
+        RequestSpan span = this.span(resource);
+        if (span != null && bytes > 0) {
+            span.event.bytesReceived += bytes;
+        }
+    }
+
+    @Override
+    public void applied(
+            final IResource resource,
+            final String method,
+            final int status,
+            final long nanos,
+            final Exception error) {
+        // Recorded when the span ends.
+    }
+
+    @Override
+    public void deduplicated(
+            final IResource resource,
+            final String method,
+            final int status,
+            final long nanos,
+            final Exception error) {
+        RequestSpan span = this.span(resource);
+        if (span != null) {
+            span.event.deduplicated = true;
+        }
+    }
+
+    /**
+     * Get the span of the request in progress on this thread.
+     *
+     * @param resource the resource the request is for
+     * @return the span, or null if none is in progress for the resource
+     */
+    private RequestSpan span(final IResource resource) {
+        RequestSpan span = this.current.get();
+        if (span == null || span.resource != resource) {
+            return null;
+        }
+        return span;
+    }
+
+    /**
+     * Get the template of the path of a URI.
+     *
+     * The segment after "orders" is replaced by "{id}" and the one after
+     * "recurring" by "{token}", so every order shares one path.
+     *
+     * @param uri URI requested, may be null
+     * @return the path template, or null if there is no path
+     */
+    static String template(final URI uri) {
+        if (uri == null || uri.getRawPath() == null) {
+            return null;
+        }
+
+        String[] segments = uri.getRawPath().split("/", -1);
+        StringBuilder path = new StringBuilder();
+        path.append(segments[0]);
+        for (int i = 1; i < segments.length; i++) {
+            String segment = segments[i];
+            if (segment.isEmpty()) {
+                path.append('/');
+            } else if (segments[i - 1].equals("orders")) {
+                path.append("/{id}");
+            } else if (segments[i - 1].equals("recurring")) {
+                path.append("/{token}");
+            } else {
+                path.append('/').append(segment);
+            }
+        }
+        return path.toString();
+    }
+
+    /**
+     * Span of a request.
+     */
+    private final class RequestSpan implements Span {
+
+        /**
+         * Event of the request.
+         */
+        private final RequestEvent event;
+
+        /**
+         * The resource the request is for.
+         */
+        private final IResource resource;
+
+        /**
+         * Constructor.
+         *
+         * @param request event of the request
+         * @param target  the resource the request is for
+         */
+        RequestSpan(final RequestEvent request, final IResource target) {
+            this.event = request;
+            this.resource = target;
+        }
+
+        @Override
+        public Span child(final String name) {
+            if (name.equals("redirect")) {
+                this.event.redirects++;
+            }
+            return new PhaseSpan(this.event.method, name);
+        }
+
+        @Override
+        public Map<String, String> getHeaders() {
+            return Collections.emptyMap();
+        }
+
+        @Override
+        public void end(final int status, final Exception error) {
+            if (current.get() == this) {
+                current.remove();
+            }
+            this.event.end();
+            if (this.event.shouldCommit()) {
+                this.event.status = status;
+                if (error != null) {
+                    this.event.error = error.getClass().getName();
+                }
+                this.event.commit();
+            }
+        }
+    }
+
+    /**
+     * Span of a phase of a request.
+     */
+    private static final class PhaseSpan implements Span {
+
+        /**
+         * Event of the phase.
+         */
+        private final PhaseEvent event;
+
+        /**
+         * Constructor.
+         *
+         * @param method HTTP method of the request
+         * @param name   name of the phase, nested ones joined with "/"
+         */
+        PhaseSpan(final String method, final String name) {
+            this.event = new PhaseEvent();
+            this.event.method = method;
+            this.event.phase = name;
+            this.event.begin();
+        }
+
+        @Override
+        public Span child(final String name) {
+            return new PhaseSpan(
+                    this.event.method, this.event.phase + "/" + name);
+        }
+
+        @Override
+        public Map<String, String> getHeaders() {
+            return Collections.emptyMap();
+        }
+
+        @Override
+        public void end(final int status, final Exception error) {
+            this.event.end();
+            if (this.event.shouldCommit()) {
+                if (error != null) {
+                    this.event.error = error.getClass().getName();
+                }
+                this.event.commit();
+            }
+        }
+    }
+
+    /**
+     * A request applied by a connector.
+     */
+    @Name("com.klarna.checkout.Request")
+    @Label("Checkout Request")
+    @Category({"Klarna", "Checkout"})
+    @Description("A request applied by a Klarna Checkout connector")
+    @StackTrace(false)
+    static final class RequestEvent extends Event {
+
+        /**
+         * HTTP method.
+         */
+        @Label("Method")
+        private String method;
+
+        /**
+         * Class of the resource.
+         */
+        @Label("Resource")
+        private String resource;
+
+        /**
+         * Template of the path requested.
+         */
+        @Label("Path")
+        private String path;
+
+        /**
+         * HTTP status code, 0 if there was none.
+         */
+        @Label("Status")
+        private int status;
+
+        /**
+         * Number of redirects followed.
+         */
+        @Label("Redirects")
+        private int redirects;
+
+        /**
+         * Number of times the request was sent again after an I/O error.
+         */
+        @Label("Retries")
+        private int retries;
+
+        /**
+         * Size of the request payload.
+         */
+        @Label("Bytes Sent")
+        @DataAmount
+        private long bytesSent;
+
+        /**
+         * Size of the response payloads, where known.
+         */
+        @Label("Bytes Received")
+        @DataAmount
+        private long bytesReceived;
+
+        /**
+         * Whether the outcome of an earlier create was shared.
+         */
+        @Label("Deduplicated")
+        private boolean deduplicated;
+
+        /**
+         * Class of the error the request failed with.
+         */
+        @Label("Error")
+        private String error;
+    }
+
+    /**
+     * A phase of a request, such as signing it or parsing the response.
+     */
+    @Name("com.klarna.checkout.Phase")
+    @Label("Checkout Request Phase")
+    @Category({"Klarna", "Checkout"})
+    @Description("A phase of a request applied by a Klarna Checkout "
+            + "connector")
+    @StackTrace(false)
+    static final class PhaseEvent extends Event {
+
+        /**
+         * Name of the phase.
+         */
+        @Label("Phase")
+        private String phase;
+
+        /**
+         * HTTP method of the request.
+         */
+        @Label("Method")
+        private String method;
+
+        /**
+         * Class of the error the request failed with in this phase.
+         */
+        @Label("Error")
+        private String error;
+    }
+}
@@ -0,0 +1,130 @@
+/*
+ * Copyright 2015 Klarna AB
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.klarna.checkout.jfr;
+
+import com.klarna.checkout.IResource;
+import com.klarna.checkout.Order;
+import com.klarna.checkout.Span;
+import jdk.jfr.Recording;
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordingFile;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests for the JfrRecorder class.
+ */
+public class JfrRecorderTest {
+
+    /**
+     * Test that a request and its phases are recorded with their sizes.
+     *
+     * @throws Exception if the recording fails
+     */
+    @Test
+    public void testRecordsEvents() throws Exception {
+        JfrRecorder recorder = new JfrRecorder();
+        IResource order = new Order(null);
+
+        File file = File.createTempFile("checkout", ".jfr");
+        file.deleteOnExit();
+        Recording recording = new Recording();
+        recording.enable("com.klarna.checkout.Request");
+        recording.enable("com.klarna.checkout.Phase");
+        recording.start();
+
+        Span span = recorder.start("POST", order, new URI(
+                "https://checkout.klarna.com/checkout/orders/ABC-123"));
+        recorder.requestCreated(order, "POST", 10, 120);
+        span.child("send").end(0, null);
+        recorder.retried(order, new IOException("Connection reset"));
+        Span parse = span.child("parse");
+        parse.child("fields").end(0, null);
+        recorder.responseHandled(order, 200, 10, 42);
+        recorder.responseHandled(new Order(null), 200, 10, 1000);
+        parse.end(200, null);
+        span.end(200, null);
+
+        recording.stop();
+        recording.dump(file.toPath());
+        recording.close();
+
+        List<String> phases = new ArrayList<String>();
+        RecordedEvent request = null;
+        for (RecordedEvent event : RecordingFile.readAllEvents(file.toPath())) {
+            String name = event.getEventType().getName();
+            if (name.equals("com.klarna.checkout.Request")) {
+                request = event;
+            } else if (name.equals("com.klarna.checkout.Phase")) {
+                phases.add(event.getString("phase"));
+            }
+        }
+
+        assertNotNull(request);
+        assertEquals("POST", request.getString("method"));
+        assertEquals(Order.class.getName(), request.getString("resource"));
+        assertEquals("/checkout/orders/{id}", request.getString("path"));
+        assertEquals(200, request.getInt("status"));
+        assertEquals(1, request.getInt("retries"));
+        assertEquals(120, request.getLong("bytesSent"));
+        assertEquals(42, request.getLong("bytesReceived"));
+        assertFalse(request.getBoolean("deduplicated"));
+        assertTrue(phases.contains("send"));
+        assertTrue(phases.contains("parse"));
+        assertTrue(phases.contains("parse/fields"));
+    }
+
+    /**
+     * Test that callbacks outside a request are ignored.
+     */
+    @Test
+    public void testNoRequest() {
+        JfrRecorder recorder = new JfrRecorder();
+        IResource order = new Order(null);
+        recorder.requestCreated(order, "GET", 10, 0);
+        recorder.retried(order, new IOException("Connection reset"));
+        recorder.responseHandled(order, 200, 10, 42);
+    }
+
+    /**
+     * Test the path templates.
+     */
+    @Test
+    public void testTemplate() {
+        assertEquals("/checkout/orders/{id}", JfrRecorder.template(
+                URI.create("https://checkout.klarna.com/checkout/orders/1")));
+        assertEquals("/checkout/orders", JfrRecorder.template(
+                URI.create("https://checkout.klarna.com/checkout/orders")));
+        assertEquals("/checkout/recurring/{token}/orders",
+                JfrRecorder.template(URI.create(
+                        "https://checkout.klarna.com/checkout/recurring/"
+                                + "tok3n/orders")));
+        assertNull(JfrRecorder.template(null));
+    }
+}
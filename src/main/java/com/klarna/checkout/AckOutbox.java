@@ -0,0 +1,750 @@
+/*
+ * Copyright 2015 Klarna AB
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.klarna.checkout;
+
+import org.json.simple.JSONValue;
+import org.json.simple.parser.JSONParser;
+import org.json.simple.parser.ParseException;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.DelayQueue;
+import java.util.concurrent.Delayed;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Durable outbox of order acknowledgements.
+ *
+ * An acknowledgement is written to an append-only file before it is sent,
+ * so one that has not been sent when the process dies is sent after the
+ * restart instead of being lost. Writes from all threads are gathered by a
+ * single committer and made durable with one sync per batch, so a busy push
+ * path shares syncs rather than waiting for one each. A background sender
+ * updates the orders, retrying failures with a growing delay. One that
+ * still fails after the most attempts allowed is set aside as a dead letter
+ * until it is discarded or added again.
+ */
+public class AckOutbox {
+
+    /**
+     * Journal record of an acknowledgement to send.
+     */
+    private static final String ADD = "A";
+
+    /**
+     * Journal record of an acknowledgement that was sent.
+     */
+    private static final String DONE = "D";
+
+    /**
+     * Journal record of an acknowledgement that was given up on.
+     */
+    private static final String DEAD = "X";
+
+    /**
+     * Default number of sends tried before giving up.
+     */
+    private static final int DEFAULT_MAX_ATTEMPTS = 20;
+
+    /**
+     * First delay before retrying a failed send in nanoseconds.
+     */
+    private static final long RETRY_DELAY = TimeUnit.SECONDS.toNanos(1);
+
+    /**
+     * Longest delay before retrying a failed send in nanoseconds.
+     */
+    private static final long MAX_RETRY_DELAY = TimeUnit.MINUTES.toNanos(1);
+
+    /**
+     * Record telling the committer to stop.
+     */
+    private static final Record STOP = new Record(null, null);
+
+    /**
+     * Connector to send with.
+     */
+    private final IConnector connector;
+
+    /**
+     * Journal stream.
+     */
+    private final FileOutputStream out;
+
+    /**
+     * Acknowledgements not yet sent, keyed by order id.
+     */
+    private final ConcurrentHashMap<String, Entry> pending;
+
+    /**
+     * Data of acknowledgements given up on, keyed by order id.
+     */
+    private final ConcurrentHashMap<String, Map<String, Object>> dead;
+
+    /**
+     * Records waiting to be written.
+     */
+    private final BlockingQueue<Record> records;
+
+    /**
+     * Acknowledgements waiting to be sent.
+     */
+    private final DelayQueue<Entry> outgoing;
+
+    /**
+     * Thread writing the journal.
+     */
+    private final Thread committer;
+
+    /**
+     * Thread sending acknowledgements.
+     */
+    private final Thread sender;
+
+    /**
+     * Number of syncs of the journal.
+     */
+    private final AtomicLong syncs = new AtomicLong();
+
+    /**
+     * Number of acknowledgements sent.
+     */
+    private final AtomicLong sent = new AtomicLong();
+
+    /**
+     * Number of sends that failed.
+     */
+    private final AtomicLong failures = new AtomicLong();
+
+    /**
+     * Number of sends tried before giving up.
+     */
+    private volatile int maxAttempts = DEFAULT_MAX_ATTEMPTS;
+
+    /**
+     * Size of the journal up to its last sync, used by the committer only.
+     */
+    private long synced;
+
+    /**
+     * Error that left the journal unusable, used by the committer only.
+     */
+    private IOException broken;
+
+    /**
+     * Whether the outbox has been closed.
+     */
+    private volatile boolean closed;
+
+    /**
+     * Constructor.
+     *
+     * Acknowledgements left in the journal by an earlier run are sent
+     * again, after checking that their order has not been acknowledged
+     * already. Acknowledgements given up on by an earlier run are kept as
+     * dead letters.
+     *
+     * @param conn IConnector implementation
+     * @param file journal file, created if missing
+     * @throws IOException if the journal could not be read or written
+     */
+    public AckOutbox(final IConnector conn, final File file)
+            throws IOException {
+        this.connector = conn;
+        this.pending = new ConcurrentHashMap<String, Entry>();
+        this.records = new LinkedBlockingQueue<Record>();
+        this.outgoing = new DelayQueue<Entry>();
+        this.dead = new ConcurrentHashMap<String, Map<String, Object>>();
+
+        recover(file);
+        Map<String, Map<String, Object>> left =
+                new LinkedHashMap<String, Map<String, Object>>();
+        Map<String, Map<String, Object>> given =
+                new LinkedHashMap<String, Map<String, Object>>();
+        replay(file, left, given);
+        compact(file, left, given);
+        this.dead.putAll(given);
+        this.out = new FileOutputStream(file, true);
+        this.synced = this.out.getChannel().size();
+
+        for (Map.Entry<String, Map<String, Object>> ack : left.entrySet()) {
+            Entry entry = new Entry(ack.getKey(), ack.getValue(), true);
+            entry.durable.countDown();
+            this.pending.put(entry.id, entry);
+            this.outgoing.add(entry);
+        }
+
+        DaemonThreadFactory threads = new DaemonThreadFactory("klarna-ack-");
+        this.committer = threads.newThread(new Runnable() {
+            @Override
+            public void run() {
+                commit();
+            }
+        });
+        this.sender = threads.newThread(new Runnable() {
+            @Override
+            public void run() {
+                send();
+            }
+        });
+        this.committer.start();
+        this.sender.start();
+    }
+
+    /**
+     * Add an acknowledgement, returning once it is durable.
+     *
+     * Adding an order that is already pending waits for the earlier
+     * acknowledgement to be durable and keeps its data. Adding an order
+     * whose acknowledgement is a dead letter tries it again.
+     *
+     * @param id   id of the order
+     * @param data data to update the order with
+     * @throws IOException           if the acknowledgement could not be
+     *                               written
+     * @throws InterruptedException  if interrupted while waiting
+     * @throws IllegalStateException if the outbox is closed
+     */
+    public void enqueue(final String id, final Map<String, Object> data)
+            throws IOException, InterruptedException {
+        if (id.indexOf('\t') >= 0 || id.indexOf('\n') >= 0
+                || id.indexOf('\r') >= 0) {
+            throw new IllegalArgumentException("Invalid order id: " + id);
+        }
+
+        Entry entry = new Entry(id, data, false);
+        // Checked and queued together, so no record lands behind the stop.
+        synchronized (this.records) {
+            if (this.closed) {
+                throw new IllegalStateException("Outbox is closed.");
+            }
+            Entry existing = this.pending.putIfAbsent(id, entry);
+            if (existing != null) {
+                entry = existing;
+            } else {
+                this.dead.remove(id);
+                this.records.add(new Record(
+                        ADD + "\t" + id + "\t" + JSONValue.toJSONString(data),
+                        entry));
+            }
+        }
+
+        entry.durable.await();
+        if (entry.error != null) {
+            throw entry.error;
+        }
+    }
+
+    /**
+     * Whether an acknowledgement of an order is waiting to be sent.
+     *
+     * @param id id of the order
+     * @return true if pending
+     */
+    public boolean isPending(final String id) {
+        return this.pending.containsKey(id);
+    }
+
+    /**
+     * Get the number of acknowledgements waiting to be sent.
+     *
+     * @return number of pending acknowledgements
+     */
+    public int size() {
+        return this.pending.size();
+    }
+
+    /**
+     * Get the number of syncs of the journal.
+     *
+     * @return number of syncs
+     */
+    public long getSyncCount() {
+        return this.syncs.get();
+    }
+
+    /**
+     * Get the number of acknowledgements sent.
+     *
+     * @return number of sent acknowledgements
+     */
+    public long getSentCount() {
+        return this.sent.get();
+    }
+
+    /**
+     * Get the number of sends that failed.
+     *
+     * @return number of failed sends
+     */
+    public long getFailureCount() {
+        return this.failures.get();
+    }
+
+    /**
+     * Set the number of sends tried before giving up on an acknowledgement.
+     *
+     * @param attempts number of sends, at least 1
+     */
+    public void setMaxAttempts(final int attempts) {
+        if (attempts < 1) {
+            throw new IllegalArgumentException(
+                    "Attempts must be at least 1: " + attempts);
+        }
+        this.maxAttempts = attempts;
+    }
+
+    /**
+     * Get the acknowledgements given up on.
+     *
+     * @return data of the dead letters keyed by order id
+     */
+    public Map<String, Map<String, Object>> getDeadLetters() {
+        return new HashMap<String, Map<String, Object>>(this.dead);
+    }
+
+    /**
+     * Drop an acknowledgement given up on.
+     *
+     * @param id id of the order
+     * @return true if it was a dead letter
+     * @throws IllegalStateException if the outbox is closed
+     */
+    public boolean discard(final String id) {
+        synchronized (this.records) {
+            if (this.closed) {
+                throw new IllegalStateException("Outbox is closed.");
+            }
+            if (this.dead.remove(id) == null) {
+                return false;
+            }
+            this.records.add(new Record(DONE + "\t" + id, null));
+            return true;
+        }
+    }
+
+    /**
+     * Stop sending and close the journal.
+     *
+     * Acknowledgements not yet sent are sent when the journal is opened
+     * again.
+     *
+     * @throws IOException          if the journal could not be closed
+     * @throws InterruptedException if interrupted while stopping
+     */
+    public void close() throws IOException, InterruptedException {
+        synchronized (this.records) {
+            this.closed = true;
+        }
+        this.sender.interrupt();
+        this.sender.join();
+        // Not interrupted, as that would close the channel mid write.
+        this.records.add(STOP);
+        this.committer.join();
+        this.out.close();
+    }
+
+    /**
+     * Finish or undo a compaction that was cut short.
+     *
+     * A journal replaced by deleting it first is missing while its
+     * compacted copy is complete. When both are present, the copy may be
+     * incomplete and is dropped.
+     *
+     * @param file journal file
+     * @throws IOException if the journal could not be restored
+     */
+    private static void recover(final File file) throws IOException {
+        File tmp = new File(file.getPath() + ".tmp");
+        if (!tmp.exists()) {
+            return;
+        }
+        if (file.exists()) {
+            if (!tmp.delete()) {
+                throw new IOException("Failed to delete " + tmp);
+            }
+        } else if (!tmp.renameTo(file)) {
+            throw new IOException("Failed to restore " + file);
+        }
+    }
+
+    /**
+     * Read the acknowledgements not yet sent from a journal.
+     *
+     * A torn last record left by a crash is ignored; it was never reported
+     * as durable.
+     *
+     * @param file  journal file
+     * @param left  filled with data to send keyed by order id, in journal
+     *              order
+     * @param given filled with data of the dead letters keyed by order id
+     * @throws IOException if the journal could not be read
+     */
+    private static void replay(
+            final File file,
+            final Map<String, Map<String, Object>> left,
+            final Map<String, Map<String, Object>> given)
+            throws IOException {
+        if (!file.exists()) {
+            return;
+        }
+
+        BufferedReader reader = new BufferedReader(new InputStreamReader(
+                new FileInputStream(file), "UTF-8"));
+        try {
+            JSONParser parser = new JSONParser();
+            String line;
+            while ((line = reader.readLine()) != null) {
+                String[] fields = line.split("\t", 3);
+                if (fields.length == 2 && fields[0].equals(DONE)) {
+                    left.remove(fields[1]);
+                    given.remove(fields[1]);
+                } else if (fields.length == 2 && fields[0].equals(DEAD)) {
+                    if (left.containsKey(fields[1])) {
+                        given.put(fields[1], left.remove(fields[1]));
+                    }
+                } else if (fields.length == 3 && fields[0].equals(ADD)) {
+                    try {
+                        given.remove(fields[1]);
+                        left.put(fields[1], data(parser.parse(fields[2])));
+                    } catch (ParseException ex) {
+                        Logger.getLogger(AckOutbox.class.getName()).log(
+                                Level.WARNING, "Skipping torn record", ex);
+                    }
+                }
+            }
+        } finally {
+            reader.close();
+        }
+    }
+
+    /**
+     * Get the data of a journaled acknowledgement.
+     *
+     * @param value parsed JSON value
+     * @return data keyed by field name
+     * @throws ParseException if the value is not an object
+     */
+    private static Map<String, Object> data(final Object value)
+            throws ParseException {
+        if (!(value instanceof Map)) {
+            throw new ParseException(ParseException.ERROR_UNEXPECTED_TOKEN);
+        }
+        Map<String, Object> data = new LinkedHashMap<String, Object>();
+        for (Map.Entry<?, ?> field : ((Map<?, ?>) value).entrySet()) {
+            data.put(String.valueOf(field.getKey()), field.getValue());
+        }
+        return data;
+    }
+
+    /**
+     * Rewrite a journal with only the acknowledgements not yet sent and
+     * the dead letters.
+     *
+     * @param file  journal file
+     * @param left  data to send keyed by order id
+     * @param given data of the dead letters keyed by order id
+     * @throws IOException if the journal could not be written
+     */
+    private static void compact(
+            final File file,
+            final Map<String, Map<String, Object>> left,
+            final Map<String, Map<String, Object>> given)
+            throws IOException {
+        File tmp = new File(file.getPath() + ".tmp");
+        FileOutputStream stream = new FileOutputStream(tmp);
+        try {
+            StringBuilder lines = new StringBuilder();
+            for (Map.Entry<String, Map<String, Object>> ack : left.entrySet()) {
+                lines.append(ADD).append('\t').append(ack.getKey())
+                        .append('\t')
+                        .append(JSONValue.toJSONString(ack.getValue()))
+                        .append('\n');
+            }
+            for (Map.Entry<String, Map<String, Object>> ack
+                    : given.entrySet()) {
+                lines.append(ADD).append('\t').append(ack.getKey())
+                        .append('\t')
+                        .append(JSONValue.toJSONString(ack.getValue()))
+                        .append('\n');
+                lines.append(DEAD).append('\t').append(ack.getKey())
+                        .append('\n');
+            }
+            stream.write(lines.toString().getBytes("UTF-8"));
+            stream.getChannel().force(true);
+        } finally {
+            stream.close();
+        }
+
+        if (!tmp.renameTo(file)) {
+            // Renaming does not replace an existing file everywhere. Should
+            // this stop in between, recover() finishes it on the next open.
+            if (!file.delete() || !tmp.renameTo(file)) {
+                throw new IOException("Failed to replace " + file);
+            }
+        }
+    }
+
+    /**
+     * Write records in batches, syncing once per batch, until stopped.
+     */
+    private void commit() {
+        List<Record> batch = new ArrayList<Record>();
+        boolean stopped = false;
+        try {
+            while (!stopped) {
+                batch.add(this.records.take());
+                this.records.drainTo(batch);
+                stopped = batch.remove(STOP);
+
+                IOException error = this.write(batch);
+
+                for (Record record : batch) {
+                    if (record.entry == null) {
+                        continue;
+                    }
+                    if (error != null) {
+                        record.entry.error = error;
+                        this.pending.remove(record.entry.id, record.entry);
+                    } else {
+                        this.outgoing.add(record.entry);
+                    }
+                    record.entry.durable.countDown();
+                }
+                batch.clear();
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Append a batch of records to the journal and sync it.
+     *
+     * A failed write may leave part of a line behind, which would swallow
+     * the next record on replay, so the journal is cut back to its last
+     * sync. If that fails too, no more records are written.
+     *
+     * @param batch records to write
+     * @return the error, or null if the records are durable
+     */
+    private IOException write(final List<Record> batch) {
+        if (this.broken != null) {
+            return new IOException("Journal is unusable", this.broken);
+        }
+        try {
+            StringBuilder lines = new StringBuilder();
+            for (Record record : batch) {
+                lines.append(record.line).append('\n');
+            }
+            this.out.write(lines.toString().getBytes("UTF-8"));
+            this.out.getChannel().force(false);
+            this.synced = this.out.getChannel().size();
+            this.syncs.incrementAndGet();
+            return null;
+        } catch (IOException ex) {
+            try {
+                this.out.getChannel().truncate(this.synced);
+            } catch (IOException truncateEx) {
+                this.broken = truncateEx;
+                Logger.getLogger(AckOutbox.class.getName()).log(
+                        Level.SEVERE, "Failed to restore journal", truncateEx);
+            }
+            return ex;
+        }
+    }
+
+    /**
+     * Send acknowledgements as they come due, until interrupted.
+     */
+    private void send() {
+        try {
+            while (true) {
+                Entry entry = this.outgoing.take();
+                try {
+                    Order order = new Order(this.connector, entry.id);
+                    boolean done = false;
+                    if (entry.verify) {
+                        order.fetch();
+                        done = PushPipeline.CREATED.equals(order.get("status"));
+                    }
+                    if (!done) {
+                        order.update(entry.data);
+                    }
+
+                    this.sent.incrementAndGet();
+                    // Journaled before a new acknowledgement can be.
+                    this.records.add(new Record(DONE + "\t" + entry.id, null));
+                    this.pending.remove(entry.id, entry);
+                } catch (Exception ex) {
+                    this.failures.incrementAndGet();
+                    entry.retry();
+                    if (entry.attempts < this.maxAttempts) {
+                        Logger.getLogger(AckOutbox.class.getName()).log(
+                                Level.WARNING,
+                                "Failed to acknowledge " + entry.id,
+                                ex);
+                        this.outgoing.add(entry);
+                    } else {
+                        Logger.getLogger(AckOutbox.class.getName()).log(
+                                Level.SEVERE,
+                                "Giving up on acknowledging " + entry.id
+                                        + " after " + entry.attempts
+                                        + " attempts",
+                                ex);
+                        this.dead.put(entry.id, entry.data);
+                        // Journaled before a new acknowledgement can be.
+                        this.records.add(
+                                new Record(DEAD + "\t" + entry.id, null));
+                        this.pending.remove(entry.id, entry);
+                    }
+                }
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * A line to append to the journal.
+     */
+    private static final class Record {
+
+        /**
+         * Line without the line break.
+         */
+        private final String line;
+
+        /**
+         * Acknowledgement added by the line, null for other records.
+         */
+        private final Entry entry;
+
+        /**
+         * Constructor.
+         *
+         * @param text  line without the line break
+         * @param added acknowledgement added by the line
+         */
+        Record(final String text, final Entry added) {
+            this.line = text;
+            this.entry = added;
+        }
+    }
+
+    /**
+     * An acknowledgement to send.
+     */
+    private static final class Entry implements Delayed {
+
+        /**
+         * Id of the order.
+         */
+        private final String id;
+
+        /**
+         * Data to update the order with.
+         */
+        private final Map<String, Object> data;
+
+        /**
+         * Whether the order may have been acknowledged already, when read
+         * back from the journal or after a failed send.
+         */
+        private boolean verify;
+
+        /**
+         * Released once the acknowledgement is durable or failed to be.
+         */
+        private final CountDownLatch durable = new CountDownLatch(1);
+
+        /**
+         * Error writing the acknowledgement, null if durable.
+         */
+        private volatile IOException error;
+
+        /**
+         * Number of failed sends.
+         */
+        private int attempts;
+
+        /**
+         * Time the next send is due.
+         */
+        private long due = System.nanoTime();
+
+        /**
+         * Constructor.
+         *
+         * @param orderId id of the order
+         * @param update  data to update the order with
+         * @param read    whether read back from the journal
+         */
+        Entry(
+                final String orderId,
+                final Map<String, Object> update,
+                final boolean read) {
+            this.id = orderId;
+            this.data = update;
+            this.verify = read;
+        }
+
+        /**
+         * Delay the next send after a failure.
+         */
+        void retry() {
+            this.verify = true;
+            long delay = RETRY_DELAY << Math.min(this.attempts++, 16);
+            this.due = System.nanoTime() + Math.min(delay, MAX_RETRY_DELAY);
+        }
+
+        @Override
+        public long getDelay(final TimeUnit unit) {
+            return unit.convert(
+                    this.due - System.nanoTime(), TimeUnit.NANOSECONDS);
+        }
+
+        @Override
+        public int compareTo(final Delayed other) {
+            long diff = this.getDelay(TimeUnit.NANOSECONDS)
+                    - other.getDelay(TimeUnit.NANOSECONDS);
+            if (diff < 0) {
+                return -1;
+            }
+            if (diff > 0) {
+                return 1;
+            }
+            return 0;
+        }
+    }
+}
@@ -18,24 +18,36 @@ package com.klarna.checkout;
 
 import org.apache.http.*;
 import org.apache.http.client.ClientProtocolException;
+import org.apache.http.client.HttpRequestRetryHandler;
+import org.apache.http.client.HttpResponseException;
 import org.apache.http.client.methods.HttpGet;
 import org.apache.http.client.methods.HttpPost;
 import org.apache.http.client.methods.HttpUriRequest;
 import org.apache.http.conn.ClientConnectionManager;
 import org.apache.http.entity.ByteArrayEntity;
+import org.apache.http.impl.client.AbstractHttpClient;
 import org.apache.http.impl.conn.BasicClientConnectionManager;
 import org.apache.http.params.BasicHttpParams;
 import org.apache.http.params.HttpConnectionParams;
 import org.apache.http.protocol.BasicHttpContext;
 import org.apache.http.protocol.HttpContext;
-import org.json.simple.JSONObject;
+import org.json.simple.JSONValue;
 
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStreamWriter;
 import java.io.UnsupportedEncodingException;
+import java.io.Writer;
 import java.net.URI;
 import java.net.URISyntaxException;
+import java.util.ArrayList;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * Implementation of the connector interface.
@@ -47,6 +59,11 @@ public class BasicConnector implements IConnector {
      */
     public static final int DEFAULT_TIMEOUT = 10000;
 
+    /**
+     * Default number of idempotent creates remembered.
+     */
+    public static final int DEFAULT_CREATES = 1000;
+
     /**
      * Digest instance.
      */
@@ -60,13 +77,61 @@ public class BasicConnector implements IConnector {
     /**
      * HttpClient implementation.
      */
-    protected IHttpClient client;
+    protected volatile IHttpClient client;
 
     /**
      * Connector baseUri.
      */
     private String baseUri = IConnector.BASE_URL;
 
+    /**
+     * Creates made with an idempotency key.
+     */
+    private volatile IdempotencyCache creates = new IdempotencyCache(
+            DEFAULT_CREATES, TimeUnit.MINUTES.toNanos(10));
+
+    /**
+     * Listener told about the work done, combining all listeners, null for
+     * none.
+     */
+    private volatile MetricsListener metrics;
+
+    /**
+     * Tracer of requests, combining all tracers, null for none.
+     */
+    private volatile Tracer tracer;
+
+    /**
+     * Listener set as the main one, null for none.
+     */
+    private MetricsListener mainListener;
+
+    /**
+     * Listeners added besides the main one.
+     */
+    private final List<MetricsListener> addedListeners =
+            new ArrayList<MetricsListener>();
+
+    /**
+     * Tracer set as the main one, null for none.
+     */
+    private Tracer mainTracer;
+
+    /**
+     * Tracers added besides the main one.
+     */
+    private final List<Tracer> addedTracers = new ArrayList<Tracer>();
+
+    /**
+     * Limit on the requests in flight.
+     */
+    private final ConcurrencyLimit concurrency = new ConcurrencyLimit();
+
+    /**
+     * Number of requests sent again after an I/O error.
+     */
+    private final AtomicLong retries = new AtomicLong();
+
     /**
      * Constructor.
      *
@@ -101,6 +166,19 @@ public class BasicConnector implements IConnector {
         this.baseUri = base;
     }
 
+    /**
+     * Get the pool connections are leased from.
+     *
+     * @return the pool, or null if the connector does not use a
+     *         {@link ConnectionPool}
+     */
+    public ConnectionPool getConnectionPool() {
+        if (this.manager instanceof ConnectionPool) {
+            return (ConnectionPool) this.manager;
+        }
+        return null;
+    }
+
     /**
      * Create a HTTP Client.
      *
@@ -113,12 +191,198 @@ public class BasicConnector implements IConnector {
         return new HttpClientWrapper(this.manager, params);
     }
 
+    /**
+     * Set how many creates with an idempotency key are remembered and for
+     * how long.
+     *
+     * @param size     most number of completed creates remembered
+     * @param duration how long a completed create is remembered
+     * @param unit     unit of the duration
+     */
+    public void setIdempotencyWindow(
+            final int size, final long duration, final TimeUnit unit) {
+        if (size <= 0) {
+            throw new IllegalArgumentException("Size must be positive.");
+        }
+        this.creates = new IdempotencyCache(size, unit.toNanos(duration));
+    }
+
+    /**
+     * Set the listener told about the timings and sizes of requests.
+     *
+     * Listeners added with {@link #addMetricsListener} are told as well.
+     *
+     * @param listener listener to use, null to stop measuring
+     */
+    public synchronized void setMetricsListener(
+            final MetricsListener listener) {
+        this.mainListener = listener;
+        this.combineListeners();
+    }
+
+    /**
+     * Get the listener told about the timings and sizes of requests.
+     *
+     * @return the listener, or null if none is set
+     */
+    public synchronized MetricsListener getMetricsListener() {
+        return this.mainListener;
+    }
+
+    /**
+     * Add a listener told about the timings and sizes of requests besides
+     * the one set.
+     *
+     * @param listener listener to add
+     */
+    public synchronized void addMetricsListener(
+            final MetricsListener listener) {
+        if (listener == null) {
+            throw new IllegalArgumentException("Listener may not be null.");
+        }
+        this.addedListeners.add(listener);
+        this.combineListeners();
+    }
+
+    /**
+     * Remove an added listener.
+     *
+     * @param listener listener to remove
+     */
+    public synchronized void removeMetricsListener(
+            final MetricsListener listener) {
+        this.addedListeners.remove(listener);
+        this.combineListeners();
+    }
+
+    /**
+     * Set the tracer opening a span for every request.
+     *
+     * Tracers added with {@link #addTracer} open spans as well.
+     *
+     * @param spans tracer to use, null to stop tracing
+     */
+    public synchronized void setTracer(final Tracer spans) {
+        this.mainTracer = spans;
+        this.combineTracers();
+    }
+
+    /**
+     * Get the tracer opening a span for every request.
+     *
+     * @return the tracer, or null if none is set
+     */
+    public synchronized Tracer getTracer() {
+        return this.mainTracer;
+    }
+
+    /**
+     * Add a tracer opening a span for every request besides the one set.
+     *
+     * @param spans tracer to add
+     */
+    public synchronized void addTracer(final Tracer spans) {
+        if (spans == null) {
+            throw new IllegalArgumentException("Tracer may not be null.");
+        }
+        this.addedTracers.add(spans);
+        this.combineTracers();
+    }
+
+    /**
+     * Remove an added tracer.
+     *
+     * @param spans tracer to remove
+     */
+    public synchronized void removeTracer(final Tracer spans) {
+        this.addedTracers.remove(spans);
+        this.combineTracers();
+    }
+
+    /**
+     * Publish the listener combining the main and added ones.
+     */
+    private void combineListeners() {
+        List<MetricsListener> all = new ArrayList<MetricsListener>();
+        if (this.mainListener != null) {
+            all.add(this.mainListener);
+        }
+        all.addAll(this.addedListeners);
+
+        if (all.isEmpty()) {
+            this.metrics = null;
+        } else if (all.size() == 1) {
+            this.metrics = all.get(0);
+        } else {
+            this.metrics = new CompositeListener(all);
+        }
+    }
+
+    /**
+     * Publish the tracer combining the main and added ones.
+     */
+    private void combineTracers() {
+        List<Tracer> all = new ArrayList<Tracer>();
+        if (this.mainTracer != null) {
+            all.add(this.mainTracer);
+        }
+        all.addAll(this.addedTracers);
+
+        if (all.isEmpty()) {
+            this.tracer = null;
+        } else if (all.size() == 1) {
+            this.tracer = all.get(0);
+        } else {
+            this.tracer = new CompositeTracer(all);
+        }
+    }
+
     @Override
     public void setTimeout(final int milliseconds) {
         HttpConnectionParams.setSoTimeout(
                 this.getClient().getParams(), milliseconds);
     }
 
+    /**
+     * Get the socket timeout.
+     *
+     * @return timeout in milliseconds, 0 for none
+     */
+    public int getTimeout() {
+        return HttpConnectionParams.getSoTimeout(this.getClient().getParams());
+    }
+
+    /**
+     * Set the most requests this connector runs at the same time.
+     *
+     * Requests over the limit wait for a running one to finish. A changed
+     * limit applies to requests started after it was set.
+     *
+     * @param max most requests in flight, 0 for no limit
+     */
+    public void setMaxConcurrency(final int max) {
+        this.concurrency.setLimit(max);
+    }
+
+    /**
+     * Get the most requests this connector runs at the same time.
+     *
+     * @return most requests in flight, 0 for no limit
+     */
+    public int getMaxConcurrency() {
+        return this.concurrency.getLimit();
+    }
+
+    /**
+     * Get the number of requests the HTTP client sent again after an I/O
+     * error.
+     *
+     * @return number of retries
+     */
+    public long getRetryCount() {
+        return this.retries.get();
+    }
+
     @Override
     public HttpResponse apply(final String method, final IResource resource)
             throws IOException {
@@ -141,13 +405,258 @@ public class BasicConnector implements IConnector {
                     "Unsupported HTTP Method. (" + method + ")");
         }
 
+        boolean counted;
+        try {
+            counted = this.concurrency.acquire();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException(
+                    "Interrupted waiting for a request slot");
+        }
+
+        try {
+            return this.applyOnce(method, resource, options);
+        } finally {
+            if (counted) {
+                this.concurrency.release();
+            }
+        }
+    }
+
+    /**
+     * Apply a request unless it is a create with the same idempotency key
+     * as one in flight or recently completed, in which case its outcome is
+     * shared.
+     *
+     * @param method   HTTP method
+     * @param resource IResource implementation
+     * @param options  Options for Connector
+     * @return the HTTP response
+     * @throws IOException if the request failed
+     */
+    private HttpResponse applyOnce(
+            final String method,
+            final IResource resource,
+            final ConnectorOptions options) throws IOException {
+        String key = null;
+        if (options != null && method.equals("POST")) {
+            key = options.getIdempotencyKey();
+        }
+        if (key == null) {
+            return this.measure(method, resource, options);
+        }
+
+        IdempotencyCache cache = this.creates;
+        IdempotencyCache.Call call = new IdempotencyCache.Call();
+        IdempotencyCache.Call first = cache.join(key, call);
+        if (first != null) {
+            return this.share(first, method, resource, options);
+        }
+
+        try {
+            HttpResponse response = this.measure(method, resource, options);
+            call.complete(response, resource.getLocation());
+            return response;
+        } catch (IOException ex) {
+            cache.forget(key, call);
+            call.fail(ex);
+            throw ex;
+        } catch (RuntimeException ex) {
+            cache.forget(key, call);
+            call.fail(new IOException(ex));
+            throw ex;
+        }
+    }
+
+    /**
+     * Wait for the outcome of an earlier create, telling the listener and
+     * tracer it was deduplicated.
+     *
+     * @param first    the earlier create
+     * @param method   HTTP method
+     * @param resource IResource implementation
+     * @param options  Options for Connector
+     * @return response of the earlier create
+     * @throws IOException if the earlier create failed
+     */
+    private HttpResponse share(
+            final IdempotencyCache.Call first,
+            final String method,
+            final IResource resource,
+            final ConnectorOptions options) throws IOException {
+        MetricsListener listener = this.metrics;
+        Tracer tracing = this.tracer;
+        Trace trace = null;
+        if (tracing != null) {
+            trace = new Trace(tracing.start(
+                    method, resource, this.getUri(options, resource)));
+            trace.enter("deduplicated");
+        }
+
+        long start = System.nanoTime();
+        int status = 0;
+        IOException error = null;
+        try {
+            HttpResponse response = first.await();
+            if (first.getLocation() != null) {
+                resource.setLocation(first.getLocation());
+            }
+            status = response.getStatusLine().getStatusCode();
+            return response;
+        } catch (IOException ex) {
+            if (ex instanceof HttpResponseException) {
+                status = ((HttpResponseException) ex).getStatusCode();
+            }
+            error = ex;
+            throw ex;
+        } finally {
+            if (listener != null) {
+                listener.deduplicated(
+                        resource,
+                        method,
+                        status,
+                        System.nanoTime() - start,
+                        error);
+            }
+            if (trace != null) {
+                trace.end(status, error);
+            }
+        }
+    }
+
+    /**
+     * Apply a request, telling the listener and tracer about it if set.
+     *
+     * @param method   HTTP method
+     * @param resource IResource implementation
+     * @param options  Options for Connector
+     * @return the HTTP response
+     * @throws IOException if the request failed
+     */
+    private HttpResponse measure(
+            final String method,
+            final IResource resource,
+            final ConnectorOptions options) throws IOException {
+        MetricsListener listener = this.metrics;
+        Tracer tracing = this.tracer;
+        Trace trace = null;
+        if (tracing != null) {
+            trace = new Trace(tracing.start(
+                    method, resource, this.getUri(options, resource)));
+        }
+        if (listener == null && trace == null) {
+            return this.send(method, resource, options, null, null);
+        }
+
+        long start = System.nanoTime();
+        int status = 0;
+        Exception error = null;
+        try {
+            HttpResponse response =
+                    this.send(method, resource, options, listener, trace);
+            status = response.getStatusLine().getStatusCode();
+            return response;
+        } catch (HttpResponseException ex) {
+            status = ex.getStatusCode();
+            error = ex;
+            throw ex;
+        } catch (IOException ex) {
+            error = ex;
+            throw ex;
+        } catch (RuntimeException ex) {
+            error = ex;
+            throw ex;
+        } finally {
+            if (listener != null) {
+                listener.applied(
+                        resource,
+                        method,
+                        status,
+                        System.nanoTime() - start,
+                        error);
+            }
+            if (trace != null) {
+                trace.end(status, error);
+            }
+        }
+    }
+
+    /**
+     * Create and execute a request, measuring and tracing it if asked to.
+     *
+     * @param method   HTTP method
+     * @param resource IResource implementation
+     * @param options  Options for Connector
+     * @param listener listener told about the work done, may be null
+     * @param trace    trace of the request, may be null
+     * @return the HTTP response
+     * @throws IOException if the request failed
+     */
+    private HttpResponse send(
+            final String method,
+            final IResource resource,
+            final ConnectorOptions options,
+            final MetricsListener listener,
+            final Trace trace) throws IOException {
+        if (trace != null) {
+            trace.enter("serialize");
+        }
+        long start = System.nanoTime();
         HttpUriRequest req = createRequest(method, resource, options);
+        if (listener != null) {
+            long bytes = 0;
+            if (req instanceof HttpEntityEnclosingRequest) {
+                bytes = ((HttpEntityEnclosingRequest) req)
+                        .getEntity().getContentLength();
+            }
+            listener.requestCreated(
+                    resource, method, System.nanoTime() - start, bytes);
+        }
 
         HttpContext ctex = new BasicHttpContext();
         ctex.setAttribute("klarna_resource", resource);
         ctex.setAttribute("klarna_visited", new HashSet<URI>());
+        if (trace != null) {
+            ctex.setAttribute(Trace.ATTRIBUTE, trace);
+            trace.enter("lease");
+        }
+
+        Set<String> fields = null;
+        if (options != null) {
+            fields = options.getFields();
+        }
+
+        Handler handler = new Handler(resource, fields, listener, trace);
+        HttpResponse response = getClient().execute(req, handler, ctex);
+
+        if (method.equals("GET")
+                && resource instanceof Resource
+                && response.getStatusLine().getStatusCode()
+                        == HttpStatus.SC_OK) {
+            ((Resource) resource).setValidators(
+                    req.getURI(),
+                    fields,
+                    headerValue(response, "ETag"),
+                    headerValue(response, "Last-Modified"));
+        }
+
+        return response;
+    }
 
-        return getClient().execute(req, new Handler(resource), ctex);
+    /**
+     * Get the value of the last header with a name.
+     *
+     * @param response HTTP Response object
+     * @param name     header name
+     * @return the header value, or null if missing
+     */
+    private static String headerValue(
+            final HttpResponse response, final String name) {
+        Header header = response.getLastHeader(name);
+        if (header == null) {
+            return null;
+        }
+        return header.getValue();
     }
 
     /**
@@ -177,11 +686,13 @@ public class BasicConnector implements IConnector {
      * @param resource IResource implementation
      * @return Data to use
      */
+    @SuppressWarnings("unchecked")
     protected Map<String, Object> getData(
             final ConnectorOptions options, final IResource resource) {
         if (options.getData() != null) {
             return options.getData();
         }
+        // IResource.marshal returns a raw map.
         return resource.marshal();
     }
 
@@ -207,12 +718,12 @@ public class BasicConnector implements IConnector {
 
         if (method.equals("GET")) {
             req = new HttpGet(uri);
+            this.addValidators(req, resource, options);
         } else {
             HttpPost post = new HttpPost(uri);
-            String payload = JSONObject.toJSONString(
-                    getData(options, resource));
+            byte[] payload = createPayload(getData(options, resource));
 
-            post.setEntity(new ByteArrayEntity(payload.getBytes("UTF-8")));
+            post.setEntity(new ByteArrayEntity(payload));
 
             post.setHeader("Content-Type", resource.getContentType());
             req = post;
@@ -224,6 +735,90 @@ public class BasicConnector implements IConnector {
         return req;
     }
 
+    /**
+     * Make a fetch conditional on the data of the resource having changed.
+     *
+     * Validators are only sent if the resource holds data fetched from the
+     * same location with the same fields, so a 304 response can keep it.
+     *
+     * @param req      GET request
+     * @param resource IResource implementation
+     * @param options  Options for Connector
+     */
+    protected void addValidators(
+            final HttpUriRequest req,
+            final IResource resource,
+            final ConnectorOptions options) {
+        if (!(resource instanceof Resource)) {
+            return;
+        }
+
+        Set<String> fields = null;
+        if (options != null) {
+            fields = options.getFields();
+        }
+
+        Resource res = (Resource) resource;
+        if (!res.hasValidators(req.getURI(), fields)) {
+            return;
+        }
+        if (res.getETag() != null) {
+            req.setHeader("If-None-Match", res.getETag());
+        }
+        if (res.getLastModified() != null) {
+            req.setHeader("If-Modified-Since", res.getLastModified());
+        }
+    }
+
+    /**
+     * Encode the data to send as a UTF-8 JSON payload.
+     *
+     * Top level {@link JsonFragment} values are copied in as their cached
+     * bytes rather than being encoded again.
+     *
+     * @param data Data to encode
+     * @return the encoded payload
+     * @throws UnsupportedEncodingException if UTF-8 is not supported
+     */
+    protected byte[] createPayload(final Map<String, Object> data)
+            throws UnsupportedEncodingException {
+        if (data == null) {
+            return "null".getBytes("UTF-8");
+        }
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        Writer writer = new OutputStreamWriter(out, "UTF-8");
+
+        try {
+            boolean first = true;
+            writer.write('{');
+            for (Map.Entry<?, ?> entry : data.entrySet()) {
+                if (!first) {
+                    writer.write(',');
+                }
+                first = false;
+
+                writer.write('"');
+                writer.write(JSONValue.escape(String.valueOf(entry.getKey())));
+                writer.write("\":");
+
+                if (entry.getValue() instanceof JsonFragment) {
+                    writer.flush();
+                    out.write(((JsonFragment) entry.getValue()).getBytes());
+                } else {
+                    JSONValue.writeJSONString(entry.getValue(), writer);
+                }
+            }
+            writer.write('}');
+            writer.flush();
+        } catch (IOException ex) {
+            // Writing to memory does not fail.
+            throw new IllegalStateException(ex);
+        }
+
+        return out.toByteArray();
+    }
+
     /**
      * Creates a new UserAgent.
      *
@@ -239,14 +834,79 @@ public class BasicConnector implements IConnector {
      * @return A new or the existing HttpClient object.
      */
     public IHttpClient getClient() {
-        if (this.client == null) {
-            this.client = this.createHttpClient();
-            this.client.addResponseInterceptor(
-                    new ResourceLocationInterceptor());
-            this.client.addRequestInterceptor(
-                    new AuthorizationInterceptor(this.digest));
+        IHttpClient existing = this.client;
+        if (existing != null) {
+            return existing;
+        }
+
+        synchronized (this) {
+            if (this.client == null) {
+                // Only published once fully set up.
+                IHttpClient created = this.createHttpClient();
+                created.addResponseInterceptor(
+                        new ResourceLocationInterceptor());
+                created.addRequestInterceptor(
+                        new AuthorizationInterceptor(this.digest, this));
+                if (created instanceof AbstractHttpClient) {
+                    AbstractHttpClient http = (AbstractHttpClient) created;
+                    http.setHttpRequestRetryHandler(new CountingRetryHandler(
+                            http.getHttpRequestRetryHandler(), this));
+                }
+                this.client = created;
+            }
+            return this.client;
+        }
+    }
+
+    /**
+     * Retry handler counting the retries it allows and telling the metrics
+     * listener about them.
+     */
+    private static class CountingRetryHandler
+            implements HttpRequestRetryHandler {
+
+        /**
+         * Handler deciding whether to retry.
+         */
+        private final HttpRequestRetryHandler handler;
+
+        /**
+         * Connector counting the retries.
+         */
+        private final BasicConnector connector;
+
+        /**
+         * Constructor.
+         *
+         * @param decider handler deciding whether to retry
+         * @param conn    connector counting the retries
+         */
+        CountingRetryHandler(
+                final HttpRequestRetryHandler decider,
+                final BasicConnector conn) {
+            this.handler = decider;
+            this.connector = conn;
+        }
+
+        @Override
+        public boolean retryRequest(
+                final IOException exception,
+                final int executionCount,
+                final HttpContext context) {
+            boolean retry = this.handler.retryRequest(
+                    exception, executionCount, context);
+            if (retry) {
+                this.connector.retries.incrementAndGet();
+                MetricsListener listener = this.connector.metrics;
+                if (listener != null) {
+                    listener.retried(
+                            (IResource) context.getAttribute(
+                                    "klarna_resource"),
+                            exception);
+                }
+            }
+            return retry;
         }
-        return this.client;
     }
 
     /**
@@ -299,13 +959,21 @@ public class BasicConnector implements IConnector {
          */
         private final Digest digest;
 
+        /**
+         * Connector whose listener is told how long signing took.
+         */
+        private final BasicConnector connector;
+
         /**
          * Constructor.
          *
-         * @param dig Digester
+         * @param dig   Digester
+         * @param owner Connector whose listener is told about signing
          */
-        public AuthorizationInterceptor(final Digest dig) {
+        public AuthorizationInterceptor(
+                final Digest dig, final BasicConnector owner) {
             this.digest = dig;
+            this.connector = owner;
         }
 
         /**
@@ -319,7 +987,13 @@ public class BasicConnector implements IConnector {
         public void process(
                 final HttpRequest request, final HttpContext context)
                 throws HttpException, IOException {
+            Trace trace = Trace.of(context);
+            if (trace != null) {
+                trace.enter("digest");
+            }
+
             String digestString;
+            long start = System.nanoTime();
 
             if (request instanceof HttpEntityEnclosingRequest) {
                 HttpEntityEnclosingRequest her;
@@ -329,7 +1003,17 @@ public class BasicConnector implements IConnector {
             } else {
                 digestString = this.digest.create("");
             }
+
+            MetricsListener listener = this.connector.metrics;
+            if (listener != null) {
+                listener.digestCreated(System.nanoTime() - start);
+            }
             request.addHeader("Authorization", "Klarna " + digestString);
+
+            if (trace != null) {
+                trace.inject(request);
+                trace.enter("send");
+            }
         }
     }
 }
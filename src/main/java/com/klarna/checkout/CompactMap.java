@@ -0,0 +1,459 @@
+/*
+ * Copyright 2015 Klarna AB
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.klarna.checkout;
+
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Memory compact map used to store resource data.
+ *
+ * Entries are kept in flat arrays in insertion order instead of entry
+ * objects. Keys are shared through a dictionary so the same key string is
+ * held once for all resources, Long and Double values are stored unboxed,
+ * and maps with more than a handful of keys get an open addressing index.
+ * Null keys are not supported.
+ */
+final class CompactMap extends AbstractMap<String, Object> {
+
+    /**
+     * Most keys kept in the shared dictionary.
+     */
+    static final int MAX_KEYS = 4096;
+
+    /**
+     * Most entries looked up by scanning instead of through the index.
+     */
+    private static final int SCAN_LIMIT = 8;
+
+    /**
+     * Initial number of entries.
+     */
+    private static final int INITIAL_CAPACITY = 4;
+
+    /**
+     * Shared key dictionary.
+     */
+    private static final ConcurrentHashMap<String, String> KEYS =
+            new ConcurrentHashMap<String, String>();
+
+    /**
+     * Marker for a value stored as a long.
+     */
+    private static final Object LONG = new Object();
+
+    /**
+     * Marker for a value stored as the bits of a double.
+     */
+    private static final Object DOUBLE = new Object();
+
+    /**
+     * Keys in insertion order.
+     */
+    private String[] keys;
+
+    /**
+     * Values, or a marker when the value is in numbers.
+     */
+    private Object[] values;
+
+    /**
+     * Unboxed numbers, allocated with the first one.
+     */
+    private long[] numbers;
+
+    /**
+     * Open addressing index of positions plus one, null while small.
+     */
+    private int[] index;
+
+    /**
+     * Number of entries.
+     */
+    private int size;
+
+    /**
+     * Constructor.
+     */
+    CompactMap() {
+        this(INITIAL_CAPACITY);
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param capacity number of entries to make room for
+     */
+    CompactMap(final int capacity) {
+        int room = Math.max(capacity, 1);
+        this.keys = new String[room];
+        this.values = new Object[room];
+    }
+
+    /**
+     * Get the shared instance of a key.
+     *
+     * @param key key to look up
+     * @return the shared instance, or key once the dictionary is full
+     */
+    static String intern(final String key) {
+        String shared = KEYS.get(key);
+        if (shared != null) {
+            return shared;
+        }
+        if (KEYS.size() >= MAX_KEYS) {
+            return key;
+        }
+        shared = KEYS.putIfAbsent(key, key);
+        if (shared == null) {
+            return key;
+        }
+        return shared;
+    }
+
+    /**
+     * Convert parsed JSON into its compact form.
+     *
+     * Maps become compact maps and lists are trimmed copies, other values
+     * are returned as they are.
+     *
+     * @param value parsed JSON value
+     * @return compact copy of the value
+     */
+    static Object compact(final Object value) {
+        if (value instanceof Map) {
+            Map<?, ?> map = (Map<?, ?>) value;
+            CompactMap copy = new CompactMap(map.size());
+            for (Map.Entry<?, ?> entry : map.entrySet()) {
+                copy.put((String) entry.getKey(), compact(entry.getValue()));
+            }
+            return copy;
+        }
+        if (value instanceof List) {
+            List<?> list = (List<?>) value;
+            ArrayList<Object> copy = new ArrayList<Object>(list.size());
+            for (Object item : list) {
+                copy.add(compact(item));
+            }
+            return copy;
+        }
+        return value;
+    }
+
+    @Override
+    public int size() {
+        return this.size;
+    }
+
+    @Override
+    public boolean containsKey(final Object key) {
+        return this.find(key) >= 0;
+    }
+
+    @Override
+    public Object get(final Object key) {
+        int at = this.find(key);
+        if (at < 0) {
+            return null;
+        }
+        return this.valueAt(at);
+    }
+
+    @Override
+    public Object put(final String key, final Object value) {
+        if (key == null) {
+            throw new NullPointerException("Null keys are not supported");
+        }
+
+        int at = this.find(key);
+        if (at >= 0) {
+            Object old = this.valueAt(at);
+            this.store(at, value);
+            return old;
+        }
+
+        if (this.size == this.keys.length) {
+            this.grow();
+        }
+        at = this.size++;
+        this.keys[at] = intern(key);
+        this.store(at, value);
+        if (this.index != null) {
+            this.insert(at);
+        } else if (this.size > SCAN_LIMIT) {
+            this.reindex();
+        }
+        return null;
+    }
+
+    @Override
+    public Object remove(final Object key) {
+        int at = this.find(key);
+        if (at < 0) {
+            return null;
+        }
+        Object old = this.valueAt(at);
+        this.removeAt(at);
+        return old;
+    }
+
+    @Override
+    public void clear() {
+        Arrays.fill(this.keys, 0, this.size, null);
+        Arrays.fill(this.values, 0, this.size, null);
+        this.size = 0;
+        this.index = null;
+    }
+
+    @Override
+    public Set<Map.Entry<String, Object>> entrySet() {
+        return new AbstractSet<Map.Entry<String, Object>>() {
+            @Override
+            public Iterator<Map.Entry<String, Object>> iterator() {
+                return new Entries();
+            }
+
+            @Override
+            public int size() {
+                return CompactMap.this.size;
+            }
+
+            @Override
+            public void clear() {
+                CompactMap.this.clear();
+            }
+        };
+    }
+
+    /**
+     * Find the position of a key.
+     *
+     * @param key key to find
+     * @return position of the key, or -1 if missing
+     */
+    private int find(final Object key) {
+        if (!(key instanceof String)) {
+            return -1;
+        }
+
+        if (this.index == null) {
+            for (int i = 0; i < this.size; i++) {
+                if (this.keys[i] == key || this.keys[i].equals(key)) {
+                    return i;
+                }
+            }
+            return -1;
+        }
+
+        int mask = this.index.length - 1;
+        int slot = spread(key.hashCode()) & mask;
+        while (this.index[slot] != 0) {
+            int at = this.index[slot] - 1;
+            if (this.keys[at] == key || this.keys[at].equals(key)) {
+                return at;
+            }
+            slot = (slot + 1) & mask;
+        }
+        return -1;
+    }
+
+    /**
+     * Get the value at a position.
+     *
+     * @param at position
+     * @return boxed value
+     */
+    private Object valueAt(final int at) {
+        Object value = this.values[at];
+        if (value == LONG) {
+            return Long.valueOf(this.numbers[at]);
+        }
+        if (value == DOUBLE) {
+            return Double.valueOf(Double.longBitsToDouble(this.numbers[at]));
+        }
+        return value;
+    }
+
+    /**
+     * Store a value at a position, unboxing numbers.
+     *
+     * @param at    position
+     * @param value value to store
+     */
+    private void store(final int at, final Object value) {
+        if (value != null && value.getClass() == Long.class) {
+            this.numbers()[at] = (Long) value;
+            this.values[at] = LONG;
+        } else if (value != null && value.getClass() == Double.class) {
+            this.numbers()[at] =
+                    Double.doubleToRawLongBits((Double) value);
+            this.values[at] = DOUBLE;
+        } else {
+            this.values[at] = value;
+        }
+    }
+
+    /**
+     * Get the number storage, allocating it if needed.
+     *
+     * @return number storage
+     */
+    private long[] numbers() {
+        if (this.numbers == null) {
+            this.numbers = new long[this.keys.length];
+        }
+        return this.numbers;
+    }
+
+    /**
+     * Remove the entry at a position.
+     *
+     * Later entries are moved down to keep the arrays dense and in
+     * insertion order.
+     *
+     * @param at position
+     */
+    private void removeAt(final int at) {
+        int last = --this.size;
+        int tail = last - at;
+        System.arraycopy(this.keys, at + 1, this.keys, at, tail);
+        System.arraycopy(this.values, at + 1, this.values, at, tail);
+        if (this.numbers != null) {
+            System.arraycopy(this.numbers, at + 1, this.numbers, at, tail);
+        }
+        this.keys[last] = null;
+        this.values[last] = null;
+
+        if (this.size <= SCAN_LIMIT) {
+            this.index = null;
+        } else {
+            this.reindex();
+        }
+    }
+
+    /**
+     * Make room for more entries.
+     */
+    private void grow() {
+        int capacity = this.keys.length * 2;
+        this.keys = Arrays.copyOf(this.keys, capacity);
+        this.values = Arrays.copyOf(this.values, capacity);
+        if (this.numbers != null) {
+            this.numbers = Arrays.copyOf(this.numbers, capacity);
+        }
+        if (this.index != null) {
+            this.reindex();
+        }
+    }
+
+    /**
+     * Rebuild the index for the current capacity.
+     */
+    private void reindex() {
+        int slots = Integer.highestOneBit(this.keys.length * 2 - 1) * 2;
+        this.index = new int[slots];
+        for (int i = 0; i < this.size; i++) {
+            this.insert(i);
+        }
+    }
+
+    /**
+     * Add a position to the index.
+     *
+     * @param at position
+     */
+    private void insert(final int at) {
+        int mask = this.index.length - 1;
+        int slot = spread(this.keys[at].hashCode()) & mask;
+        while (this.index[slot] != 0) {
+            slot = (slot + 1) & mask;
+        }
+        this.index[slot] = at + 1;
+    }
+
+    /**
+     * Spread the bits of a hash code.
+     *
+     * @param hash hash code
+     * @return spread hash code
+     */
+    private static int spread(final int hash) {
+        return hash ^ (hash >>> 16);
+    }
+
+    /**
+     * Iterator over the entries.
+     */
+    private final class Entries
+            implements Iterator<Map.Entry<String, Object>> {
+
+        /**
+         * Position of the next entry.
+         */
+        private int next;
+
+        /**
+         * Position of the last returned entry, -1 if none.
+         */
+        private int last = -1;
+
+        @Override
+        public boolean hasNext() {
+            return this.next < CompactMap.this.size;
+        }
+
+        @Override
+        public Map.Entry<String, Object> next() {
+            if (!this.hasNext()) {
+                throw new NoSuchElementException();
+            }
+            this.last = this.next++;
+            return new SimpleEntry<String, Object>(
+                    CompactMap.this.keys[this.last],
+                    CompactMap.this.valueAt(this.last)) {
+                /**
+                 * Serial version.
+                 */
+                private static final long serialVersionUID = 1L;
+
+                @Override
+                public Object setValue(final Object value) {
+                    CompactMap.this.put(this.getKey(), value);
+                    return super.setValue(value);
+                }
+            };
+        }
+
+        @Override
+        public void remove() {
+            if (this.last < 0) {
+                throw new IllegalStateException();
+            }
+            CompactMap.this.removeAt(this.last);
+            this.next = this.last;
+            this.last = -1;
+        }
+    }
+}
@@ -0,0 +1,100 @@
+/*
+ * Copyright 2015 Klarna AB
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.klarna.checkout;
+
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * Metrics listener passing every event on to several listeners.
+ */
+final class CompositeListener implements MetricsListener {
+
+    /**
+     * Listeners to tell.
+     */
+    private final MetricsListener[] listeners;
+
+    /**
+     * Constructor.
+     *
+     * @param all listeners to tell
+     */
+    CompositeListener(final List<MetricsListener> all) {
+        this.listeners = all.toArray(new MetricsListener[all.size()]);
+    }
+
+    @Override
+    public void requestCreated(
+            final IResource resource,
+            final String method,
+            final long nanos,
+            final long bytes) {
+        for (MetricsListener listener : this.listeners) {
+            listener.requestCreated(resource, method, nanos, bytes);
+        }
+    }
+
+    @Override
+    public void digestCreated(final long nanos) {
+        for (MetricsListener listener : this.listeners) {
+            listener.digestCreated(nanos);
+        }
+    }
+
+    @Override
+    public void retried(final IResource resource, final IOException error) {
+        for (MetricsListener listener : this.listeners) {
+            listener.retried(resource, error);
+        }
+    }
+
+    @Override
+    public void responseHandled(
+            final IResource resource,
+            final int status,
+            final long nanos,
+            final long bytes) {
+        for (MetricsListener listener : this.listeners) {
+            listener.responseHandled(resource, status, nanos, bytes);
+        }
+    }
+
+    @Override
+    public void applied(
+            final IResource resource,
+            final String method,
+            final int status,
+            final long nanos,
+            final Exception error) {
+        for (MetricsListener listener : this.listeners) {
+            listener.applied(resource, method, status, nanos, error);
+        }
+    }
+
+    @Override
+    public void deduplicated(
+            final IResource resource,
+            final String method,
+            final int status,
+            final long nanos,
+            final Exception error) {
+        for (MetricsListener listener : this.listeners) {
+            listener.deduplicated(resource, method, status, nanos, error);
+        }
+    }
+}
@@ -0,0 +1,103 @@
+/*
+ * Copyright 2015 Klarna AB
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.klarna.checkout;
+
+import java.net.URI;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Tracer opening a span with each of several tracers.
+ *
+ * The headers of all spans are sent, later tracers overriding earlier ones
+ * that use the same header name.
+ */
+final class CompositeTracer implements Tracer {
+
+    /**
+     * Tracers to open spans with.
+     */
+    private final Tracer[] tracers;
+
+    /**
+     * Constructor.
+     *
+     * @param all tracers to open spans with
+     */
+    CompositeTracer(final List<Tracer> all) {
+        this.tracers = all.toArray(new Tracer[all.size()]);
+    }
+
+    @Override
+    public Span start(
+            final String method, final IResource resource, final URI uri) {
+        Span[] spans = new Span[this.tracers.length];
+        for (int i = 0; i < spans.length; i++) {
+            spans[i] = this.tracers[i].start(method, resource, uri);
+        }
+        return new CompositeSpan(spans);
+    }
+
+    /**
+     * Span made of one span per tracer.
+     */
+    private static final class CompositeSpan implements Span {
+
+        /**
+         * Spans of the tracers.
+         */
+        private final Span[] spans;
+
+        /**
+         * Constructor.
+         *
+         * @param parts spans of the tracers
+         */
+        CompositeSpan(final Span[] parts) {
+            this.spans = parts;
+        }
+
+        @Override
+        public Span child(final String name) {
+            Span[] children = new Span[this.spans.length];
+            for (int i = 0; i < children.length; i++) {
+                children[i] = this.spans[i].child(name);
+            }
+            return new CompositeSpan(children);
+        }
+
+        @Override
+        public Map<String, String> getHeaders() {
+            Map<String, String> headers = new LinkedHashMap<String, String>();
+            for (Span span : this.spans) {
+                Map<String, String> part = span.getHeaders();
+                if (part != null) {
+                    headers.putAll(part);
+                }
+            }
+            return headers;
+        }
+
+        @Override
+        public void end(final int status, final Exception error) {
+            for (Span span : this.spans) {
+                span.end(status, error);
+            }
+        }
+    }
+}
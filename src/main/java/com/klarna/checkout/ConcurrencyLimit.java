@@ -0,0 +1,95 @@
+/*
+ * Copyright 2015 Klarna AB
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.klarna.checkout;
+
+/**
+ * Limit on the number of requests in flight that can be changed live.
+ *
+ * The limit only applies to requests started while it is set, so
+ * requests that were already running when it was set are not counted.
+ */
+final class ConcurrencyLimit {
+
+    /**
+     * Most requests in flight, 0 for no limit.
+     */
+    private volatile int limit;
+
+    /**
+     * Number of counted requests in flight.
+     */
+    private int inFlight;
+
+    /**
+     * Wait for room for a request if there is a limit.
+     *
+     * @return true if the request was counted and must be released
+     * @throws InterruptedException if interrupted while waiting
+     */
+    boolean acquire() throws InterruptedException {
+        if (this.limit == 0) {
+            return false;
+        }
+
+        synchronized (this) {
+            while (this.limit > 0 && this.inFlight >= this.limit) {
+                this.wait();
+            }
+            this.inFlight++;
+            return true;
+        }
+    }
+
+    /**
+     * Release a counted request.
+     */
+    synchronized void release() {
+        this.inFlight--;
+        this.notify();
+    }
+
+    /**
+     * Set the most requests in flight.
+     *
+     * @param max most requests in flight, 0 for no limit
+     */
+    synchronized void setLimit(final int max) {
+        if (max < 0) {
+            throw new IllegalArgumentException("Limit may not be negative.");
+        }
+        this.limit = max;
+        this.notifyAll();
+    }
+
+    /**
+     * Get the most requests in flight.
+     *
+     * @return most requests in flight, 0 for no limit
+     */
+    int getLimit() {
+        return this.limit;
+    }
+
+    /**
+     * Get the number of counted requests in flight.
+     *
+     * @return number of requests
+     */
+    synchronized int getInFlight() {
+        return this.inFlight;
+    }
+}
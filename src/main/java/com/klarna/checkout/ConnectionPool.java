@@ -0,0 +1,239 @@
+/*
+ * Copyright 2015 Klarna AB
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.klarna.checkout;
+
+import org.apache.http.conn.ClientConnectionRequest;
+import org.apache.http.conn.ConnectionPoolTimeoutException;
+import org.apache.http.conn.ManagedClientConnection;
+import org.apache.http.conn.routing.HttpRoute;
+import org.apache.http.impl.conn.PoolingClientConnectionManager;
+import org.apache.http.pool.PoolStats;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Pool of connections that measures how long leases wait.
+ *
+ * Every lease is recorded in a histogram, and a listener can be told about
+ * leases that waited longer than a threshold, which means the pool is too
+ * small for the load. Live statistics are kept for the pool as a whole and
+ * for every route it has served.
+ */
+public class ConnectionPool extends PoolingClientConnectionManager {
+
+    /**
+     * Time leases waited for a connection.
+     */
+    private final LatencyHistogram leaseWaits = new LatencyHistogram();
+
+    /**
+     * Routes served so far.
+     */
+    private final Map<HttpRoute, Boolean> routes =
+            new ConcurrentHashMap<HttpRoute, Boolean>();
+
+    /**
+     * Number of leases that timed out.
+     */
+    private final AtomicLong timeouts = new AtomicLong();
+
+    /**
+     * Number of leases that waited longer than the threshold.
+     */
+    private final AtomicLong saturations = new AtomicLong();
+
+    /**
+     * Listener told about slow leases, null for none.
+     */
+    private volatile Listener listener;
+
+    /**
+     * Wait in nanoseconds above which the listener is told.
+     */
+    private volatile long threshold;
+
+    /**
+     * Constructor.
+     *
+     * @param maxConnections most number of open connections
+     */
+    public ConnectionPool(final int maxConnections) {
+        if (maxConnections <= 0) {
+            throw new IllegalArgumentException(
+                    "Connection count must be positive.");
+        }
+
+        this.setMaxTotal(maxConnections);
+        this.setDefaultMaxPerRoute(maxConnections);
+    }
+
+    /**
+     * Tell a listener about leases that wait longer than a threshold.
+     *
+     * @param wait  longest wait that is not reported
+     * @param unit  unit of the wait
+     * @param alert listener to tell, null to stop telling
+     */
+    public void setSaturationListener(
+            final long wait, final TimeUnit unit, final Listener alert) {
+        this.threshold = unit.toNanos(wait);
+        this.listener = alert;
+    }
+
+    @Override
+    public ClientConnectionRequest requestConnection(
+            final HttpRoute route, final Object state) {
+        if (!this.routes.containsKey(route)) {
+            this.routes.put(route, Boolean.TRUE);
+        }
+        return new TimedRequest(route, super.requestConnection(route, state));
+    }
+
+    /**
+     * Get the statistics of every route served so far.
+     *
+     * @return statistics by route
+     */
+    public Map<HttpRoute, PoolStats> getRouteStats() {
+        Map<HttpRoute, PoolStats> stats =
+                new LinkedHashMap<HttpRoute, PoolStats>();
+        for (HttpRoute route : this.routes.keySet()) {
+            stats.put(route, this.getStats(route));
+        }
+        return stats;
+    }
+
+    /**
+     * Get the time leases waited for a connection, including those that
+     * timed out.
+     *
+     * @return snapshot of the waits
+     */
+    public LatencyHistogram.Snapshot getLeaseWaits() {
+        return this.leaseWaits.snapshot();
+    }
+
+    /**
+     * Get the number of leases that timed out.
+     *
+     * @return number of timeouts
+     */
+    public long getTimeoutCount() {
+        return this.timeouts.get();
+    }
+
+    /**
+     * Get the number of leases that waited longer than the threshold.
+     *
+     * @return number of slow leases
+     */
+    public long getSaturationCount() {
+        return this.saturations.get();
+    }
+
+    /**
+     * Get the current time.
+     *
+     * @return time in nanoseconds
+     */
+    protected long now() {
+        return System.nanoTime();
+    }
+
+    /**
+     * Record how long a lease waited.
+     *
+     * @param route route of the lease
+     * @param nanos time waited
+     */
+    private void leased(final HttpRoute route, final long nanos) {
+        this.leaseWaits.record(nanos);
+
+        Listener alert = this.listener;
+        if (alert != null && nanos > this.threshold) {
+            this.saturations.incrementAndGet();
+            alert.saturated(route, nanos, this.getStats(route));
+        }
+    }
+
+    /**
+     * Told about leases that waited longer than the threshold.
+     */
+    public interface Listener {
+
+        /**
+         * Called after a lease waited longer than the threshold, on the
+         * thread that waited.
+         *
+         * @param route route of the lease
+         * @param nanos time waited in nanoseconds
+         * @param stats statistics of the route after the lease
+         */
+        void saturated(HttpRoute route, long nanos, PoolStats stats);
+    }
+
+    /**
+     * Connection request timing the wait for a connection.
+     */
+    private final class TimedRequest implements ClientConnectionRequest {
+
+        /**
+         * Route of the request.
+         */
+        private final HttpRoute route;
+
+        /**
+         * Request of the underlying pool.
+         */
+        private final ClientConnectionRequest request;
+
+        /**
+         * Constructor.
+         *
+         * @param to   route of the request
+         * @param pool request of the underlying pool
+         */
+        TimedRequest(final HttpRoute to, final ClientConnectionRequest pool) {
+            this.route = to;
+            this.request = pool;
+        }
+
+        @Override
+        public ManagedClientConnection getConnection(
+                final long timeout, final TimeUnit unit)
+                throws InterruptedException, ConnectionPoolTimeoutException {
+            long start = now();
+            try {
+                return this.request.getConnection(timeout, unit);
+            } catch (ConnectionPoolTimeoutException ex) {
+                timeouts.incrementAndGet();
+                throw ex;
+            } finally {
+                leased(this.route, now() - start);
+            }
+        }
+
+        @Override
+        public void abortRequest() {
+            this.request.abortRequest();
+        }
+    }
+}
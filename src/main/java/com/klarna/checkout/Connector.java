@@ -58,4 +58,31 @@ public final class Connector {
             }
         };
     }
+
+    /**
+     * Create a Connector that can be shared between threads.
+     *
+     * Requests are made over a pool of connections, so up to that many
+     * requests can run at the same time. The pool is a
+     * {@link ConnectionPool} reporting how long requests wait for it.
+     *
+     * @param sharedSecret   String used to sign communications with Klarna
+     * @param baseURL        Base URL to use
+     * @param maxConnections Most number of open connections
+     * @return a IConnector implementation
+     * @throws NoSuchAlgorithmException if the JVM does not support SHA-256
+     */
+    public static IConnector create(
+            final String sharedSecret,
+            final String baseURL,
+            final int maxConnections)
+            throws NoSuchAlgorithmException {
+        ConnectionPool pool = new ConnectionPool(maxConnections);
+
+        return new BasicConnector(new Digest(sharedSecret), pool) {
+            {
+                setBaseUri(baseURL);
+            }
+        };
+    }
 }
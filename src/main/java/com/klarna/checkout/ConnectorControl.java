@@ -0,0 +1,368 @@
+/*
+ * Copyright 2015 Klarna AB
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.klarna.checkout;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Management bean of a connector, for watching and tuning it live.
+ *
+ * The bean counts requests by adding itself to the metrics listeners of the
+ * connector, next to the listener set on it. Unregistering the bean removes
+ * it from the listeners again, registering it adds it back. Attach the cache
+ * and rate limiter used with the connector to manage them too.
+ *
+ * <pre>
+ * ConnectorControl control = new ConnectorControl(connector);
+ * control.setRateLimiter(limiter);
+ * control.register("orders");
+ * ...
+ * control.unregister();
+ * </pre>
+ */
+public class ConnectorControl
+        implements ConnectorControlMBean, MetricsListener {
+
+    /**
+     * Domain of the registered beans.
+     */
+    public static final String DOMAIN = "com.klarna.checkout";
+
+    /**
+     * Managed connector.
+     */
+    private final BasicConnector connector;
+
+    /**
+     * Number of requests applied.
+     */
+    private final AtomicLong requests = new AtomicLong();
+
+    /**
+     * Number of failed requests by status code.
+     */
+    private final ConcurrentMap<Integer, AtomicLong> errors =
+            new ConcurrentHashMap<Integer, AtomicLong>();
+
+    /**
+     * Cache used with the connector, may be null.
+     */
+    private volatile ResourceCache cache;
+
+    /**
+     * Rate limiter used with the connector, may be null.
+     */
+    private volatile RateLimiter limiter;
+
+    /**
+     * Name the bean is registered under, null if not registered.
+     */
+    private ObjectName name;
+
+    /**
+     * Whether the bean is one of the metrics listeners of the connector.
+     */
+    private boolean listening;
+
+    /**
+     * Constructor.
+     *
+     * @param conn connector to manage
+     */
+    public ConnectorControl(final BasicConnector conn) {
+        if (conn == null) {
+            throw new IllegalArgumentException("Connector may not be null.");
+        }
+
+        this.connector = conn;
+        this.listen();
+    }
+
+    /**
+     * Attach the cache used with the connector.
+     *
+     * @param orders cache to report on, null for none
+     */
+    public void setCache(final ResourceCache orders) {
+        this.cache = orders;
+    }
+
+    /**
+     * Attach the rate limiter used with the connector.
+     *
+     * @param rate rate limiter to tune, null for none
+     */
+    public void setRateLimiter(final RateLimiter rate) {
+        this.limiter = rate;
+    }
+
+    /**
+     * Register the bean with the platform MBean server.
+     *
+     * @param label name telling the connector apart from others
+     * @return the name the bean was registered under
+     * @throws JMException if the bean could not be registered
+     */
+    public synchronized ObjectName register(final String label)
+            throws JMException {
+        if (this.name != null) {
+            throw new IllegalStateException("Already registered.");
+        }
+
+        ObjectName object = new ObjectName(
+                DOMAIN + ":type=Connector,name=" + ObjectName.quote(label));
+        ManagementFactory.getPlatformMBeanServer().registerMBean(this, object);
+        this.name = object;
+        this.listen();
+        return object;
+    }
+
+    /**
+     * Unregister the bean from the platform MBean server.
+     *
+     * The bean stops counting requests, so a bean that is not registered
+     * again can be dropped.
+     *
+     * @throws JMException if the bean could not be unregistered
+     */
+    public synchronized void unregister() throws JMException {
+        if (this.listening) {
+            this.connector.removeMetricsListener(this);
+            this.listening = false;
+        }
+        if (this.name == null) {
+            return;
+        }
+
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        if (server.isRegistered(this.name)) {
+            server.unregisterMBean(this.name);
+        }
+        this.name = null;
+    }
+
+    /**
+     * Add the bean to the metrics listeners of the connector, once.
+     */
+    private synchronized void listen() {
+        if (!this.listening) {
+            this.connector.addMetricsListener(this);
+            this.listening = true;
+        }
+    }
+
+    @Override
+    public void requestCreated(
+            final IResource resource,
+            final String method,
+            final long nanos,
+            final long bytes) {
+        // Only applied requests are counted.
+    }
+
+    @Override
+    public void digestCreated(final long nanos) {
+        // Only applied requests are counted.
+    }
+
+    @Override
+    public void retried(final IResource resource, final IOException error) {
+        // Counted by the connector already.
+    }
+
+    @Override
+    public void responseHandled(
+            final IResource resource,
+            final int status,
+            final long nanos,
+            final long bytes) {
+        // Only applied requests are counted.
+    }
+
+    @Override
+    public void applied(
+            final IResource resource,
+            final String method,
+            final int status,
+            final long nanos,
+            final Exception error) {
+        this.requests.incrementAndGet();
+        if (error != null) {
+            this.counter(status).incrementAndGet();
+        }
+    }
+
+    @Override
+    public void deduplicated(
+            final IResource resource,
+            final String method,
+            final int status,
+            final long nanos,
+            final Exception error) {
+        // Not sent, so not counted as a request.
+    }
+
+    @Override
+    public long getRequestCount() {
+        return this.requests.get();
+    }
+
+    @Override
+    public long getErrorCount() {
+        long total = 0;
+        for (AtomicLong count : this.errors.values()) {
+            total += count.get();
+        }
+        return total;
+    }
+
+    @Override
+    public Map<String, Long> getErrorsByCode() {
+        Map<String, Long> result = new TreeMap<String, Long>();
+        for (Map.Entry<Integer, AtomicLong> entry : this.errors.entrySet()) {
+            result.put(
+                    String.valueOf(entry.getKey()), entry.getValue().get());
+        }
+        return result;
+    }
+
+    @Override
+    public long getRetryCount() {
+        return this.connector.getRetryCount();
+    }
+
+    @Override
+    public long getCacheHitCount() {
+        ResourceCache orders = this.cache;
+        if (orders == null) {
+            return 0;
+        }
+        return orders.getHitCount();
+    }
+
+    @Override
+    public long getCacheMissCount() {
+        ResourceCache orders = this.cache;
+        if (orders == null) {
+            return 0;
+        }
+        return orders.getMissCount();
+    }
+
+    @Override
+    public int getTimeout() {
+        return this.connector.getTimeout();
+    }
+
+    @Override
+    public void setTimeout(final int milliseconds) {
+        if (milliseconds < 0) {
+            throw new IllegalArgumentException(
+                    "Timeout may not be negative.");
+        }
+        this.connector.setTimeout(milliseconds);
+    }
+
+    @Override
+    public int getMaxConnections() {
+        ConnectionPool pool = this.connector.getConnectionPool();
+        if (pool == null) {
+            return 0;
+        }
+        return pool.getMaxTotal();
+    }
+
+    @Override
+    public void setMaxConnections(final int max) {
+        if (max <= 0) {
+            throw new IllegalArgumentException(
+                    "Connection count must be positive.");
+        }
+
+        ConnectionPool pool = this.connector.getConnectionPool();
+        if (pool == null) {
+            throw new IllegalStateException("The connector is not pooled.");
+        }
+        pool.setMaxTotal(max);
+        pool.setDefaultMaxPerRoute(max);
+    }
+
+    @Override
+    public int getLeasedConnections() {
+        ConnectionPool pool = this.connector.getConnectionPool();
+        if (pool == null) {
+            return 0;
+        }
+        return pool.getTotalStats().getLeased();
+    }
+
+    @Override
+    public double getRateLimit() {
+        RateLimiter rate = this.limiter;
+        if (rate == null) {
+            return 0;
+        }
+        return rate.getRate();
+    }
+
+    @Override
+    public void setRateLimit(final double permitsPerSecond) {
+        RateLimiter rate = this.limiter;
+        if (rate == null) {
+            throw new IllegalStateException("No rate limiter is attached.");
+        }
+        rate.setRate(permitsPerSecond);
+    }
+
+    @Override
+    public int getMaxConcurrency() {
+        return this.connector.getMaxConcurrency();
+    }
+
+    @Override
+    public void setMaxConcurrency(final int max) {
+        this.connector.setMaxConcurrency(max);
+    }
+
+    /**
+     * Get the error counter of a status code, creating it on first use.
+     *
+     * @param status HTTP status code, 0 if there was no response
+     * @return the counter
+     */
+    private AtomicLong counter(final int status) {
+        AtomicLong count = this.errors.get(status);
+        if (count != null) {
+            return count;
+        }
+        count = new AtomicLong();
+        AtomicLong raced = this.errors.putIfAbsent(status, count);
+        if (raced != null) {
+            return raced;
+        }
+        return count;
+    }
+}
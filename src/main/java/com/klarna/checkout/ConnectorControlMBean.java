@@ -0,0 +1,134 @@
+/*
+ * Copyright 2015 Klarna AB
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.klarna.checkout;
+
+import java.util.Map;
+
+/**
+ * Management interface of a connector.
+ */
+public interface ConnectorControlMBean {
+
+    /**
+     * Get the number of requests applied.
+     *
+     * @return number of requests
+     */
+    long getRequestCount();
+
+    /**
+     * Get the number of requests that failed.
+     *
+     * @return number of failed requests
+     */
+    long getErrorCount();
+
+    /**
+     * Get the number of failed requests by HTTP status code, with "0" for
+     * requests that got no response.
+     *
+     * @return number of failed requests by status code
+     */
+    Map<String, Long> getErrorsByCode();
+
+    /**
+     * Get the number of requests the HTTP client sent again after an I/O
+     * error.
+     *
+     * @return number of retries
+     */
+    long getRetryCount();
+
+    /**
+     * Get the number of lookups that found a fresh order in the cache.
+     *
+     * @return number of hits, 0 without a cache
+     */
+    long getCacheHitCount();
+
+    /**
+     * Get the number of lookups that did not find a fresh order.
+     *
+     * @return number of misses, 0 without a cache
+     */
+    long getCacheMissCount();
+
+    /**
+     * Get the socket timeout.
+     *
+     * @return timeout in milliseconds
+     */
+    int getTimeout();
+
+    /**
+     * Set the socket timeout.
+     *
+     * @param milliseconds timeout in milliseconds
+     */
+    void setTimeout(int milliseconds);
+
+    /**
+     * Get the most number of pooled connections.
+     *
+     * @return most connections, 0 if the connector is not pooled
+     */
+    int getMaxConnections();
+
+    /**
+     * Set the most number of pooled connections, in total and per route.
+     *
+     * @param max most connections
+     * @throws IllegalStateException if the connector is not pooled
+     */
+    void setMaxConnections(int max);
+
+    /**
+     * Get the number of pooled connections in use.
+     *
+     * @return connections in use, 0 if the connector is not pooled
+     */
+    int getLeasedConnections();
+
+    /**
+     * Get the rate of the rate limiter.
+     *
+     * @return permits per second, 0 without a rate limiter
+     */
+    double getRateLimit();
+
+    /**
+     * Set the rate of the rate limiter.
+     *
+     * @param permitsPerSecond permits per second
+     * @throws IllegalStateException if no rate limiter is attached
+     */
+    void setRateLimit(double permitsPerSecond);
+
+    /**
+     * Get the most requests run at the same time.
+     *
+     * @return most requests in flight, 0 for no limit
+     */
+    int getMaxConcurrency();
+
+    /**
+     * Set the most requests run at the same time.
+     *
+     * @param max most requests in flight, 0 for no limit
+     */
+    void setMaxConcurrency(int max);
+}
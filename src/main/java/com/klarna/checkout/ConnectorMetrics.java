@@ -0,0 +1,191 @@
+/*
+ * Copyright 2015 Klarna AB
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.klarna.checkout;
+
+import java.io.IOException;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Metrics listener keeping latency histograms in memory.
+ *
+ * Requests are recorded per resource type, method and status class, such
+ * as "Order GET 2xx", with "error" as the class of requests that got no
+ * response and "deduplicated" as the class of creates that shared the
+ * outcome of an earlier one. The time spent creating requests, signing
+ * them and handling responses is recorded under "create", "digest" and
+ * "handle". Scrape the recorded values with {@link #snapshot()}.
+ */
+public class ConnectorMetrics implements MetricsListener {
+
+    /**
+     * Histograms by name.
+     */
+    private final ConcurrentMap<String, LatencyHistogram> histograms =
+            new ConcurrentHashMap<String, LatencyHistogram>();
+
+    /**
+     * Number of payload bytes sent.
+     */
+    private final AtomicLong sent = new AtomicLong();
+
+    /**
+     * Number of payload bytes received, where the size was known.
+     */
+    private final AtomicLong received = new AtomicLong();
+
+    @Override
+    public void requestCreated(
+            final IResource resource,
+            final String method,
+            final long nanos,
+            final long bytes) {
+        this.histogram("create").record(nanos);
+        if (bytes > 0) {
+            this.sent.addAndGet(bytes);
+        }
+    }
+
+    @Override
+    public void digestCreated(final long nanos) {
+        this.histogram("digest").record(nanos);
+    }
+
+    @Override
+    public void retried(final IResource resource, final IOException error) {
+        // Counted by the connector already.
+    }
+
+    @Override
+    public void responseHandled(
+            final IResource resource,
+            final int status,
+            final long nanos,
+            final long bytes) {
+        this.histogram("handle").record(nanos);
+        if (bytes > 0) {
+            this.received.addAndGet(bytes);
+        }
+    }
+
+    @Override
+    public void applied(
+            final IResource resource,
+            final String method,
+            final int status,
+            final long nanos,
+            final Exception error) {
+        this.histogram(key(resource, method, status)).record(nanos);
+    }
+
+    @Override
+    public void deduplicated(
+            final IResource resource,
+            final String method,
+            final int status,
+            final long nanos,
+            final Exception error) {
+        this.histogram(type(resource) + " " + method + " deduplicated")
+                .record(nanos);
+    }
+
+    /**
+     * Get the values recorded so far.
+     *
+     * @return snapshots by name, sorted by name
+     */
+    public Map<String, LatencyHistogram.Snapshot> snapshot() {
+        Map<String, LatencyHistogram.Snapshot> result =
+                new TreeMap<String, LatencyHistogram.Snapshot>();
+        for (Map.Entry<String, LatencyHistogram> entry
+                : this.histograms.entrySet()) {
+            result.put(entry.getKey(), entry.getValue().snapshot());
+        }
+        return result;
+    }
+
+    /**
+     * Get the number of payload bytes sent.
+     *
+     * @return number of bytes
+     */
+    public long getBytesSent() {
+        return this.sent.get();
+    }
+
+    /**
+     * Get the number of payload bytes received, where the size was known.
+     *
+     * @return number of bytes
+     */
+    public long getBytesReceived() {
+        return this.received.get();
+    }
+
+    /**
+     * Get the name requests are recorded under.
+     *
+     * @param resource the resource requested
+     * @param method   HTTP method
+     * @param status   HTTP status code, 0 if there was no response
+     * @return the name
+     */
+    static String key(
+            final IResource resource, final String method, final int status) {
+        String kind = "error";
+        if (status > 0) {
+            kind = (status / 100) + "xx";
+        }
+        return type(resource) + " " + method + " " + kind;
+    }
+
+    /**
+     * Get the name of the type of a resource.
+     *
+     * @param resource the resource requested
+     * @return the simple class name, or the full one for anonymous classes
+     */
+    private static String type(final IResource resource) {
+        String type = resource.getClass().getSimpleName();
+        if (type.length() == 0) {
+            type = resource.getClass().getName();
+        }
+        return type;
+    }
+
+    /**
+     * Get a histogram, creating it on first use.
+     *
+     * @param name name of the histogram
+     * @return the histogram
+     */
+    private LatencyHistogram histogram(final String name) {
+        LatencyHistogram histogram = this.histograms.get(name);
+        if (histogram != null) {
+            return histogram;
+        }
+        histogram = new LatencyHistogram();
+        LatencyHistogram raced = this.histograms.putIfAbsent(name, histogram);
+        if (raced != null) {
+            return raced;
+        }
+        return histogram;
+    }
+}
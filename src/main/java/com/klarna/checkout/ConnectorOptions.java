@@ -19,7 +19,9 @@ package com.klarna.checkout;
 import java.net.URI;
 import java.net.URISyntaxException;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Map;
+import java.util.Set;
 
 /**
  * ConnectorOptions holds the options needed for the Connector.
@@ -36,6 +38,16 @@ public class ConnectorOptions {
      */
     private Map<String, Object> data = new HashMap<String, Object>();
 
+    /**
+     * Fields option.
+     */
+    private Set<String> fields;
+
+    /**
+     * Idempotency key option.
+     */
+    private String idempotencyKey;
+
     /**
      * Set a new URI object.
      *
@@ -82,4 +94,51 @@ public class ConnectorOptions {
         this.data.clear();
         this.data.putAll(newData);
     }
+
+    /**
+     * Get the fields to keep from the response.
+     *
+     * @return the set fields, or null to keep the whole response.
+     */
+    public Set<String> getFields() {
+        return this.fields;
+    }
+
+    /**
+     * Only keep the given fields of the response.
+     *
+     * Fields are dot separated paths such as "cart.items.reference", arrays
+     * along a path are applied to each of their elements. Everything else
+     * is skipped while the response is streamed.
+     *
+     * @param newFields Set of fields to keep, or null to keep all of them.
+     */
+    public void setFields(final Set<String> newFields) {
+        if (newFields == null) {
+            this.fields = null;
+            return;
+        }
+        this.fields = new HashSet<String>(newFields);
+    }
+
+    /**
+     * Get the idempotency key of a create.
+     *
+     * @return the set key, or null if none.
+     */
+    public String getIdempotencyKey() {
+        return this.idempotencyKey;
+    }
+
+    /**
+     * Set the idempotency key of a create.
+     *
+     * Creates made through the same connector with the same key are only
+     * sent once, later ones get the outcome of the first.
+     *
+     * @param key Idempotency key, or null to always send.
+     */
+    public void setIdempotencyKey(final String key) {
+        this.idempotencyKey = key;
+    }
 }
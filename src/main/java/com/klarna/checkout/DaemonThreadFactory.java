@@ -0,0 +1,54 @@
+/*
+ * Copyright 2015 Klarna AB
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.klarna.checkout;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Creates daemon threads so pending background work does not keep the JVM
+ * alive.
+ */
+final class DaemonThreadFactory implements ThreadFactory {
+
+    /**
+     * Default thread factory.
+     */
+    private final ThreadFactory delegate = Executors.defaultThreadFactory();
+
+    /**
+     * Prefix of the thread names.
+     */
+    private final String prefix;
+
+    /**
+     * Constructor.
+     *
+     * @param name prefix of the thread names
+     */
+    DaemonThreadFactory(final String name) {
+        this.prefix = name;
+    }
+
+    @Override
+    public Thread newThread(final Runnable runnable) {
+        Thread thread = this.delegate.newThread(runnable);
+        thread.setDaemon(true);
+        thread.setName(this.prefix + thread.getName());
+        return thread;
+    }
+}
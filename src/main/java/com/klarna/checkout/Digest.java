@@ -28,6 +28,8 @@ import java.util.logging.Logger;
 
 /**
  * Class to handle the digesting of hash string.
+ *
+ * Instances may be shared between threads.
  */
 public class Digest {
 
@@ -37,9 +39,10 @@ public class Digest {
     private final String secret;
 
     /**
-     * MessageDigest object.
+     * MessageDigest object of each thread, so threads never wait for each
+     * other.
      */
-    private MessageDigest md;
+    private final ThreadLocal<MessageDigest> md;
 
     /**
      * Constructor.
@@ -50,7 +53,18 @@ public class Digest {
      */
     public Digest(final String sharedSecret) throws NoSuchAlgorithmException {
         this.secret = sharedSecret;
-        this.md = MessageDigest.getInstance("SHA-256");
+        MessageDigest.getInstance("SHA-256");
+        this.md = new ThreadLocal<MessageDigest>() {
+            @Override
+            protected MessageDigest initialValue() {
+                try {
+                    return MessageDigest.getInstance("SHA-256");
+                } catch (NoSuchAlgorithmException ex) {
+                    // Checked to be supported by the constructor.
+                    throw new IllegalStateException(ex);
+                }
+            }
+        };
     }
 
     /**
@@ -62,15 +76,16 @@ public class Digest {
      */
     public String create(final String message)
             throws UnsupportedEncodingException {
-        md.reset();
+        MessageDigest sha = this.md.get();
+        sha.reset();
 
         if (message != null) {
-            md.update(message.getBytes("UTF-8"));
+            sha.update(message.getBytes("UTF-8"));
         }
 
-        md.update(secret.getBytes("UTF-8"));
+        sha.update(secret.getBytes("UTF-8"));
 
-        return new String(Base64.encodeBase64(md.digest()));
+        return new String(Base64.encodeBase64(sha.digest()));
     }
 
     /**
@@ -82,7 +97,8 @@ public class Digest {
      */
     public String create(final InputStream stream)
             throws UnsupportedEncodingException {
-        md.reset();
+        MessageDigest sha = this.md.get();
+        sha.reset();
 
         if (stream != null) {
 
@@ -91,7 +107,7 @@ public class Digest {
 
             try {
                 while ((read = stream.read(b)) >= 0) {
-                    md.update(b, 0, read);
+                    sha.update(b, 0, read);
                 }
             } catch (IOException ex) {
                 Logger.getLogger(
@@ -99,8 +115,8 @@ public class Digest {
             }
         }
 
-        md.update(secret.getBytes("UTF-8"));
+        sha.update(secret.getBytes("UTF-8"));
 
-        return new String(Base64.encodeBase64(md.digest()));
+        return new String(Base64.encodeBase64(sha.digest()));
     }
 }
@@ -16,6 +16,7 @@
 
 package com.klarna.checkout;
 
+import org.apache.http.HttpEntity;
 import org.apache.http.HttpResponse;
 import org.apache.http.HttpStatus;
 import org.apache.http.StatusLine;
@@ -27,7 +28,9 @@ import org.json.simple.parser.JSONParser;
 import org.json.simple.parser.ParseException;
 
 import java.io.IOException;
+import java.io.InputStreamReader;
 import java.util.HashMap;
+import java.util.Set;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -42,13 +45,57 @@ class Handler implements ResponseHandler<HttpResponse> {
      */
     private final IResource resource;
 
+    /**
+     * Fields to keep from the payload, null for all.
+     */
+    private final Set<String> fields;
+
+    /**
+     * Listener told how long handling took, may be null.
+     */
+    private final MetricsListener listener;
+
+    /**
+     * Trace of the request, may be null.
+     */
+    private final Trace trace;
+
     /**
      * Constructor.
      *
      * @param res IResource implementation.
      */
     Handler(final IResource res) {
+        this(res, null);
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param res    IResource implementation.
+     * @param select Fields to keep from the payload, null for all.
+     */
+    Handler(final IResource res, final Set<String> select) {
+        this(res, select, null, null);
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param res     IResource implementation.
+     * @param select  Fields to keep from the payload, null for all.
+     * @param metrics Listener told how long handling took, may be null.
+     * @param traced  Trace of the request, may be null.
+     */
+    Handler(
+            final IResource res,
+            final Set<String> select,
+            final MetricsListener metrics,
+            final Trace traced) {
         this.resource = res;
+        this.fields = select;
+        this.listener = metrics;
+        this.trace = traced;
     }
 
     /**
@@ -60,12 +107,69 @@ class Handler implements ResponseHandler<HttpResponse> {
      */
     public HttpResponse handleResponse(final HttpResponse response)
             throws IOException {
+        if (this.trace != null) {
+            this.trace.enter("parse");
+        }
+        if (this.listener == null) {
+            return this.handle(response);
+        }
+
+        long bytes = -1;
+        if (response.getEntity() != null) {
+            bytes = response.getEntity().getContentLength();
+        }
+
+        long start = System.nanoTime();
+        try {
+            return this.handle(response);
+        } finally {
+            this.listener.responseHandled(
+                    this.resource,
+                    response.getStatusLine().getStatusCode(),
+                    System.nanoTime() - start,
+                    bytes);
+        }
+    }
+
+    /**
+     * Verify the status code and parse the payload.
+     *
+     * @param response Response from HTTP Request
+     * @return HttpResponse object
+     * @throws IOException in case of a problem or the connection was aborted
+     */
+    private HttpResponse handle(final HttpResponse response)
+            throws IOException {
 
         this.verifyStatusCode(response);
 
+        if (response.getStatusLine().getStatusCode()
+                == HttpStatus.SC_NOT_MODIFIED) {
+            // The resource keeps the data it was revalidated with.
+            EntityUtils.consume(response.getEntity());
+            return response;
+        }
+
+        final boolean ok =
+                response.getStatusLine().getStatusCode() == HttpStatus.SC_OK;
+
+        if (ok && this.fields != null) {
+            parsePayload(response.getEntity());
+            return response;
+        }
+
+        if (this.resource instanceof Resource
+                && ((Resource) this.resource).isLazy()) {
+            byte[] raw = EntityUtils.toByteArray(response.getEntity());
+            if (ok) {
+                parsePayload(raw);
+            }
+            return response;
+        }
+
         String payload = EntityUtils.toString(response.getEntity());
 
-        if (response.getStatusLine().getStatusCode() == HttpStatus.SC_OK) {
+        if (ok) {
             parsePayload(payload);
         }
 
@@ -125,4 +229,45 @@ class Handler implements ResponseHandler<HttpResponse> {
             throw new IOException(ex.getMessage());
         }
     }
+
+    /**
+     * Parse the selected fields while streaming the payload.
+     *
+     * @param entity HTTP entity holding the JSON payload.
+     * @throws IOException if parse was unsuccessful.
+     */
+    protected void parsePayload(final HttpEntity entity) throws IOException {
+        try {
+            resource.parse(JsonExtractor.extract(
+                    new InputStreamReader(entity.getContent(), "UTF-8"),
+                    this.fields));
+        } catch (ParseException ex) {
+            // Interface dictates strict exception types.
+            throw new IOException(ex.getMessage());
+        } finally {
+            EntityUtils.consume(entity);
+        }
+    }
+
+    /**
+     * Hand a raw payload to a lazy resource without parsing it.
+     *
+     * Only the opening brace is checked here, anything else wrong with the
+     * payload surfaces when the resource parses it.
+     *
+     * @param payload UTF-8 encoded JSON payload.
+     * @throws IOException if the payload is not a JSON object.
+     */
+    protected void parsePayload(final byte[] payload) throws IOException {
+        for (byte b : payload) {
+            if (b == '{') {
+                ((Resource) resource).parseRaw(payload);
+                return;
+            }
+            if (b != ' ' && b != '\t' && b != '\n' && b != '\r') {
+                break;
+            }
+        }
+        throw new IOException("Invalid JSON payload");
+    }
 }
@@ -16,12 +16,20 @@
 
 package com.klarna.checkout;
 
+import org.apache.http.HttpClientConnection;
+import org.apache.http.HttpException;
+import org.apache.http.HttpRequest;
+import org.apache.http.HttpResponse;
 import org.apache.http.conn.ClientConnectionManager;
 import org.apache.http.impl.client.DefaultHttpClient;
 import org.apache.http.params.HttpParams;
+import org.apache.http.protocol.HttpContext;
+import org.apache.http.protocol.HttpRequestExecutor;
+
+import java.io.IOException;
 
 /**
- * Empty class to enforce Interface.
+ * Default HTTP client of the connector.
  */
 public class HttpClientWrapper extends DefaultHttpClient
         implements IHttpClient {
@@ -46,4 +54,37 @@ public class HttpClientWrapper extends DefaultHttpClient
             final HttpParams params) {
         super(connectionManager, params);
     }
+
+    @Override
+    protected HttpRequestExecutor createRequestExecutor() {
+        return new TracingExecutor();
+    }
+
+    /**
+     * Request executor telling a traced request apart when it is waiting
+     * for the server and when it is redirected.
+     */
+    private class TracingExecutor extends HttpRequestExecutor {
+
+        @Override
+        protected HttpResponse doReceiveResponse(
+                final HttpRequest request,
+                final HttpClientConnection conn,
+                final HttpContext context)
+                throws HttpException, IOException {
+            Trace trace = Trace.of(context);
+            if (trace == null) {
+                return super.doReceiveResponse(request, conn, context);
+            }
+
+            trace.enter("wait");
+            HttpResponse response =
+                    super.doReceiveResponse(request, conn, context);
+            if (getRedirectStrategy().isRedirected(
+                    request, response, context)) {
+                trace.enter("redirect");
+            }
+            return response;
+        }
+    }
 }
@@ -0,0 +1,294 @@
+/*
+ * Copyright 2015 Klarna AB
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.klarna.checkout;
+
+import org.apache.http.HttpResponse;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.URI;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Bounded map of in-flight and recently completed creates by idempotency
+ * key.
+ *
+ * The first create with a key is made, and later creates with the same key
+ * wait for it and share its outcome. Completed creates are remembered for a
+ * fixed time and the oldest completed ones are dropped once the map is
+ * full. Failed creates are forgotten straight away so they can be retried.
+ */
+final class IdempotencyCache {
+
+    /**
+     * Most number of completed creates remembered.
+     */
+    private final int maxSize;
+
+    /**
+     * Time completed creates are remembered in nanoseconds.
+     */
+    private final long ttl;
+
+    /**
+     * Creates keyed by idempotency key.
+     */
+    private final ConcurrentHashMap<String, Call> calls;
+
+    /**
+     * Keys in the order they were added.
+     */
+    private final Queue<String> keys;
+
+    /**
+     * Number of keys in the queue, as counting the queue walks all of it.
+     */
+    private final AtomicInteger queued;
+
+    /**
+     * Constructor.
+     *
+     * @param size most number of completed creates remembered
+     * @param nanos time completed creates are remembered in nanoseconds
+     */
+    IdempotencyCache(final int size, final long nanos) {
+        this.maxSize = size;
+        this.ttl = nanos;
+        this.calls = new ConcurrentHashMap<String, Call>();
+        this.keys = new ConcurrentLinkedQueue<String>();
+        this.queued = new AtomicInteger();
+    }
+
+    /**
+     * Register a create unless one with the same key is known.
+     *
+     * @param key  idempotency key
+     * @param call the create to register
+     * @return the known create to share, or null if call was registered
+     */
+    Call join(final String key, final Call call) {
+        while (true) {
+            Call existing = this.calls.putIfAbsent(key, call);
+            if (existing == null) {
+                this.keys.add(key);
+                this.queued.incrementAndGet();
+                this.trim();
+                return null;
+            }
+            if (!existing.isExpired(this.ttl)) {
+                return existing;
+            }
+            this.calls.remove(key, existing);
+        }
+    }
+
+    /**
+     * Forget a create that failed.
+     *
+     * @param key  idempotency key
+     * @param call the failed create
+     */
+    void forget(final String key, final Call call) {
+        this.calls.remove(key, call);
+    }
+
+    /**
+     * Get the number of creates known.
+     *
+     * @return number of creates
+     */
+    int size() {
+        return this.calls.size();
+    }
+
+    /**
+     * Drop the oldest completed creates beyond the limit.
+     *
+     * Expired creates are replaced when their key is used again.
+     */
+    private void trim() {
+        Iterator<String> it = this.keys.iterator();
+        while (it.hasNext() && this.calls.size() > this.maxSize) {
+            String key = it.next();
+            Call call = this.calls.get(key);
+            if (call == null) {
+                it.remove();
+                this.queued.decrementAndGet();
+            } else if (call.isDone()) {
+                this.calls.remove(key, call);
+                it.remove();
+                this.queued.decrementAndGet();
+            }
+        }
+
+        // Keys of replaced creates linger until the queue is swept.
+        if (this.queued.get() > 2 * this.maxSize) {
+            it = this.keys.iterator();
+            while (it.hasNext()) {
+                if (!this.calls.containsKey(it.next())) {
+                    it.remove();
+                    this.queued.decrementAndGet();
+                }
+            }
+        }
+    }
+
+    /**
+     * Progress of a create.
+     */
+    enum State {
+
+        /**
+         * Sent and waiting for the outcome.
+         */
+        IN_FLIGHT,
+
+        /**
+         * Completed with a response.
+         */
+        COMPLETED,
+
+        /**
+         * Failed with an error.
+         */
+        FAILED
+    }
+
+    /**
+     * A create and its outcome.
+     */
+    static final class Call {
+
+        /**
+         * Released once the create completed or failed.
+         */
+        private final CountDownLatch done = new CountDownLatch(1);
+
+        /**
+         * Response of the create.
+         */
+        private volatile HttpResponse response;
+
+        /**
+         * Location of the created resource.
+         */
+        private volatile URI location;
+
+        /**
+         * Error the create failed with.
+         */
+        private volatile IOException error;
+
+        /**
+         * Progress of the create.
+         */
+        private volatile State state = State.IN_FLIGHT;
+
+        /**
+         * Time the create completed or failed.
+         */
+        private volatile long completed;
+
+        /**
+         * Record the outcome of a successful create.
+         *
+         * @param result response of the create
+         * @param uri    location of the created resource
+         */
+        void complete(final HttpResponse result, final URI uri) {
+            this.response = result;
+            this.location = uri;
+            this.completed = System.nanoTime();
+            this.state = State.COMPLETED;
+            this.done.countDown();
+        }
+
+        /**
+         * Record the error a create failed with.
+         *
+         * @param failure error of the create
+         */
+        void fail(final IOException failure) {
+            this.error = failure;
+            this.completed = System.nanoTime();
+            this.state = State.FAILED;
+            this.done.countDown();
+        }
+
+        /**
+         * Wait for the create to complete.
+         *
+         * @return response of the create
+         * @throws IOException if the create failed or the wait was
+         *                     interrupted
+         */
+        HttpResponse await() throws IOException {
+            try {
+                this.done.await();
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException(ex.getMessage());
+            }
+            if (this.error != null) {
+                throw this.error;
+            }
+            return this.response;
+        }
+
+        /**
+         * Get the location of the created resource.
+         *
+         * @return location, or null if not known
+         */
+        URI getLocation() {
+            return this.location;
+        }
+
+        /**
+         * Get the progress of the create.
+         *
+         * @return the state
+         */
+        State getState() {
+            return this.state;
+        }
+
+        /**
+         * Whether the create completed.
+         *
+         * @return true if completed or failed
+         */
+        boolean isDone() {
+            return this.state != State.IN_FLIGHT;
+        }
+
+        /**
+         * Whether the create completed longer ago than a time to live.
+         *
+         * @param nanos time to live in nanoseconds
+         * @return true if expired
+         */
+        boolean isExpired(final long nanos) {
+            return this.isDone() && System.nanoTime() - this.completed >= nanos;
+        }
+    }
+}
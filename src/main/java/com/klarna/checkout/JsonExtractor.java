@@ -0,0 +1,331 @@
+/*
+ * Copyright 2015 Klarna AB
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.klarna.checkout;
+
+import org.json.simple.parser.ContentHandler;
+import org.json.simple.parser.JSONParser;
+import org.json.simple.parser.ParseException;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Streaming extraction of selected paths from a JSON object.
+ *
+ * A path is a dot separated list of keys, such as "cart.items.reference".
+ * Arrays are transparent to paths, so the path applies to every element of
+ * an array found along the way. Values outside of the selection are read
+ * past without being built and parsing stops as soon as every selected top
+ * level key has been seen.
+ */
+final class JsonExtractor implements ContentHandler {
+
+    /**
+     * How the values of a container are treated.
+     */
+    private enum Mode {
+        /**
+         * Only entries on a selected path are kept.
+         */
+        SELECT,
+        /**
+         * Everything is kept.
+         */
+        BUILD,
+        /**
+         * Nothing is kept.
+         */
+        SKIP
+    }
+
+    /**
+     * Selected paths.
+     */
+    private final Set<String> selection;
+
+    /**
+     * Paths leading up to a selected path.
+     */
+    private final Set<String> prefixes;
+
+    /**
+     * Top level keys of the selection not yet seen.
+     */
+    private final Set<String> remaining;
+
+    /**
+     * Extracted values.
+     */
+    private final Map<String, Object> result;
+
+    /**
+     * Containers currently open, innermost first.
+     */
+    private final LinkedList<Frame> frames;
+
+    /**
+     * Key of the innermost object entry.
+     */
+    private String key;
+
+    /**
+     * Key of the current top level entry.
+     */
+    private String field;
+
+    /**
+     * Mode of the value belonging to the innermost object entry.
+     */
+    private Mode mode;
+
+    /**
+     * Path of the value belonging to the innermost object entry.
+     */
+    private String path;
+
+    /**
+     * Constructor.
+     *
+     * @param paths paths to extract
+     */
+    private JsonExtractor(final Set<String> paths) {
+        this.selection = paths;
+        this.prefixes = new HashSet<String>();
+        this.remaining = new HashSet<String>();
+        this.result = new HashMap<String, Object>();
+        this.frames = new LinkedList<Frame>();
+
+        for (String selected : paths) {
+            int dot = selected.indexOf('.');
+            while (dot >= 0) {
+                this.prefixes.add(selected.substring(0, dot));
+                dot = selected.indexOf('.', dot + 1);
+            }
+            this.remaining.add(selected.split("\\.", 2)[0]);
+        }
+    }
+
+    /**
+     * Extract the selected paths from a JSON object.
+     *
+     * @param in    JSON source
+     * @param paths paths to extract
+     * @return map holding the selected paths that were present
+     * @throws IOException    if the source could not be read
+     * @throws ParseException if the source is not valid JSON
+     */
+    static Map<String, Object> extract(
+            final Reader in, final Set<String> paths)
+            throws IOException, ParseException {
+        JsonExtractor extractor = new JsonExtractor(paths);
+        new JSONParser().parse(in, extractor);
+        return extractor.result;
+    }
+
+    @Override
+    public void startJSON() {
+    }
+
+    @Override
+    public void endJSON() {
+    }
+
+    @Override
+    public boolean startObject() {
+        if (this.frames.isEmpty()) {
+            this.frames.addFirst(
+                    new Frame(Mode.SELECT, this.result, null, ""));
+            return true;
+        }
+        return this.open(new HashMap<String, Object>(), null);
+    }
+
+    @Override
+    public boolean endObject() {
+        this.frames.removeFirst();
+        return true;
+    }
+
+    @Override
+    public boolean startObjectEntry(final String name) {
+        Frame frame = this.frames.getFirst();
+
+        this.key = name;
+        if (frame.mode != Mode.SELECT) {
+            this.mode = frame.mode;
+            return true;
+        }
+
+        if (this.frames.size() == 1) {
+            this.field = name;
+            this.path = name;
+        } else {
+            this.path = frame.path + "." + name;
+        }
+
+        if (this.selection.contains(this.path)) {
+            this.mode = Mode.BUILD;
+        } else if (this.prefixes.contains(this.path)) {
+            this.mode = Mode.SELECT;
+        } else {
+            this.mode = Mode.SKIP;
+        }
+        return true;
+    }
+
+    @Override
+    public boolean endObjectEntry() {
+        if (this.frames.size() == 1 && this.remaining.remove(this.field)) {
+            return !this.remaining.isEmpty();
+        }
+        return true;
+    }
+
+    @Override
+    public boolean startArray() {
+        if (this.frames.isEmpty()) {
+            this.frames.addFirst(new Frame(Mode.SKIP, null, null, null));
+            return true;
+        }
+        return this.open(null, new ArrayList<Object>());
+    }
+
+    @Override
+    public boolean endArray() {
+        this.frames.removeFirst();
+        return true;
+    }
+
+    @Override
+    public boolean primitive(final Object value) {
+        if (!this.frames.isEmpty() && this.valueMode() == Mode.BUILD) {
+            this.attach(value);
+        }
+        return true;
+    }
+
+    /**
+     * Open a nested container.
+     *
+     * @param object empty object to fill if the value is kept, null for an
+     *               array
+     * @param array  empty array to fill if the value is kept, null for an
+     *               object
+     * @return true to continue parsing
+     */
+    private boolean open(
+            final Map<String, Object> object, final List<Object> array) {
+        Mode current = this.valueMode();
+        if (current == Mode.SKIP) {
+            this.frames.addFirst(new Frame(Mode.SKIP, null, null, null));
+            return true;
+        }
+
+        String at = this.path;
+        Frame frame = this.frames.getFirst();
+        if (frame.array != null) {
+            at = frame.path;
+        }
+
+        if (object != null) {
+            this.attach(object);
+        } else {
+            this.attach(array);
+        }
+        this.frames.addFirst(new Frame(current, object, array, at));
+        return true;
+    }
+
+    /**
+     * Get the mode of the value currently being read.
+     *
+     * @return mode of the value
+     */
+    private Mode valueMode() {
+        Frame frame = this.frames.getFirst();
+        if (frame.array != null) {
+            return frame.mode;
+        }
+        return this.mode;
+    }
+
+    /**
+     * Add a value to the innermost container.
+     *
+     * @param value value to add
+     */
+    private void attach(final Object value) {
+        Frame frame = this.frames.getFirst();
+        if (frame.array != null) {
+            frame.array.add(value);
+        } else {
+            frame.object.put(this.key, value);
+        }
+    }
+
+    /**
+     * An open container.
+     */
+    private static final class Frame {
+
+        /**
+         * How the values of the container are treated.
+         */
+        private final Mode mode;
+
+        /**
+         * Object being built, null for an array or when skipped.
+         */
+        private final Map<String, Object> object;
+
+        /**
+         * Array being built, null for an object or when skipped.
+         */
+        private final List<Object> array;
+
+        /**
+         * Path of the container, null when skipped.
+         */
+        private final String path;
+
+        /**
+         * Constructor.
+         *
+         * @param how     how the values are treated
+         * @param entries object being built
+         * @param values  array being built
+         * @param at      path of the container
+         */
+        Frame(
+                final Mode how,
+                final Map<String, Object> entries,
+                final List<Object> values,
+                final String at) {
+            this.mode = how;
+            this.object = entries;
+            this.array = values;
+            this.path = at;
+        }
+    }
+}
@@ -0,0 +1,102 @@
+/*
+ * Copyright 2015 Klarna AB
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.klarna.checkout;
+
+import org.json.simple.JSONAware;
+import org.json.simple.JSONStreamAware;
+import org.json.simple.JSONValue;
+import org.json.simple.parser.JSONParser;
+import org.json.simple.parser.ParseException;
+
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.io.Writer;
+
+/**
+ * Pre-encoded JSON value.
+ *
+ * Use a fragment as a value in the data sent to create or update for blocks
+ * that never change, such as the merchant URIs or the gui settings. It is
+ * encoded once and its UTF-8 bytes are copied into every payload verbatim.
+ */
+public final class JsonFragment implements JSONAware, JSONStreamAware {
+
+    /**
+     * Encoded JSON.
+     */
+    private final String json;
+
+    /**
+     * UTF-8 bytes of the encoded JSON.
+     */
+    private final byte[] bytes;
+
+    /**
+     * Constructor.
+     *
+     * @param encoded JSON value
+     * @throws IllegalArgumentException if the value is not valid JSON
+     */
+    public JsonFragment(final String encoded) {
+        try {
+            new JSONParser().parse(encoded);
+        } catch (ParseException ex) {
+            throw new IllegalArgumentException("Invalid JSON fragment", ex);
+        }
+
+        this.json = encoded;
+        try {
+            this.bytes = encoded.getBytes("UTF-8");
+        } catch (UnsupportedEncodingException ex) {
+            throw new IllegalStateException(ex);
+        }
+    }
+
+    /**
+     * Create a fragment by encoding a value.
+     *
+     * @param value Map, List or primitive to encode
+     * @return the encoded fragment
+     */
+    public static JsonFragment of(final Object value) {
+        return new JsonFragment(JSONValue.toJSONString(value));
+    }
+
+    /**
+     * Get the UTF-8 encoded JSON.
+     *
+     * @return the cached bytes, which must not be modified
+     */
+    byte[] getBytes() {
+        return this.bytes;
+    }
+
+    @Override
+    public String toJSONString() {
+        return this.json;
+    }
+
+    @Override
+    public void writeJSONString(final Writer out) throws IOException {
+        out.write(this.json);
+    }
+
+    @Override
+    public String toString() {
+        return this.json;
+    }
+}
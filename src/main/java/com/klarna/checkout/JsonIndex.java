@@ -0,0 +1,283 @@
+/*
+ * Copyright 2015 Klarna AB
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.klarna.checkout;
+
+import org.json.simple.parser.JSONParser;
+import org.json.simple.parser.ParseException;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Offsets of the top level values of a raw JSON object.
+ *
+ * The payload is scanned once, without building anything, to find where
+ * the value of every top level key starts and ends. A value can then be
+ * parsed on its own without reading the rest of the payload again. Only
+ * the structure needed to find the values is checked while scanning, the
+ * values themselves are checked when parsed.
+ */
+final class JsonIndex {
+
+    /**
+     * UTF-8 encoded JSON object.
+     */
+    private final byte[] json;
+
+    /**
+     * Start and end offsets of the values not yet parsed, keyed by name.
+     */
+    private final Map<String, int[]> values;
+
+    /**
+     * Constructor.
+     *
+     * @param payload UTF-8 encoded JSON object
+     * @throws IllegalStateException if the payload is not a JSON object
+     */
+    JsonIndex(final byte[] payload) {
+        this.json = payload;
+        this.values = new LinkedHashMap<String, int[]>();
+
+        int at = this.skip(0);
+        this.expect(at, '{');
+        at = this.skip(at + 1);
+        if (this.json[at] == '}') {
+            return;
+        }
+
+        while (true) {
+            this.expect(at, '"');
+            int end = this.endOfString(at);
+            String name = this.name(at, end);
+            at = this.skip(end);
+            this.expect(at, ':');
+
+            int start = this.skip(at + 1);
+            end = this.endOfValue(start);
+            this.values.put(name, new int[] {start, end});
+
+            at = this.skip(end);
+            if (this.json[at] == '}') {
+                return;
+            }
+            this.expect(at, ',');
+            at = this.skip(at + 1);
+        }
+    }
+
+    /**
+     * Parse the value of a key and forget about it.
+     *
+     * @param key top level key
+     * @return map holding the parsed value, empty if the key is missing or
+     *         was already taken
+     * @throws IllegalStateException if the value is not valid JSON
+     */
+    Map<String, Object> take(final String key) {
+        Map<String, Object> result = new LinkedHashMap<String, Object>();
+        int[] span = this.values.remove(key);
+        if (span != null) {
+            result.put(key, this.parse(span));
+        }
+        return result;
+    }
+
+    /**
+     * Forget about a key without parsing its value.
+     *
+     * @param key top level key
+     */
+    void discard(final String key) {
+        this.values.remove(key);
+    }
+
+    /**
+     * Parse every value not yet taken.
+     *
+     * @return map of the parsed values in payload order
+     * @throws IllegalStateException if a value is not valid JSON
+     */
+    Map<String, Object> takeAll() {
+        Map<String, Object> result = new LinkedHashMap<String, Object>();
+        for (Map.Entry<String, int[]> entry : this.values.entrySet()) {
+            result.put(entry.getKey(), this.parse(entry.getValue()));
+        }
+        this.values.clear();
+        return result;
+    }
+
+    /**
+     * Whether every value has been taken.
+     *
+     * @return true if nothing is left to parse
+     */
+    boolean isEmpty() {
+        return this.values.isEmpty();
+    }
+
+    /**
+     * Parse a value.
+     *
+     * @param span start and end offsets of the value
+     * @return the parsed value
+     * @throws IllegalStateException if the value is not valid JSON
+     */
+    private Object parse(final int[] span) {
+        try {
+            return new JSONParser().parse(new InputStreamReader(
+                    new ByteArrayInputStream(
+                            this.json, span[0], span[1] - span[0]),
+                    "UTF-8"));
+        } catch (IOException ex) {
+            throw new IllegalStateException(ex);
+        } catch (ParseException ex) {
+            throw new IllegalStateException("Invalid JSON payload", ex);
+        }
+    }
+
+    /**
+     * Decode a key.
+     *
+     * @param start offset of the opening quote
+     * @param end   offset after the closing quote
+     * @return the key
+     * @throws IllegalStateException if the key is not a valid JSON string
+     */
+    private String name(final int start, final int end) {
+        for (int i = start + 1; i < end - 1; i++) {
+            if (this.json[i] == '\\') {
+                return (String) this.parse(new int[] {start, end});
+            }
+        }
+        try {
+            return new String(this.json, start + 1, end - start - 2, "UTF-8");
+        } catch (IOException ex) {
+            throw new IllegalStateException(ex);
+        }
+    }
+
+    /**
+     * Find the end of a string.
+     *
+     * @param start offset of the opening quote
+     * @return offset after the closing quote
+     * @throws IllegalStateException if the string is not closed
+     */
+    private int endOfString(final int start) {
+        for (int i = start + 1; i < this.json.length; i++) {
+            if (this.json[i] == '\\') {
+                i++;
+            } else if (this.json[i] == '"') {
+                return i + 1;
+            }
+        }
+        throw invalid();
+    }
+
+    /**
+     * Find the end of a value.
+     *
+     * @param start offset of the first byte of the value
+     * @return offset after the value
+     * @throws IllegalStateException if the value is not closed
+     */
+    private int endOfValue(final int start) {
+        byte first = this.json[start];
+        if (first == '"') {
+            return this.endOfString(start);
+        }
+
+        if (first != '{' && first != '[') {
+            int i = start;
+            while (i < this.json.length && !isDelimiter(this.json[i])) {
+                i++;
+            }
+            if (i == start) {
+                throw invalid();
+            }
+            return i;
+        }
+
+        int depth = 0;
+        for (int i = start; i < this.json.length; i++) {
+            byte b = this.json[i];
+            if (b == '"') {
+                i = this.endOfString(i) - 1;
+            } else if (b == '{' || b == '[') {
+                depth++;
+            } else if ((b == '}' || b == ']') && --depth == 0) {
+                return i + 1;
+            }
+        }
+        throw invalid();
+    }
+
+    /**
+     * Skip whitespace.
+     *
+     * @param start offset to start at
+     * @return offset of the next other byte
+     * @throws IllegalStateException if the payload ends first
+     */
+    private int skip(final int start) {
+        for (int i = start; i < this.json.length; i++) {
+            byte b = this.json[i];
+            if (b != ' ' && b != '\t' && b != '\n' && b != '\r') {
+                return i;
+            }
+        }
+        throw invalid();
+    }
+
+    /**
+     * Check the byte at an offset.
+     *
+     * @param at       offset of the byte
+     * @param expected expected byte
+     * @throws IllegalStateException if the byte is another one
+     */
+    private void expect(final int at, final char expected) {
+        if (this.json[at] != expected) {
+            throw invalid();
+        }
+    }
+
+    /**
+     * Whether a byte ends a primitive value.
+     *
+     * @param b byte to check
+     * @return true for whitespace and structural bytes
+     */
+    private static boolean isDelimiter(final byte b) {
+        return b == ',' || b == '}' || b == ']'
+                || b == ' ' || b == '\t' || b == '\n' || b == '\r';
+    }
+
+    /**
+     * Create the exception thrown for a malformed payload.
+     *
+     * @return the exception
+     */
+    private static IllegalStateException invalid() {
+        return new IllegalStateException("Invalid JSON payload");
+    }
+}
@@ -0,0 +1,275 @@
+/*
+ * Copyright 2015 Klarna AB
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.klarna.checkout;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Lock-free log-linear histogram of durations.
+ *
+ * Values are counted in buckets that are linear within each power of two,
+ * 16 to a power, so any value is reported within about 6% of what was
+ * recorded. Values from 1 nanosecond up to about 18 minutes are kept
+ * apart, longer ones are counted in the last bucket. Recording is a few
+ * atomic increments and may be done from any number of threads.
+ */
+public final class LatencyHistogram {
+
+    /**
+     * Bits of precision within a power of two.
+     */
+    private static final int SUB_BITS = 4;
+
+    /**
+     * Number of buckets per power of two.
+     */
+    private static final int SUB_COUNT = 1 << SUB_BITS;
+
+    /**
+     * Highest power of two kept apart.
+     */
+    private static final int MAX_EXPONENT = 40;
+
+    /**
+     * Number of buckets.
+     */
+    private static final int BUCKETS =
+            (MAX_EXPONENT - SUB_BITS + 1) * SUB_COUNT + SUB_COUNT;
+
+    /**
+     * Counts per bucket.
+     */
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+
+    /**
+     * Number of values recorded.
+     */
+    private final AtomicLong count = new AtomicLong();
+
+    /**
+     * Sum of the values recorded.
+     */
+    private final AtomicLong sum = new AtomicLong();
+
+    /**
+     * Largest value recorded.
+     */
+    private final AtomicLong max = new AtomicLong();
+
+    /**
+     * Record a duration.
+     *
+     * @param nanos duration in nanoseconds, negative values count as 0
+     */
+    public void record(final long nanos) {
+        long value = Math.max(0, nanos);
+        this.counts.incrementAndGet(index(value));
+        this.count.incrementAndGet();
+        this.sum.addAndGet(value);
+
+        long current = this.max.get();
+        while (value > current && !this.max.compareAndSet(current, value)) {
+            current = this.max.get();
+        }
+    }
+
+    /**
+     * Record a duration, correcting for coordinated omission.
+     *
+     * A caller that issues its next request only after the previous one
+     * completed sends nothing while a request stalls, so the requests it
+     * would have made are missing from the record. For every expected
+     * interval a duration exceeds, a value that much shorter is recorded in
+     * their stead.
+     *
+     * @param nanos    duration in nanoseconds
+     * @param expected expected interval between requests in nanoseconds,
+     *                 0 or less to record the duration alone
+     */
+    public void record(final long nanos, final long expected) {
+        this.record(nanos);
+        if (expected <= 0) {
+            return;
+        }
+        for (long missed = nanos - expected; missed >= expected;
+                missed -= expected) {
+            this.record(missed);
+        }
+    }
+
+    /**
+     * Take a snapshot of the values recorded so far.
+     *
+     * @return the snapshot
+     */
+    public Snapshot snapshot() {
+        long[] copy = new long[BUCKETS];
+        long total = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            copy[i] = this.counts.get(i);
+            total += copy[i];
+        }
+        return new Snapshot(copy, total, this.sum.get(), this.max.get());
+    }
+
+    /**
+     * Get the bucket of a value.
+     *
+     * @param value non-negative value
+     * @return bucket index
+     */
+    static int index(final long value) {
+        int shift = Math.max(
+                0, 63 - Long.numberOfLeadingZeros(value) - SUB_BITS);
+        int index = (shift << SUB_BITS) + (int) (value >>> shift);
+        return Math.min(index, BUCKETS - 1);
+    }
+
+    /**
+     * Get the highest value counted in a bucket.
+     *
+     * @param index bucket index
+     * @return highest value of the bucket
+     */
+    static long highest(final int index) {
+        if (index < 2 * SUB_COUNT) {
+            return index;
+        }
+        int shift = index / SUB_COUNT - 1;
+        long lowest = (long) (index - shift * SUB_COUNT) << shift;
+        return lowest + (1L << shift) - 1;
+    }
+
+    /**
+     * Values recorded up to a point in time.
+     */
+    public static final class Snapshot {
+
+        /**
+         * Counts per bucket.
+         */
+        private final long[] buckets;
+
+        /**
+         * Number of values.
+         */
+        private final long count;
+
+        /**
+         * Sum of the values.
+         */
+        private final long sum;
+
+        /**
+         * Largest value.
+         */
+        private final long max;
+
+        /**
+         * Constructor.
+         *
+         * @param counts counts per bucket
+         * @param total  number of values
+         * @param added  sum of the values
+         * @param most   largest value
+         */
+        Snapshot(
+                final long[] counts,
+                final long total,
+                final long added,
+                final long most) {
+            this.buckets = counts;
+            this.count = total;
+            this.sum = added;
+            this.max = most;
+        }
+
+        /**
+         * Get the number of values.
+         *
+         * @return number of values
+         */
+        public long getCount() {
+            return this.count;
+        }
+
+        /**
+         * Get the largest value.
+         *
+         * @param unit unit to return the value in
+         * @return largest value
+         */
+        public long getMax(final TimeUnit unit) {
+            return unit.convert(this.max, TimeUnit.NANOSECONDS);
+        }
+
+        /**
+         * Get the mean of the values.
+         *
+         * @param unit unit to return the value in
+         * @return mean value, 0 if there are none
+         */
+        public double getMean(final TimeUnit unit) {
+            if (this.count == 0) {
+                return 0;
+            }
+            return (double) this.sum / this.count
+                    / TimeUnit.NANOSECONDS.convert(1, unit);
+        }
+
+        /**
+         * Get the value below which a share of the values fall.
+         *
+         * @param percentile share of the values, from 0 to 100
+         * @param unit       unit to return the value in
+         * @return the value at the percentile, 0 if there are none
+         */
+        public long getPercentile(
+                final double percentile, final TimeUnit unit) {
+            if (this.count == 0) {
+                return 0;
+            }
+
+            long rank = (long) Math.ceil(percentile / 100 * this.count);
+            long seen = 0;
+            for (int i = 0; i < this.buckets.length; i++) {
+                seen += this.buckets[i];
+                if (seen >= Math.max(1, rank) && i < BUCKETS - 1) {
+                    return unit.convert(
+                            Math.min(highest(i), this.max),
+                            TimeUnit.NANOSECONDS);
+                }
+                if (seen >= rank) {
+                    break;
+                }
+            }
+            // The last bucket has no upper bound.
+            return unit.convert(this.max, TimeUnit.NANOSECONDS);
+        }
+
+        @Override
+        public String toString() {
+            return "count=" + this.count
+                    + " mean=" + (long) this.getMean(TimeUnit.MICROSECONDS)
+                    + "us p50=" + this.getPercentile(50, TimeUnit.MICROSECONDS)
+                    + "us p99=" + this.getPercentile(99, TimeUnit.MICROSECONDS)
+                    + "us max=" + this.getMax(TimeUnit.MICROSECONDS) + "us";
+        }
+    }
+}
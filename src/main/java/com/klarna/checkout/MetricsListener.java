@@ -0,0 +1,99 @@
+/*
+ * Copyright 2015 Klarna AB
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.klarna.checkout;
+
+import java.io.IOException;
+
+/**
+ * Receives timings and sizes of the work done by a connector.
+ *
+ * Listeners are called on the thread making the request and must be quick
+ * and must not throw. Times are in nanoseconds, sizes in bytes, and a size
+ * of -1 means it is not known.
+ */
+public interface MetricsListener {
+
+    /**
+     * Called after a request was created and its payload encoded.
+     *
+     * @param resource the resource the request is for
+     * @param method   HTTP method
+     * @param nanos    time taken
+     * @param bytes    size of the payload, 0 for requests without one
+     */
+    void requestCreated(
+            IResource resource, String method, long nanos, long bytes);
+
+    /**
+     * Called after a request was signed.
+     *
+     * @param nanos time taken to create the digest
+     */
+    void digestCreated(long nanos);
+
+    /**
+     * Called before a request is sent again after an I/O error.
+     *
+     * @param resource the resource the request is for
+     * @param error    the error the last attempt failed with
+     */
+    void retried(IResource resource, IOException error);
+
+    /**
+     * Called after a response was handled and its payload parsed.
+     *
+     * @param resource the resource the response is for
+     * @param status   HTTP status code
+     * @param nanos    time taken
+     * @param bytes    size of the response payload
+     */
+    void responseHandled(
+            IResource resource, int status, long nanos, long bytes);
+
+    /**
+     * Called after a request completed or failed.
+     *
+     * @param resource the resource the request was for
+     * @param method   HTTP method
+     * @param status   HTTP status code, 0 if no response was received
+     * @param nanos    time taken in total
+     * @param error    the error the request failed with, or null
+     */
+    void applied(
+            IResource resource,
+            String method,
+            int status,
+            long nanos,
+            Exception error);
+
+    /**
+     * Called after a create shared the outcome of an earlier one with the
+     * same idempotency key instead of being sent.
+     *
+     * @param resource the resource the create was for
+     * @param method   HTTP method
+     * @param status   HTTP status code of the shared outcome, 0 if none
+     * @param nanos    time spent waiting for the outcome
+     * @param error    the error the earlier create failed with, or null
+     */
+    void deduplicated(
+            IResource resource,
+            String method,
+            int status,
+            long nanos,
+            Exception error);
+}
@@ -20,6 +20,8 @@ import java.io.IOException;
 import java.net.URI;
 import java.net.URISyntaxException;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
 
 /**
  * Checkout order resource.
@@ -32,6 +34,11 @@ public class Order extends Resource
      */
     public static final String PATH = "/checkout/orders";
 
+    /**
+     * Cache consulted by fetch, if any.
+     */
+    private ResourceCache cache;
+
     /**
      * Constructor.
      *
@@ -58,21 +65,102 @@ public class Order extends Resource
                 new URI(conn.getBaseUri().concat(PATH).concat("/").concat(id)));
     }
 
+    /**
+     * Set a cache to serve fetches from.
+     *
+     * Fetches return a cached copy of the order while it is fresh, or
+     * while it is stale if the cache serves stale orders, and updates or
+     * location changes drop the order from the cache.
+     *
+     * @param orderCache cache to use, or null to always fetch
+     */
+    public void setCache(final ResourceCache orderCache) {
+        this.cache = orderCache;
+    }
+
+    /**
+     * Get the cache fetches are served from.
+     *
+     * @return the cache, or null if none
+     */
+    public ResourceCache getCache() {
+        return this.cache;
+    }
+
+    @Override
+    public void setLocation(final URI uri) {
+        URI old = this.getLocation();
+        if (this.cache != null && old != null && !old.equals(uri)) {
+            this.cache.invalidate(old);
+            this.cache.invalidate(uri);
+        }
+        super.setLocation(uri);
+    }
+
     @Override
     public void create(final Map<String, Object> datum) throws IOException {
+        this.create(datum, null);
+    }
+
+    /**
+     * Create the order at most once for an idempotency key.
+     *
+     * A create repeated with the same key, such as from a double submit,
+     * is not sent again but gets the location of the first order created.
+     *
+     * @param datum data to create the order with
+     * @param key   idempotency key, or null to always create
+     * @throws IOException in case of an I/O error
+     */
+    public void create(final Map<String, Object> datum, final String key)
+            throws IOException {
         ConnectorOptions options = new ConnectorOptions();
 
         options.setURI(URI.create(connector.getBaseUri().concat(PATH)));
         options.setData(datum);
+        options.setIdempotencyKey(key);
 
         connector.apply("POST", this, options);
     }
 
     @Override
     public void fetch() throws IOException {
+        URI location = this.getLocation();
+        if (this.cache != null && location != null) {
+            byte[] cached = this.cache.get(
+                    location, new Loader(connector, location));
+            if (cached != null) {
+                this.parseRaw(cached);
+                return;
+            }
+        }
+
+        ConnectorOptions options = new ConnectorOptions();
+
+        options.setURI(location);
+
+        connector.apply("GET", this, options);
+
+        if (this.cache != null && this.getLocation() != null) {
+            this.cache.put(this.getLocation(), this.toPayload());
+        }
+    }
+
+    /**
+     * Fetch the resource, keeping only the given fields.
+     *
+     * The response is streamed and anything outside of the fields is skipped
+     * without being built, which is useful when only a few values such as
+     * the status are needed from a large order.
+     *
+     * @param fields dot separated paths of the fields to keep
+     * @throws IOException in case of an I/O error
+     */
+    public void fetch(final Set<String> fields) throws IOException {
         ConnectorOptions options = new ConnectorOptions();
 
         options.setURI(this.getLocation());
+        options.setFields(fields);
 
         connector.apply("GET", this, options);
     }
@@ -84,6 +172,65 @@ public class Order extends Resource
         options.setURI(this.getLocation());
         options.setData(datum);
 
-        connector.apply("POST", this, options);
+        try {
+            connector.apply("POST", this, options);
+        } finally {
+            if (this.cache != null && this.getLocation() != null) {
+                this.cache.invalidate(this.getLocation());
+            }
+        }
+    }
+
+    /**
+     * Update the resource with the fields changed since it was last parsed.
+     *
+     * Nothing is sent if no fields have been changed with set.
+     *
+     * @throws IOException in case of an I/O error
+     */
+    public void updateChanged() throws IOException {
+        Map<String, Object> changes = this.getChanges();
+        if (changes.isEmpty()) {
+            return;
+        }
+
+        this.update(changes);
+        this.clearChanges(changes.keySet());
+    }
+
+    /**
+     * Fetches the current payload of an order for the cache.
+     */
+    private static final class Loader implements Callable<byte[]> {
+
+        /**
+         * Connector to fetch with.
+         */
+        private final IConnector connector;
+
+        /**
+         * Location of the order.
+         */
+        private final URI location;
+
+        /**
+         * Constructor.
+         *
+         * @param conn IConnector implementation
+         * @param uri  location of the order
+         */
+        Loader(final IConnector conn, final URI uri) {
+            this.connector = conn;
+            this.location = uri;
+        }
+
+        @Override
+        public byte[] call() throws IOException {
+            Order order = new Order(this.connector);
+            order.setLazy(true);
+            order.setLocation(this.location);
+            order.fetch();
+            return order.toPayload();
+        }
     }
 }
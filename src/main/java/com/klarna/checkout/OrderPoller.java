@@ -0,0 +1,522 @@
+/*
+ * Copyright 2015 Klarna AB
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.klarna.checkout;
+
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Shared poller of orders waiting to be completed.
+ *
+ * Watched orders are fetched until their status moves on from
+ * checkout_incomplete. Polls are kept on a hashed timer wheel driven by a
+ * single thread, and all polls due in the same tick are handed to the
+ * fetching threads together. Young orders are polled often and older ones
+ * less so, as an order that has not completed in a while is unlikely to
+ * complete in the next second.
+ */
+public class OrderPoller {
+
+    /**
+     * Status of an order that is not completed yet.
+     */
+    public static final String INCOMPLETE = "checkout_incomplete";
+
+    /**
+     * Number of slots on the wheel.
+     */
+    private static final int WHEEL_SIZE = 512;
+
+    /**
+     * Default length of a tick in nanoseconds.
+     */
+    private static final long TICK = TimeUnit.MILLISECONDS.toNanos(100);
+
+    /**
+     * Connector to fetch with.
+     */
+    private final IConnector connector;
+
+    /**
+     * Executor running the polls.
+     */
+    private final Executor fetcher;
+
+    /**
+     * Length of a tick in nanoseconds.
+     */
+    private final long tick;
+
+    /**
+     * Slots of the wheel, each holding the polls due in its ticks.
+     */
+    private final List<List<Poll>> wheel;
+
+    /**
+     * Polls waiting to be put on the wheel.
+     */
+    private final Queue<Poll> incoming;
+
+    /**
+     * Watched orders keyed by location.
+     */
+    private final ConcurrentHashMap<URI, Poll> watched;
+
+    /**
+     * Number of ticks processed, only used by the wheel thread.
+     */
+    private long ticks;
+
+    /**
+     * Thread driving the wheel, null until the first order is watched.
+     */
+    private Thread driver;
+
+    /**
+     * Whether the poller has been shut down.
+     */
+    private volatile boolean stopped;
+
+    /**
+     * Shortest time between polls of an order in nanoseconds.
+     */
+    private volatile long minInterval = TimeUnit.SECONDS.toNanos(1);
+
+    /**
+     * Longest time between polls of an order in nanoseconds.
+     */
+    private volatile long maxInterval = TimeUnit.MINUTES.toNanos(1);
+
+    /**
+     * Time after which an order is no longer polled in nanoseconds.
+     */
+    private volatile long maxAge = TimeUnit.HOURS.toNanos(1);
+
+    /**
+     * Number of polls made.
+     */
+    private final AtomicLong polls = new AtomicLong();
+
+    /**
+     * Number of polls that failed.
+     */
+    private final AtomicLong failures = new AtomicLong();
+
+    /**
+     * Constructor.
+     *
+     * @param conn    IConnector implementation, safe to share between threads
+     * @param threads most number of polls running at once
+     */
+    public OrderPoller(final IConnector conn, final int threads) {
+        this(
+                conn,
+                Executors.newFixedThreadPool(
+                        threads, new DaemonThreadFactory("klarna-poll-")),
+                TICK);
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param conn   IConnector implementation
+     * @param exec   executor running the polls
+     * @param length length of a tick in nanoseconds
+     */
+    OrderPoller(final IConnector conn, final Executor exec, final long length) {
+        this.connector = conn;
+        this.fetcher = exec;
+        this.tick = length;
+        this.wheel = new ArrayList<List<Poll>>(WHEEL_SIZE);
+        for (int i = 0; i < WHEEL_SIZE; i++) {
+            this.wheel.add(new LinkedList<Poll>());
+        }
+        this.incoming = new ConcurrentLinkedQueue<Poll>();
+        this.watched = new ConcurrentHashMap<URI, Poll>();
+    }
+
+    /**
+     * Set the bounds of the time between polls of an order.
+     *
+     * An order is polled at a quarter of its age, kept within the bounds.
+     *
+     * @param min  shortest time between polls
+     * @param max  longest time between polls
+     * @param unit unit of the times
+     */
+    public void setIntervals(
+            final long min, final long max, final TimeUnit unit) {
+        if (min <= 0 || max < min) {
+            throw new IllegalArgumentException("Invalid poll intervals.");
+        }
+
+        this.minInterval = unit.toNanos(min);
+        this.maxInterval = unit.toNanos(max);
+    }
+
+    /**
+     * Set how long an order is polled before giving up on it.
+     *
+     * @param duration longest time to poll an order
+     * @param unit     unit of the duration
+     */
+    public void setMaxAge(final long duration, final TimeUnit unit) {
+        this.maxAge = unit.toNanos(duration);
+    }
+
+    /**
+     * Start polling an incomplete order.
+     *
+     * Watching an order already watched replaces its listener.
+     *
+     * @param location location of the order
+     * @param listener listener to notify
+     * @throws IllegalStateException if the poller has been shut down
+     */
+    public void watch(final URI location, final Listener listener) {
+        if (this.stopped) {
+            throw new IllegalStateException("Poller has been shut down.");
+        }
+
+        Poll poll = new Poll(location, listener, this.now());
+        Poll previous = this.watched.put(location, poll);
+        if (previous != null) {
+            previous.cancelled = true;
+        }
+        this.incoming.add(poll);
+        this.start();
+    }
+
+    /**
+     * Stop polling an order.
+     *
+     * @param location location of the order
+     */
+    public void unwatch(final URI location) {
+        Poll poll = this.watched.remove(location);
+        if (poll != null) {
+            poll.cancelled = true;
+        }
+    }
+
+    /**
+     * Get the number of orders being polled.
+     *
+     * @return number of watched orders
+     */
+    public int size() {
+        return this.watched.size();
+    }
+
+    /**
+     * Get the number of polls made.
+     *
+     * @return number of polls
+     */
+    public long getPollCount() {
+        return this.polls.get();
+    }
+
+    /**
+     * Get the number of polls that failed.
+     *
+     * @return number of failed polls
+     */
+    public long getFailureCount() {
+        return this.failures.get();
+    }
+
+    /**
+     * Stop polling all orders.
+     *
+     * No orders can be watched afterwards.
+     */
+    public synchronized void shutdown() {
+        this.stopped = true;
+        for (URI location : this.watched.keySet()) {
+            this.unwatch(location);
+        }
+        if (this.driver != null) {
+            this.driver.interrupt();
+            this.driver = null;
+        }
+        if (this.fetcher instanceof ExecutorService) {
+            ((ExecutorService) this.fetcher).shutdown();
+        }
+    }
+
+    /**
+     * Get the current time.
+     *
+     * @return time in nanoseconds
+     */
+    protected long now() {
+        return System.nanoTime();
+    }
+
+    /**
+     * Start the thread driving the wheel unless running.
+     */
+    protected synchronized void start() {
+        if (this.driver != null || this.stopped) {
+            return;
+        }
+
+        this.driver = new DaemonThreadFactory("klarna-poll-wheel-")
+                .newThread(new Runnable() {
+                    @Override
+                    public void run() {
+                        drive();
+                    }
+                });
+        this.driver.start();
+    }
+
+    /**
+     * Advance the wheel one tick at a time until interrupted.
+     */
+    private void drive() {
+        long next = this.now() + this.tick;
+        try {
+            while (!Thread.currentThread().isInterrupted()) {
+                long wait = next - this.now();
+                if (wait > 0) {
+                    TimeUnit.NANOSECONDS.sleep(wait);
+                }
+                this.advance();
+                next += this.tick;
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Process one tick, starting every poll that has come due.
+     */
+    void advance() {
+        long time = this.now();
+        for (Poll poll = this.incoming.poll(); poll != null;
+                poll = this.incoming.poll()) {
+            long delay = Math.max(0, poll.due - time);
+            long target = this.ticks + (delay + this.tick - 1) / this.tick;
+            poll.rounds = (target - this.ticks) / WHEEL_SIZE;
+            this.wheel.get((int) (target % WHEEL_SIZE)).add(poll);
+        }
+
+        List<Poll> due = new ArrayList<Poll>();
+        Iterator<Poll> slot =
+                this.wheel.get((int) (this.ticks % WHEEL_SIZE)).iterator();
+        while (slot.hasNext()) {
+            Poll poll = slot.next();
+            if (poll.cancelled) {
+                slot.remove();
+            } else if (poll.rounds > 0) {
+                poll.rounds--;
+            } else {
+                slot.remove();
+                due.add(poll);
+            }
+        }
+        this.ticks++;
+
+        for (Poll poll : due) {
+            try {
+                this.fetcher.execute(poll);
+            } catch (RejectedExecutionException ex) {
+                this.rejected(poll);
+            }
+        }
+    }
+
+    /**
+     * Handle a poll the executor did not accept.
+     *
+     * The poll is tried again after the shortest interval, unless the
+     * executor has been shut down, in which case the order is dropped.
+     *
+     * @param poll poll that was rejected
+     */
+    private void rejected(final Poll poll) {
+        Logger logger = Logger.getLogger(OrderPoller.class.getName());
+        if (this.stopped || (this.fetcher instanceof ExecutorService
+                && ((ExecutorService) this.fetcher).isShutdown())) {
+            poll.cancelled = true;
+            this.watched.remove(poll.location, poll);
+            logger.log(
+                    Level.WARNING,
+                    "Executor shut down, no longer polling {0}",
+                    poll.location);
+            return;
+        }
+
+        poll.due = this.now() + this.minInterval;
+        this.incoming.add(poll);
+        logger.log(
+                Level.WARNING,
+                "Executor rejected poll of {0}, trying again later",
+                poll.location);
+    }
+
+    /**
+     * Get the time to wait before polling an order again.
+     *
+     * @param age age of the order in nanoseconds
+     * @return time to wait in nanoseconds
+     */
+    private long interval(final long age) {
+        return Math.min(this.maxInterval, Math.max(this.minInterval, age / 4));
+    }
+
+    /**
+     * Receives the outcome of polling an order.
+     */
+    public interface Listener {
+
+        /**
+         * Called when the status of an order changed, after which it is no
+         * longer polled.
+         *
+         * @param order    the fetched order
+         * @param previous status the order had before
+         */
+        void statusChanged(Order order, String previous);
+
+        /**
+         * Called when an order is given up on after polling it for the
+         * longest time allowed.
+         *
+         * @param location location of the order
+         */
+        void expired(URI location);
+    }
+
+    /**
+     * A watched order.
+     */
+    private final class Poll implements Runnable {
+
+        /**
+         * Location of the order.
+         */
+        private final URI location;
+
+        /**
+         * Listener to notify.
+         */
+        private final Listener listener;
+
+        /**
+         * Time the order started being watched.
+         */
+        private final long added;
+
+        /**
+         * Time the next poll is due.
+         */
+        private long due;
+
+        /**
+         * Full turns of the wheel left before the poll is due.
+         */
+        private long rounds;
+
+        /**
+         * Whether the order is no longer watched.
+         */
+        private volatile boolean cancelled;
+
+        /**
+         * Constructor.
+         *
+         * @param uri    location of the order
+         * @param notify listener to notify
+         * @param time   time the order started being watched
+         */
+        Poll(final URI uri, final Listener notify, final long time) {
+            this.location = uri;
+            this.listener = notify;
+            this.added = time;
+            this.due = time + minInterval;
+        }
+
+        @Override
+        public void run() {
+            if (this.cancelled) {
+                return;
+            }
+
+            polls.incrementAndGet();
+            Order order = new Order(connector);
+            order.setLocation(this.location);
+            try {
+                order.fetch();
+            } catch (Exception ex) {
+                failures.incrementAndGet();
+                Logger.getLogger(OrderPoller.class.getName()).log(
+                        Level.WARNING,
+                        "Failed to poll " + this.location,
+                        ex);
+                order = null;
+            }
+
+            if (order != null && !INCOMPLETE.equals(order.get("status"))) {
+                if (this.finish()) {
+                    this.listener.statusChanged(order, INCOMPLETE);
+                }
+                return;
+            }
+
+            long age = now() - this.added;
+            if (age >= maxAge) {
+                if (this.finish()) {
+                    this.listener.expired(this.location);
+                }
+                return;
+            }
+
+            this.due = now() + interval(age);
+            if (!this.cancelled) {
+                incoming.add(this);
+            }
+        }
+
+        /**
+         * Stop watching the order.
+         *
+         * @return true if it was still watched by this poll
+         */
+        private boolean finish() {
+            this.cancelled = true;
+            return watched.remove(this.location, this);
+        }
+    }
+}
@@ -0,0 +1,367 @@
+/*
+ * Copyright 2015 Klarna AB
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.klarna.checkout;
+
+import java.io.Closeable;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Bulk operations on orders.
+ */
+public final class Orders {
+
+    /**
+     * Seconds an idle fetch thread is kept for.
+     */
+    private static final long IDLE_SECONDS = 1;
+
+    /**
+     * Hide constructor for utility class.
+     */
+    private Orders() {
+    }
+
+    /**
+     * Fetch many orders in parallel.
+     *
+     * @param conn        IConnector implementation
+     * @param ids         ids of the orders to fetch
+     * @param parallelism most number of fetches running at once
+     * @return results in the order the fetches complete
+     * @see #fetchAll(IConnector, Collection, int, RateLimiter)
+     */
+    public static Results fetchAll(
+            final IConnector conn,
+            final Collection<String> ids,
+            final int parallelism) {
+        return fetchAll(conn, ids, parallelism, null);
+    }
+
+    /**
+     * Fetch many orders in parallel.
+     *
+     * The fetches run on daemon threads of their own and the returned
+     * iterator blocks until the next one completes. A failed fetch does not
+     * stop the others, its error is reported in its result. The connector
+     * must be safe to share between threads, such as one created with
+     * {@link Connector#create(String, String, int)} with room for as many
+     * connections as the parallelism.
+     *
+     * No more than the parallelism of fetches are started ahead of the
+     * results taken, a new one is started for every result returned. An
+     * abandoned iteration therefore starts no further fetches, and closing
+     * it interrupts the fetches still running. Its threads end once idle.
+     *
+     * @param conn        IConnector implementation
+     * @param ids         ids of the orders to fetch
+     * @param parallelism most number of fetches running at once
+     * @param limiter     limiter to take a permit from per fetch, may be null
+     * @return results in the order the fetches complete
+     */
+    public static Results fetchAll(
+            final IConnector conn,
+            final Collection<String> ids,
+            final int parallelism,
+            final RateLimiter limiter) {
+        if (parallelism <= 0) {
+            throw new IllegalArgumentException(
+                    "Parallelism must be positive.");
+        }
+
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(
+                parallelism,
+                parallelism,
+                IDLE_SECONDS,
+                TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(),
+                new DaemonThreadFactory("klarna-orders-"));
+        executor.allowCoreThreadTimeOut(true);
+
+        Results results = new Results(
+                conn,
+                new ArrayList<String>(ids).iterator(),
+                ids.size(),
+                limiter,
+                executor);
+        for (int i = 0; i < parallelism; i++) {
+            results.submit();
+        }
+        return results;
+    }
+
+    /**
+     * Outcome of fetching one order.
+     */
+    public static final class Result {
+
+        /**
+         * Id of the order.
+         */
+        private final String id;
+
+        /**
+         * Fetched order, null if the fetch failed.
+         */
+        private final Order order;
+
+        /**
+         * Error the fetch failed with, null if successful.
+         */
+        private final Exception error;
+
+        /**
+         * Constructor.
+         *
+         * @param orderId  id of the order
+         * @param fetched  fetched order
+         * @param failure  error the fetch failed with
+         */
+        Result(
+                final String orderId,
+                final Order fetched,
+                final Exception failure) {
+            this.id = orderId;
+            this.order = fetched;
+            this.error = failure;
+        }
+
+        /**
+         * Get the id of the order.
+         *
+         * @return order id
+         */
+        public String getId() {
+            return this.id;
+        }
+
+        /**
+         * Get the fetched order.
+         *
+         * @return the order, or null if the fetch failed
+         */
+        public Order getOrder() {
+            return this.order;
+        }
+
+        /**
+         * Get the error the fetch failed with.
+         *
+         * @return the error, or null if the fetch succeeded
+         */
+        public Exception getError() {
+            return this.error;
+        }
+
+        /**
+         * Whether the order was fetched.
+         *
+         * @return true if the fetch succeeded
+         */
+        public boolean isSuccessful() {
+            return this.error == null;
+        }
+    }
+
+    /**
+     * Fetch of a single order.
+     */
+    private static final class Fetch implements Callable<Result> {
+
+        /**
+         * Connector to fetch with.
+         */
+        private final IConnector connector;
+
+        /**
+         * Id of the order.
+         */
+        private final String id;
+
+        /**
+         * Limiter to take a permit from, may be null.
+         */
+        private final RateLimiter limiter;
+
+        /**
+         * Constructor.
+         *
+         * @param conn    IConnector implementation
+         * @param orderId id of the order
+         * @param limit   limiter to take a permit from, may be null
+         */
+        Fetch(
+                final IConnector conn,
+                final String orderId,
+                final RateLimiter limit) {
+            this.connector = conn;
+            this.id = orderId;
+            this.limiter = limit;
+        }
+
+        @Override
+        public Result call() {
+            try {
+                if (this.limiter != null) {
+                    this.limiter.acquire();
+                }
+                Order order = new Order(this.connector, this.id);
+                order.fetch();
+                return new Result(this.id, order, null);
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                return new Result(this.id, null, ex);
+            } catch (Exception ex) {
+                return new Result(this.id, null, ex);
+            }
+        }
+    }
+
+    /**
+     * Iterator over results as they complete.
+     *
+     * Closing it stops the fetches still running and starts no more.
+     */
+    public static final class Results implements Iterator<Result>, Closeable {
+
+        /**
+         * Connector to fetch with.
+         */
+        private final IConnector connector;
+
+        /**
+         * Ids of the orders not yet submitted.
+         */
+        private final Iterator<String> pending;
+
+        /**
+         * Limiter to take a permit from per fetch, may be null.
+         */
+        private final RateLimiter limiter;
+
+        /**
+         * Executor running the fetches.
+         */
+        private final ThreadPoolExecutor executor;
+
+        /**
+         * Completed fetches.
+         */
+        private final CompletionService<Result> completed;
+
+        /**
+         * Number of results not yet returned.
+         */
+        private int remaining;
+
+        /**
+         * Constructor.
+         *
+         * @param conn    IConnector implementation
+         * @param ids     ids of the orders to fetch
+         * @param count   number of ids
+         * @param limit   limiter to take a permit from, may be null
+         * @param threads executor to run the fetches on
+         */
+        Results(
+                final IConnector conn,
+                final Iterator<String> ids,
+                final int count,
+                final RateLimiter limit,
+                final ThreadPoolExecutor threads) {
+            this.connector = conn;
+            this.pending = ids;
+            this.remaining = count;
+            this.limiter = limit;
+            this.executor = threads;
+            this.completed = new ExecutorCompletionService<Result>(threads);
+        }
+
+        @Override
+        public boolean hasNext() {
+            return this.remaining > 0;
+        }
+
+        /**
+         * Wait for the next fetch to complete and start another.
+         *
+         * @return result of the fetch
+         * @throws IllegalStateException if interrupted while waiting
+         */
+        @Override
+        public Result next() {
+            if (!this.hasNext()) {
+                throw new NoSuchElementException();
+            }
+
+            try {
+                Result result = this.completed.take().get();
+                this.remaining--;
+                this.submit();
+                return result;
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException(
+                        "Interrupted while waiting for orders", ex);
+            } catch (ExecutionException ex) {
+                // Fetches report their own exceptions, only errors get here.
+                throw new IllegalStateException(ex.getCause());
+            }
+        }
+
+        @Override
+        public void remove() {
+            throw new UnsupportedOperationException();
+        }
+
+        /**
+         * Stop fetching.
+         *
+         * Fetches still running are interrupted and no results are
+         * returned afterwards.
+         */
+        @Override
+        public void close() {
+            this.remaining = 0;
+            this.executor.shutdownNow();
+        }
+
+        /**
+         * Start fetching the next order, if any.
+         */
+        void submit() {
+            if (this.executor.isShutdown()) {
+                return;
+            }
+            if (!this.pending.hasNext()) {
+                this.executor.shutdown();
+                return;
+            }
+            this.completed.submit(new Fetch(
+                    this.connector, this.pending.next(), this.limiter));
+        }
+    }
+}
@@ -0,0 +1,398 @@
+/*
+ * Copyright 2015 Klarna AB
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.klarna.checkout;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.URISyntaxException;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Processing of push notifications off the request thread.
+ *
+ * A push only queues the order id, so the push callback can answer right
+ * away. Worker threads then fetch the order, hand completed orders to the
+ * handler and acknowledge them by updating their status to created. When
+ * the queue is full the push is refused, and the callback should answer
+ * with an error so Klarna pushes again later.
+ *
+ * An order is acknowledged at most once: repeated pushes of an order that
+ * is queued or being processed are dropped, and orders fetched with status
+ * created are skipped. The handler runs before the acknowledgement, so if
+ * acknowledging fails it runs again on the next push and should be
+ * idempotent for a given order.
+ *
+ * With an outbox set, acknowledgements are made durable locally and sent
+ * in the background instead, so they are not lost if the process dies.
+ */
+public class PushPipeline {
+
+    /**
+     * Status of an order ready to be acknowledged.
+     */
+    public static final String COMPLETE = "checkout_complete";
+
+    /**
+     * Status of an acknowledged order.
+     */
+    public static final String CREATED = "created";
+
+    /**
+     * Connector to fetch and update with.
+     */
+    private final IConnector connector;
+
+    /**
+     * Handler of completed orders.
+     */
+    private final OrderHandler handler;
+
+    /**
+     * Workers and their bounded queue.
+     */
+    private final ThreadPoolExecutor workers;
+
+    /**
+     * Orders queued or being processed.
+     */
+    private final Set<String> pending;
+
+    /**
+     * Orders recently acknowledged, in least recently used order.
+     */
+    private final Map<String, Boolean> acknowledged;
+
+    /**
+     * Number of pushes queued.
+     */
+    private final AtomicLong accepted = new AtomicLong();
+
+    /**
+     * Number of pushes dropped as duplicates.
+     */
+    private final AtomicLong duplicates = new AtomicLong();
+
+    /**
+     * Number of pushes refused because the queue was full.
+     */
+    private final AtomicLong rejected = new AtomicLong();
+
+    /**
+     * Number of orders acknowledged.
+     */
+    private final AtomicLong acks = new AtomicLong();
+
+    /**
+     * Number of pushes that failed to be processed.
+     */
+    private final AtomicLong failures = new AtomicLong();
+
+    /**
+     * Outbox to acknowledge through, null to update directly.
+     */
+    private volatile AckOutbox outbox;
+
+    /**
+     * Constructor.
+     *
+     * @param conn     IConnector implementation, safe to share between threads
+     * @param capacity most number of pushes waiting to be processed
+     * @param threads  number of worker threads
+     * @param orders   handler of completed orders
+     */
+    public PushPipeline(
+            final IConnector conn,
+            final int capacity,
+            final int threads,
+            final OrderHandler orders) {
+        if (capacity <= 0 || threads <= 0) {
+            throw new IllegalArgumentException(
+                    "Capacity and threads must be positive.");
+        }
+
+        this.connector = conn;
+        this.handler = orders;
+        this.workers = new ThreadPoolExecutor(
+                threads, threads, 0, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<Runnable>(capacity),
+                new DaemonThreadFactory("klarna-push-"));
+        this.pending = Collections.newSetFromMap(
+                new ConcurrentHashMap<String, Boolean>());
+        this.acknowledged = Collections.synchronizedMap(
+                new Recent(capacity));
+    }
+
+    /**
+     * Acknowledge orders through a durable outbox.
+     *
+     * @param box outbox to use, or null to update orders directly
+     */
+    public void setOutbox(final AckOutbox box) {
+        this.outbox = box;
+    }
+
+    /**
+     * Queue a pushed order for processing.
+     *
+     * @param id id of the pushed order
+     * @return false if the queue is full and the push should be refused
+     */
+    public boolean offer(final String id) {
+        AckOutbox box = this.outbox;
+        if (this.acknowledged.containsKey(id)
+                || (box != null && box.isPending(id))
+                || !this.pending.add(id)) {
+            this.duplicates.incrementAndGet();
+            return true;
+        }
+
+        try {
+            this.workers.execute(new Push(id));
+        } catch (RejectedExecutionException ex) {
+            this.pending.remove(id);
+            this.rejected.incrementAndGet();
+            return false;
+        }
+
+        this.accepted.incrementAndGet();
+        return true;
+    }
+
+    /**
+     * Stop accepting pushes and wait for the queued ones to be processed.
+     *
+     * @param timeout most time to wait
+     * @param unit    unit of the timeout
+     * @return true if all queued pushes were processed
+     * @throws InterruptedException if interrupted while waiting
+     */
+    public boolean shutdown(final long timeout, final TimeUnit unit)
+            throws InterruptedException {
+        this.workers.shutdown();
+        return this.workers.awaitTermination(timeout, unit);
+    }
+
+    /**
+     * Get the number of pushes waiting to be processed.
+     *
+     * @return queue length
+     */
+    public int getQueueLength() {
+        return this.workers.getQueue().size();
+    }
+
+    /**
+     * Get the number of pushes queued.
+     *
+     * @return number of accepted pushes
+     */
+    public long getAcceptedCount() {
+        return this.accepted.get();
+    }
+
+    /**
+     * Get the number of pushes dropped as duplicates.
+     *
+     * @return number of duplicate pushes
+     */
+    public long getDuplicateCount() {
+        return this.duplicates.get();
+    }
+
+    /**
+     * Get the number of pushes refused because the queue was full.
+     *
+     * @return number of rejected pushes
+     */
+    public long getRejectedCount() {
+        return this.rejected.get();
+    }
+
+    /**
+     * Get the number of orders acknowledged.
+     *
+     * @return number of acknowledgements
+     */
+    public long getAcknowledgedCount() {
+        return this.acks.get();
+    }
+
+    /**
+     * Get the number of pushes that failed to be processed.
+     *
+     * @return number of failures
+     */
+    public long getFailureCount() {
+        return this.failures.get();
+    }
+
+    /**
+     * Acknowledge a completed order by updating its status to created.
+     *
+     * @param id    id of the order
+     * @param order order to acknowledge
+     * @param data  data to update the order with
+     * @throws IOException if the update failed
+     */
+    protected void acknowledge(
+            final String id, final Order order, final Map<String, Object> data)
+            throws IOException {
+        AckOutbox box = this.outbox;
+        if (box == null) {
+            order.update(data);
+            return;
+        }
+
+        try {
+            box.enqueue(id, data);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException(ex.getMessage());
+        }
+    }
+
+    /**
+     * Fetch, handle and acknowledge a pushed order.
+     *
+     * @param id id of the pushed order
+     * @throws IOException        if the order could not be fetched or updated
+     * @throws URISyntaxException if the id does not make a valid location
+     */
+    private void process(final String id)
+            throws IOException, URISyntaxException {
+        Order order = new Order(this.connector, id);
+        order.fetch();
+
+        Object status = order.get("status");
+        if (CREATED.equals(status)) {
+            this.acknowledged.put(id, Boolean.TRUE);
+            return;
+        }
+        if (!COMPLETE.equals(status)) {
+            Logger.getLogger(PushPipeline.class.getName()).log(
+                    Level.FINE, "Ignoring push of {0} with status {1}",
+                    new Object[]{id, status});
+            return;
+        }
+
+        Map<String, Object> data = new HashMap<String, Object>();
+        Map<String, Object> extra = this.handler.handle(order);
+        if (extra != null) {
+            data.putAll(extra);
+        }
+        data.put("status", CREATED);
+
+        this.acknowledge(id, order, data);
+        this.acknowledged.put(id, Boolean.TRUE);
+        this.acks.incrementAndGet();
+    }
+
+    /**
+     * Handles completed orders before they are acknowledged.
+     */
+    public interface OrderHandler {
+
+        /**
+         * Handle a completed order.
+         *
+         * @param order the fetched order
+         * @return data to update the order with along with its status, such
+         *         as a merchant reference, or null for none
+         * @throws IOException if the order could not be handled, it is
+         *                     then not acknowledged
+         */
+        Map<String, Object> handle(Order order) throws IOException;
+    }
+
+    /**
+     * Processing of a single push.
+     */
+    private final class Push implements Runnable {
+
+        /**
+         * Id of the pushed order.
+         */
+        private final String id;
+
+        /**
+         * Constructor.
+         *
+         * @param orderId id of the pushed order
+         */
+        Push(final String orderId) {
+            this.id = orderId;
+        }
+
+        @Override
+        public void run() {
+            try {
+                process(this.id);
+            } catch (Exception ex) {
+                failures.incrementAndGet();
+                Logger.getLogger(PushPipeline.class.getName()).log(
+                        Level.WARNING, "Failed to process push of " + this.id,
+                        ex);
+            } finally {
+                pending.remove(this.id);
+            }
+        }
+    }
+
+    /**
+     * Bounded map of recent entries.
+     */
+    private static final class Recent extends LinkedHashMap<String, Boolean> {
+
+        /**
+         * Serial version.
+         */
+        private static final long serialVersionUID = 1L;
+
+        /**
+         * Most number of entries kept.
+         */
+        private final int limit;
+
+        /**
+         * Constructor.
+         *
+         * @param size most number of entries kept
+         */
+        Recent(final int size) {
+            super(16, 0.75f, true);
+            this.limit = size;
+        }
+
+        @Override
+        protected boolean removeEldestEntry(
+                final Map.Entry<String, Boolean> eldest) {
+            return this.size() > this.limit;
+        }
+    }
+}
@@ -0,0 +1,158 @@
+/*
+ * Copyright 2015 Klarna AB
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.klarna.checkout;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Token bucket limiting how often requests are made.
+ *
+ * Permits are handed out at a steady rate, with up to a burst of them
+ * saved up while idle. Callers that arrive when the bucket is empty reserve
+ * the next free permit and wait for it, so they are served in order. A
+ * limiter may be shared between threads.
+ */
+public class RateLimiter {
+
+    /**
+     * Permits added per nanosecond.
+     */
+    private double rate;
+
+    /**
+     * Most permits saved up.
+     */
+    private final double burst;
+
+    /**
+     * Permits available, negative when reserved ahead.
+     */
+    private double tokens;
+
+    /**
+     * Time the tokens were last topped up.
+     */
+    private long updated;
+
+    /**
+     * Constructor.
+     *
+     * @param permitsPerSecond permits handed out per second
+     */
+    public RateLimiter(final double permitsPerSecond) {
+        this(permitsPerSecond, 1);
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param permitsPerSecond permits handed out per second
+     * @param maxBurst         most permits saved up while idle
+     */
+    public RateLimiter(final double permitsPerSecond, final int maxBurst) {
+        if (permitsPerSecond <= 0) {
+            throw new IllegalArgumentException("Rate must be positive.");
+        }
+        if (maxBurst <= 0) {
+            throw new IllegalArgumentException("Burst must be positive.");
+        }
+
+        this.rate = permitsPerSecond / TimeUnit.SECONDS.toNanos(1);
+        this.burst = maxBurst;
+        this.tokens = maxBurst;
+        this.updated = this.now();
+    }
+
+    /**
+     * Change the rate permits are handed out at.
+     *
+     * Permits saved up so far are kept, and callers already waiting keep
+     * the time they reserved.
+     *
+     * @param permitsPerSecond permits handed out per second
+     */
+    public synchronized void setRate(final double permitsPerSecond) {
+        if (permitsPerSecond <= 0) {
+            throw new IllegalArgumentException("Rate must be positive.");
+        }
+
+        this.refill();
+        this.rate = permitsPerSecond / TimeUnit.SECONDS.toNanos(1);
+    }
+
+    /**
+     * Get the rate permits are handed out at.
+     *
+     * @return permits handed out per second
+     */
+    public synchronized double getRate() {
+        return this.rate * TimeUnit.SECONDS.toNanos(1);
+    }
+
+    /**
+     * Take a permit, waiting for one to become available.
+     *
+     * @throws InterruptedException if interrupted while waiting
+     */
+    public void acquire() throws InterruptedException {
+        long wait = 0;
+        synchronized (this) {
+            this.refill();
+
+            this.tokens -= 1;
+            if (this.tokens < 0) {
+                wait = (long) Math.ceil(-this.tokens / this.rate);
+            }
+        }
+
+        if (wait > 0) {
+            this.sleep(wait);
+        }
+    }
+
+    /**
+     * Top up the tokens for the time passed.
+     *
+     * Must be called holding the lock on the limiter.
+     */
+    private void refill() {
+        long time = this.now();
+        this.tokens = Math.min(
+                this.burst,
+                this.tokens + (time - this.updated) * this.rate);
+        this.updated = time;
+    }
+
+    /**
+     * Get the current time.
+     *
+     * @return time in nanoseconds
+     */
+    protected long now() {
+        return System.nanoTime();
+    }
+
+    /**
+     * Wait for a permit.
+     *
+     * @param nanos time to wait in nanoseconds
+     * @throws InterruptedException if interrupted while waiting
+     */
+    protected void sleep(final long nanos) throws InterruptedException {
+        TimeUnit.NANOSECONDS.sleep(nanos);
+    }
+}
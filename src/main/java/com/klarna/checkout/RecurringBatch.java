@@ -0,0 +1,761 @@
+/*
+ * Copyright 2015 Klarna AB
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.klarna.checkout;
+
+import org.apache.http.client.HttpResponseException;
+import org.json.simple.JSONObject;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Batch creation of recurring orders that can be resumed.
+ *
+ * Every token is recorded in an append-only journal as pending before its
+ * order is created, and as created, failed or unknown afterwards. Only a
+ * create the API rejected with a client error is failed; one that timed
+ * out, lost its connection or got a server error may have been charged
+ * all the same, so its outcome is unknown. A later run with the same
+ * journal skips tokens already created and retries failed ones. Tokens
+ * left pending by an interrupted run or with an unknown outcome are
+ * reported as in doubt and left alone until the journal is fixed by hand.
+ */
+public class RecurringBatch {
+
+    /**
+     * Journal state of a token whose order is being created.
+     */
+    static final String PENDING = "PENDING";
+
+    /**
+     * Journal state of a token whose order was created.
+     */
+    static final String CREATED = "CREATED";
+
+    /**
+     * Journal state of a token whose order could not be created.
+     */
+    static final String FAILED = "FAILED";
+
+    /**
+     * Journal state of a token whose order may or may not have been created.
+     */
+    static final String UNKNOWN = "UNKNOWN";
+
+    /**
+     * Failure code of a token that cannot be journaled.
+     */
+    public static final String INVALID_TOKEN = "invalid_token";
+
+    /**
+     * Keys of the error code in an API error response, in order of
+     * preference.
+     */
+    private static final String[] ERROR_CODE_KEYS = {"error_code", "reason"};
+
+    /**
+     * Connector to create orders with.
+     */
+    private final IConnector connector;
+
+    /**
+     * Journal file.
+     */
+    private final File journal;
+
+    /**
+     * Most number of creates running at once.
+     */
+    private final int parallelism;
+
+    /**
+     * Constructor.
+     *
+     * @param conn    IConnector implementation, safe to share between threads
+     * @param file    journal file, created if missing
+     * @param threads most number of creates running at once
+     */
+    public RecurringBatch(
+            final IConnector conn, final File file, final int threads) {
+        if (threads <= 0) {
+            throw new IllegalArgumentException(
+                    "Parallelism must be positive.");
+        }
+
+        this.connector = conn;
+        this.journal = file;
+        this.parallelism = threads;
+    }
+
+    /**
+     * Create a recurring order for every token not already journaled.
+     *
+     * @param tokens recurring tokens to charge
+     * @param source order data to create for each token
+     * @return outcome of the run
+     * @throws IOException          if the journal could not be read or written
+     * @throws InterruptedException if interrupted while creating orders
+     */
+    public Report run(final Iterable<String> tokens, final OrderSource source)
+            throws IOException, InterruptedException {
+        Map<String, String> previous = this.readJournal();
+        Set<String> seen = new HashSet<String>();
+        Report report = new Report();
+        long start = this.now();
+
+        Journal writer = new Journal(new FileOutputStream(this.journal, true));
+        ExecutorService executor = Executors.newFixedThreadPool(
+                this.parallelism,
+                new DaemonThreadFactory("klarna-recurring-batch-"));
+        Semaphore slots = new Semaphore(this.parallelism * 2);
+
+        try {
+            for (String token : tokens) {
+                if (writer.failure != null) {
+                    break;
+                }
+
+                String state = previous.get(token);
+                if (!seen.add(token) || CREATED.equals(state)) {
+                    report.skip();
+                    continue;
+                }
+                if (PENDING.equals(state) || UNKNOWN.equals(state)) {
+                    report.doubt();
+                    continue;
+                }
+                if (token.indexOf('\t') >= 0 || token.indexOf('\n') >= 0
+                        || token.indexOf('\r') >= 0) {
+                    report.fail(INVALID_TOKEN);
+                    continue;
+                }
+
+                slots.acquire();
+                executor.execute(new Create(
+                        token, source.get(token), writer, report, slots));
+            }
+        } finally {
+            executor.shutdown();
+            try {
+                executor.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+            } catch (InterruptedException ex) {
+                // Creates not yet started have not been journaled.
+                executor.shutdownNow();
+                throw ex;
+            } finally {
+                writer.close();
+            }
+        }
+
+        if (writer.failure != null) {
+            throw writer.failure;
+        }
+
+        report.finish(this.now() - start);
+        return report;
+    }
+
+    /**
+     * Get the current time.
+     *
+     * @return time in nanoseconds
+     */
+    protected long now() {
+        return System.nanoTime();
+    }
+
+    /**
+     * Read the last journaled state of every token.
+     *
+     * A torn last line left by a crash is ignored, so a token whose outcome
+     * was being written when the process died stays pending.
+     *
+     * @return states keyed by token
+     * @throws IOException if the journal could not be read
+     */
+    private Map<String, String> readJournal() throws IOException {
+        Map<String, String> states = new HashMap<String, String>();
+        if (!this.journal.exists()) {
+            return states;
+        }
+
+        BufferedReader reader = new BufferedReader(new InputStreamReader(
+                new FileInputStream(this.journal), "UTF-8"));
+        try {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                String[] fields = line.split("\t");
+                if (fields.length >= 2 && (fields[1].equals(PENDING)
+                        || fields[1].equals(CREATED)
+                        || fields[1].equals(FAILED)
+                        || fields[1].equals(UNKNOWN))) {
+                    states.put(fields[0], fields[1]);
+                }
+            }
+        } finally {
+            reader.close();
+        }
+        return states;
+    }
+
+    /**
+     * Provides the order data to create for a token.
+     */
+    public interface OrderSource {
+
+        /**
+         * Get the order data for a token.
+         *
+         * @param token recurring token
+         * @return data to create the recurring order with
+         */
+        Map<String, Object> get(String token);
+    }
+
+    /**
+     * Get the code a failure is counted under.
+     *
+     * @param error error the create failed with
+     * @return error code of the API response, or a code made up from the
+     *         status or the exception class
+     */
+    static String errorCode(final Exception error) {
+        if (error instanceof ErrorResponseException) {
+            JSONObject json = ((ErrorResponseException) error).getJson();
+            for (int i = 0; json != null && i < ERROR_CODE_KEYS.length; i++) {
+                Object code = json.get(ERROR_CODE_KEYS[i]);
+                if (code instanceof String && ((String) code).length() > 0) {
+                    return (String) code;
+                }
+            }
+        }
+        if (error instanceof HttpResponseException) {
+            return "HTTP " + ((HttpResponseException) error).getStatusCode();
+        }
+        return error.getClass().getSimpleName();
+    }
+
+    /**
+     * Whether a create definitely did not go through.
+     *
+     * @param error error the create failed with
+     * @return true if the API rejected the create with a client error
+     */
+    static boolean rejected(final Exception error) {
+        if (!(error instanceof ErrorResponseException)) {
+            return false;
+        }
+        int status = ((ErrorResponseException) error).getStatusCode();
+        return status >= 400 && status < 500;
+    }
+
+    /**
+     * Outcome of a batch run.
+     */
+    public static final class Report {
+
+        /**
+         * Number of orders created.
+         */
+        private int created;
+
+        /**
+         * Number of orders that could not be created.
+         */
+        private int failed;
+
+        /**
+         * Number of tokens skipped as already created.
+         */
+        private int skipped;
+
+        /**
+         * Number of tokens whose order may or may not have been created.
+         */
+        private int inDoubt;
+
+        /**
+         * Failures keyed by error code.
+         */
+        private final Map<String, Integer> failures =
+                new TreeMap<String, Integer>();
+
+        /**
+         * Creates of this run that ended in doubt, keyed by error code.
+         */
+        private final Map<String, Integer> doubts =
+                new TreeMap<String, Integer>();
+
+        /**
+         * Duration of the run in nanoseconds.
+         */
+        private long elapsed;
+
+        /**
+         * Get the number of orders created.
+         *
+         * @return number of orders created
+         */
+        public synchronized int getCreated() {
+            return this.created;
+        }
+
+        /**
+         * Get the number of orders that could not be created.
+         *
+         * @return number of failures
+         */
+        public synchronized int getFailed() {
+            return this.failed;
+        }
+
+        /**
+         * Get the number of tokens skipped as already created.
+         *
+         * @return number of skipped tokens
+         */
+        public synchronized int getSkipped() {
+            return this.skipped;
+        }
+
+        /**
+         * Get the number of tokens whose order may or may not have been
+         * created, by this run or an earlier one.
+         *
+         * @return number of tokens in doubt
+         */
+        public synchronized int getInDoubt() {
+            return this.inDoubt;
+        }
+
+        /**
+         * Get the failures by error code.
+         *
+         * Failures are counted under the error code of their response,
+         * such as a decline reason, or as "HTTP" and the status code if the
+         * response has none.
+         *
+         * @return number of failures keyed by error code
+         */
+        public synchronized Map<String, Integer> getFailuresByCode() {
+            return Collections.unmodifiableMap(
+                    new TreeMap<String, Integer>(this.failures));
+        }
+
+        /**
+         * Get the creates of this run that ended in doubt by error code.
+         *
+         * Server errors are counted like failures, other errors, such as
+         * timeouts and connection failures, under the simple name of their
+         * exception class.
+         *
+         * @return number of creates in doubt keyed by error code
+         */
+        public synchronized Map<String, Integer> getInDoubtByCode() {
+            return Collections.unmodifiableMap(
+                    new TreeMap<String, Integer>(this.doubts));
+        }
+
+        /**
+         * Get the duration of the run.
+         *
+         * @param unit unit of the duration
+         * @return duration of the run
+         */
+        public synchronized long getElapsed(final TimeUnit unit) {
+            return unit.convert(this.elapsed, TimeUnit.NANOSECONDS);
+        }
+
+        /**
+         * Get the number of orders attempted per second.
+         *
+         * @return created and failed orders per second
+         */
+        public synchronized double getThroughput() {
+            if (this.elapsed <= 0) {
+                return 0;
+            }
+            return (this.created + this.failed)
+                    * (double) TimeUnit.SECONDS.toNanos(1) / this.elapsed;
+        }
+
+        /**
+         * Count a created order.
+         */
+        private synchronized void create() {
+            this.created++;
+        }
+
+        /**
+         * Count a failure.
+         *
+         * @param code error code
+         */
+        private synchronized void fail(final String code) {
+            this.failed++;
+            count(this.failures, code);
+        }
+
+        /**
+         * Count a skipped token.
+         */
+        private synchronized void skip() {
+            this.skipped++;
+        }
+
+        /**
+         * Count a token left in doubt by an earlier run.
+         */
+        private synchronized void doubt() {
+            this.inDoubt++;
+        }
+
+        /**
+         * Count a create of this run that ended in doubt.
+         *
+         * @param code error code
+         */
+        private synchronized void doubt(final String code) {
+            this.inDoubt++;
+            count(this.doubts, code);
+        }
+
+        /**
+         * Add one to the count of an error code.
+         *
+         * @param counts counts keyed by error code
+         * @param code   error code
+         */
+        private static void count(
+                final Map<String, Integer> counts, final String code) {
+            Integer count = counts.get(code);
+            if (count == null) {
+                count = 0;
+            }
+            counts.put(code, count + 1);
+        }
+
+        /**
+         * Record the duration of the run.
+         *
+         * @param nanos duration in nanoseconds
+         */
+        private synchronized void finish(final long nanos) {
+            this.elapsed = nanos;
+        }
+    }
+
+    /**
+     * Appends lines to the journal.
+     *
+     * Lines are written by a single committer and synced once per batch,
+     * so creates finishing together share a sync instead of queueing for
+     * the disk one after another.
+     */
+    private static final class Journal {
+
+        /**
+         * Line that stops the committer.
+         */
+        private static final Line STOP = new Line(null);
+
+        /**
+         * Journal stream.
+         */
+        private final FileOutputStream out;
+
+        /**
+         * Lines waiting to be written.
+         */
+        private final BlockingQueue<Line> lines =
+                new LinkedBlockingQueue<Line>();
+
+        /**
+         * Thread writing the journal.
+         */
+        private final Thread committer;
+
+        /**
+         * First error writing the journal, stops the run.
+         */
+        private volatile IOException failure;
+
+        /**
+         * Whether the journal has been closed, guarded by the line queue.
+         */
+        private boolean closed;
+
+        /**
+         * Constructor.
+         *
+         * @param stream journal stream
+         */
+        Journal(final FileOutputStream stream) {
+            this.out = stream;
+            DaemonThreadFactory threads =
+                    new DaemonThreadFactory("klarna-recurring-journal-");
+            this.committer = threads.newThread(new Runnable() {
+                @Override
+                public void run() {
+                    commit();
+                }
+            });
+            this.committer.start();
+        }
+
+        /**
+         * Append the state of a token.
+         *
+         * Returns once the line is forced to the disk, so it survives the
+         * process dying and the machine losing power.
+         *
+         * @param token recurring token
+         * @param state journal state
+         * @param detail additional information, may be null
+         * @return true if written, false if the journal failed or was closed
+         *         or the wait was interrupted
+         */
+        boolean write(
+                final String token, final String state, final String detail) {
+            if (this.failure != null) {
+                return false;
+            }
+
+            StringBuilder text = new StringBuilder(token)
+                    .append('\t').append(state);
+            if (detail != null) {
+                text.append('\t').append(detail.replaceAll("[\t\r\n]", " "));
+            }
+            Line line = new Line(text.toString());
+            // Checked and queued together, so no line lands behind the stop.
+            synchronized (this.lines) {
+                if (this.closed) {
+                    return false;
+                }
+                this.lines.add(line);
+            }
+
+            try {
+                line.written.await();
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                return false;
+            }
+            return line.durable;
+        }
+
+        /**
+         * Write lines in batches, syncing once per batch, until stopped.
+         */
+        private void commit() {
+            List<Line> batch = new ArrayList<Line>();
+            boolean stopped = false;
+            try {
+                while (!stopped) {
+                    batch.add(this.lines.take());
+                    this.lines.drainTo(batch);
+                    stopped = batch.remove(STOP);
+
+                    boolean durable = this.append(batch);
+                    for (Line line : batch) {
+                        line.durable = durable;
+                        line.written.countDown();
+                    }
+                    batch.clear();
+                }
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        /**
+         * Append a batch of lines to the journal and sync it.
+         *
+         * @param batch lines to write
+         * @return true if the lines are durable
+         */
+        private boolean append(final List<Line> batch) {
+            if (this.failure != null) {
+                return false;
+            }
+            if (batch.isEmpty()) {
+                return true;
+            }
+
+            StringBuilder text = new StringBuilder();
+            for (Line line : batch) {
+                text.append(line.text).append('\n');
+            }
+            try {
+                this.out.write(text.toString().getBytes("UTF-8"));
+                this.out.getChannel().force(false);
+                return true;
+            } catch (IOException ex) {
+                this.failure = ex;
+                return false;
+            }
+        }
+
+        /**
+         * Write the lines queued so far and close the journal.
+         *
+         * @throws IOException          if the journal could not be closed
+         * @throws InterruptedException if interrupted while writing
+         */
+        void close() throws IOException, InterruptedException {
+            synchronized (this.lines) {
+                this.closed = true;
+            }
+            this.lines.add(STOP);
+            this.committer.join();
+            this.out.close();
+        }
+    }
+
+    /**
+     * A line to append to the journal.
+     */
+    private static final class Line {
+
+        /**
+         * Line without the line break.
+         */
+        private final String text;
+
+        /**
+         * Released once the line is written or failed to be.
+         */
+        private final CountDownLatch written = new CountDownLatch(1);
+
+        /**
+         * Whether the line is durable, set before it is released.
+         */
+        private boolean durable;
+
+        /**
+         * Constructor.
+         *
+         * @param content line without the line break
+         */
+        Line(final String content) {
+            this.text = content;
+        }
+    }
+
+    /**
+     * Creation of a single recurring order.
+     */
+    private final class Create implements Runnable {
+
+        /**
+         * Recurring token.
+         */
+        private final String token;
+
+        /**
+         * Order data.
+         */
+        private final Map<String, Object> data;
+
+        /**
+         * Journal writer.
+         */
+        private final Journal writer;
+
+        /**
+         * Report to count the outcome in.
+         */
+        private final Report report;
+
+        /**
+         * Slots limiting the queued creates.
+         */
+        private final Semaphore slots;
+
+        /**
+         * Constructor.
+         *
+         * @param recurring recurring token
+         * @param order     order data
+         * @param journaled journal writer
+         * @param outcome   report to count the outcome in
+         * @param permits   slots limiting the queued creates
+         */
+        Create(
+                final String recurring,
+                final Map<String, Object> order,
+                final Journal journaled,
+                final Report outcome,
+                final Semaphore permits) {
+            this.token = recurring;
+            this.data = order;
+            this.writer = journaled;
+            this.report = outcome;
+            this.slots = permits;
+        }
+
+        @Override
+        public void run() {
+            try {
+                if (!this.writer.write(this.token, PENDING, null)) {
+                    return;
+                }
+
+                Exception error;
+                try {
+                    new RecurringOrder(connector, this.token).create(this.data);
+                    this.writer.write(this.token, CREATED, null);
+                    this.report.create();
+                    return;
+                } catch (Exception ex) {
+                    error = ex;
+                }
+
+                String code = errorCode(error);
+                if (rejected(error)) {
+                    this.writer.write(this.token, FAILED, code);
+                    this.report.fail(code);
+                } else {
+                    // The request may have been handled before it failed.
+                    this.writer.write(this.token, UNKNOWN, code);
+                    this.report.doubt(code);
+                }
+            } finally {
+                this.slots.release();
+            }
+        }
+    }
+}
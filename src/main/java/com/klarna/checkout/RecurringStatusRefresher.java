@@ -0,0 +1,344 @@
+/*
+ * Copyright 2015 Klarna AB
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.klarna.checkout;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Bulk refresh of recurring statuses ahead of a billing run.
+ *
+ * Statuses are fetched in parallel, tokens due for billing soonest first,
+ * and fresh statuses are served from a cache without a request. Refreshing
+ * stops at a deadline, so whatever was checked in the time available can
+ * be acted upon.
+ */
+public class RecurringStatusRefresher {
+
+    /**
+     * Connector to fetch with.
+     */
+    private final IConnector connector;
+
+    /**
+     * Most number of fetches running at once.
+     */
+    private final int parallelism;
+
+    /**
+     * Cache of fetched statuses, may be null.
+     */
+    private final ResourceCache cache;
+
+    /**
+     * Constructor.
+     *
+     * @param conn    IConnector implementation, safe to share between threads
+     * @param threads most number of fetches running at once
+     * @param statuses cache of fetched statuses keyed by location, may be null
+     */
+    public RecurringStatusRefresher(
+            final IConnector conn,
+            final int threads,
+            final ResourceCache statuses) {
+        if (threads <= 0) {
+            throw new IllegalArgumentException(
+                    "Parallelism must be positive.");
+        }
+
+        this.connector = conn;
+        this.parallelism = threads;
+        this.cache = statuses;
+    }
+
+    /**
+     * Refresh the statuses of tokens, the soonest due first.
+     *
+     * Tokens without a due date are refreshed last. Tokens missing from the
+     * result were not reached before the timeout. Lookups still running at
+     * the timeout are abandoned and their tokens left out as well, even if
+     * they finish afterwards.
+     *
+     * @param due     due date of the next billing keyed by token
+     * @param timeout most time to spend refreshing
+     * @param unit    unit of the timeout
+     * @return results keyed by token
+     * @throws InterruptedException if interrupted while refreshing
+     */
+    public Map<String, Result> refresh(
+            final Map<String, Date> due,
+            final long timeout,
+            final TimeUnit unit)
+            throws InterruptedException {
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+
+        List<Map.Entry<String, Date>> order =
+                new ArrayList<Map.Entry<String, Date>>(due.entrySet());
+        Collections.sort(order, new Comparator<Map.Entry<String, Date>>() {
+            @Override
+            public int compare(
+                    final Map.Entry<String, Date> a,
+                    final Map.Entry<String, Date> b) {
+                if (a.getValue() == null || b.getValue() == null) {
+                    return Boolean.valueOf(a.getValue() == null)
+                            .compareTo(b.getValue() == null);
+                }
+                return a.getValue().compareTo(b.getValue());
+            }
+        });
+
+        Queue<String> tokens = new ConcurrentLinkedQueue<String>();
+        for (Map.Entry<String, Date> entry : order) {
+            tokens.add(entry.getKey());
+        }
+
+        Results results = new Results();
+        ExecutorService executor = Executors.newFixedThreadPool(
+                this.parallelism,
+                new DaemonThreadFactory("klarna-recurring-status-"));
+        for (int i = 0; i < this.parallelism; i++) {
+            executor.execute(new Worker(tokens, results, deadline));
+        }
+        executor.shutdown();
+
+        Map<String, Result> reached;
+        try {
+            executor.awaitTermination(
+                    deadline - System.nanoTime(), TimeUnit.NANOSECONDS);
+        } finally {
+            // Closed first, so lookups failing on the interrupt are dropped.
+            reached = results.close();
+            executor.shutdownNow();
+        }
+        return reached;
+    }
+
+    /**
+     * Get the status of a token, from the cache if fresh.
+     *
+     * @param token recurring token
+     * @return result of the lookup
+     */
+    private Result lookup(final String token) {
+        try {
+            RecurringStatus status = new RecurringStatus(this.connector, token);
+            if (this.cache != null) {
+                byte[] cached = this.cache.get(status.getLocation());
+                if (cached != null) {
+                    status.parseRaw(cached);
+                    return new Result(token, status, null, true);
+                }
+            }
+
+            status.fetch();
+            if (this.cache != null) {
+                this.cache.put(status.getLocation(), status.toPayload());
+            }
+            return new Result(token, status, null, false);
+        } catch (Exception ex) {
+            return new Result(token, null, ex, false);
+        }
+    }
+
+    /**
+     * Outcome of refreshing one status.
+     */
+    public static final class Result {
+
+        /**
+         * Recurring token.
+         */
+        private final String token;
+
+        /**
+         * Refreshed status, null if the fetch failed.
+         */
+        private final RecurringStatus status;
+
+        /**
+         * Error the fetch failed with, null if successful.
+         */
+        private final Exception error;
+
+        /**
+         * Whether the status came from the cache.
+         */
+        private final boolean cached;
+
+        /**
+         * Constructor.
+         *
+         * @param recurring recurring token
+         * @param fetched   refreshed status
+         * @param failure   error the fetch failed with
+         * @param fromCache whether the status came from the cache
+         */
+        Result(
+                final String recurring,
+                final RecurringStatus fetched,
+                final Exception failure,
+                final boolean fromCache) {
+            this.token = recurring;
+            this.status = fetched;
+            this.error = failure;
+            this.cached = fromCache;
+        }
+
+        /**
+         * Get the recurring token.
+         *
+         * @return recurring token
+         */
+        public String getToken() {
+            return this.token;
+        }
+
+        /**
+         * Get the refreshed status.
+         *
+         * @return the status, or null if the fetch failed
+         */
+        public RecurringStatus getStatus() {
+            return this.status;
+        }
+
+        /**
+         * Get the error the fetch failed with.
+         *
+         * @return the error, or null if the fetch succeeded
+         */
+        public Exception getError() {
+            return this.error;
+        }
+
+        /**
+         * Whether the status was refreshed.
+         *
+         * @return true if the fetch succeeded
+         */
+        public boolean isSuccessful() {
+            return this.error == null;
+        }
+
+        /**
+         * Whether the status came from the cache.
+         *
+         * @return true if no request was made
+         */
+        public boolean isCached() {
+            return this.cached;
+        }
+    }
+
+    /**
+     * Results of the lookups finished before the deadline.
+     */
+    private static final class Results {
+
+        /**
+         * Results keyed by token.
+         */
+        private final Map<String, Result> byToken =
+                new HashMap<String, Result>();
+
+        /**
+         * Whether results are no longer taken.
+         */
+        private boolean closed;
+
+        /**
+         * Add the result of a lookup, unless time is up.
+         *
+         * @param result result of the lookup
+         */
+        synchronized void add(final Result result) {
+            if (!this.closed) {
+                this.byToken.put(result.getToken(), result);
+            }
+        }
+
+        /**
+         * Stop taking results.
+         *
+         * @return results added so far keyed by token
+         */
+        synchronized Map<String, Result> close() {
+            this.closed = true;
+            return new HashMap<String, Result>(this.byToken);
+        }
+    }
+
+    /**
+     * Refreshes tokens from the shared queue until it is empty or time is
+     * up.
+     */
+    private final class Worker implements Runnable {
+
+        /**
+         * Tokens left, soonest due first.
+         */
+        private final Queue<String> tokens;
+
+        /**
+         * Results of the lookups.
+         */
+        private final Results results;
+
+        /**
+         * Time to stop at in nanoseconds.
+         */
+        private final long deadline;
+
+        /**
+         * Constructor.
+         *
+         * @param queue   tokens left
+         * @param outcome results of the lookups
+         * @param stop    time to stop at in nanoseconds
+         */
+        Worker(
+                final Queue<String> queue,
+                final Results outcome,
+                final long stop) {
+            this.tokens = queue;
+            this.results = outcome;
+            this.deadline = stop;
+        }
+
+        @Override
+        public void run() {
+            while (System.nanoTime() - this.deadline < 0
+                    && !Thread.currentThread().isInterrupted()) {
+                String token = this.tokens.poll();
+                if (token == null) {
+                    return;
+                }
+                this.results.add(lookup(token));
+            }
+        }
+    }
+}
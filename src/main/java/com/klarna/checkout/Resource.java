@@ -16,9 +16,15 @@
 
 package com.klarna.checkout;
 
+import org.json.simple.JSONValue;
+
+import java.io.UnsupportedEncodingException;
 import java.net.URI;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.Map;
+import java.util.Set;
 
 /**
  * Base implementation of resource interface.
@@ -33,7 +39,7 @@ abstract class Resource implements IResource {
     /**
      * Data of the order.
      */
-    protected final Map data;
+    protected final Map<String, Object> data;
 
     /**
      * Content type string.
@@ -50,6 +56,37 @@ abstract class Resource implements IResource {
      */
     protected URI location;
 
+    /**
+     * Whether payloads are kept raw and parsed on demand.
+     */
+    private boolean lazy;
+
+    /**
+     * Whether data is kept in compact maps.
+     */
+    private boolean compact;
+
+    /**
+     * Raw UTF-8 payload not yet fully parsed.
+     */
+    private byte[] raw;
+
+    /**
+     * Offsets of the values not yet parsed from the raw payload, built on
+     * first use.
+     */
+    private JsonIndex index;
+
+    /**
+     * Keys set since the data was last parsed, null until one is set.
+     */
+    private Set<String> changed;
+
+    /**
+     * Validators of the fetched data, null if none.
+     */
+    private Validators validators;
+
     /**
      * Constructor.
      *
@@ -60,6 +97,60 @@ abstract class Resource implements IResource {
         this.connector = conn;
     }
 
+    /**
+     * Enable or disable lazy parsing.
+     *
+     * When enabled, fetched payloads are kept as raw bytes and a field is
+     * only parsed the first time it is asked for with {@link #get(String)}.
+     *
+     * @param enabled true to parse payloads on demand
+     */
+    public void setLazy(final boolean enabled) {
+        this.lazy = enabled;
+    }
+
+    /**
+     * Whether payloads are parsed on demand.
+     *
+     * @return true if lazy parsing is enabled
+     */
+    public boolean isLazy() {
+        return this.lazy;
+    }
+
+    /**
+     * Enable or disable compact storage.
+     *
+     * When enabled, parsed objects and arrays held by the data are kept in
+     * memory compact maps with shared keys and unboxed numbers instead of
+     * hash maps, and the values already held are converted. This suits
+     * resources that are held on to in large numbers. Disabling it only
+     * applies to data parsed afterwards.
+     *
+     * @param enabled true to store data compactly
+     */
+    public void setCompact(final boolean enabled) {
+        if (enabled == this.compact) {
+            return;
+        }
+
+        this.compact = enabled;
+        if (enabled) {
+            for (Map.Entry<String, Object> entry : this.data.entrySet()) {
+                entry.setValue(CompactMap.compact(entry.getValue()));
+            }
+        }
+    }
+
+    /**
+     * Whether data is stored compactly.
+     *
+     * @return true if compact storage is enabled
+     */
+    public boolean isCompact() {
+        return this.compact;
+    }
+
     @Override
     public String getContentType() {
         return this.contentType;
@@ -90,24 +181,273 @@ abstract class Resource implements IResource {
         this.location = uri;
     }
 
+    /**
+     * Get the entity tag the data was fetched with.
+     *
+     * @return the ETag header value, or null if none
+     */
+    public String getETag() {
+        if (this.validators == null) {
+            return null;
+        }
+        return this.validators.etag;
+    }
+
+    /**
+     * Get the last modification date the data was fetched with.
+     *
+     * @return the Last-Modified header value, or null if none
+     */
+    public String getLastModified() {
+        if (this.validators == null) {
+            return null;
+        }
+        return this.validators.lastModified;
+    }
+
+    /**
+     * Remember the validators of fetched data.
+     *
+     * They are forgotten whenever the data is replaced or changed, as they
+     * then no longer describe it.
+     *
+     * @param uri      location the data was fetched from
+     * @param fields   fields selected, null for all
+     * @param tag      ETag header value, may be null
+     * @param modified Last-Modified header value, may be null
+     */
+    void setValidators(
+            final URI uri,
+            final Set<String> fields,
+            final String tag,
+            final String modified) {
+        this.clearValidators();
+        if (tag == null && modified == null) {
+            return;
+        }
+
+        this.validators = new Validators(uri, fields, tag, modified);
+    }
+
+    /**
+     * Whether the validators apply to a fetch.
+     *
+     * @param uri    location to fetch from
+     * @param fields fields to select, null for all
+     * @return true if the data can be revalidated instead of fetched again
+     */
+    boolean hasValidators(final URI uri, final Set<String> fields) {
+        if (this.validators == null || !this.validators.uri.equals(uri)) {
+            return false;
+        }
+        if (this.validators.fields == null) {
+            return fields == null;
+        }
+        return this.validators.fields.equals(fields);
+    }
+
     @Override
     public void parse(final Map<String, Object> newData) {
+        this.clearValidators();
+        this.raw = null;
+        this.index = null;
+        this.changed = null;
         this.data.clear();
-        this.data.putAll(newData);
+        this.store(newData);
+    }
+
+    /**
+     * Replace the resource data with a raw JSON payload to parse on demand.
+     *
+     * @param payload UTF-8 encoded JSON object
+     */
+    void parseRaw(final byte[] payload) {
+        this.clearValidators();
+        this.data.clear();
+        this.index = null;
+        this.changed = null;
+        this.raw = payload;
+    }
+
+    /**
+     * Get the data as a UTF-8 encoded JSON payload.
+     *
+     * A raw payload is handed out as is while nothing has been set, it is
+     * only encoded again otherwise.
+     *
+     * @return UTF-8 encoded JSON object, not to be modified
+     * @throws UnsupportedEncodingException if UTF-8 is not supported
+     */
+    byte[] toPayload() throws UnsupportedEncodingException {
+        if (this.raw != null && this.changed == null) {
+            return this.raw;
+        }
+        return JSONValue.toJSONString(this.marshal()).getBytes("UTF-8");
     }
 
     @Override
     public Map marshal() {
+        if (this.raw != null) {
+            this.materialize();
+        }
         return this.data;
     }
 
     /**
      * Get an item from the data object.
      *
+     * The key is taken as is, dots in it do not select nested values.
+     *
      * @param key key to get
      * @return object matching the key.
      */
     public Object get(final String key) {
+        if (this.raw != null) {
+            this.store(this.index().take(key));
+            if (this.index.isEmpty()) {
+                this.raw = null;
+                this.index = null;
+            }
+        }
         return this.data.get(key);
     }
+
+    /**
+     * Set an item in the data object and remember it as changed.
+     *
+     * @param key   key to set
+     * @param value new value of the key
+     */
+    public void set(final String key, final Object value) {
+        this.clearValidators();
+        if (this.raw != null) {
+            this.index().discard(key);
+        }
+        this.data.put(key, value);
+        if (this.changed == null) {
+            this.changed = new LinkedHashSet<String>();
+        }
+        this.changed.add(key);
+    }
+
+    /**
+     * Get the items set since the data was last parsed.
+     *
+     * Only changes made with {@link #set(String, Object)} are tracked,
+     * modifications made directly to the map returned by marshal are not.
+     *
+     * @return map of the changed keys and their current values
+     */
+    public Map<String, Object> getChanges() {
+        Map<String, Object> changes = new LinkedHashMap<String, Object>();
+        if (this.changed == null) {
+            return changes;
+        }
+        for (String key : this.changed) {
+            changes.put(key, this.data.get(key));
+        }
+        return changes;
+    }
+
+    /**
+     * Forget changes that have been sent.
+     *
+     * @param keys keys that are no longer changed
+     */
+    protected void clearChanges(final Set<String> keys) {
+        if (this.changed != null) {
+            this.changed.removeAll(keys);
+        }
+    }
+
+    /**
+     * Forget the validators of fetched data.
+     */
+    private void clearValidators() {
+        this.validators = null;
+    }
+
+    /**
+     * Parse whatever is left of the raw payload.
+     */
+    private void materialize() {
+        this.store(this.index().takeAll());
+        this.raw = null;
+        this.index = null;
+    }
+
+    /**
+     * Get the offsets of the values left in the raw payload.
+     *
+     * @return the index
+     * @throws IllegalStateException if the payload is not a JSON object
+     */
+    private JsonIndex index() {
+        if (this.index == null) {
+            this.index = new JsonIndex(this.raw);
+        }
+        return this.index;
+    }
+
+    /**
+     * Add parsed values to the data object.
+     *
+     * @param values values to add
+     */
+    private void store(final Map<String, Object> values) {
+        if (!this.compact) {
+            this.data.putAll(values);
+            return;
+        }
+
+        for (Map.Entry<String, Object> entry : values.entrySet()) {
+            this.data.put(
+                    entry.getKey(), CompactMap.compact(entry.getValue()));
+        }
+    }
+
+    /**
+     * Validators received with fetched data.
+     */
+    private static final class Validators {
+
+        /**
+         * Location the validators were received for.
+         */
+        private final URI uri;
+
+        /**
+         * Fields selected when the validators were received, null for all.
+         */
+        private final Set<String> fields;
+
+        /**
+         * Entity tag of the fetched data.
+         */
+        private final String etag;
+
+        /**
+         * Last modification date of the fetched data.
+         */
+        private final String lastModified;
+
+        /**
+         * Constructor.
+         *
+         * @param location location the data was fetched from
+         * @param selected fields selected, null for all
+         * @param tag      ETag header value, may be null
+         * @param modified Last-Modified header value, may be null
+         */
+        Validators(
+                final URI location,
+                final Set<String> selected,
+                final String tag,
+                final String modified) {
+            this.uri = location;
+            this.fields = selected;
+            this.etag = tag;
+            this.lastModified = modified;
+        }
+    }
 }
@@ -0,0 +1,491 @@
+/*
+ * Copyright 2015 Klarna AB
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.klarna.checkout;
+
+import java.net.URI;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Bounded cache of fetched resources keyed by their location.
+ *
+ * Entries expire a fixed time after they were fetched and the least
+ * recently used entry is evicted once the cache is full. Resources, such
+ * as orders and recurring statuses, are kept as the raw UTF-8 JSON
+ * payloads they were fetched as. Payloads are shared rather than copied,
+ * so a hit costs no more than handing out the array, and a lazy resource
+ * parses only the fields it asks for. Payloads must not be modified by
+ * those they are handed to. The cache may be shared between threads.
+ *
+ * Large caches are split into segments by location, each with its own
+ * lock and its own share of the size, so lookups of different resources
+ * seldom wait for each other. The least recently used resource is then
+ * evicted from the segment that is full rather than from the whole cache.
+ *
+ * With a stale window set, resources past their time to live are still
+ * served for the length of the window while they are refreshed in the
+ * background.
+ */
+public class ResourceCache {
+
+    /**
+     * Most number of segments.
+     */
+    private static final int MAX_SEGMENTS = 16;
+
+    /**
+     * Fewest resources kept per segment.
+     */
+    private static final int MIN_SEGMENT_SIZE = 64;
+
+    /**
+     * Time to live in nanoseconds.
+     */
+    private final long ttl;
+
+    /**
+     * Segments of the entries, a power of two in number.
+     */
+    private final Segment[] segments;
+
+    /**
+     * Refreshes in flight, keyed by location.
+     */
+    private final ConcurrentHashMap<URI, Object> refreshing;
+
+    /**
+     * Time stale resources are served for in nanoseconds.
+     */
+    private volatile long stale;
+
+    /**
+     * Executor running background refreshes.
+     */
+    private volatile Executor executor;
+
+    /**
+     * Number of lookups that found a fresh resource.
+     */
+    private final AtomicLong hits = new AtomicLong();
+
+    /**
+     * Number of lookups that did not find a fresh resource.
+     */
+    private final AtomicLong misses = new AtomicLong();
+
+    /**
+     * Number of resources evicted because of size or age.
+     */
+    private final AtomicLong evictions = new AtomicLong();
+
+    /**
+     * Number of lookups that were served a stale resource.
+     */
+    private final AtomicLong staleHits = new AtomicLong();
+
+    /**
+     * Number of background refreshes that failed.
+     */
+    private final AtomicLong refreshFailures = new AtomicLong();
+
+    /**
+     * Constructor.
+     *
+     * @param size     most number of resources to keep
+     * @param duration how long a resource stays fresh
+     * @param unit     unit of the duration
+     */
+    public ResourceCache(
+            final int size, final long duration, final TimeUnit unit) {
+        if (size <= 0) {
+            throw new IllegalArgumentException("Size must be positive.");
+        }
+
+        int count = 1;
+        while (count < MAX_SEGMENTS && count * 2 * MIN_SEGMENT_SIZE <= size) {
+            count *= 2;
+        }
+
+        this.ttl = unit.toNanos(duration);
+        this.segments = new Segment[count];
+        for (int i = 0; i < count; i++) {
+            this.segments[i] = new Segment((size + i) / count);
+        }
+        this.refreshing = new ConcurrentHashMap<URI, Object>();
+    }
+
+    /**
+     * Serve stale resources while refreshing them in the background.
+     *
+     * @param duration how long past its time to live a resource is served
+     * @param unit     unit of the duration
+     * @param refresher executor to run the refreshes on
+     */
+    public void setStaleWhileRevalidate(
+            final long duration,
+            final TimeUnit unit,
+            final Executor refresher) {
+        if (refresher == null) {
+            throw new IllegalArgumentException("Executor may not be null.");
+        }
+
+        this.executor = refresher;
+        this.stale = unit.toNanos(duration);
+    }
+
+    /**
+     * Get a fresh cached resource.
+     *
+     * @param location location of the resource
+     * @return the resource payload, or null if not cached or expired
+     */
+    public byte[] get(final URI location) {
+        return this.get(location, null);
+    }
+
+    /**
+     * Get a cached resource, refreshing it if stale.
+     *
+     * A stale resource is returned straight away while the loader runs in
+     * the background, at most once at a time for each location. Without a
+     * loader or a stale window only fresh resources are returned.
+     *
+     * @param location location of the resource
+     * @param loader   fetches the current resource payload, may be null
+     * @return the resource payload, or null if the resource must be fetched
+     */
+    public byte[] get(final URI location, final Callable<byte[]> loader) {
+        Segment segment = this.segment(location);
+        Entry entry;
+        long age = 0;
+        synchronized (segment) {
+            entry = segment.get(location);
+            if (entry != null) {
+                age = this.now() - entry.fetched;
+                if (age >= this.ttl + this.stale) {
+                    segment.remove(location);
+                    this.evictions.incrementAndGet();
+                    entry = null;
+                }
+            }
+        }
+
+        if (entry != null && age < this.ttl) {
+            this.hits.incrementAndGet();
+            return entry.payload;
+        }
+
+        if (entry == null || loader == null || this.executor == null) {
+            this.misses.incrementAndGet();
+            return null;
+        }
+
+        this.staleHits.incrementAndGet();
+        this.refresh(location, loader);
+        return entry.payload;
+    }
+
+    /**
+     * Cache a resource.
+     *
+     * @param location location of the resource
+     * @param payload  UTF-8 encoded JSON resource, not to be modified after
+     */
+    public void put(final URI location, final byte[] payload) {
+        Entry entry = new Entry(payload, this.now());
+        Segment segment = this.segment(location);
+
+        synchronized (segment) {
+            this.store(segment, location, entry);
+        }
+    }
+
+    /**
+     * Remove a resource from the cache.
+     *
+     * @param location location of the resource
+     */
+    public void invalidate(final URI location) {
+        Segment segment = this.segment(location);
+        synchronized (segment) {
+            segment.remove(location);
+            this.refreshing.remove(location);
+        }
+    }
+
+    /**
+     * Remove all resources from the cache.
+     */
+    public void invalidateAll() {
+        for (Segment segment : this.segments) {
+            synchronized (segment) {
+                segment.clear();
+                Iterator<URI> it = this.refreshing.keySet().iterator();
+                while (it.hasNext()) {
+                    if (this.segment(it.next()) == segment) {
+                        it.remove();
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Get the number of cached resources, including expired ones not yet
+     * removed.
+     *
+     * @return number of cached resources
+     */
+    public int size() {
+        int size = 0;
+        for (Segment segment : this.segments) {
+            synchronized (segment) {
+                size += segment.size();
+            }
+        }
+        return size;
+    }
+
+    /**
+     * Get the number of lookups that found a fresh resource.
+     *
+     * @return number of hits
+     */
+    public long getHitCount() {
+        return this.hits.get();
+    }
+
+    /**
+     * Get the number of lookups that did not find a fresh resource.
+     *
+     * @return number of misses
+     */
+    public long getMissCount() {
+        return this.misses.get();
+    }
+
+    /**
+     * Get the number of resources evicted because of size or age.
+     *
+     * @return number of evictions
+     */
+    public long getEvictionCount() {
+        return this.evictions.get();
+    }
+
+    /**
+     * Get the number of lookups that were served a stale resource.
+     *
+     * @return number of stale hits
+     */
+    public long getStaleHitCount() {
+        return this.staleHits.get();
+    }
+
+    /**
+     * Get the number of background refreshes that failed.
+     *
+     * @return number of failed refreshes
+     */
+    public long getRefreshFailureCount() {
+        return this.refreshFailures.get();
+    }
+
+    /**
+     * Get the current time.
+     *
+     * @return time in nanoseconds
+     */
+    protected long now() {
+        return System.nanoTime();
+    }
+
+    /**
+     * Refresh a resource in the background unless already being refreshed.
+     *
+     * A resource invalidated while it is refreshed is not cached again, as
+     * the refreshed data may predate the change that invalidated it.
+     *
+     * @param location location of the resource
+     * @param loader   fetches the current resource payload
+     */
+    private void refresh(final URI location, final Callable<byte[]> loader) {
+        final Object token = new Object();
+        if (this.refreshing.putIfAbsent(location, token) != null) {
+            return;
+        }
+
+        try {
+            this.executor.execute(new Refresh(location, loader, token));
+        } catch (RejectedExecutionException ex) {
+            this.refreshing.remove(location, token);
+            this.refreshFailures.incrementAndGet();
+        }
+    }
+
+    /**
+     * Get the segment holding a location.
+     *
+     * @param location location of the resource
+     * @return the segment
+     */
+    private Segment segment(final URI location) {
+        int hash = location.hashCode();
+        hash ^= hash >>> 16;
+        return this.segments[hash & (this.segments.length - 1)];
+    }
+
+    /**
+     * Add an entry and evict the least recently used ones if full.
+     *
+     * Must be called holding the lock on the segment.
+     *
+     * @param segment  segment holding the location
+     * @param location location of the resource
+     * @param entry    entry to add
+     */
+    private void store(
+            final Segment segment, final URI location, final Entry entry) {
+        segment.put(location, entry);
+
+        Iterator<Entry> it = segment.values().iterator();
+        while (segment.size() > segment.capacity) {
+            it.next();
+            it.remove();
+            this.evictions.incrementAndGet();
+        }
+    }
+
+    /**
+     * Entries of a segment in least recently used order.
+     */
+    private static final class Segment extends LinkedHashMap<URI, Entry> {
+
+        /**
+         * Serial version.
+         */
+        private static final long serialVersionUID = 1L;
+
+        /**
+         * Most number of resources kept.
+         */
+        private final int capacity;
+
+        /**
+         * Constructor.
+         *
+         * @param size most number of resources to keep
+         */
+        Segment(final int size) {
+            super(16, 0.75f, true);
+            this.capacity = size;
+        }
+    }
+
+    /**
+     * A cached resource.
+     */
+    private static final class Entry {
+
+        /**
+         * Resource payload.
+         */
+        private final byte[] payload;
+
+        /**
+         * Time the resource was fetched.
+         */
+        private final long fetched;
+
+        /**
+         * Constructor.
+         *
+         * @param data resource payload
+         * @param time time the resource was fetched
+         */
+        Entry(final byte[] data, final long time) {
+            this.payload = data;
+            this.fetched = time;
+        }
+    }
+
+    /**
+     * Background refresh of a resource.
+     */
+    private final class Refresh implements Runnable {
+
+        /**
+         * Location of the resource.
+         */
+        private final URI location;
+
+        /**
+         * Fetches the current resource payload.
+         */
+        private final Callable<byte[]> loader;
+
+        /**
+         * Token registered for this refresh.
+         */
+        private final Object token;
+
+        /**
+         * Constructor.
+         *
+         * @param uri   location of the resource
+         * @param load  fetches the current resource payload
+         * @param owner token registered for this refresh
+         */
+        Refresh(
+                final URI uri,
+                final Callable<byte[]> load,
+                final Object owner) {
+            this.location = uri;
+            this.loader = load;
+            this.token = owner;
+        }
+
+        @Override
+        public void run() {
+            try {
+                Entry entry = new Entry(this.loader.call(), now());
+                Segment segment = segment(this.location);
+                synchronized (segment) {
+                    if (refreshing.remove(this.location, this.token)) {
+                        store(segment, this.location, entry);
+                    }
+                }
+            } catch (Exception ex) {
+                refreshFailures.incrementAndGet();
+                Logger.getLogger(ResourceCache.class.getName()).log(
+                        Level.WARNING,
+                        "Failed to refresh " + this.location,
+                        ex);
+            } finally {
+                refreshing.remove(this.location, this.token);
+            }
+        }
+    }
+}
@@ -0,0 +1,58 @@
+/*
+ * Copyright 2015 Klarna AB
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.klarna.checkout;
+
+import java.util.Map;
+
+/**
+ * A timed piece of work in a trace.
+ *
+ * The span of a request gets one child per phase, named "serialize",
+ * "lease", "digest", "send", "wait", "redirect" and "parse", in the order
+ * they happen. Phases repeat for every redirect followed: "redirect" covers
+ * getting the connection for the next hop. "lease" includes connecting to
+ * the server when the pool had no open connection, and "send" includes
+ * "wait" for clients that cannot tell them apart. A request the client
+ * resends after a stale connection was closed waits more than once. A
+ * create sharing the outcome of an earlier one with the same idempotency
+ * key is not sent and has a single "deduplicated" child instead.
+ */
+public interface Span {
+
+    /**
+     * Open a child span starting now.
+     *
+     * @param name name of the child
+     * @return the child span
+     */
+    Span child(String name);
+
+    /**
+     * Get the headers carrying the trace to the server.
+     *
+     * @return header names and values, set on every request sent
+     */
+    Map<String, String> getHeaders();
+
+    /**
+     * End the span.
+     *
+     * @param status HTTP status code, 0 if there was none
+     * @param error  the error the work failed with, or null
+     */
+    void end(int status, Exception error);
+}
@@ -0,0 +1,110 @@
+/*
+ * Copyright 2015 Klarna AB
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.klarna.checkout;
+
+import org.apache.http.HttpRequest;
+import org.apache.http.protocol.HttpContext;
+
+import java.util.Map;
+
+/**
+ * The span of a request being applied and its current phase.
+ *
+ * A trace travels with the request in its HTTP context, so the phases are
+ * entered wherever the work happens.
+ */
+final class Trace {
+
+    /**
+     * Name of the HTTP context attribute holding the trace.
+     */
+    static final String ATTRIBUTE = "klarna_trace";
+
+    /**
+     * Span of the request.
+     */
+    private final Span span;
+
+    /**
+     * Span of the current phase, null if none.
+     */
+    private Span phase;
+
+    /**
+     * Constructor.
+     *
+     * @param root span of the request
+     */
+    Trace(final Span root) {
+        this.span = root;
+    }
+
+    /**
+     * Get the trace of a request.
+     *
+     * @param context HTTP context of the request
+     * @return the trace, or null if the request is not traced
+     */
+    static Trace of(final HttpContext context) {
+        Object trace = context.getAttribute(ATTRIBUTE);
+        if (trace instanceof Trace) {
+            return (Trace) trace;
+        }
+        return null;
+    }
+
+    /**
+     * End the current phase and start the next.
+     *
+     * @param name name of the next phase
+     */
+    synchronized void enter(final String name) {
+        if (this.phase != null) {
+            this.phase.end(0, null);
+        }
+        this.phase = this.span.child(name);
+    }
+
+    /**
+     * Add the trace headers to a request.
+     *
+     * @param request request about to be sent
+     */
+    void inject(final HttpRequest request) {
+        Map<String, String> headers = this.span.getHeaders();
+        if (headers == null) {
+            return;
+        }
+        for (Map.Entry<String, String> header : headers.entrySet()) {
+            request.setHeader(header.getKey(), header.getValue());
+        }
+    }
+
+    /**
+     * End the current phase and the span of the request.
+     *
+     * @param status HTTP status code, 0 if there was none
+     * @param error  the error the request failed with, or null
+     */
+    synchronized void end(final int status, final Exception error) {
+        if (this.phase != null) {
+            this.phase.end(status, error);
+            this.phase = null;
+        }
+        this.span.end(status, error);
+    }
+}
@@ -0,0 +1,39 @@
+/*
+ * Copyright 2015 Klarna AB
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.klarna.checkout;
+
+import java.net.URI;
+
+/**
+ * Opens a span for every request a connector applies.
+ *
+ * A connector has no tracer by default, in which case no spans or phases
+ * are created at all. Tracers are called on the thread applying the request
+ * and must be quick and must not throw.
+ */
+public interface Tracer {
+
+    /**
+     * Open the span of a request.
+     *
+     * @param method   HTTP method
+     * @param resource the resource the request is for
+     * @param uri      the URI requested
+     * @return the span, which the connector ends
+     */
+    Span start(String method, IResource resource, URI uri);
+}
@@ -0,0 +1,334 @@
+/*
+ * Copyright 2015 Klarna AB
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.klarna.checkout;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+/**
+ * Unit tests for the AckOutbox class.
+ */
+public class AckOutboxTest {
+
+    /**
+     * Folder for the journal.
+     */
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    /**
+     * Connector mock serving order statuses.
+     */
+    private IConnector connector;
+
+    /**
+     * Status of each order on the server.
+     */
+    private Map<String, String> statuses;
+
+    /**
+     * Order ids in the order they were updated.
+     */
+    private List<String> updated;
+
+    /**
+     * Number of updates left to fail.
+     */
+    private int failing;
+
+    /**
+     * Journal file.
+     */
+    private File journal;
+
+    /**
+     * Outbox under test.
+     */
+    private AckOutbox outbox;
+
+    /**
+     * Get the order id from a resource location.
+     *
+     * @param invocation call to the connector
+     * @return the order id
+     */
+    private static String id(final InvocationOnMock invocation) {
+        String path = ((IResource) invocation.getArguments()[1])
+                .getLocation().getPath();
+        return path.substring(path.lastIndexOf('/') + 1);
+    }
+
+    /**
+     * Set up the tests.
+     *
+     * @throws Exception but not really
+     */
+    @Before
+    public void setUp() throws Exception {
+        this.journal = new File(folder.getRoot(), "acks.journal");
+        this.statuses = new ConcurrentHashMap<String, String>();
+        this.updated = Collections.synchronizedList(new ArrayList<String>());
+
+        this.connector = mock(IConnector.class);
+        when(connector.getBaseUri()).thenReturn("http://klarna.com");
+        doAnswer(new Answer<Object>() {
+            @Override
+            public Object answer(final InvocationOnMock invocation) {
+                Map<String, Object> data = new HashMap<String, Object>();
+                data.put("status", statuses.get(id(invocation)));
+                ((IResource) invocation.getArguments()[1]).parse(data);
+                return null;
+            }
+        }).when(connector).apply(
+                eq("GET"), any(IResource.class), any(ConnectorOptions.class));
+        doAnswer(new Answer<Object>() {
+            @Override
+            public Object answer(final InvocationOnMock invocation)
+                    throws IOException {
+                if (failing > 0) {
+                    failing--;
+                    throw new IOException("Connection reset");
+                }
+                ConnectorOptions options =
+                        (ConnectorOptions) invocation.getArguments()[2];
+                statuses.put(
+                        id(invocation), (String) options.getData().get("status"));
+                updated.add(id(invocation));
+                return null;
+            }
+        }).when(connector).apply(
+                eq("POST"), any(IResource.class), any(ConnectorOptions.class));
+    }
+
+    /**
+     * Close the outbox.
+     *
+     * @throws Exception but not really
+     */
+    @After
+    public void tearDown() throws Exception {
+        if (outbox != null) {
+            outbox.close();
+        }
+    }
+
+    /**
+     * Wait for the outbox to send everything.
+     *
+     * @throws InterruptedException if interrupted
+     */
+    private void drain() throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 10000;
+        while (outbox.size() > 0 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertEquals(0, outbox.size());
+    }
+
+    /**
+     * Get the acknowledgement data.
+     *
+     * @return data setting the status to created
+     */
+    private static Map<String, Object> created() {
+        Map<String, Object> data = new HashMap<String, Object>();
+        data.put("status", "created");
+        return data;
+    }
+
+    /**
+     * Test that acknowledgements are made durable and sent.
+     *
+     * @throws Exception but not really
+     */
+    @Test
+    public void testSend() throws Exception {
+        outbox = new AckOutbox(connector, journal);
+
+        outbox.enqueue("A", created());
+        outbox.enqueue("B", created());
+        drain();
+
+        assertEquals(2, outbox.getSentCount());
+        assertTrue(outbox.getSyncCount() >= 1);
+        assertEquals("created", statuses.get("A"));
+        assertFalse(outbox.isPending("A"));
+    }
+
+    /**
+     * Test that a failed send is retried after checking the order.
+     *
+     * @throws Exception but not really
+     */
+    @Test
+    public void testRetry() throws Exception {
+        failing = 1;
+        outbox = new AckOutbox(connector, journal);
+
+        outbox.enqueue("A", created());
+        drain();
+
+        assertEquals(1, outbox.getFailureCount());
+        assertEquals(Collections.singletonList("A"), updated);
+    }
+
+    /**
+     * Test that unsent acknowledgements are replayed on start up.
+     *
+     * @throws Exception but not really
+     */
+    @Test
+    public void testReplay() throws Exception {
+        statuses.put("B", "created");
+        OutputStream out = new FileOutputStream(journal);
+        out.write(("A\tA\t{\"status\":\"created\"}\n"
+                + "A\tB\t{\"status\":\"created\"}\n"
+                + "A\tC\t{\"status\":\"created\"}\n"
+                + "D\tC\n"
+                + "A\tD\t{\"stat").getBytes("UTF-8"));
+        out.close();
+
+        outbox = new AckOutbox(connector, journal);
+        drain();
+
+        assertEquals(Collections.singletonList("A"), updated);
+        assertEquals(2, outbox.getSentCount());
+        outbox.close();
+
+        BufferedReader reader = new BufferedReader(new FileReader(journal));
+        assertTrue(reader.readLine().startsWith("A\tA\t"));
+        reader.close();
+        outbox = new AckOutbox(connector, journal);
+        assertEquals(0, outbox.size());
+    }
+
+    /**
+     * Test that an acknowledgement is given up on after the last attempt.
+     *
+     * @throws Exception but not really
+     */
+    @Test
+    public void testDeadLetter() throws Exception {
+        failing = 1;
+        outbox = new AckOutbox(connector, journal);
+        outbox.setMaxAttempts(1);
+
+        outbox.enqueue("A", created());
+        drain();
+
+        assertEquals(1, outbox.getFailureCount());
+        assertTrue(outbox.getDeadLetters().containsKey("A"));
+        outbox.close();
+
+        outbox = new AckOutbox(connector, journal);
+        assertEquals(0, outbox.size());
+        assertEquals(created(), outbox.getDeadLetters().get("A"));
+
+        outbox.enqueue("A", created());
+        drain();
+        assertEquals(Collections.singletonList("A"), updated);
+        assertTrue(outbox.getDeadLetters().isEmpty());
+        assertFalse(outbox.discard("A"));
+    }
+
+    /**
+     * Test that nothing can be added once the outbox is closed.
+     *
+     * @throws Exception but not really
+     */
+    @Test(expected = IllegalStateException.class)
+    public void testClosed() throws Exception {
+        outbox = new AckOutbox(connector, journal);
+        outbox.close();
+
+        outbox.enqueue("A", created());
+    }
+
+    /**
+     * Test that a discarded dead letter stays discarded.
+     *
+     * @throws Exception but not really
+     */
+    @Test
+    public void testDiscard() throws Exception {
+        OutputStream out = new FileOutputStream(journal);
+        out.write(("A\tA\t{\"status\":\"created\"}\nX\tA\n")
+                .getBytes("UTF-8"));
+        out.close();
+
+        outbox = new AckOutbox(connector, journal);
+        assertTrue(outbox.discard("A"));
+        outbox.close();
+
+        outbox = new AckOutbox(connector, journal);
+        assertTrue(outbox.getDeadLetters().isEmpty());
+        assertTrue(updated.isEmpty());
+    }
+
+    /**
+     * Test that a compaction cut short is finished or undone on open.
+     *
+     * @throws Exception but not really
+     */
+    @Test
+    public void testRecover() throws Exception {
+        File tmp = new File(journal.getPath() + ".tmp");
+        OutputStream out = new FileOutputStream(tmp);
+        out.write("A\tA\t{\"status\":\"created\"}\n".getBytes("UTF-8"));
+        out.close();
+
+        outbox = new AckOutbox(connector, journal);
+        drain();
+        assertEquals(Collections.singletonList("A"), updated);
+        outbox.close();
+
+        out = new FileOutputStream(tmp);
+        out.write("A\tB\t{\"status\":\"created\"}\n".getBytes("UTF-8"));
+        out.close();
+
+        outbox = new AckOutbox(connector, journal);
+        assertEquals(0, outbox.size());
+        assertFalse(tmp.exists());
+    }
+}
@@ -0,0 +1,233 @@
+/*
+ * Copyright 2015 Klarna AB
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.klarna.checkout;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Unit tests for the CompactMap class.
+ */
+public class CompactMapTest {
+
+    /**
+     * Test basic map operations.
+     */
+    @Test
+    public void testPutGetRemove() {
+        CompactMap map = new CompactMap();
+
+        assertNull(map.put("name", "shirt"));
+        assertNull(map.put("quantity", 2L));
+        assertNull(map.put("tax_rate", 0.25));
+        assertNull(map.put("discount", null));
+
+        assertEquals(4, map.size());
+        assertEquals("shirt", map.get("name"));
+        assertEquals(2L, map.get("quantity"));
+        assertEquals(0.25, map.get("tax_rate"));
+        assertTrue(map.containsKey("discount"));
+        assertNull(map.get("missing"));
+        assertNull(map.get(1));
+
+        assertEquals(2L, map.put("quantity", "two"));
+        assertEquals("two", map.get("quantity"));
+
+        assertEquals("shirt", map.remove("name"));
+        assertFalse(map.containsKey("name"));
+        assertEquals(3, map.size());
+    }
+
+    /**
+     * Test that integers keep their type.
+     */
+    @Test
+    public void testIntegerNotUnboxed() {
+        CompactMap map = new CompactMap();
+        map.put("quantity", 2);
+
+        assertEquals(Integer.valueOf(2), map.get("quantity"));
+    }
+
+    /**
+     * Test maps large enough to be indexed.
+     */
+    @Test
+    public void testIndexed() {
+        CompactMap map = new CompactMap();
+        Map<String, Object> expected = new HashMap<String, Object>();
+        for (long i = 0; i < 100; i++) {
+            map.put("key" + i, i);
+            expected.put("key" + i, i);
+        }
+
+        assertEquals(expected, map);
+        assertEquals(map, expected);
+        assertEquals(expected.hashCode(), map.hashCode());
+
+        for (long i = 0; i < 100; i += 2) {
+            assertEquals(i, map.remove("key" + i));
+            expected.remove("key" + i);
+        }
+
+        assertEquals(expected, map);
+        assertEquals(51L, map.get("key51"));
+    }
+
+    /**
+     * Test removing entries while iterating.
+     */
+    @Test
+    public void testIteratorRemove() {
+        CompactMap map = new CompactMap();
+        for (long i = 0; i < 20; i++) {
+            map.put("key" + i, i);
+        }
+
+        Iterator<Map.Entry<String, Object>> it = map.entrySet().iterator();
+        int seen = 0;
+        while (it.hasNext()) {
+            Map.Entry<String, Object> entry = it.next();
+            seen++;
+            if ((Long) entry.getValue() % 2 == 0) {
+                it.remove();
+            }
+        }
+
+        assertEquals(20, seen);
+        assertEquals(10, map.size());
+        assertEquals(7L, map.get("key7"));
+        assertFalse(map.containsKey("key8"));
+    }
+
+    /**
+     * Test that removal keeps the remaining entries in insertion order.
+     */
+    @Test
+    public void testRemoveKeepsOrder() {
+        CompactMap map = new CompactMap();
+        for (long i = 0; i < 12; i++) {
+            map.put("key" + i, i);
+        }
+
+        map.remove("key0");
+        map.remove("key5");
+
+        List<String> keys = new ArrayList<String>(map.keySet());
+        assertEquals(10, keys.size());
+        assertEquals("key1", keys.get(0));
+        assertEquals("key6", keys.get(4));
+        assertEquals("key11", keys.get(9));
+        assertEquals(6L, map.get("key6"));
+        assertEquals(11L, map.get("key11"));
+    }
+
+    /**
+     * Test that entry values can be set.
+     */
+    @Test
+    public void testEntrySetValue() {
+        CompactMap map = new CompactMap();
+        map.put("status", "checkout_complete");
+
+        map.entrySet().iterator().next().setValue("created");
+
+        assertEquals("created", map.get("status"));
+    }
+
+    /**
+     * Test that keys are shared between maps.
+     */
+    @Test
+    public void testInternedKeys() {
+        CompactMap first = new CompactMap();
+        CompactMap second = new CompactMap();
+        first.put(new String("unit_price"), 1L);
+        second.put(new String("unit_price"), 2L);
+
+        assertSame(
+                first.keySet().iterator().next(),
+                second.keySet().iterator().next());
+    }
+
+    /**
+     * Test that parsed JSON is converted all the way down.
+     */
+    @Test
+    public void testCompact() {
+        final Map<String, Object> item = new HashMap<String, Object>() {
+            {
+                put("reference", "123");
+                put("unit_price", 12300L);
+            }
+        };
+        final List<Object> items = new ArrayList<Object>() {
+            {
+                add(item);
+            }
+        };
+        Map<String, Object> cart = new HashMap<String, Object>() {
+            {
+                put("items", items);
+            }
+        };
+
+        Object copy = CompactMap.compact(cart);
+
+        assertTrue(copy instanceof CompactMap);
+        assertEquals(cart, copy);
+        assertTrue(((List) ((Map) copy).get("items")).get(0)
+                instanceof CompactMap);
+    }
+
+    /**
+     * Test that clear empties the map.
+     */
+    @Test
+    public void testClear() {
+        CompactMap map = new CompactMap();
+        for (long i = 0; i < 20; i++) {
+            map.put("key" + i, i);
+        }
+
+        map.clear();
+
+        assertTrue(map.isEmpty());
+        assertNull(map.get("key1"));
+        map.put("key1", 1L);
+        assertEquals(1L, map.get("key1"));
+    }
+
+    /**
+     * Test that null keys are rejected.
+     */
+    @Test(expected = NullPointerException.class)
+    public void testNullKey() {
+        new CompactMap().put(null, "value");
+    }
+}
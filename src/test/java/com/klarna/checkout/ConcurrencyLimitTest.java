@@ -0,0 +1,114 @@
+/*
+ * Copyright 2015 Klarna AB
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.klarna.checkout;
+
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests for the ConcurrencyLimit class.
+ */
+public class ConcurrencyLimitTest {
+
+    /**
+     * Test that nothing is counted without a limit.
+     *
+     * @throws Exception if interrupted
+     */
+    @Test
+    public void testNoLimit() throws Exception {
+        ConcurrencyLimit limit = new ConcurrencyLimit();
+
+        assertFalse(limit.acquire());
+        assertEquals(0, limit.getInFlight());
+    }
+
+    /**
+     * Test that requests over the limit wait for a release.
+     *
+     * @throws Exception if interrupted
+     */
+    @Test
+    public void testWaitsForRelease() throws Exception {
+        final ConcurrencyLimit limit = new ConcurrencyLimit();
+        limit.setLimit(1);
+        assertTrue(limit.acquire());
+
+        final CountDownLatch acquired = new CountDownLatch(1);
+        Thread waiter = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    limit.acquire();
+                    acquired.countDown();
+                } catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        };
+        waiter.start();
+
+        assertFalse(acquired.await(50, TimeUnit.MILLISECONDS));
+        limit.release();
+        assertTrue(acquired.await(5, TimeUnit.SECONDS));
+        assertEquals(1, limit.getInFlight());
+    }
+
+    /**
+     * Test that raising the limit lets waiting requests through.
+     *
+     * @throws Exception if interrupted
+     */
+    @Test
+    public void testRaiseLimit() throws Exception {
+        final ConcurrencyLimit limit = new ConcurrencyLimit();
+        limit.setLimit(1);
+        limit.acquire();
+
+        final CountDownLatch acquired = new CountDownLatch(1);
+        new Thread() {
+            @Override
+            public void run() {
+                try {
+                    limit.acquire();
+                    acquired.countDown();
+                } catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        }.start();
+
+        assertFalse(acquired.await(50, TimeUnit.MILLISECONDS));
+        limit.setLimit(2);
+        assertTrue(acquired.await(5, TimeUnit.SECONDS));
+        assertEquals(2, limit.getInFlight());
+    }
+
+    /**
+     * Test that the limit may not be negative.
+     */
+    @Test(expected = IllegalArgumentException.class)
+    public void testNegativeLimit() {
+        new ConcurrencyLimit().setLimit(-1);
+    }
+}
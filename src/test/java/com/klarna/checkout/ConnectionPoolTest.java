@@ -0,0 +1,157 @@
+/*
+ * Copyright 2015 Klarna AB
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.klarna.checkout;
+
+import org.apache.http.HttpHost;
+import org.apache.http.conn.ConnectionPoolTimeoutException;
+import org.apache.http.conn.ManagedClientConnection;
+import org.apache.http.conn.routing.HttpRoute;
+import org.apache.http.pool.PoolStats;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Tests for the ConnectionPool class.
+ */
+public class ConnectionPoolTest {
+
+    /**
+     * Route leased in the tests.
+     */
+    private final HttpRoute route =
+            new HttpRoute(new HttpHost("localhost", 80));
+
+    /**
+     * Pool under test.
+     */
+    private ConnectionPool pool;
+
+    /**
+     * Current time of the pool in nanoseconds.
+     */
+    private long time;
+
+    /**
+     * Nanoseconds the time moves on every time it is read.
+     */
+    private long step;
+
+    /**
+     * Set up tests.
+     */
+    @Before
+    public void setUp() {
+        this.pool = new ConnectionPool(1) {
+            @Override
+            protected long now() {
+                time += step;
+                return time;
+            }
+        };
+    }
+
+    /**
+     * Tear down tests.
+     */
+    @After
+    public void tearDown() {
+        this.pool.shutdown();
+    }
+
+    /**
+     * Test the statistics of a leased connection.
+     *
+     * @throws Exception if the lease fails
+     */
+    @Test
+    public void testRouteStats() throws Exception {
+        ManagedClientConnection conn = this.pool
+                .requestConnection(this.route, null)
+                .getConnection(1, TimeUnit.SECONDS);
+
+        Map<HttpRoute, PoolStats> stats = this.pool.getRouteStats();
+        assertEquals(1, stats.size());
+        assertEquals(1, stats.get(this.route).getLeased());
+        assertEquals(1, stats.get(this.route).getMax());
+        assertEquals(1, this.pool.getTotalStats().getLeased());
+        assertEquals(1, this.pool.getLeaseWaits().getCount());
+
+        this.pool.releaseConnection(conn, -1, TimeUnit.MILLISECONDS);
+        assertEquals(0, this.pool.getRouteStats().get(this.route).getLeased());
+    }
+
+    /**
+     * Test that a lease timing out on a full pool is recorded and reported.
+     *
+     * @throws Exception if the lease fails
+     */
+    @Test
+    public void testSaturation() throws Exception {
+        final List<PoolStats> saturated = new ArrayList<PoolStats>();
+        this.pool.setSaturationListener(
+                5, TimeUnit.MILLISECONDS, new ConnectionPool.Listener() {
+                    @Override
+                    public void saturated(
+                            final HttpRoute to,
+                            final long nanos,
+                            final PoolStats stats) {
+                        saturated.add(stats);
+                    }
+                });
+
+        ManagedClientConnection conn = this.pool
+                .requestConnection(this.route, null)
+                .getConnection(1, TimeUnit.SECONDS);
+        assertTrue(saturated.isEmpty());
+
+        try {
+            this.step = TimeUnit.MILLISECONDS.toNanos(10);
+            this.pool.requestConnection(this.route, null)
+                    .getConnection(1, TimeUnit.MILLISECONDS);
+            fail("Expected ConnectionPoolTimeoutException");
+        } catch (ConnectionPoolTimeoutException ex) {
+            assertEquals(1, this.pool.getTimeoutCount());
+        }
+
+        assertEquals(1, saturated.size());
+        assertEquals(1, saturated.get(0).getLeased());
+        assertEquals(1, this.pool.getSaturationCount());
+        assertEquals(2, this.pool.getLeaseWaits().getCount());
+        assertEquals(
+                10, this.pool.getLeaseWaits().getMax(TimeUnit.MILLISECONDS));
+
+        this.pool.releaseConnection(conn, -1, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Test that the pool needs at least one connection.
+     */
+    @Test(expected = IllegalArgumentException.class)
+    public void testNoConnections() {
+        new ConnectionPool(0);
+    }
+}
@@ -0,0 +1,214 @@
+/*
+ * Copyright 2015 Klarna AB
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.klarna.checkout;
+
+import com.klarna.checkout.stubs.HttpClientStub;
+import com.klarna.checkout.stubs.HttpClientStub.HTTPResponseStub;
+import org.apache.http.client.HttpResponseException;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import javax.management.Attribute;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.net.URI;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.mockito.Mockito.anyString;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+/**
+ * Tests for the ConnectorControl class.
+ */
+public class ConnectorControlTest {
+
+    /**
+     * Stubbed transport.
+     */
+    private HttpClientStub transport;
+
+    /**
+     * Connector object.
+     */
+    private BasicConnector conn;
+
+    /**
+     * Metrics set on the connector before the bean.
+     */
+    private ConnectorMetrics metrics;
+
+    /**
+     * Bean under test.
+     */
+    private ConnectorControl control;
+
+    /**
+     * Set up tests.
+     *
+     * @throws Exception if the digest mock fails
+     */
+    @Before
+    public void setUp() throws Exception {
+        this.transport = new HttpClientStub();
+        Digest digest = mock(Digest.class);
+        when(digest.create(anyString())).thenReturn("secret");
+        this.conn = new BasicConnector(digest) {
+            @Override
+            protected IHttpClient createHttpClient() {
+                return transport;
+            }
+        };
+        this.metrics = new ConnectorMetrics();
+        this.conn.setMetricsListener(this.metrics);
+        this.control = new ConnectorControl(this.conn);
+    }
+
+    /**
+     * Tear down tests.
+     *
+     * @throws Exception if the bean could not be unregistered
+     */
+    @After
+    public void tearDown() throws Exception {
+        this.control.unregister();
+    }
+
+    /**
+     * Test that requests and errors are counted and passed on.
+     *
+     * @throws Exception if the request fails
+     */
+    @Test
+    public void testCounters() throws Exception {
+        this.transport.addResponse(new HTTPResponseStub(
+                200, new HashMap<String, String>(), "{}"));
+        this.transport.addResponse(new HTTPResponseStub(
+                503, new HashMap<String, String>(), "{}"));
+
+        new Order(this.conn, "1").fetch();
+        try {
+            new Order(this.conn, "2").fetch();
+            fail("Expected HttpResponseException");
+        } catch (HttpResponseException ex) {
+            assertEquals(503, ex.getStatusCode());
+        }
+
+        assertEquals(2, this.control.getRequestCount());
+        assertEquals(1, this.control.getErrorCount());
+        Map<String, Long> errors = this.control.getErrorsByCode();
+        assertEquals(Long.valueOf(1), errors.get("503"));
+        assertEquals(
+                1, this.metrics.snapshot().get("Order GET 2xx").getCount());
+        assertSame(this.metrics, this.conn.getMetricsListener());
+    }
+
+    /**
+     * Test that the attached cache is reported.
+     */
+    @Test
+    public void testCache() {
+        assertEquals(0, this.control.getCacheMissCount());
+
+        ResourceCache cache = new ResourceCache(4, 1, TimeUnit.MINUTES);
+        this.control.setCache(cache);
+        cache.get(URI.create("http://localhost/1"));
+
+        assertEquals(1, this.control.getCacheMissCount());
+        assertEquals(0, this.control.getCacheHitCount());
+    }
+
+    /**
+     * Test tuning the connector through the MBean server.
+     *
+     * @throws Exception if the bean fails
+     */
+    @Test
+    public void testTuning() throws Exception {
+        BasicConnector pooled = (BasicConnector) Connector.create(
+                "sharedSecret", IConnector.TEST_BASE_URL, 4);
+        this.control = new ConnectorControl(pooled);
+        RateLimiter limiter = new RateLimiter(10);
+        this.control.setRateLimiter(limiter);
+        ObjectName name = this.control.register("test");
+
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        assertTrue(server.isRegistered(name));
+
+        server.setAttribute(name, new Attribute("Timeout", 2500));
+        server.setAttribute(name, new Attribute("MaxConnections", 16));
+        server.setAttribute(name, new Attribute("RateLimit", 25.0));
+        server.setAttribute(name, new Attribute("MaxConcurrency", 3));
+
+        assertEquals(2500, pooled.getTimeout());
+        assertEquals(16, pooled.getConnectionPool().getMaxTotal());
+        assertEquals(25.0, limiter.getRate(), 0.0001);
+        assertEquals(3, pooled.getMaxConcurrency());
+        assertEquals(0, server.getAttribute(name, "LeasedConnections"));
+        assertEquals(0L, server.getAttribute(name, "RequestCount"));
+
+        this.control.unregister();
+        assertFalse(server.isRegistered(name));
+    }
+
+    /**
+     * Test that an unregistered bean stops counting until registered again.
+     *
+     * @throws Exception if the request fails
+     */
+    @Test
+    public void testUnregister() throws Exception {
+        for (int i = 0; i < 2; i++) {
+            this.transport.addResponse(new HTTPResponseStub(
+                    200, new HashMap<String, String>(), "{}"));
+        }
+
+        this.control.register("unregister");
+        this.control.unregister();
+        new Order(this.conn, "1").fetch();
+        assertEquals(0, this.control.getRequestCount());
+
+        this.control.register("unregister");
+        new Order(this.conn, "2").fetch();
+        assertEquals(1, this.control.getRequestCount());
+    }
+
+    /**
+     * Test that a rate limit cannot be set without a limiter.
+     */
+    @Test(expected = IllegalStateException.class)
+    public void testRateLimitWithoutLimiter() {
+        this.control.setRateLimit(5);
+    }
+
+    /**
+     * Test that the connections cannot be set without a pool.
+     */
+    @Test(expected = IllegalStateException.class)
+    public void testMaxConnectionsWithoutPool() {
+        this.control.setMaxConnections(5);
+    }
+}
@@ -28,11 +28,14 @@ import org.junit.Test;
 import java.io.UnsupportedEncodingException;
 import java.net.URI;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Map;
 
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
 import static org.mockito.Mockito.*;
 
 /**
@@ -284,4 +287,98 @@ public class ConnectorGETTest {
 
         verify(digest, times(1)).create("");
     }
+
+    /**
+     * Test that only the fields set in the options are parsed.
+     *
+     * @throws Exception but not really
+     */
+    @Test
+    public void testApplyGetWithFields() throws Exception {
+        transport.addResponse(
+                new HTTPResponseStub(
+                        200,
+                        new HashMap<String, String>(),
+                        "{\"id\":\"ABC\",\"flobadob\":[\"bobcat\"]}"));
+
+        conn.apply("GET", this.resource, new ConnectorOptions() {
+            {
+                setFields(new HashSet<String>(Collections.singleton("id")));
+            }
+        });
+
+        verify(this.resource).parse(new HashMap<String, Object>() {
+            {
+                put("id", "ABC");
+            }
+        });
+    }
+
+    /**
+     * Test that a fetch is revalidated and a 304 keeps the data.
+     *
+     * @throws Exception but not really
+     */
+    @Test
+    public void testApplyGetNotModified() throws Exception {
+        Order order = new Order(conn);
+        order.setLocation(new URI("http://klarna.com/orders/1"));
+        transport.addResponse(
+                new HTTPResponseStub(200, new HashMap<String, String>() {
+                    {
+                        put("ETag", "\"v1\"");
+                        put("Last-Modified", "Tue, 15 Nov 1994 12:45:26 GMT");
+                    }
+                }, payloadJson));
+        transport.addResponse(
+                new HTTPResponseStub(304, new HashMap<String, String>(), null));
+
+        conn.apply("GET", order, null);
+
+        assertNull(transport.getHttpUriRequest()
+                .getLastHeader("If-None-Match"));
+        assertEquals("\"v1\"", order.getETag());
+
+        HttpResponse result = conn.apply("GET", order, null);
+
+        HttpUriRequest req = transport.getHttpUriRequest();
+        assertEquals(304, result.getStatusLine().getStatusCode());
+        assertEquals("\"v1\"", req.getLastHeader("If-None-Match").getValue());
+        assertEquals(
+                "Tue, 15 Nov 1994 12:45:26 GMT",
+                req.getLastHeader("If-Modified-Since").getValue());
+        assertEquals(payloadMap, order.marshal());
+        assertEquals("\"v1\"", order.getETag());
+    }
+
+    /**
+     * Test that validators are not sent for a different selection.
+     *
+     * @throws Exception but not really
+     */
+    @Test
+    public void testApplyGetValidatorsWithOtherFields() throws Exception {
+        Order order = new Order(conn);
+        order.setLocation(new URI("http://klarna.com/orders/1"));
+        transport.addResponse(
+                new HTTPResponseStub(200, new HashMap<String, String>() {
+                    {
+                        put("ETag", "\"v1\"");
+                    }
+                }, payloadJson));
+        transport.addResponse(
+                new HTTPResponseStub(
+                        200, new HashMap<String, String>(), payloadJson));
+
+        conn.apply("GET", order, null);
+        conn.apply("GET", order, new ConnectorOptions() {
+            {
+                setFields(Collections.singleton("flobadob"));
+            }
+        });
+
+        assertNull(transport.getHttpUriRequest()
+                .getLastHeader("If-None-Match"));
+        assertNull(order.getETag());
+    }
 }
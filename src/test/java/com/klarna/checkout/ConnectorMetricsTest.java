@@ -0,0 +1,224 @@
+/*
+ * Copyright 2015 Klarna AB
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.klarna.checkout;
+
+import com.klarna.checkout.stubs.HttpClientStub;
+import com.klarna.checkout.stubs.HttpClientStub.HTTPResponseStub;
+import org.apache.http.client.HttpResponseException;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.mockito.Mockito.anyString;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+/**
+ * Tests for the ConnectorMetrics class.
+ */
+public class ConnectorMetricsTest {
+
+    /**
+     * Stubbed transport.
+     */
+    private HttpClientStub transport;
+
+    /**
+     * Connector object.
+     */
+    private BasicConnector conn;
+
+    /**
+     * Metrics under test.
+     */
+    private ConnectorMetrics metrics;
+
+    /**
+     * Set up tests.
+     *
+     * @throws Exception if the digest mock fails
+     */
+    @Before
+    public void setUp() throws Exception {
+        this.transport = new HttpClientStub();
+        Digest digest = mock(Digest.class);
+        when(digest.create(anyString())).thenReturn("secret");
+        this.conn = new BasicConnector(digest) {
+            @Override
+            protected IHttpClient createHttpClient() {
+                return transport;
+            }
+        };
+        this.metrics = new ConnectorMetrics();
+        this.conn.setMetricsListener(this.metrics);
+    }
+
+    /**
+     * Test that requests are recorded by type, method and status class.
+     *
+     * @throws Exception if the request fails
+     */
+    @Test
+    public void testRecordsRequests() throws Exception {
+        Order order = new Order(this.conn, "1");
+        this.transport.addResponse(new HTTPResponseStub(
+                200, new HashMap<String, String>(), "{\"id\":\"1\"}"));
+        this.transport.addResponse(new HTTPResponseStub(
+                200, new HashMap<String, String>(), "{\"id\":\"1\"}"));
+
+        order.fetch();
+        order.fetch();
+
+        Map<String, LatencyHistogram.Snapshot> snapshot =
+                this.metrics.snapshot();
+        assertEquals(2, snapshot.get("Order GET 2xx").getCount());
+        assertEquals(2, snapshot.get("create").getCount());
+        assertEquals(2, snapshot.get("digest").getCount());
+        assertEquals(2, snapshot.get("handle").getCount());
+        assertEquals(20, this.metrics.getBytesReceived());
+    }
+
+    /**
+     * Test that errors are recorded under their status class.
+     *
+     * @throws Exception if the request fails
+     */
+    @Test
+    public void testRecordsErrors() throws Exception {
+        Order order = new Order(this.conn, "1");
+        this.transport.addResponse(new HTTPResponseStub(
+                503, new HashMap<String, String>(), "{}"));
+
+        try {
+            order.fetch();
+            fail("Expected HttpResponseException");
+        } catch (HttpResponseException ex) {
+            assertEquals(503, ex.getStatusCode());
+        }
+
+        assertEquals(
+                1, this.metrics.snapshot().get("Order GET 5xx").getCount());
+    }
+
+    /**
+     * Test that created payloads are counted.
+     *
+     * @throws Exception if the request fails
+     */
+    @Test
+    public void testCountsBytesSent() throws Exception {
+        Order order = new Order(this.conn);
+        Map<String, String> headers = new HashMap<String, String>();
+        headers.put("Location", "http://localhost/o/2");
+        this.transport.addResponse(new HTTPResponseStub(201, headers, null));
+
+        order.create(new HashMap<String, Object>());
+
+        assertEquals(
+                1, this.metrics.snapshot().get("Order POST 2xx").getCount());
+        assertEquals(2, this.metrics.getBytesSent());
+    }
+
+    /**
+     * Test that a create sharing an earlier outcome is not recorded as sent.
+     *
+     * @throws Exception if the request fails
+     */
+    @Test
+    public void testRecordsDeduplicated() throws Exception {
+        Map<String, String> headers = new HashMap<String, String>();
+        headers.put("Location", "http://localhost/o/2");
+        this.transport.addResponse(new HTTPResponseStub(201, headers, null));
+
+        new Order(this.conn).create(new HashMap<String, Object>(), "key");
+        Order repeated = new Order(this.conn);
+        repeated.create(new HashMap<String, Object>(), "key");
+
+        Map<String, LatencyHistogram.Snapshot> snapshot =
+                this.metrics.snapshot();
+        assertEquals(1, snapshot.get("Order POST 2xx").getCount());
+        assertEquals(1, snapshot.get("Order POST deduplicated").getCount());
+        assertEquals(1, snapshot.get("create").getCount());
+        assertEquals(2, this.metrics.getBytesSent());
+        assertEquals("http://localhost/o/2",
+                repeated.getLocation().toString());
+    }
+
+    /**
+     * Test the names requests are recorded under.
+     */
+    @Test
+    public void testKey() {
+        IResource resource = new Order(this.conn);
+        assertEquals("Order GET 3xx",
+                ConnectorMetrics.key(resource, "GET", 304));
+        assertEquals("Order POST error",
+                ConnectorMetrics.key(resource, "POST", 0));
+        assertTrue(ConnectorMetrics.key(mock(IResource.class), "GET", 200)
+                .endsWith(" GET 2xx"));
+    }
+
+    /**
+     * Test that an added listener records alongside the one set.
+     *
+     * @throws Exception if the request fails
+     */
+    @Test
+    public void testAddedListener() throws Exception {
+        ConnectorMetrics added = new ConnectorMetrics();
+        this.conn.addMetricsListener(added);
+        this.transport.addResponse(new HTTPResponseStub(
+                200, new HashMap<String, String>(), "{}"));
+
+        new Order(this.conn, "1").fetch();
+
+        assertEquals(1, added.snapshot().get("Order GET 2xx").getCount());
+        assertEquals(
+                1, this.metrics.snapshot().get("Order GET 2xx").getCount());
+        assertSame(this.metrics, this.conn.getMetricsListener());
+
+        this.conn.removeMetricsListener(added);
+        this.conn.setMetricsListener(null);
+        this.transport.addResponse(new HTTPResponseStub(
+                200, new HashMap<String, String>(), "{}"));
+        new Order(this.conn, "1").fetch();
+
+        assertEquals(1, added.snapshot().get("Order GET 2xx").getCount());
+    }
+
+    /**
+     * Test that removing the listener stops recording.
+     *
+     * @throws Exception if the request fails
+     */
+    @Test
+    public void testRemoveListener() throws Exception {
+        this.conn.setMetricsListener(null);
+        this.transport.addResponse(new HTTPResponseStub(
+                200, new HashMap<String, String>(), "{}"));
+
+        new Order(this.conn, "1").fetch();
+
+        assertTrue(this.metrics.snapshot().isEmpty());
+    }
+}
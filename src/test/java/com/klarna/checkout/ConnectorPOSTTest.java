@@ -20,6 +20,7 @@ import com.klarna.checkout.stubs.HttpClientStub;
 import com.klarna.checkout.stubs.HttpClientStub.HTTPResponseStub;
 import org.apache.http.HttpResponse;
 import org.apache.http.client.HttpResponseException;
+import org.json.simple.JSONObject;
 import org.junit.Before;
 import org.junit.Test;
 
@@ -28,10 +29,12 @@ import java.io.UnsupportedEncodingException;
 import java.net.URI;
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.Map;
 
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertThat;
+import static org.junit.Assert.fail;
 import static org.mockito.Mockito.*;
 
 /**
@@ -247,4 +250,94 @@ public class ConnectorPOSTTest {
 
         verify(resource, times(1)).setLocation(newLocation);
     }
+
+    /**
+     * Test that fragments are copied into the payload verbatim.
+     *
+     * @throws Exception but not really
+     */
+    @Test
+    public void testCreatePayloadWithFragment() throws Exception {
+        final JsonFragment merchant = new JsonFragment("{\"id\": \"0\"}");
+        Map<String, Object> data = new LinkedHashMap<String, Object>() {
+            {
+                put("merchant", merchant);
+                put("locale", "sv-se");
+                put("cart", payloadMap);
+            }
+        };
+
+        assertEquals(
+                "{\"merchant\":{\"id\": \"0\"},\"locale\":\"sv-se\","
+                        + "\"cart\":" + payloadJson + "}",
+                new String(conn.createPayload(data), "UTF-8"));
+    }
+
+    /**
+     * Test that the payload matches the plain JSON encoding.
+     *
+     * @throws Exception but not really
+     */
+    @Test
+    public void testCreatePayload() throws Exception {
+        payloadMap.put("name", "Klarna t-shirt \u00e5\"");
+
+        assertEquals(
+                JSONObject.toJSONString(payloadMap),
+                new String(conn.createPayload(payloadMap), "UTF-8"));
+    }
+
+    /**
+     * Test that a create repeated with the same key is sent once.
+     *
+     * @throws Exception but not really
+     */
+    @Test
+    public void testIdempotentCreate() throws Exception {
+        final URI created = new URI("http://klarna.com/orders/1");
+        transport.addResponse(
+                new HTTPResponseStub(201, new HashMap<String, String>() {
+                    {
+                        put("Location", created.toString());
+                    }
+                }, ""));
+        conn.setBaseUri("http://klarna.com");
+
+        Order first = new Order(conn);
+        first.create(payloadMap, "cart-42");
+        Order second = new Order(conn);
+        second.create(payloadMap, "cart-42");
+
+        assertEquals(created, first.getLocation());
+        assertEquals(created, second.getLocation());
+    }
+
+    /**
+     * Test that a failed create with a key can be retried.
+     *
+     * @throws Exception but not really
+     */
+    @Test
+    public void testIdempotentCreateRetry() throws Exception {
+        final URI created = new URI("http://klarna.com/orders/1");
+        transport.addResponse(503);
+        transport.addResponse(
+                new HTTPResponseStub(201, new HashMap<String, String>() {
+                    {
+                        put("Location", created.toString());
+                    }
+                }, ""));
+        conn.setBaseUri("http://klarna.com");
+        Order order = new Order(conn);
+
+        try {
+            order.create(payloadMap, "cart-42");
+            fail("Expected the first create to fail");
+        } catch (HttpResponseException ex) {
+            assertEquals(503, ex.getStatusCode());
+        }
+        order.create(payloadMap, "cart-42");
+
+        assertEquals(created, order.getLocation());
+    }
 }
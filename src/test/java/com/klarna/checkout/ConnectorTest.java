@@ -16,6 +16,7 @@
 
 package com.klarna.checkout;
 
+import org.apache.http.impl.conn.PoolingClientConnectionManager;
 import org.apache.http.params.HttpConnectionParams;
 import org.junit.Before;
 import org.junit.Test;
@@ -139,4 +140,33 @@ public class ConnectorTest {
                 HttpConnectionParams.getSoTimeout(
                         connector.getClient().getParams()));
     }
+
+    /**
+     * Test of the pooled create method, of the Connector factory.
+     *
+     * @throws Exception if the JVM doesn't support SHA-256.
+     */
+    @Test
+    public void testCreatePooled() throws Exception {
+        BasicConnector connector = (BasicConnector) Connector.create(
+                "sharedSecret", IConnector.TEST_BASE_URL, 8);
+
+        assertEquals(IConnector.TEST_BASE_URL, connector.getBaseUri());
+
+        PoolingClientConnectionManager pool = (PoolingClientConnectionManager)
+                connector.getClient().getConnectionManager();
+        assertEquals(8, pool.getMaxTotal());
+        assertEquals(8, pool.getDefaultMaxPerRoute());
+        assertSame(pool, connector.getConnectionPool());
+    }
+
+    /**
+     * Test that the pooled connector needs at least one connection.
+     *
+     * @throws Exception as expected
+     */
+    @Test(expected = IllegalArgumentException.class)
+    public void testCreatePooledWithoutConnections() throws Exception {
+        Connector.create("sharedSecret", IConnector.TEST_BASE_URL, 0);
+    }
 }
@@ -20,6 +20,8 @@ import org.junit.Test;
 
 import java.io.ByteArrayInputStream;
 import java.io.InputStream;
+import java.io.UnsupportedEncodingException;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import static org.junit.Assert.assertEquals;
 
@@ -100,4 +102,40 @@ public class DigestTest {
                 "0L5zNClDL38A1CXhqwA0Eq+nXUH+KA2Lsus+gv78VrY=",
                 (new Digest("mySecret")).create((InputStream) null));
     }
+
+    /**
+     * Test that threads sharing a digest do not disturb each other.
+     *
+     * @throws Exception but not really
+     */
+    @Test
+    public void testDigestShared() throws Exception {
+        final Digest digest = new Digest("mySecret");
+        final String expected = digest.create(DigestTest.JSON);
+        final AtomicInteger wrong = new AtomicInteger();
+        Thread[] threads = new Thread[4];
+        for (int i = 0; i < threads.length; i++) {
+            threads[i] = new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        for (int j = 0; j < 1000; j++) {
+                            if (!expected.equals(
+                                    digest.create(DigestTest.JSON))) {
+                                wrong.incrementAndGet();
+                            }
+                        }
+                    } catch (UnsupportedEncodingException ex) {
+                        wrong.incrementAndGet();
+                    }
+                }
+            };
+            threads[i].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        assertEquals(0, wrong.get());
+    }
 }
@@ -28,7 +28,9 @@ import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.OutputStream;
 import java.net.URISyntaxException;
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Map;
 import java.util.logging.Logger;
 import java.util.logging.StreamHandler;
@@ -36,6 +38,8 @@ import java.util.logging.StreamHandler;
 import static org.hamcrest.MatcherAssert.assertThat;
 import static org.hamcrest.Matchers.containsString;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
 import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.when;
 
@@ -44,6 +48,11 @@ import static org.mockito.Mockito.when;
  */
 public class HandlerTest {
 
+    /**
+     * Logger of the handler, held so it is not collected during a test.
+     */
+    private Logger logger;
+
     /**
      * Logging output stream.
      */
@@ -59,7 +68,7 @@ public class HandlerTest {
      */
     @Before
     public void setUp() {
-        Logger logger = Logger.getLogger(Handler.class.getName());
+        logger = Logger.getLogger(Handler.class.getName());
         outputStream = new ByteArrayOutputStream();
         streamHandler = new StreamHandler(
                 outputStream,
@@ -238,4 +247,89 @@ public class HandlerTest {
                 outputStream.toString(),
                 containsString("SEVERE: Invalid JSON response"));
     }
+
+    /**
+     * Test that a lazy resource receives the raw payload.
+     *
+     * @throws Exception if the test fails.
+     */
+    @Test
+    public void testHandleResponseLazy() throws Exception {
+        Order o = new Order(mock(IConnector.class));
+        o.setLazy(true);
+        HttpResponse res = mock(HttpResponse.class);
+        StatusLine sline = mock(StatusLine.class);
+        when(sline.getStatusCode()).thenReturn(200);
+        when(res.getStatusLine()).thenReturn(sline);
+        when(res.getEntity()).thenReturn(
+                new StringEntity(" {\"status\":\"checkout_complete\"}"));
+
+        new Handler(o).handleResponse(res);
+
+        assertEquals("checkout_complete", o.get("status"));
+        assertTrue(o.isLazy());
+    }
+
+    /**
+     * Test that a raw payload that is not a JSON object is rejected.
+     *
+     * @throws IOException if the test passes
+     */
+    @Test(expected = IOException.class)
+    public void testParseLazyInvalidPayload() throws IOException {
+        Order o = new Order(mock(IConnector.class));
+        o.setLazy(true);
+
+        new Handler(o).parsePayload("[1, 2]".getBytes("UTF-8"));
+    }
+
+    /**
+     * Test that an empty raw payload is rejected.
+     *
+     * @throws IOException if the test passes
+     */
+    @Test(expected = IOException.class)
+    public void testParseLazyEmptyPayload() throws IOException {
+        Order o = new Order(mock(IConnector.class));
+        o.setLazy(true);
+
+        new Handler(o).parsePayload(new byte[0]);
+    }
+
+    /**
+     * Test that only the selected fields are parsed from the stream.
+     *
+     * @throws Exception if the test fails.
+     */
+    @Test
+    public void testHandleResponseFields() throws Exception {
+        Order o = new Order(mock(IConnector.class));
+        HttpResponse res = mock(HttpResponse.class);
+        StatusLine sline = mock(StatusLine.class);
+        when(sline.getStatusCode()).thenReturn(200);
+        when(res.getStatusLine()).thenReturn(sline);
+        when(res.getEntity()).thenReturn(new StringEntity(
+                "{\"gui\":{\"snippet\":\"<div/>\"},\"status\":\"created\","
+                        + "\"reservation\":\"123\"}"));
+
+        new Handler(o, new HashSet<String>(Arrays.asList(
+                "status", "reservation"))).handleResponse(res);
+
+        assertEquals("created", o.get("status"));
+        assertEquals("123", o.get("reservation"));
+        assertNull(o.get("gui"));
+    }
+
+    /**
+     * Test that an invalid streamed payload is rejected.
+     *
+     * @throws IOException if the test passes
+     */
+    @Test(expected = IOException.class)
+    public void testParseFieldsInvalidPayload() throws IOException {
+        Handler handler = new Handler(
+                mock(IResource.class), new HashSet<String>(Arrays.asList("id")));
+
+        handler.parsePayload(new StringEntity("{\"id\":"));
+    }
 }
@@ -16,14 +16,26 @@
 
 package com.klarna.checkout;
 
+import com.klarna.checkout.stubs.TracerStub;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
 import org.apache.http.conn.ClientConnectionManager;
 import org.apache.http.impl.client.DefaultHttpClient;
 import org.apache.http.params.HttpParams;
 import org.junit.Test;
 
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.util.Arrays;
+
 import static org.hamcrest.Matchers.instanceOf;
+import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertThat;
+import static org.mockito.Mockito.anyString;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
 
 /**
  * Unit Tests for HttpClientWrapper.
@@ -45,4 +57,55 @@ public class HttpClientWrapperTest {
         assertThat(hcw, instanceOf(IHttpClient.class));
         assertThat(hcw, instanceOf(DefaultHttpClient.class));
     }
+
+    /**
+     * Test that a traced request is split into waiting and redirecting.
+     *
+     * @throws Exception if the request fails
+     */
+    @Test
+    public void testTracedRedirect() throws Exception {
+        HttpServer server = HttpServer.create(
+                new InetSocketAddress("127.0.0.1", 0), 0);
+        final String base =
+                "http://127.0.0.1:" + server.getAddress().getPort();
+        server.createContext("/", new HttpHandler() {
+            @Override
+            public void handle(final HttpExchange exchange)
+                    throws IOException {
+                byte[] body = "{}".getBytes("UTF-8");
+                int status = 200;
+                if (exchange.getRequestURI().getPath().equals("/old")) {
+                    exchange.getResponseHeaders().set(
+                            "Location", base + "/new");
+                    status = 301;
+                }
+                exchange.sendResponseHeaders(status, body.length);
+                exchange.getResponseBody().write(body);
+                exchange.close();
+            }
+        });
+        server.start();
+
+        try {
+            Digest digest = mock(Digest.class);
+            when(digest.create(anyString())).thenReturn("secret");
+            BasicConnector conn = new BasicConnector(digest);
+            TracerStub tracer = new TracerStub();
+            conn.setTracer(tracer);
+
+            Order order = new Order(conn);
+            order.setLocation(new URI(base + "/old"));
+            order.fetch();
+
+            assertEquals(base + "/new", order.getLocation().toString());
+            assertEquals(
+                    Arrays.asList(
+                            "serialize", "lease", "digest", "send", "wait",
+                            "redirect", "digest", "send", "wait", "parse"),
+                    tracer.getPhases());
+        } finally {
+            server.stop(0);
+        }
+    }
 }
@@ -0,0 +1,131 @@
+/*
+ * Copyright 2015 Klarna AB
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.klarna.checkout;
+
+import org.apache.http.HttpResponse;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.net.URI;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.fail;
+import static org.mockito.Mockito.mock;
+
+/**
+ * Unit tests for the IdempotencyCache class.
+ */
+public class IdempotencyCacheTest {
+
+    /**
+     * Test that a create with a known key waits for the first one.
+     *
+     * @throws Exception but not really
+     */
+    @Test
+    public void testJoinInFlight() throws Exception {
+        IdempotencyCache cache =
+                new IdempotencyCache(10, TimeUnit.MINUTES.toNanos(1));
+        final IdempotencyCache.Call first = new IdempotencyCache.Call();
+        final HttpResponse response = mock(HttpResponse.class);
+        final URI location = new URI("http://klarna.com/orders/1");
+
+        assertNull(cache.join("key", first));
+        IdempotencyCache.Call joined =
+                cache.join("key", new IdempotencyCache.Call());
+        assertSame(first, joined);
+
+        new Thread(new Runnable() {
+            @Override
+            public void run() {
+                first.complete(response, location);
+            }
+        }).start();
+
+        assertSame(response, joined.await());
+        assertEquals(location, joined.getLocation());
+        assertEquals(IdempotencyCache.State.COMPLETED, joined.getState());
+    }
+
+    /**
+     * Test that a failed create is shared with waiters and then forgotten.
+     *
+     * @throws Exception but not really
+     */
+    @Test
+    public void testFailure() throws Exception {
+        IdempotencyCache cache =
+                new IdempotencyCache(10, TimeUnit.MINUTES.toNanos(1));
+        IdempotencyCache.Call first = new IdempotencyCache.Call();
+        cache.join("key", first);
+        IdempotencyCache.Call joined =
+                cache.join("key", new IdempotencyCache.Call());
+        assertEquals(IdempotencyCache.State.IN_FLIGHT, joined.getState());
+
+        cache.forget("key", first);
+        first.fail(new IOException("Connection reset"));
+        assertEquals(IdempotencyCache.State.FAILED, joined.getState());
+
+        try {
+            joined.await();
+            fail("Expected the failure to be shared");
+        } catch (IOException ex) {
+            assertEquals("Connection reset", ex.getMessage());
+        }
+        assertNull(cache.join("key", new IdempotencyCache.Call()));
+    }
+
+    /**
+     * Test that expired creates are replaced.
+     */
+    @Test
+    public void testExpired() {
+        IdempotencyCache cache = new IdempotencyCache(10, 0);
+        IdempotencyCache.Call first = new IdempotencyCache.Call();
+        cache.join("key", first);
+
+        assertNotNull(cache.join("key", new IdempotencyCache.Call()));
+
+        first.complete(null, null);
+
+        assertNull(cache.join("key", new IdempotencyCache.Call()));
+    }
+
+    /**
+     * Test that the oldest completed creates are dropped when full.
+     */
+    @Test
+    public void testBounded() {
+        IdempotencyCache cache =
+                new IdempotencyCache(2, TimeUnit.MINUTES.toNanos(1));
+        IdempotencyCache.Call inFlight = new IdempotencyCache.Call();
+        cache.join("a", inFlight);
+        for (String key : new String[]{"b", "c", "d"}) {
+            IdempotencyCache.Call call = new IdempotencyCache.Call();
+            cache.join(key, call);
+            call.complete(null, null);
+        }
+
+        assertEquals(2, cache.size());
+        assertSame(inFlight, cache.join("a", new IdempotencyCache.Call()));
+        assertNull(cache.join("b", new IdempotencyCache.Call()));
+    }
+}
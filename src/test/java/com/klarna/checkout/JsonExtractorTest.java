@@ -0,0 +1,187 @@
+/*
+ * Copyright 2015 Klarna AB
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.klarna.checkout;
+
+import org.json.simple.parser.ParseException;
+import org.junit.Test;
+
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Unit tests for the JsonExtractor class.
+ */
+public class JsonExtractorTest {
+
+    /**
+     * Payload used by the tests.
+     */
+    private static final String PAYLOAD = "{\"id\":\"ABC\","
+            + "\"cart\":{\"items\":[{\"name\":\"shirt\"},[1,2]]},"
+            + "\"gui\":{\"snippet\":\"<div></div>\"},"
+            + "\"status\":\"checkout_complete\"}";
+
+    /**
+     * Extract keys from a payload.
+     *
+     * @param json JSON payload
+     * @param keys keys to extract
+     * @return extracted keys
+     * @throws Exception if extraction fails
+     */
+    private Map<String, Object> extract(final String json, final String... keys)
+            throws Exception {
+        Set<String> selection = new HashSet<String>(Arrays.asList(keys));
+        return JsonExtractor.extract(new StringReader(json), selection);
+    }
+
+    /**
+     * Test that only selected keys are extracted.
+     *
+     * @throws Exception if the test fails
+     */
+    @Test
+    public void testExtractSelected() throws Exception {
+        Map<String, Object> expected = new HashMap<String, Object>() {
+            {
+                put("id", "ABC");
+                put("status", "checkout_complete");
+            }
+        };
+
+        assertEquals(expected, extract(PAYLOAD, "id", "status"));
+    }
+
+    /**
+     * Test that nested values of a selected key are built in full.
+     *
+     * @throws Exception if the test fails
+     */
+    @Test
+    public void testExtractNested() throws Exception {
+        final ArrayList<Object> items = new ArrayList<Object>() {
+            {
+                add(new HashMap<String, Object>() {
+                    {
+                        put("name", "shirt");
+                    }
+                });
+                add(new ArrayList<Object>() {
+                    {
+                        add(1L);
+                        add(2L);
+                    }
+                });
+            }
+        };
+        Map<String, Object> expected = new HashMap<String, Object>() {
+            {
+                put("cart", new HashMap<String, Object>() {
+                    {
+                        put("items", items);
+                    }
+                });
+            }
+        };
+
+        assertEquals(expected, extract(PAYLOAD, "cart"));
+    }
+
+    /**
+     * Test that nested paths only keep the selected values.
+     *
+     * @throws Exception if the test fails
+     */
+    @Test
+    public void testExtractPath() throws Exception {
+        Map<String, Object> expected = new HashMap<String, Object>() {
+            {
+                put("gui", new HashMap<String, Object>());
+                put("cart", new HashMap<String, Object>() {
+                    {
+                        put("items", new ArrayList<Object>() {
+                            {
+                                add(new HashMap<String, Object>() {
+                                    {
+                                        put("name", "shirt");
+                                    }
+                                });
+                                add(new ArrayList<Object>());
+                            }
+                        });
+                    }
+                });
+            }
+        };
+
+        assertEquals(
+                expected,
+                extract(PAYLOAD, "cart.items.name", "gui.layout"));
+    }
+
+    /**
+     * Test that a nested value can be selected next to a top level key.
+     *
+     * @throws Exception if the test fails
+     */
+    @Test
+    public void testExtractPathValue() throws Exception {
+        Map<String, Object> gui = (Map<String, Object>) extract(
+                PAYLOAD, "gui.snippet", "id").get("gui");
+
+        assertEquals("<div></div>", gui.get("snippet"));
+    }
+
+    /**
+     * Test that missing keys are left out.
+     *
+     * @throws Exception if the test fails
+     */
+    @Test
+    public void testExtractMissing() throws Exception {
+        assertTrue(extract(PAYLOAD, "reservation").isEmpty());
+        assertTrue(extract("[1, 2]", "id").isEmpty());
+    }
+
+    /**
+     * Test that parsing stops once every selected key has been read.
+     *
+     * @throws Exception if the test fails
+     */
+    @Test
+    public void testExtractStopsEarly() throws Exception {
+        assertEquals("ABC", extract("{\"id\":\"ABC\",\"x\":", "id").get("id"));
+    }
+
+    /**
+     * Test that invalid JSON is reported.
+     *
+     * @throws Exception if the test passes
+     */
+    @Test(expected = ParseException.class)
+    public void testExtractInvalid() throws Exception {
+        extract("{\"x\":}", "id");
+    }
+}
@@ -0,0 +1,98 @@
+/*
+ * Copyright 2015 Klarna AB
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.klarna.checkout;
+
+import org.json.simple.JSONObject;
+import org.junit.Test;
+
+import java.io.StringWriter;
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+
+/**
+ * Unit tests for the JsonFragment class.
+ */
+public class JsonFragmentTest {
+
+    /**
+     * Test that a fragment keeps its encoding and bytes.
+     *
+     * @throws Exception if the test fails
+     */
+    @Test
+    public void testFragment() throws Exception {
+        JsonFragment fragment = new JsonFragment("{\"layout\":\"mobile\"}");
+        StringWriter writer = new StringWriter();
+        fragment.writeJSONString(writer);
+
+        assertEquals("{\"layout\":\"mobile\"}", fragment.toJSONString());
+        assertEquals("{\"layout\":\"mobile\"}", writer.toString());
+        assertArrayEquals(
+                "{\"layout\":\"mobile\"}".getBytes("UTF-8"),
+                fragment.getBytes());
+        assertSame(fragment.getBytes(), fragment.getBytes());
+    }
+
+    /**
+     * Test that a fragment can be encoded from a map.
+     */
+    @Test
+    public void testOf() {
+        Map<String, Object> gui = new HashMap<String, Object>() {
+            {
+                put("layout", "desktop");
+            }
+        };
+
+        assertEquals(
+                JSONObject.toJSONString(gui),
+                JsonFragment.of(gui).toJSONString());
+    }
+
+    /**
+     * Test that a fragment nested in a map is encoded verbatim.
+     */
+    @Test
+    public void testNested() {
+        final JsonFragment fragment = new JsonFragment("[1, 2]");
+        Map<String, Object> data = new HashMap<String, Object>() {
+            {
+                put("cart", new HashMap<String, Object>() {
+                    {
+                        put("items", fragment);
+                    }
+                });
+            }
+        };
+
+        assertEquals(
+                "{\"cart\":{\"items\":[1, 2]}}",
+                JSONObject.toJSONString(data));
+    }
+
+    /**
+     * Test that invalid JSON is rejected.
+     */
+    @Test(expected = IllegalArgumentException.class)
+    public void testInvalid() {
+        new JsonFragment("{\"layout\":");
+    }
+}
@@ -0,0 +1,140 @@
+/*
+ * Copyright 2015 Klarna AB
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.klarna.checkout;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests for the JsonIndex class.
+ */
+public class JsonIndexTest {
+
+    /**
+     * Index a payload.
+     *
+     * @param json JSON object
+     * @return the index
+     * @throws Exception but not really
+     */
+    private static JsonIndex index(final String json) throws Exception {
+        return new JsonIndex(json.getBytes("UTF-8"));
+    }
+
+    /**
+     * Test that values are parsed on their own.
+     *
+     * @throws Exception but not really
+     */
+    @Test
+    public void testTake() throws Exception {
+        JsonIndex index = index(
+                " {\"id\" : \"A}\\\"\", "
+                        + "\"cart\":{\"items\":[1, {\"a\":\"]\"}]},"
+                        + "\"total\":-1.5e3,\"ok\":true,\"none\":null}\n");
+
+        assertEquals("A}\"", index.take("id").get("id"));
+        Map cart = (Map) index.take("cart").get("cart");
+        assertEquals(2, ((List) cart.get("items")).size());
+        assertTrue(index.take("cart").isEmpty());
+
+        Map<String, Object> rest = index.takeAll();
+        assertEquals(
+                Arrays.asList("total", "ok", "none"),
+                Arrays.asList(rest.keySet().toArray()));
+        assertEquals(-1500.0, rest.get("total"));
+        assertEquals(Boolean.TRUE, rest.get("ok"));
+        assertTrue(rest.containsKey("none"));
+        assertTrue(index.isEmpty());
+    }
+
+    /**
+     * Test that escaped keys are decoded.
+     *
+     * @throws Exception but not really
+     */
+    @Test
+    public void testEscapedKey() throws Exception {
+        JsonIndex index = index("{\"a\\u002eb\":1,\"\u00e5\":2}");
+
+        assertEquals(1L, index.take("a.b").get("a.b"));
+        assertEquals(2L, index.take("\u00e5").get("\u00e5"));
+    }
+
+    /**
+     * Test that discarded keys are not parsed.
+     *
+     * @throws Exception but not really
+     */
+    @Test
+    public void testDiscard() throws Exception {
+        JsonIndex index = index("{\"a\":1,\"b\":2}");
+
+        index.discard("a");
+
+        assertFalse(index.isEmpty());
+        assertEquals(1, index.takeAll().size());
+    }
+
+    /**
+     * Test an empty object.
+     *
+     * @throws Exception but not really
+     */
+    @Test
+    public void testEmpty() throws Exception {
+        assertTrue(index(" { } ").isEmpty());
+    }
+
+    /**
+     * Test that a truncated payload is rejected.
+     *
+     * @throws Exception but not really
+     */
+    @Test(expected = IllegalStateException.class)
+    public void testTruncated() throws Exception {
+        index("{\"a\":[1,2");
+    }
+
+    /**
+     * Test that a payload other than an object is rejected.
+     *
+     * @throws Exception but not really
+     */
+    @Test(expected = IllegalStateException.class)
+    public void testNotObject() throws Exception {
+        index("[1]");
+    }
+
+    /**
+     * Test that an invalid value is reported when taken.
+     *
+     * @throws Exception but not really
+     */
+    @Test(expected = IllegalStateException.class)
+    public void testInvalidValue() throws Exception {
+        index("{\"a\":tru}").take("a");
+    }
+}
@@ -0,0 +1,150 @@
+/*
+ * Copyright 2015 Klarna AB
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.klarna.checkout;
+
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests for the LatencyHistogram class.
+ */
+public class LatencyHistogramTest {
+
+    /**
+     * Test that small values are counted exactly.
+     */
+    @Test
+    public void testSmallValuesAreExact() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        for (int i = 1; i <= 20; i++) {
+            histogram.record(i);
+        }
+
+        LatencyHistogram.Snapshot snapshot = histogram.snapshot();
+        assertEquals(20, snapshot.getCount());
+        assertEquals(10, snapshot.getPercentile(50, TimeUnit.NANOSECONDS));
+        assertEquals(20, snapshot.getPercentile(100, TimeUnit.NANOSECONDS));
+        assertEquals(20, snapshot.getMax(TimeUnit.NANOSECONDS));
+        assertEquals(10.5, snapshot.getMean(TimeUnit.NANOSECONDS), 0.001);
+    }
+
+    /**
+     * Test that buckets are contiguous and their bounds hold their values.
+     */
+    @Test
+    public void testBucketBounds() {
+        int previous = -1;
+        for (long value = 0; value < 100000; value++) {
+            int index = LatencyHistogram.index(value);
+            assertTrue(index == previous || index == previous + 1);
+            assertTrue(LatencyHistogram.highest(index) >= value);
+            previous = index;
+        }
+    }
+
+    /**
+     * Test that large values are reported within the precision.
+     */
+    @Test
+    public void testPrecision() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        histogram.record(TimeUnit.MILLISECONDS.toNanos(250));
+        histogram.record(TimeUnit.SECONDS.toNanos(3));
+
+        LatencyHistogram.Snapshot snapshot = histogram.snapshot();
+        long median = snapshot.getPercentile(50, TimeUnit.MILLISECONDS);
+        assertTrue(median >= 250 && median <= 250 * 1.07);
+        assertEquals(3000, snapshot.getPercentile(99, TimeUnit.MILLISECONDS));
+    }
+
+    /**
+     * Test that values beyond the range land in the last bucket.
+     */
+    @Test
+    public void testOverflow() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        histogram.record(Long.MAX_VALUE);
+        histogram.record(-5);
+
+        LatencyHistogram.Snapshot snapshot = histogram.snapshot();
+        assertEquals(2, snapshot.getCount());
+        assertEquals(0, snapshot.getPercentile(50, TimeUnit.NANOSECONDS));
+        assertEquals(
+                Long.MAX_VALUE,
+                snapshot.getPercentile(100, TimeUnit.NANOSECONDS));
+    }
+
+    /**
+     * Test that an empty histogram reports zeros.
+     */
+    @Test
+    public void testEmpty() {
+        LatencyHistogram.Snapshot snapshot = new LatencyHistogram().snapshot();
+        assertEquals(0, snapshot.getCount());
+        assertEquals(0, snapshot.getPercentile(99, TimeUnit.NANOSECONDS));
+        assertEquals(0, snapshot.getMean(TimeUnit.NANOSECONDS), 0);
+    }
+
+    /**
+     * Test that a stall is backfilled with the values it hid.
+     */
+    @Test
+    public void testCoordinatedOmission() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        histogram.record(10, 10);
+        histogram.record(25, 0);
+        histogram.record(30, 10);
+
+        LatencyHistogram.Snapshot snapshot = histogram.snapshot();
+        assertEquals(5, snapshot.getCount());
+        assertEquals(30, snapshot.getMax(TimeUnit.NANOSECONDS));
+        assertEquals(20, snapshot.getPercentile(60, TimeUnit.NANOSECONDS));
+        assertEquals(10, snapshot.getPercentile(20, TimeUnit.NANOSECONDS));
+    }
+
+    /**
+     * Test that concurrent recording loses no values.
+     *
+     * @throws Exception if a thread is interrupted
+     */
+    @Test
+    public void testConcurrentRecording() throws Exception {
+        final LatencyHistogram histogram = new LatencyHistogram();
+        Thread[] threads = new Thread[4];
+        for (int i = 0; i < threads.length; i++) {
+            threads[i] = new Thread() {
+                @Override
+                public void run() {
+                    for (int j = 0; j < 10000; j++) {
+                        histogram.record(j);
+                    }
+                }
+            };
+            threads[i].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        assertEquals(40000, histogram.snapshot().getCount());
+        assertEquals(9999, histogram.snapshot().getMax(TimeUnit.NANOSECONDS));
+    }
+}
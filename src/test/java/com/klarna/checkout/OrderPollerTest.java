@@ -0,0 +1,307 @@
+/*
+ * Copyright 2015 Klarna AB
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.klarna.checkout;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+import java.io.IOException;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+
+/**
+ * Unit tests for the OrderPoller class.
+ */
+public class OrderPollerTest {
+
+    /**
+     * Length of a tick in nanoseconds.
+     */
+    private static final long TICK = TimeUnit.MILLISECONDS.toNanos(100);
+
+    /**
+     * Current time of the poller in nanoseconds.
+     */
+    private long time;
+
+    /**
+     * Status returned by fetches, null to fail them.
+     */
+    private String status;
+
+    /**
+     * Times orders were fetched at.
+     */
+    private List<Long> fetches;
+
+    /**
+     * Outcomes reported to the listener.
+     */
+    private List<String> events;
+
+    /**
+     * Whether the executor rejects polls.
+     */
+    private boolean rejecting;
+
+    /**
+     * Poller under test, running polls on the calling thread.
+     */
+    private OrderPoller poller;
+
+    /**
+     * Listener recording outcomes.
+     */
+    private OrderPoller.Listener listener;
+
+    /**
+     * Set up the tests.
+     *
+     * @throws Exception but not really
+     */
+    @Before
+    public void setUp() throws Exception {
+        this.status = OrderPoller.INCOMPLETE;
+        this.fetches = new ArrayList<Long>();
+        this.events = new ArrayList<String>();
+
+        IConnector connector = mock(IConnector.class);
+        doAnswer(new Answer<Object>() {
+            @Override
+            public Object answer(final InvocationOnMock invocation)
+                    throws IOException {
+                fetches.add(time);
+                if (status == null) {
+                    throw new IOException("Connection reset");
+                }
+                Map<String, Object> data = new HashMap<String, Object>();
+                data.put("status", status);
+                ((IResource) invocation.getArguments()[1]).parse(data);
+                return null;
+            }
+        }).when(connector).apply(
+                eq("GET"), any(IResource.class), any(ConnectorOptions.class));
+
+        Executor direct = new Executor() {
+            @Override
+            public void execute(final Runnable command) {
+                if (rejecting) {
+                    throw new RejectedExecutionException();
+                }
+                command.run();
+            }
+        };
+        this.poller = new OrderPoller(connector, direct, TICK) {
+            @Override
+            protected long now() {
+                return time;
+            }
+
+            @Override
+            protected void start() {
+            }
+        };
+        this.listener = new OrderPoller.Listener() {
+            @Override
+            public void statusChanged(
+                    final Order order, final String previous) {
+                events.add(previous + " -> " + order.get("status"));
+            }
+
+            @Override
+            public void expired(final URI location) {
+                events.add("expired " + location);
+            }
+        };
+    }
+
+    /**
+     * Advance the clock and the wheel.
+     *
+     * @param seconds time to advance by
+     */
+    private void advance(final int seconds) {
+        long end = time + TimeUnit.SECONDS.toNanos(seconds);
+        while (time < end) {
+            time += TICK;
+            poller.advance();
+        }
+    }
+
+    /**
+     * Test that polls back off with the age of the order.
+     *
+     * @throws Exception but not really
+     */
+    @Test
+    public void testAdaptiveInterval() throws Exception {
+        poller.setIntervals(1, 30, TimeUnit.SECONDS);
+        poller.watch(new URI("http://klarna.com/orders/1"), listener);
+
+        advance(60);
+
+        assertEquals(Long.valueOf(TimeUnit.SECONDS.toNanos(1)), fetches.get(0));
+        long first = fetches.get(1) - fetches.get(0);
+        long last = fetches.get(fetches.size() - 1)
+                - fetches.get(fetches.size() - 2);
+        assertTrue(last > first);
+        assertTrue(last <= TimeUnit.SECONDS.toNanos(30) + TICK);
+        assertTrue(events.isEmpty());
+    }
+
+    /**
+     * Test that a status change is reported once and ends polling.
+     *
+     * @throws Exception but not really
+     */
+    @Test
+    public void testStatusChanged() throws Exception {
+        poller.watch(new URI("http://klarna.com/orders/1"), listener);
+        advance(5);
+        status = "checkout_complete";
+
+        advance(30);
+
+        assertEquals(1, events.size());
+        assertEquals("checkout_incomplete -> checkout_complete", events.get(0));
+        assertEquals(0, poller.size());
+        int count = fetches.size();
+        advance(30);
+        assertEquals(count, fetches.size());
+    }
+
+    /**
+     * Test that failed polls are retried.
+     *
+     * @throws Exception but not really
+     */
+    @Test
+    public void testFailure() throws Exception {
+        status = null;
+        poller.watch(new URI("http://klarna.com/orders/1"), listener);
+
+        advance(5);
+
+        assertTrue(poller.getFailureCount() > 1);
+        assertEquals(poller.getPollCount(), poller.getFailureCount());
+        assertEquals(1, poller.size());
+    }
+
+    /**
+     * Test that an order is given up on after the longest age.
+     *
+     * @throws Exception but not really
+     */
+    @Test
+    public void testExpired() throws Exception {
+        poller.setMaxAge(10, TimeUnit.SECONDS);
+        poller.watch(new URI("http://klarna.com/orders/1"), listener);
+
+        advance(20);
+
+        assertEquals(1, events.size());
+        assertEquals("expired http://klarna.com/orders/1", events.get(0));
+        assertEquals(0, poller.size());
+    }
+
+    /**
+     * Test that an unwatched order is not polled.
+     *
+     * @throws Exception but not really
+     */
+    @Test
+    public void testUnwatch() throws Exception {
+        URI location = new URI("http://klarna.com/orders/1");
+        poller.watch(location, listener);
+
+        poller.unwatch(location);
+        advance(5);
+
+        assertTrue(fetches.isEmpty());
+        assertEquals(0, poller.size());
+    }
+
+    /**
+     * Test that polls further away than a turn of the wheel wait for it.
+     *
+     * @throws Exception but not really
+     */
+    @Test
+    public void testLongInterval() throws Exception {
+        poller.setIntervals(60, 60, TimeUnit.SECONDS);
+        poller.watch(new URI("http://klarna.com/orders/1"), listener);
+
+        advance(130);
+
+        assertEquals(2, fetches.size());
+        assertEquals(Long.valueOf(TimeUnit.SECONDS.toNanos(60)), fetches.get(0));
+        assertEquals(
+                Long.valueOf(TimeUnit.SECONDS.toNanos(120)), fetches.get(1));
+    }
+
+    /**
+     * Test that a rejected poll is tried again later.
+     *
+     * @throws Exception but not really
+     */
+    @Test
+    public void testRejected() throws Exception {
+        poller.watch(new URI("http://klarna.com/orders/1"), listener);
+        rejecting = true;
+
+        advance(3);
+
+        assertTrue(fetches.isEmpty());
+        assertEquals(1, poller.size());
+
+        rejecting = false;
+        advance(2);
+
+        assertFalse(fetches.isEmpty());
+        assertEquals(1, poller.size());
+    }
+
+    /**
+     * Test that no orders can be watched after shutting down.
+     *
+     * @throws Exception but not really
+     */
+    @Test(expected = IllegalStateException.class)
+    public void testWatchAfterShutdown() throws Exception {
+        poller.watch(new URI("http://klarna.com/orders/1"), listener);
+        poller.shutdown();
+
+        assertEquals(0, poller.size());
+        poller.watch(new URI("http://klarna.com/orders/2"), listener);
+    }
+}
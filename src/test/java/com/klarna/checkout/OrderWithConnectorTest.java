@@ -17,15 +17,30 @@
 package com.klarna.checkout;
 
 import com.klarna.checkout.stubs.ConnectorStub;
+import org.apache.http.HttpResponse;
 import org.junit.Before;
 import org.junit.Test;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
 
 import java.net.URI;
 import java.net.URISyntaxException;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.verifyZeroInteractions;
 
 /**
  * Tests for the Order class, interactions with connector.
@@ -101,6 +116,26 @@ public class OrderWithConnectorTest {
                 ((ConnectorOptions) connector.getApplied("options")).getURI());
     }
 
+    /**
+     * Test fetch with a set of fields.
+     *
+     * @throws Exception if something really weird is going on.
+     */
+    @Test
+    public void testFetchFields() throws Exception {
+        URI location = new URI("http://klarna.com/foo/bar/16");
+        Set<String> fields = Collections.singleton("status");
+        order.setLocation(location);
+
+        order.fetch(fields);
+
+        ConnectorOptions options =
+                (ConnectorOptions) connector.getApplied("options");
+        assertEquals("GET", connector.getApplied("method"));
+        assertEquals(location, options.getURI());
+        assertEquals(fields, options.getFields());
+    }
+
     /**
      * Test the Update function.
      *
@@ -132,6 +167,158 @@ public class OrderWithConnectorTest {
                 ((ConnectorOptions) connector.getApplied("options")).getData());
     }
 
+    /**
+     * Test that updateChanged only sends the changed fields.
+     *
+     * @throws Exception but not really
+     */
+    @Test
+    public void testUpdateChanged() throws Exception {
+        URI location = new URI("http://klarna.com/foo/bar/18");
+        order.setLocation(location);
+        order.parse(new HashMap<String, Object>() {
+            {
+                put("status", "checkout_complete");
+                put("cart", new HashMap<String, Object>());
+            }
+        });
+
+        order.set("status", "created");
+        order.updateChanged();
+
+        ConnectorOptions options =
+                (ConnectorOptions) connector.getApplied("options");
+        assertEquals("POST", connector.getApplied("method"));
+        assertEquals(location, options.getURI());
+        assertEquals(
+                Collections.singletonMap("status", "created"),
+                options.getData());
+        assertTrue(order.getChanges().isEmpty());
+    }
+
+    /**
+     * Test that updateChanged does nothing without changes.
+     *
+     * @throws Exception but not really
+     */
+    @Test
+    public void testUpdateChangedNothing() throws Exception {
+        IConnector conn = mock(IConnector.class);
+        Order o = new Order(conn);
+        o.parse(new HashMap<String, Object>() {
+            {
+                put("status", "checkout_complete");
+            }
+        });
+
+        o.updateChanged();
+
+        verifyZeroInteractions(conn);
+    }
+
+    /**
+     * Test that fetch is served from the cache while fresh.
+     *
+     * @throws Exception but not really
+     */
+    @Test
+    public void testFetchCached() throws Exception {
+        IConnector conn = mock(IConnector.class);
+        ResourceCache cache = new ResourceCache(10, 1, TimeUnit.MINUTES);
+        URI location = new URI("http://klarna.com/foo/bar/19");
+        cache.put(location, "{\"status\":\"created\"}".getBytes("UTF-8"));
+
+        Order o = new Order(conn);
+        o.setLocation(location);
+        o.setCache(cache);
+        o.fetch();
+
+        assertEquals("created", o.get("status"));
+        assertEquals(1, cache.getHitCount());
+        verifyZeroInteractions(conn);
+    }
+
+    /**
+     * Test that a fetched order is cached.
+     *
+     * @throws Exception but not really
+     */
+    @Test
+    public void testFetchCaches() throws Exception {
+        IConnector conn = mock(IConnector.class);
+        ResourceCache cache = new ResourceCache(10, 1, TimeUnit.MINUTES);
+        URI location = new URI("http://klarna.com/foo/bar/20");
+
+        Order o = new Order(conn);
+        o.setLocation(location);
+        o.setCache(cache);
+        o.fetch();
+        o.fetch();
+
+        verify(conn, times(1)).apply(
+                anyString(), any(IResource.class), any(ConnectorOptions.class));
+        assertEquals(1, cache.getMissCount());
+        assertEquals(1, cache.getHitCount());
+    }
+
+    /**
+     * Test that a lazy order is cached as the payload it was fetched as.
+     *
+     * @throws Exception but not really
+     */
+    @Test
+    public void testFetchCachesRawPayload() throws Exception {
+        final byte[] payload = "{\"status\":\"created\"}".getBytes("UTF-8");
+        IConnector conn = mock(IConnector.class);
+        doAnswer(new Answer<HttpResponse>() {
+            @Override
+            public HttpResponse answer(final InvocationOnMock invocation) {
+                ((Resource) invocation.getArguments()[1]).parseRaw(payload);
+                return null;
+            }
+        }).when(conn).apply(
+                anyString(), any(IResource.class), any(ConnectorOptions.class));
+        ResourceCache cache = new ResourceCache(10, 1, TimeUnit.MINUTES);
+        URI location = new URI("http://klarna.com/foo/bar/23");
+
+        Order o = new Order(conn);
+        o.setLazy(true);
+        o.setLocation(location);
+        o.setCache(cache);
+        o.fetch();
+
+        assertSame(payload, cache.get(location));
+        assertEquals("created", o.get("status"));
+    }
+
+    /**
+     * Test that update and location changes invalidate the cache.
+     *
+     * @throws Exception but not really
+     */
+    @Test
+    public void testCacheInvalidation() throws Exception {
+        ResourceCache cache = new ResourceCache(10, 1, TimeUnit.MINUTES);
+        URI location = new URI("http://klarna.com/foo/bar/21");
+        URI moved = new URI("http://klarna.com/foo/bar/22");
+        Map<String, Object> data = Collections.<String, Object>singletonMap(
+                "status", "created");
+        byte[] payload = "{\"status\":\"created\"}".getBytes("UTF-8");
+        order.setLocation(location);
+        order.setCache(cache);
+
+        cache.put(location, payload);
+        order.update(data);
+
+        assertEquals(0, cache.size());
+
+        cache.put(location, payload);
+        cache.put(moved, payload);
+        order.setLocation(moved);
+
+        assertEquals(0, cache.size());
+    }
+
     /**
      * Test to verify the entry point (Base URI) can be changed.
      *
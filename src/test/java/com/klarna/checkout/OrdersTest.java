@@ -0,0 +1,191 @@
+/*
+ * Copyright 2015 Klarna AB
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.klarna.checkout;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+/**
+ * Unit tests for the Orders class.
+ */
+public class OrdersTest {
+
+    /**
+     * Connector mock answering fetches with the order id.
+     */
+    private IConnector connector;
+
+    /**
+     * Set up the tests.
+     *
+     * @throws Exception but not really
+     */
+    @Before
+    public void setUp() throws Exception {
+        this.connector = mock(IConnector.class);
+        when(connector.getBaseUri()).thenReturn("http://klarna.com");
+        doAnswer(new Answer<Object>() {
+            @Override
+            public Object answer(final InvocationOnMock invocation)
+                    throws IOException {
+                IResource resource = (IResource) invocation.getArguments()[1];
+                String path = resource.getLocation().getPath();
+                String id = path.substring(path.lastIndexOf('/') + 1);
+                if (id.equals("broken")) {
+                    throw new IOException("Connection reset");
+                }
+
+                Map<String, Object> data = new HashMap<String, Object>();
+                data.put("id", id);
+                resource.parse(data);
+                return null;
+            }
+        }).when(connector).apply(
+                eq("GET"), any(IResource.class), any(ConnectorOptions.class));
+    }
+
+    /**
+     * Collect the results by order id.
+     *
+     * @param results results to collect
+     * @return results keyed by order id
+     */
+    private Map<String, Orders.Result> collect(
+            final Iterator<Orders.Result> results) {
+        Map<String, Orders.Result> byId =
+                new HashMap<String, Orders.Result>();
+        while (results.hasNext()) {
+            Orders.Result result = results.next();
+            byId.put(result.getId(), result);
+        }
+        return byId;
+    }
+
+    /**
+     * Test that every order is fetched.
+     */
+    @Test
+    public void testFetchAll() {
+        Map<String, Orders.Result> results = collect(Orders.fetchAll(
+                connector, Arrays.asList("A", "B", "C", "D", "E"), 3));
+
+        assertEquals(5, results.size());
+        for (Map.Entry<String, Orders.Result> entry : results.entrySet()) {
+            assertTrue(entry.getValue().isSuccessful());
+            assertEquals(
+                    entry.getKey(), entry.getValue().getOrder().get("id"));
+        }
+    }
+
+    /**
+     * Test that a failed fetch is reported without stopping the others.
+     */
+    @Test
+    public void testFetchAllWithError() {
+        Map<String, Orders.Result> results = collect(Orders.fetchAll(
+                connector, Arrays.asList("A", "broken", "C"), 2,
+                new RateLimiter(1000, 10)));
+
+        Orders.Result broken = results.get("broken");
+        assertFalse(broken.isSuccessful());
+        assertNull(broken.getOrder());
+        assertEquals("Connection reset", broken.getError().getMessage());
+        assertTrue(results.get("A").isSuccessful());
+        assertTrue(results.get("C").isSuccessful());
+    }
+
+    /**
+     * Test that an empty iteration ends straight away.
+     */
+    @Test(expected = NoSuchElementException.class)
+    public void testFetchNone() {
+        Iterator<Orders.Result> results = Orders.fetchAll(
+                connector, Collections.<String>emptyList(), 1);
+
+        assertFalse(results.hasNext());
+        results.next();
+    }
+
+    /**
+     * Test that the parallelism must be positive.
+     */
+    @Test(expected = IllegalArgumentException.class)
+    public void testInvalidParallelism() {
+        Orders.fetchAll(connector, Collections.singleton("A"), 0);
+    }
+
+    /**
+     * Test that fetches are started as results are taken, and that closing
+     * the results stops them.
+     *
+     * @throws Exception but not really
+     */
+    @Test
+    public void testBoundedAndClosed() throws Exception {
+        final AtomicInteger started = new AtomicInteger();
+        final CountDownLatch release = new CountDownLatch(1);
+        IConnector blocking = mock(IConnector.class);
+        when(blocking.getBaseUri()).thenReturn("http://klarna.com");
+        doAnswer(new Answer<Object>() {
+            @Override
+            public Object answer(final InvocationOnMock invocation)
+                    throws InterruptedException {
+                if (started.incrementAndGet() > 1) {
+                    release.await();
+                }
+                return null;
+            }
+        }).when(blocking).apply(
+                eq("GET"), any(IResource.class), any(ConnectorOptions.class));
+
+        Orders.Results results = Orders.fetchAll(
+                blocking, Arrays.asList("A", "B", "C", "D", "E", "F"), 2);
+        assertTrue(results.next().isSuccessful());
+        Thread.sleep(100);
+
+        assertEquals(3, started.get());
+
+        results.close();
+        release.countDown();
+        Thread.sleep(100);
+
+        assertFalse(results.hasNext());
+        assertEquals(3, started.get());
+    }
+}
@@ -0,0 +1,293 @@
+/*
+ * Copyright 2015 Klarna AB
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.klarna.checkout;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+/**
+ * Unit tests for the PushPipeline class.
+ */
+public class PushPipelineTest {
+
+    /**
+     * Folder for the outbox journal.
+     */
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    /**
+     * Connector mock serving order statuses.
+     */
+    private IConnector connector;
+
+    /**
+     * Status of each order on the server.
+     */
+    private Map<String, String> statuses;
+
+    /**
+     * Data each order was updated with.
+     */
+    private List<Map<String, Object>> updates;
+
+    /**
+     * Orders handled.
+     */
+    private List<String> handled;
+
+    /**
+     * Released to let the handler finish.
+     */
+    private CountDownLatch release;
+
+    /**
+     * Pipeline under test.
+     */
+    private PushPipeline pipeline;
+
+    /**
+     * Get the order id from a resource location.
+     *
+     * @param invocation call to the connector
+     * @return the order id
+     */
+    private static String id(final InvocationOnMock invocation) {
+        String path = ((IResource) invocation.getArguments()[1])
+                .getLocation().getPath();
+        return path.substring(path.lastIndexOf('/') + 1);
+    }
+
+    /**
+     * Set up the tests.
+     *
+     * @throws Exception but not really
+     */
+    @Before
+    public void setUp() throws Exception {
+        this.statuses = new ConcurrentHashMap<String, String>();
+        this.updates = Collections.synchronizedList(
+                new ArrayList<Map<String, Object>>());
+        this.handled = Collections.synchronizedList(new ArrayList<String>());
+        this.release = new CountDownLatch(0);
+
+        this.connector = mock(IConnector.class);
+        when(connector.getBaseUri()).thenReturn("http://klarna.com");
+        doAnswer(new Answer<Object>() {
+            @Override
+            public Object answer(final InvocationOnMock invocation)
+                    throws IOException {
+                String id = id(invocation);
+                if (!statuses.containsKey(id)) {
+                    throw new IOException("Not found");
+                }
+                Map<String, Object> data = new HashMap<String, Object>();
+                data.put("id", id);
+                data.put("status", statuses.get(id));
+                ((IResource) invocation.getArguments()[1]).parse(data);
+                return null;
+            }
+        }).when(connector).apply(
+                eq("GET"), any(IResource.class), any(ConnectorOptions.class));
+        doAnswer(new Answer<Object>() {
+            @Override
+            public Object answer(final InvocationOnMock invocation) {
+                ConnectorOptions options =
+                        (ConnectorOptions) invocation.getArguments()[2];
+                statuses.put(id(invocation), PushPipeline.CREATED);
+                updates.add(options.getData());
+                return null;
+            }
+        }).when(connector).apply(
+                eq("POST"), any(IResource.class), any(ConnectorOptions.class));
+
+        this.pipeline = this.create(4);
+    }
+
+    /**
+     * Release the handler and stop the pipeline.
+     *
+     * @throws Exception but not really
+     */
+    @After
+    public void tearDown() throws Exception {
+        release.countDown();
+        pipeline.shutdown(5, TimeUnit.SECONDS);
+    }
+
+    /**
+     * Create a pipeline with a single worker.
+     *
+     * @param capacity most number of queued pushes
+     * @return the pipeline
+     */
+    private PushPipeline create(final int capacity) {
+        return new PushPipeline(
+                connector, capacity, 1, new PushPipeline.OrderHandler() {
+                    @Override
+                    public Map<String, Object> handle(final Order order) {
+                        try {
+                            release.await();
+                        } catch (InterruptedException ex) {
+                            Thread.currentThread().interrupt();
+                        }
+                        handled.add((String) order.get("id"));
+                        return Collections.<String, Object>singletonMap(
+                                "merchant_reference", "ref-" + order.get("id"));
+                    }
+                });
+    }
+
+    /**
+     * Test that completed orders are handled and acknowledged.
+     *
+     * @throws Exception but not really
+     */
+    @Test
+    public void testAcknowledge() throws Exception {
+        statuses.put("A", PushPipeline.COMPLETE);
+        statuses.put("B", "checkout_incomplete");
+
+        assertTrue(pipeline.offer("A"));
+        assertTrue(pipeline.offer("B"));
+        assertTrue(pipeline.shutdown(5, TimeUnit.SECONDS));
+
+        assertEquals(Collections.singletonList("A"), handled);
+        assertEquals(1, updates.size());
+        assertEquals(PushPipeline.CREATED, updates.get(0).get("status"));
+        assertEquals("ref-A", updates.get(0).get("merchant_reference"));
+        assertEquals(1, pipeline.getAcknowledgedCount());
+        assertEquals("checkout_incomplete", statuses.get("B"));
+    }
+
+    /**
+     * Test that repeated pushes acknowledge an order only once.
+     *
+     * @throws Exception but not really
+     */
+    @Test
+    public void testDuplicates() throws Exception {
+        release = new CountDownLatch(1);
+        statuses.put("A", PushPipeline.COMPLETE);
+
+        pipeline.offer("A");
+        pipeline.offer("A");
+        release.countDown();
+        pipeline.shutdown(5, TimeUnit.SECONDS);
+
+        PushPipeline again = create(4);
+        again.offer("A");
+        again.shutdown(5, TimeUnit.SECONDS);
+
+        assertEquals(1, pipeline.getDuplicateCount());
+        assertEquals(1, handled.size());
+        assertEquals(1, updates.size());
+        assertEquals(0, again.getAcknowledgedCount());
+    }
+
+    /**
+     * Test that pushes are refused once the queue is full.
+     *
+     * @throws Exception but not really
+     */
+    @Test
+    public void testBackPressure() throws Exception {
+        release = new CountDownLatch(1);
+        pipeline = create(1);
+        statuses.put("A", PushPipeline.COMPLETE);
+        statuses.put("B", PushPipeline.COMPLETE);
+        statuses.put("C", PushPipeline.COMPLETE);
+
+        assertTrue(pipeline.offer("A"));
+        while (pipeline.getQueueLength() > 0) {
+            Thread.yield();
+        }
+        assertTrue(pipeline.offer("B"));
+        assertFalse(pipeline.offer("C"));
+
+        release.countDown();
+        pipeline.shutdown(5, TimeUnit.SECONDS);
+
+        assertEquals(1, pipeline.getRejectedCount());
+        assertEquals(2, pipeline.getAcknowledgedCount());
+    }
+
+    /**
+     * Test that a failed push is counted and can be pushed again.
+     *
+     * @throws Exception but not really
+     */
+    @Test
+    public void testFailure() throws Exception {
+        pipeline.offer("missing");
+        pipeline.shutdown(5, TimeUnit.SECONDS);
+
+        assertEquals(1, pipeline.getFailureCount());
+        assertTrue(handled.isEmpty());
+    }
+
+    /**
+     * Test that acknowledgements go through the outbox when set.
+     *
+     * @throws Exception but not really
+     */
+    @Test
+    public void testOutbox() throws Exception {
+        AckOutbox outbox = new AckOutbox(
+                connector, new File(folder.getRoot(), "acks.journal"));
+        pipeline.setOutbox(outbox);
+        statuses.put("A", PushPipeline.COMPLETE);
+
+        pipeline.offer("A");
+        pipeline.shutdown(5, TimeUnit.SECONDS);
+
+        long deadline = System.currentTimeMillis() + 10000;
+        while (outbox.size() > 0 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        outbox.close();
+
+        assertEquals(1, pipeline.getAcknowledgedCount());
+        assertEquals(1, outbox.getSentCount());
+        assertEquals("ref-A", updates.get(0).get("merchant_reference"));
+    }
+}
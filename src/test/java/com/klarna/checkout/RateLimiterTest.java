@@ -0,0 +1,148 @@
+/*
+ * Copyright 2015 Klarna AB
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.klarna.checkout;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Unit tests for the RateLimiter class.
+ */
+public class RateLimiterTest {
+
+    /**
+     * Current time of the limiter in nanoseconds.
+     */
+    private long time;
+
+    /**
+     * Waits requested by the limiter.
+     */
+    private List<Long> waits;
+
+    /**
+     * Limiter under test, 10 permits per second with a burst of 2.
+     */
+    private RateLimiter limiter;
+
+    /**
+     * Set up the tests.
+     */
+    @Before
+    public void setUp() {
+        this.waits = new ArrayList<Long>();
+        this.limiter = new RateLimiter(10, 2) {
+            @Override
+            protected long now() {
+                return time;
+            }
+
+            @Override
+            protected void sleep(final long nanos) {
+                waits.add(nanos);
+            }
+        };
+    }
+
+    /**
+     * Test that a burst is served without waiting.
+     *
+     * @throws Exception but not really
+     */
+    @Test
+    public void testBurst() throws Exception {
+        limiter.acquire();
+        limiter.acquire();
+
+        assertTrue(waits.isEmpty());
+    }
+
+    /**
+     * Test that callers past the burst wait in turn.
+     *
+     * @throws Exception but not really
+     */
+    @Test
+    public void testWaitsInTurn() throws Exception {
+        limiter.acquire();
+        limiter.acquire();
+        limiter.acquire();
+        limiter.acquire();
+
+        long step = TimeUnit.MILLISECONDS.toNanos(100);
+        assertEquals(Arrays.asList(step, 2 * step), waits);
+    }
+
+    /**
+     * Test that permits are saved up while idle, up to the burst.
+     *
+     * @throws Exception but not really
+     */
+    @Test
+    public void testRefill() throws Exception {
+        limiter.acquire();
+        limiter.acquire();
+
+        time = TimeUnit.SECONDS.toNanos(10);
+        limiter.acquire();
+        limiter.acquire();
+        limiter.acquire();
+
+        assertEquals(1, waits.size());
+    }
+
+    /**
+     * Test that the rate must be positive.
+     */
+    @Test(expected = IllegalArgumentException.class)
+    public void testInvalidRate() {
+        new RateLimiter(0);
+    }
+
+    /**
+     * Test that a changed rate applies to the next permits.
+     *
+     * @throws Exception but not really
+     */
+    @Test
+    public void testSetRate() throws Exception {
+        limiter.acquire();
+        limiter.acquire();
+        limiter.setRate(20);
+        limiter.acquire();
+
+        assertEquals(20, limiter.getRate(), 0.0001);
+        assertEquals(
+                Arrays.asList(TimeUnit.MILLISECONDS.toNanos(50)), waits);
+    }
+
+    /**
+     * Test that the rate must stay positive.
+     */
+    @Test(expected = IllegalArgumentException.class)
+    public void testSetRateNotPositive() {
+        limiter.setRate(0);
+    }
+}
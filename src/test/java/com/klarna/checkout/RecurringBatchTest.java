@@ -0,0 +1,239 @@
+/*
+ * Copyright 2015 Klarna AB
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.klarna.checkout;
+
+import org.apache.http.HttpVersion;
+import org.apache.http.message.BasicStatusLine;
+import org.json.simple.JSONObject;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.URI;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+/**
+ * Unit tests for the RecurringBatch class.
+ */
+public class RecurringBatchTest {
+
+    /**
+     * Folder for the journal.
+     */
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    /**
+     * Connector mock declining and failing some tokens.
+     */
+    private IConnector connector;
+
+    /**
+     * Tokens orders were created for.
+     */
+    private Set<String> charged;
+
+    /**
+     * Journal file.
+     */
+    private File journal;
+
+    /**
+     * Order data source.
+     */
+    private RecurringBatch.OrderSource source;
+
+    /**
+     * Set up the tests.
+     *
+     * @throws Exception but not really
+     */
+    @Before
+    public void setUp() throws Exception {
+        this.journal = new File(folder.getRoot(), "recurring.journal");
+        this.charged = Collections.newSetFromMap(
+                new ConcurrentHashMap<String, Boolean>());
+        this.connector = mock(IConnector.class);
+        when(connector.getBaseUri()).thenReturn("http://klarna.com");
+        doAnswer(new Answer<Object>() {
+            @Override
+            public Object answer(final InvocationOnMock invocation)
+                    throws IOException {
+                ConnectorOptions options =
+                        (ConnectorOptions) invocation.getArguments()[2];
+                URI uri = options.getURI();
+                String token = uri.getPath().split("/")[3];
+                if (token.startsWith("declined")) {
+                    JSONObject json = new JSONObject();
+                    if (token.equals("declined1")) {
+                        json.put("reason", "insufficient_funds");
+                    }
+                    throw new ErrorResponseException(
+                            new BasicStatusLine(
+                                    HttpVersion.HTTP_1_1, 402, "Declined"),
+                            json);
+                }
+                if (token.startsWith("unavailable")) {
+                    throw new ErrorResponseException(
+                            new BasicStatusLine(
+                                    HttpVersion.HTTP_1_1, 503, "Unavailable"),
+                            new JSONObject());
+                }
+                if (token.startsWith("broken")) {
+                    throw new IOException("Connection reset");
+                }
+                charged.add(token);
+                return null;
+            }
+        }).when(connector).apply(
+                eq("POST"), any(IResource.class), any(ConnectorOptions.class));
+        this.source = new RecurringBatch.OrderSource() {
+            @Override
+            public Map<String, Object> get(final String token) {
+                return new HashMap<String, Object>();
+            }
+        };
+    }
+
+    /**
+     * Test that outcomes are counted by error code.
+     *
+     * @throws Exception but not really
+     */
+    @Test
+    public void testRun() throws Exception {
+        RecurringBatch batch = new RecurringBatch(connector, journal, 3);
+
+        RecurringBatch.Report report = batch.run(Arrays.asList(
+                "A", "B", "declined1", "C", "declined2", "broken", "A"),
+                source);
+
+        assertEquals(3, report.getCreated());
+        assertEquals(2, report.getFailed());
+        assertEquals(1, report.getInDoubt());
+        assertEquals(1, report.getSkipped());
+        assertEquals(
+                Integer.valueOf(1),
+                report.getFailuresByCode().get("insufficient_funds"));
+        assertEquals(
+                Integer.valueOf(1),
+                report.getFailuresByCode().get("HTTP 402"));
+        assertEquals(
+                Collections.singletonMap("IOException", 1),
+                report.getInDoubtByCode());
+        assertEquals(3, charged.size());
+    }
+
+    /**
+     * Test that a rerun skips created tokens and retries failed ones.
+     *
+     * @throws Exception but not really
+     */
+    @Test
+    public void testResume() throws Exception {
+        new RecurringBatch(connector, journal, 2).run(
+                Arrays.asList("A", "declined1", "B"), source);
+        charged.clear();
+
+        RecurringBatch.Report report = new RecurringBatch(
+                connector, journal, 2).run(
+                Arrays.asList("A", "declined1", "B", "C"), source);
+
+        assertEquals(2, report.getSkipped());
+        assertEquals(1, report.getCreated());
+        assertEquals(1, report.getFailed());
+        assertEquals(Collections.singleton("C"), charged);
+    }
+
+    /**
+     * Test that creates that may have gone through are not retried.
+     *
+     * @throws Exception but not really
+     */
+    @Test
+    public void testUnknown() throws Exception {
+        RecurringBatch.Report report = new RecurringBatch(
+                connector, journal, 2).run(
+                Arrays.asList("broken", "unavailable"), source);
+
+        assertEquals(0, report.getFailed());
+        assertEquals(2, report.getInDoubt());
+        assertEquals(
+                Integer.valueOf(1),
+                report.getInDoubtByCode().get("HTTP 503"));
+
+        report = new RecurringBatch(connector, journal, 2).run(
+                Arrays.asList("broken", "unavailable"), source);
+
+        assertEquals(2, report.getInDoubt());
+        assertTrue(report.getInDoubtByCode().isEmpty());
+    }
+
+    /**
+     * Test that tokens left pending are not charged again.
+     *
+     * @throws Exception but not really
+     */
+    @Test
+    public void testInDoubt() throws Exception {
+        OutputStream out = new FileOutputStream(journal);
+        out.write(("A\tPENDING\nA\tCREA\n"
+                + "B\tPENDING\nB\tCREATED\n"
+                + "C\tPEN").getBytes("UTF-8"));
+        out.close();
+
+        RecurringBatch.Report report = new RecurringBatch(
+                connector, journal, 1).run(
+                Arrays.asList("A", "B", "C"), source);
+
+        assertEquals(1, report.getInDoubt());
+        assertEquals(1, report.getSkipped());
+        assertEquals(1, report.getCreated());
+        assertEquals(Collections.singleton("C"), charged);
+        assertFalse(charged.contains("A"));
+        assertTrue(report.getThroughput() >= 0);
+    }
+
+    /**
+     * Test that the parallelism must be positive.
+     */
+    @Test(expected = IllegalArgumentException.class)
+    public void testInvalidParallelism() {
+        new RecurringBatch(connector, journal, 0);
+    }
+}
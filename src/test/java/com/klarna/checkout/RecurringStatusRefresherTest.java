@@ -0,0 +1,179 @@
+/*
+ * Copyright 2015 Klarna AB
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.klarna.checkout;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+/**
+ * Unit tests for the RecurringStatusRefresher class.
+ */
+public class RecurringStatusRefresherTest {
+
+    /**
+     * Connector mock answering fetches with an active status.
+     */
+    private IConnector connector;
+
+    /**
+     * Tokens in the order they were fetched.
+     */
+    private List<String> fetched;
+
+    /**
+     * Due dates keyed by token.
+     */
+    private Map<String, Date> due;
+
+    /**
+     * Set up the tests.
+     *
+     * @throws Exception but not really
+     */
+    @Before
+    public void setUp() throws Exception {
+        this.fetched = Collections.synchronizedList(new ArrayList<String>());
+        this.connector = mock(IConnector.class);
+        when(connector.getBaseUri()).thenReturn("http://klarna.com");
+        doAnswer(new Answer<Object>() {
+            @Override
+            public Object answer(final InvocationOnMock invocation)
+                    throws IOException, InterruptedException {
+                IResource resource = (IResource) invocation.getArguments()[1];
+                String path = resource.getLocation().getPath();
+                String token = path.substring(path.lastIndexOf('/') + 1);
+                fetched.add(token);
+                if (token.equals("broken")) {
+                    throw new IOException("Connection reset");
+                }
+                if (token.equals("slow")) {
+                    Thread.sleep(10000);
+                }
+
+                Map<String, Object> data = new HashMap<String, Object>();
+                data.put("status", "active");
+                resource.parse(data);
+                return null;
+            }
+        }).when(connector).apply(
+                eq("GET"), any(IResource.class), any(ConnectorOptions.class));
+
+        this.due = new HashMap<String, Date>();
+        due.put("later", new Date(3000));
+        due.put("never", null);
+        due.put("soon", new Date(1000));
+        due.put("broken", new Date(2000));
+    }
+
+    /**
+     * Test that tokens due soonest are refreshed first.
+     *
+     * @throws Exception but not really
+     */
+    @Test
+    public void testPriority() throws Exception {
+        RecurringStatusRefresher refresher =
+                new RecurringStatusRefresher(connector, 1, null);
+
+        Map<String, RecurringStatusRefresher.Result> results =
+                refresher.refresh(due, 10, TimeUnit.SECONDS);
+
+        assertEquals(
+                Arrays.asList("soon", "broken", "later", "never"), fetched);
+        assertEquals(4, results.size());
+        assertEquals(
+                "active", results.get("soon").getStatus().get("status"));
+        assertFalse(results.get("broken").isSuccessful());
+        assertNull(results.get("broken").getStatus());
+    }
+
+    /**
+     * Test that fresh statuses are served from the cache.
+     *
+     * @throws Exception but not really
+     */
+    @Test
+    public void testCache() throws Exception {
+        RecurringStatusRefresher refresher = new RecurringStatusRefresher(
+                connector, 2, new ResourceCache(10, 1, TimeUnit.MINUTES));
+        refresher.refresh(due, 10, TimeUnit.SECONDS);
+        fetched.clear();
+
+        Map<String, RecurringStatusRefresher.Result> results =
+                refresher.refresh(due, 10, TimeUnit.SECONDS);
+
+        assertEquals(Collections.singletonList("broken"), fetched);
+        assertTrue(results.get("soon").isCached());
+        assertEquals(
+                "active", results.get("later").getStatus().get("status"));
+        assertFalse(results.get("broken").isCached());
+    }
+
+    /**
+     * Test that nothing is refreshed once time is up.
+     *
+     * @throws Exception but not really
+     */
+    @Test
+    public void testTimeout() throws Exception {
+        RecurringStatusRefresher refresher =
+                new RecurringStatusRefresher(connector, 2, null);
+
+        assertTrue(refresher.refresh(due, 0, TimeUnit.SECONDS).isEmpty());
+        assertTrue(fetched.isEmpty());
+    }
+
+    /**
+     * Test that a lookup still running at the timeout is left out.
+     *
+     * @throws Exception but not really
+     */
+    @Test
+    public void testAbandoned() throws Exception {
+        due.put("slow", new Date(0));
+        RecurringStatusRefresher refresher =
+                new RecurringStatusRefresher(connector, 1, null);
+
+        Map<String, RecurringStatusRefresher.Result> results =
+                refresher.refresh(due, 200, TimeUnit.MILLISECONDS);
+
+        assertEquals(Collections.singletonList("slow"), fetched);
+        assertTrue(results.isEmpty());
+    }
+}
@@ -0,0 +1,319 @@
+/*
+ * Copyright 2015 Klarna AB
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.klarna.checkout;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Unit tests for the ResourceCache class.
+ */
+public class ResourceCacheTest {
+
+    /**
+     * Current time of the cache in nanoseconds.
+     */
+    private long time;
+
+    /**
+     * Cache under test.
+     */
+    private ResourceCache cache;
+
+    /**
+     * Order payload.
+     */
+    private byte[] data;
+
+    /**
+     * Refreshes handed to the executor and not yet run.
+     */
+    private List<Runnable> refreshes;
+
+    /**
+     * Refreshed order payload.
+     */
+    private byte[] refreshed;
+
+    /**
+     * Loader returning the refreshed order.
+     */
+    private Callable<byte[]> loader;
+
+    /**
+     * Set up the tests.
+     *
+     * @throws Exception but not really
+     */
+    @Before
+    public void setUp() throws Exception {
+        this.cache = new ResourceCache(2, 10, TimeUnit.SECONDS) {
+            @Override
+            protected long now() {
+                return time;
+            }
+        };
+        this.data = "{\"status\":\"checkout_complete\"}".getBytes("UTF-8");
+        this.refreshed = "{\"status\":\"created\"}".getBytes("UTF-8");
+        this.refreshes = new ArrayList<Runnable>();
+        this.loader = new Callable<byte[]>() {
+            @Override
+            public byte[] call() {
+                return refreshed;
+            }
+        };
+    }
+
+    /**
+     * Serve stale orders for 5 seconds, queueing refreshes.
+     */
+    private void enableStale() {
+        cache.setStaleWhileRevalidate(5, TimeUnit.SECONDS, new Executor() {
+            @Override
+            public void execute(final Runnable command) {
+                refreshes.add(command);
+            }
+        });
+    }
+
+    /**
+     * Test that a cached order is returned while fresh.
+     *
+     * @throws Exception but not really
+     */
+    @Test
+    public void testHit() throws Exception {
+        URI location = new URI("http://klarna.com/orders/1");
+        cache.put(location, data);
+
+        time = TimeUnit.SECONDS.toNanos(9);
+
+        assertSame(data, cache.get(location));
+        assertSame(data, cache.get(location));
+        assertEquals(2, cache.getHitCount());
+        assertEquals(0, cache.getMissCount());
+    }
+
+    /**
+     * Test that an expired order is a miss.
+     *
+     * @throws Exception but not really
+     */
+    @Test
+    public void testExpired() throws Exception {
+        URI location = new URI("http://klarna.com/orders/1");
+        cache.put(location, data);
+
+        time = TimeUnit.SECONDS.toNanos(10);
+
+        assertNull(cache.get(location));
+        assertEquals(1, cache.getMissCount());
+        assertEquals(1, cache.getEvictionCount());
+        assertEquals(0, cache.size());
+    }
+
+    /**
+     * Test that the least recently used order is evicted.
+     *
+     * @throws Exception but not really
+     */
+    @Test
+    public void testEviction() throws Exception {
+        URI first = new URI("http://klarna.com/orders/1");
+        URI second = new URI("http://klarna.com/orders/2");
+        URI third = new URI("http://klarna.com/orders/3");
+        cache.put(first, data);
+        cache.put(second, data);
+        cache.get(first);
+
+        cache.put(third, data);
+
+        assertEquals(2, cache.size());
+        assertEquals(1, cache.getEvictionCount());
+        assertNull(cache.get(second));
+        assertSame(data, cache.get(first));
+        assertSame(data, cache.get(third));
+    }
+
+    /**
+     * Test that a large cache split into segments keeps its size.
+     *
+     * @throws Exception but not really
+     */
+    @Test
+    public void testSegments() throws Exception {
+        ResourceCache large = new ResourceCache(1024, 10, TimeUnit.SECONDS);
+        for (int i = 0; i < 2000; i++) {
+            large.put(new URI("http://klarna.com/orders/" + i), data);
+        }
+
+        assertEquals(1024, large.size());
+        assertEquals(976, large.getEvictionCount());
+        assertSame(data, large.get(new URI("http://klarna.com/orders/1999")));
+
+        large.invalidateAll();
+
+        assertEquals(0, large.size());
+    }
+
+    /**
+     * Test invalidation.
+     *
+     * @throws Exception but not really
+     */
+    @Test
+    public void testInvalidate() throws Exception {
+        URI first = new URI("http://klarna.com/orders/1");
+        URI second = new URI("http://klarna.com/orders/2");
+        cache.put(first, data);
+        cache.put(second, data);
+
+        cache.invalidate(first);
+
+        assertNull(cache.get(first));
+        assertEquals(1, cache.size());
+
+        cache.invalidateAll();
+
+        assertEquals(0, cache.size());
+    }
+
+    /**
+     * Test that the size must be positive.
+     */
+    @Test(expected = IllegalArgumentException.class)
+    public void testInvalidSize() {
+        new ResourceCache(0, 1, TimeUnit.SECONDS);
+    }
+
+    /**
+     * Test that a stale order is served and refreshed once.
+     *
+     * @throws Exception but not really
+     */
+    @Test
+    public void testStaleWhileRevalidate() throws Exception {
+        enableStale();
+        URI location = new URI("http://klarna.com/orders/1");
+        cache.put(location, data);
+
+        time = TimeUnit.SECONDS.toNanos(12);
+
+        assertSame(data, cache.get(location, loader));
+        assertSame(data, cache.get(location, loader));
+        assertEquals(2, cache.getStaleHitCount());
+        assertEquals(1, refreshes.size());
+
+        refreshes.get(0).run();
+
+        assertSame(refreshed, cache.get(location, loader));
+        assertEquals(1, cache.getHitCount());
+    }
+
+    /**
+     * Test that stale orders are not served without a loader.
+     *
+     * @throws Exception but not really
+     */
+    @Test
+    public void testStaleWithoutLoader() throws Exception {
+        enableStale();
+        URI location = new URI("http://klarna.com/orders/1");
+        cache.put(location, data);
+
+        time = TimeUnit.SECONDS.toNanos(12);
+
+        assertNull(cache.get(location));
+        assertEquals(1, cache.getMissCount());
+        assertEquals(1, cache.size());
+    }
+
+    /**
+     * Test that orders past the stale window are misses.
+     *
+     * @throws Exception but not really
+     */
+    @Test
+    public void testStaleExpired() throws Exception {
+        enableStale();
+        URI location = new URI("http://klarna.com/orders/1");
+        cache.put(location, data);
+
+        time = TimeUnit.SECONDS.toNanos(15);
+
+        assertNull(cache.get(location, loader));
+        assertTrue(refreshes.isEmpty());
+        assertEquals(1, cache.getEvictionCount());
+    }
+
+    /**
+     * Test that an invalidated order is not cached by its refresh.
+     *
+     * @throws Exception but not really
+     */
+    @Test
+    public void testInvalidateDuringRefresh() throws Exception {
+        enableStale();
+        URI location = new URI("http://klarna.com/orders/1");
+        cache.put(location, data);
+        time = TimeUnit.SECONDS.toNanos(12);
+        cache.get(location, loader);
+
+        cache.invalidate(location);
+        refreshes.get(0).run();
+
+        assertEquals(0, cache.size());
+    }
+
+    /**
+     * Test that a failed refresh keeps the stale order.
+     *
+     * @throws Exception but not really
+     */
+    @Test
+    public void testFailedRefresh() throws Exception {
+        enableStale();
+        URI location = new URI("http://klarna.com/orders/1");
+        cache.put(location, data);
+        time = TimeUnit.SECONDS.toNanos(12);
+
+        cache.get(location, new Callable<byte[]>() {
+            @Override
+            public byte[] call() throws IOException {
+                throw new IOException("Connection reset");
+            }
+        });
+        refreshes.get(0).run();
+
+        assertEquals(1, cache.getRefreshFailureCount());
+        assertSame(data, cache.get(location, loader));
+        assertEquals(2, refreshes.size());
+    }
+}
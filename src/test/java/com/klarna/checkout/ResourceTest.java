@@ -24,10 +24,13 @@ import java.net.URI;
 import java.net.URISyntaxException;
 import java.util.Arrays;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.Map;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
 import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.when;
@@ -164,4 +167,199 @@ public class ResourceTest {
         assertEquals("testValue1", marshal.get("testKey1"));
         assertEquals("testValue2", marshal.get("testKey2"));
     }
+
+    /**
+     * Test that a lazy resource can get keys from a raw payload.
+     *
+     * @throws Exception but not really
+     */
+    @Test
+    public void testLazyGet() throws Exception {
+        this.resource.setLazy(true);
+        this.resource.parseRaw(
+                "{\"status\":\"created\",\"cart\":{\"total\":12}}"
+                        .getBytes("UTF-8"));
+
+        assertTrue(this.resource.isLazy());
+        assertEquals("created", this.resource.get("status"));
+        assertNull(this.resource.get("missing"));
+        assertEquals(
+                12L, ((Map) this.resource.get("cart")).get("total"));
+    }
+
+    /**
+     * Test that dots in keys of a lazy resource are taken as is.
+     *
+     * @throws Exception but not really
+     */
+    @Test
+    public void testLazyDottedKey() throws Exception {
+        this.resource.parseRaw(
+                "{\"cart\":{\"total\":12},\"a.b\":1}".getBytes("UTF-8"));
+
+        assertNull(this.resource.get("cart.total"));
+        assertEquals(1L, this.resource.get("a.b"));
+        assertEquals(2, this.resource.marshal().size());
+    }
+
+    /**
+     * Test that marshal parses what is left of a raw payload.
+     *
+     * @throws Exception but not really
+     */
+    @Test
+    public void testLazyMarshal() throws Exception {
+        this.resource.parseRaw(
+                "{\"id\":\"ABC\",\"status\":\"created\"}"
+                        .getBytes("UTF-8"));
+
+        assertEquals("ABC", this.resource.get("id"));
+
+        Map marshal = this.resource.marshal();
+
+        assertEquals(2, marshal.size());
+        assertEquals("ABC", marshal.get("id"));
+        assertEquals("created", marshal.get("status"));
+    }
+
+    /**
+     * Test that parse replaces a pending raw payload.
+     *
+     * @throws Exception but not really
+     */
+    @Test
+    public void testParseReplacesRaw() throws Exception {
+        this.resource.parseRaw("{\"foo\":\"raw\"}".getBytes("UTF-8"));
+        this.resource.parse(new HashMap<String, Object>() {
+            {
+                put("bar", "map");
+            }
+        });
+
+        assertNull(this.resource.get("foo"));
+        assertFalse(this.resource.marshal().containsKey("foo"));
+        assertEquals("map", this.resource.get("bar"));
+    }
+
+    /**
+     * Test that an invalid raw payload is reported when read.
+     *
+     * @throws Exception but not really
+     */
+    @Test(expected = IllegalStateException.class)
+    public void testLazyInvalidPayload() throws Exception {
+        this.resource.parseRaw("{\"foo\":".getBytes("UTF-8"));
+
+        this.resource.get("foo");
+    }
+
+    /**
+     * Test that set remembers the changed keys until the next parse.
+     */
+    @Test
+    public void testSetTracksChanges() {
+        this.resource.parse(new HashMap<String, Object>() {
+            {
+                put("foo", "boo");
+                put("bar", "baz");
+            }
+        });
+
+        this.resource.set("foo", "new");
+
+        assertEquals("new", this.resource.get("foo"));
+        assertEquals(1, this.resource.getChanges().size());
+        assertEquals("new", this.resource.getChanges().get("foo"));
+
+        this.resource.parse(new HashMap<String, Object>());
+
+        assertTrue(this.resource.getChanges().isEmpty());
+    }
+
+    /**
+     * Test that a value set on a lazy resource is not replaced by the payload.
+     *
+     * @throws Exception but not really
+     */
+    @Test
+    public void testSetOnLazy() throws Exception {
+        this.resource.parseRaw(
+                "{\"foo\":\"raw\",\"bar\":\"raw\"}".getBytes("UTF-8"));
+
+        this.resource.set("foo", "new");
+
+        assertEquals("new", this.resource.get("foo"));
+        assertEquals("new", this.resource.marshal().get("foo"));
+        assertEquals("raw", this.resource.marshal().get("bar"));
+        assertEquals(
+                Collections.singletonMap("foo", "new"),
+                this.resource.getChanges());
+    }
+
+    /**
+     * Test that compact storage keeps the same data.
+     *
+     * @throws Exception but not really
+     */
+    @Test
+    public void testCompact() throws Exception {
+        final HashMap<String, Object> cart = new HashMap<String, Object>() {
+            {
+                put("total", 12L);
+            }
+        };
+        HashMap<String, Object> data = new HashMap<String, Object>() {
+            {
+                put("status", "created");
+                put("cart", cart);
+            }
+        };
+        this.resource.parse(data);
+
+        this.resource.setCompact(true);
+
+        assertTrue(this.resource.isCompact());
+        assertTrue(this.resource.get("cart") instanceof CompactMap);
+        assertEquals(data, this.resource.marshal());
+
+        this.resource.parseRaw("{\"cart\":{\"total\":3}}".getBytes("UTF-8"));
+
+        assertTrue(this.resource.get("cart") instanceof CompactMap);
+        assertEquals(3L, ((Map) this.resource.get("cart")).get("total"));
+
+        this.resource.setCompact(false);
+        this.resource.parseRaw("{\"cart\":{\"total\":4}}".getBytes("UTF-8"));
+
+        assertFalse(this.resource.get("cart") instanceof CompactMap);
+        assertEquals(1, this.resource.marshal().size());
+    }
+
+    /**
+     * Test that validators only apply to unchanged data.
+     *
+     * @throws Exception but not really
+     */
+    @Test
+    public void testValidators() throws Exception {
+        URI uri = new URI("http://klarna.com/orders/1");
+        this.resource.setValidators(uri, null, "\"v1\"", null);
+
+        assertEquals("\"v1\"", this.resource.getETag());
+        assertNull(this.resource.getLastModified());
+        assertTrue(this.resource.hasValidators(uri, null));
+        assertFalse(this.resource.hasValidators(
+                new URI("http://klarna.com/orders/2"), null));
+        assertFalse(this.resource.hasValidators(
+                uri, Collections.singleton("status")));
+
+        this.resource.set("status", "created");
+
+        assertFalse(this.resource.hasValidators(uri, null));
+        assertNull(this.resource.getETag());
+
+        this.resource.setValidators(uri, null, null, "yesterday");
+        this.resource.parse(new HashMap<String, Object>());
+
+        assertFalse(this.resource.hasValidators(uri, null));
+    }
 }
@@ -0,0 +1,203 @@
+/*
+ * Copyright 2015 Klarna AB
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.klarna.checkout;
+
+import com.klarna.checkout.stubs.HttpClientStub;
+import com.klarna.checkout.stubs.HttpClientStub.HTTPResponseStub;
+import com.klarna.checkout.stubs.TracerStub;
+import org.apache.http.client.HttpResponseException;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.fail;
+import static org.mockito.Mockito.anyString;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+/**
+ * Tests for tracing requests through the connector.
+ */
+public class TraceTest {
+
+    /**
+     * Stubbed transport.
+     */
+    private HttpClientStub transport;
+
+    /**
+     * Connector object.
+     */
+    private BasicConnector conn;
+
+    /**
+     * Tracer recording the spans.
+     */
+    private TracerStub tracer;
+
+    /**
+     * Set up tests.
+     *
+     * @throws Exception if the digest mock fails
+     */
+    @Before
+    public void setUp() throws Exception {
+        this.transport = new HttpClientStub();
+        Digest digest = mock(Digest.class);
+        when(digest.create(anyString())).thenReturn("secret");
+        this.conn = new BasicConnector(digest) {
+            @Override
+            protected IHttpClient createHttpClient() {
+                return transport;
+            }
+        };
+        this.tracer = new TracerStub();
+        this.conn.setTracer(this.tracer);
+    }
+
+    /**
+     * Test the phases of a fetch and that every span is ended.
+     *
+     * @throws Exception if the request fails
+     */
+    @Test
+    public void testPhases() throws Exception {
+        this.transport.addResponse(new HTTPResponseStub(
+                200, new HashMap<String, String>(), "{}"));
+
+        new Order(this.conn, "1").fetch();
+
+        assertEquals(
+                Arrays.asList("serialize", "lease", "digest", "send", "parse"),
+                this.tracer.getPhases());
+
+        List<String> events = this.tracer.getEvents();
+        assertEquals("start GET", events.get(0));
+        assertEquals("end parse 200", events.get(events.size() - 2));
+        assertEquals("end request 200", events.get(events.size() - 1));
+    }
+
+    /**
+     * Test that the trace headers are sent.
+     *
+     * @throws Exception if the request fails
+     */
+    @Test
+    public void testPropagatesHeaders() throws Exception {
+        this.transport.addResponse(new HTTPResponseStub(
+                200, new HashMap<String, String>(), "{}"));
+
+        new Order(this.conn, "1").fetch();
+
+        assertEquals(
+                "trace-1",
+                this.transport.getHttpUriRequest()
+                        .getLastHeader(TracerStub.HEADER).getValue());
+    }
+
+    /**
+     * Test that a failed request ends its span with the status.
+     *
+     * @throws Exception if the request fails
+     */
+    @Test
+    public void testError() throws Exception {
+        this.transport.addResponse(new HTTPResponseStub(
+                404, new HashMap<String, String>(), "{}"));
+
+        try {
+            new Order(this.conn, "1").fetch();
+            fail("Expected HttpResponseException");
+        } catch (HttpResponseException ex) {
+            assertEquals(404, ex.getStatusCode());
+        }
+
+        List<String> events = this.tracer.getEvents();
+        assertEquals("end request 404", events.get(events.size() - 1));
+    }
+
+    /**
+     * Test that a create is traced as a POST.
+     *
+     * @throws Exception if the request fails
+     */
+    @Test
+    public void testCreate() throws Exception {
+        Map<String, String> headers = new HashMap<String, String>();
+        headers.put("Location", "http://localhost/o/2");
+        this.transport.addResponse(new HTTPResponseStub(201, headers, null));
+
+        new Order(this.conn).create(new HashMap<String, Object>());
+
+        List<String> events = this.tracer.getEvents();
+        assertEquals("start POST", events.get(0));
+        assertEquals("end request 201", events.get(events.size() - 1));
+    }
+
+    /**
+     * Test that an added tracer traces alongside the one set.
+     *
+     * @throws Exception if the request fails
+     */
+    @Test
+    public void testAddedTracer() throws Exception {
+        TracerStub added = new TracerStub();
+        this.conn.addTracer(added);
+        this.transport.addResponse(new HTTPResponseStub(
+                200, new HashMap<String, String>(), "{}"));
+
+        new Order(this.conn, "1").fetch();
+
+        assertEquals(this.tracer.getEvents(), added.getEvents());
+        assertEquals("end request 200", added.getEvents().get(
+                added.getEvents().size() - 1));
+        assertSame(this.tracer, this.conn.getTracer());
+
+        this.conn.removeTracer(added);
+        this.transport.addResponse(new HTTPResponseStub(
+                200, new HashMap<String, String>(), "{}"));
+        new Order(this.conn, "1").fetch();
+
+        assertEquals(
+                2 * added.getEvents().size(), this.tracer.getEvents().size());
+    }
+
+    /**
+     * Test that nothing is traced without a tracer.
+     *
+     * @throws Exception if the request fails
+     */
+    @Test
+    public void testNoTracer() throws Exception {
+        this.conn.setTracer(null);
+        this.transport.addResponse(new HTTPResponseStub(
+                200, new HashMap<String, String>(), "{}"));
+
+        new Order(this.conn, "1").fetch();
+
+        assertEquals(0, this.tracer.getEvents().size());
+        assertNull(this.transport.getHttpUriRequest()
+                .getLastHeader(TracerStub.HEADER));
+    }
+}
@@ -0,0 +1,114 @@
+/*
+ * Copyright 2015 Klarna AB
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.klarna.checkout.stubs;
+
+import com.klarna.checkout.IResource;
+import com.klarna.checkout.Span;
+import com.klarna.checkout.Tracer;
+
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Stub implementation of the Tracer interface recording what happened.
+ */
+public class TracerStub implements Tracer {
+
+    /**
+     * Header sent with every traced request.
+     */
+    public static final String HEADER = "X-Trace-Id";
+
+    /**
+     * Events in the order they happened.
+     */
+    private final List<String> events =
+            Collections.synchronizedList(new ArrayList<String>());
+
+    /**
+     * Get the events in the order they happened.
+     *
+     * Events read "start METHOD", "phase NAME", "end NAME STATUS" and
+     * "end request STATUS".
+     *
+     * @return the events
+     */
+    public List<String> getEvents() {
+        return new ArrayList<String>(this.events);
+    }
+
+    /**
+     * Get the names of the phases in the order they were entered.
+     *
+     * @return phase names
+     */
+    public List<String> getPhases() {
+        List<String> phases = new ArrayList<String>();
+        for (String event : this.getEvents()) {
+            if (event.startsWith("phase ")) {
+                phases.add(event.substring(6));
+            }
+        }
+        return phases;
+    }
+
+    @Override
+    public Span start(
+            final String method, final IResource resource, final URI uri) {
+        this.events.add("start " + method);
+        return new SpanStub("request");
+    }
+
+    /**
+     * Span recording into the events.
+     */
+    private final class SpanStub implements Span {
+
+        /**
+         * Name of the span.
+         */
+        private final String name;
+
+        /**
+         * Constructor.
+         *
+         * @param label name of the span
+         */
+        SpanStub(final String label) {
+            this.name = label;
+        }
+
+        @Override
+        public Span child(final String label) {
+            events.add("phase " + label);
+            return new SpanStub(label);
+        }
+
+        @Override
+        public Map<String, String> getHeaders() {
+            return Collections.singletonMap(HEADER, "trace-1");
+        }
+
+        @Override
+        public void end(final int status, final Exception error) {
+            events.add("end " + this.name + " " + status);
+        }
+    }
+}
@@ -0,0 +1,668 @@
+/*
+ * Copyright 2015 Klarna AB
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.klarna.checkout.testing;
+
+import com.klarna.checkout.IHttpClient;
+import org.apache.http.ConnectionClosedException;
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpHost;
+import org.apache.http.HttpRequest;
+import org.apache.http.HttpRequestInterceptor;
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpResponseInterceptor;
+import org.apache.http.HttpVersion;
+import org.apache.http.NoHttpResponseException;
+import org.apache.http.client.ResponseHandler;
+import org.apache.http.client.methods.HttpUriRequest;
+import org.apache.http.conn.ClientConnectionManager;
+import org.apache.http.entity.ContentType;
+import org.apache.http.entity.InputStreamEntity;
+import org.apache.http.entity.StringEntity;
+import org.apache.http.impl.EnglishReasonPhraseCatalog;
+import org.apache.http.message.BasicHttpResponse;
+import org.apache.http.params.HttpParams;
+import org.apache.http.protocol.HttpContext;
+import org.apache.http.util.EntityUtils;
+import org.json.simple.JSONValue;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * HTTP client decorator injecting faults into the requests of a connector.
+ *
+ * Faults are configured per path prefix of the request URI, the longest
+ * matching prefix applying. Every request is delayed by the latency drawn
+ * for its path and then suffers at most one of the faults, drawn at their
+ * configured rates:
+ *
+ * <ul>
+ * <li>a dropped connection, failing once the server has handled the
+ * request, so it may have taken effect</li>
+ * <li>an error status such as 503 or 429 with a Klarna error object,
+ * without reaching the server</li>
+ * <li>a body cut off halfway, failing like a closed connection</li>
+ * <li>a body that is not JSON</li>
+ * </ul>
+ *
+ * Faults apply to the executes taking a response handler, which are the
+ * ones the connector uses. To put the client in front of a connector,
+ * override {@code createHttpClient} to decorate the client it creates.
+ */
+public class FaultInjectingClient implements IHttpClient {
+
+    /**
+     * Faults that can be injected.
+     */
+    public enum Fault {
+        /**
+         * Added latency.
+         */
+        DELAY,
+        /**
+         * Connection dropped before the response.
+         */
+        DROP,
+        /**
+         * Error status instead of the response.
+         */
+        STATUS,
+        /**
+         * Body cut off halfway.
+         */
+        TRUNCATE,
+        /**
+         * Body that is not JSON.
+         */
+        INVALID_JSON
+    }
+
+    /**
+     * Body served instead of JSON.
+     */
+    private static final String INVALID_BODY =
+            "<html><body><h1>502 Bad Gateway</h1></body></html>";
+
+    /**
+     * Client the requests are sent with.
+     */
+    private final IHttpClient client;
+
+    /**
+     * Source of randomness.
+     */
+    private final Random random;
+
+    /**
+     * Faults by path prefix.
+     */
+    private final ConcurrentHashMap<String, Faults> profiles =
+            new ConcurrentHashMap<String, Faults>();
+
+    /**
+     * Number of times each fault was injected.
+     */
+    private final AtomicLongArray injected =
+            new AtomicLongArray(Fault.values().length);
+
+    /**
+     * Constructor.
+     *
+     * @param delegate client to send the requests with
+     */
+    public FaultInjectingClient(final IHttpClient delegate) {
+        this(delegate, new Random());
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param delegate client to send the requests with
+     * @param seed     seed of the faults drawn, for repeatable runs
+     */
+    public FaultInjectingClient(final IHttpClient delegate, final long seed) {
+        this(delegate, new Random(seed));
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param delegate client to send the requests with
+     * @param source   source of randomness
+     */
+    private FaultInjectingClient(
+            final IHttpClient delegate, final Random source) {
+        if (delegate == null) {
+            throw new IllegalArgumentException("Client may not be null.");
+        }
+        this.client = delegate;
+        this.random = source;
+    }
+
+    /**
+     * Get the faults of the requests under a path, creating them if new.
+     *
+     * @param prefix path prefix, such as "/checkout/recurring", or "/" for
+     *               all requests
+     * @return the faults of the path
+     */
+    public Faults getFaults(final String prefix) {
+        Faults faults = this.profiles.get(prefix);
+        if (faults == null) {
+            faults = new Faults();
+            Faults raced = this.profiles.putIfAbsent(prefix, faults);
+            if (raced != null) {
+                faults = raced;
+            }
+        }
+        return faults;
+    }
+
+    /**
+     * Get the number of times a fault was injected.
+     *
+     * @param fault kind of fault
+     * @return number of injections
+     */
+    public long getCount(final Fault fault) {
+        return this.injected.get(fault.ordinal());
+    }
+
+    /**
+     * Get the client the requests are sent with.
+     *
+     * @return the decorated client
+     */
+    public IHttpClient getDelegate() {
+        return this.client;
+    }
+
+    @Override
+    public void addResponseInterceptor(final HttpResponseInterceptor hri) {
+        this.client.addResponseInterceptor(hri);
+    }
+
+    @Override
+    public void addRequestInterceptor(final HttpRequestInterceptor hri) {
+        this.client.addRequestInterceptor(hri);
+    }
+
+    @Override
+    public HttpParams getParams() {
+        return this.client.getParams();
+    }
+
+    @Override
+    public ClientConnectionManager getConnectionManager() {
+        return this.client.getConnectionManager();
+    }
+
+    @Override
+    public HttpResponse execute(final HttpUriRequest request)
+            throws IOException {
+        return this.client.execute(request);
+    }
+
+    @Override
+    public HttpResponse execute(
+            final HttpUriRequest request, final HttpContext context)
+            throws IOException {
+        return this.client.execute(request, context);
+    }
+
+    @Override
+    public HttpResponse execute(
+            final HttpHost target, final HttpRequest request)
+            throws IOException {
+        return this.client.execute(target, request);
+    }
+
+    @Override
+    public HttpResponse execute(
+            final HttpHost target,
+            final HttpRequest request,
+            final HttpContext context) throws IOException {
+        return this.client.execute(target, request, context);
+    }
+
+    @Override
+    public <T> T execute(
+            final HttpUriRequest request,
+            final ResponseHandler<? extends T> handler) throws IOException {
+        return this.execute(request, handler, null);
+    }
+
+    @Override
+    public <T> T execute(
+            final HttpUriRequest request,
+            final ResponseHandler<? extends T> handler,
+            final HttpContext context) throws IOException {
+        Faults faults = this.match(request.getURI().getPath());
+        if (faults == null) {
+            return this.client.execute(request, handler, context);
+        }
+
+        this.delay(faults.latency);
+        Fault fault = faults.draw(this.random.nextDouble());
+        if (fault == null) {
+            return this.client.execute(request, handler, context);
+        }
+        if (fault == Fault.STATUS) {
+            this.injected.incrementAndGet(Fault.STATUS.ordinal());
+            return handler.handleResponse(
+                    error(faults.status(this.random.nextDouble())));
+        }
+        return this.client.execute(
+                request, new Faulty<T>(fault, handler), context);
+    }
+
+    @Override
+    public <T> T execute(
+            final HttpHost target,
+            final HttpRequest request,
+            final ResponseHandler<? extends T> handler) throws IOException {
+        return this.client.execute(target, request, handler);
+    }
+
+    @Override
+    public <T> T execute(
+            final HttpHost target,
+            final HttpRequest request,
+            final ResponseHandler<? extends T> handler,
+            final HttpContext context) throws IOException {
+        return this.client.execute(target, request, handler, context);
+    }
+
+    /**
+     * Find the faults of the longest prefix of a path.
+     *
+     * @param path request path
+     * @return the faults, or null if none apply
+     */
+    private Faults match(final String path) {
+        Faults best = null;
+        int length = -1;
+        for (Map.Entry<String, Faults> entry : this.profiles.entrySet()) {
+            String prefix = entry.getKey();
+            if (path != null && path.startsWith(prefix)
+                    && prefix.length() > length) {
+                best = entry.getValue();
+                length = prefix.length();
+            }
+        }
+        return best;
+    }
+
+    /**
+     * Wait for a drawn latency.
+     *
+     * @param latency distribution of the latency, null for none
+     * @throws InterruptedIOException if interrupted while waiting
+     */
+    private void delay(final Latency latency) throws InterruptedIOException {
+        if (latency == null) {
+            return;
+        }
+        long nanos = latency.next(this.random);
+        if (nanos <= 0) {
+            return;
+        }
+
+        this.injected.incrementAndGet(Fault.DELAY.ordinal());
+        try {
+            TimeUnit.NANOSECONDS.sleep(nanos);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while delayed");
+        }
+    }
+
+    /**
+     * Make an error response like the API sends.
+     *
+     * @param status HTTP status code
+     * @return the response
+     */
+    private static HttpResponse error(final int status) {
+        String reason =
+                EnglishReasonPhraseCatalog.INSTANCE.getReason(
+                        status, Locale.ENGLISH);
+        Map<String, Object> json = new LinkedHashMap<String, Object>();
+        json.put("http_status_code", status);
+        json.put("http_status_message", reason);
+        json.put("internal_message", "Injected fault");
+
+        HttpResponse response =
+                new BasicHttpResponse(HttpVersion.HTTP_1_1, status, reason);
+        response.setEntity(new StringEntity(
+                JSONValue.toJSONString(json), ContentType.APPLICATION_JSON));
+        if (status == 429 || status == 503) {
+            response.setHeader("Retry-After", "1");
+        }
+        return response;
+    }
+
+    /**
+     * Faults of the requests under a path.
+     *
+     * Rates are shares of the requests from 0 to 1 and together may not
+     * exceed 1.
+     */
+    public static final class Faults {
+
+        /**
+         * Added latency, null for none.
+         */
+        private volatile Latency latency;
+
+        /**
+         * Rate of dropped connections.
+         */
+        private volatile double drop;
+
+        /**
+         * Rate of truncated bodies.
+         */
+        private volatile double truncate;
+
+        /**
+         * Rate of bodies that are not JSON.
+         */
+        private volatile double invalid;
+
+        /**
+         * Rates of error statuses by code.
+         */
+        private volatile Map<Integer, Double> statuses =
+                Collections.emptyMap();
+
+        /**
+         * Constructor.
+         */
+        Faults() {
+        }
+
+        /**
+         * Set the latency added to every request.
+         *
+         * @param delay distribution of the latency, null for none
+         */
+        public void setLatency(final Latency delay) {
+            this.latency = delay;
+        }
+
+        /**
+         * Set the rate of connections dropped after the server handled the
+         * request.
+         *
+         * @param rate share of the requests
+         */
+        public synchronized void setDropRate(final double rate) {
+            this.check(rate, this.drop);
+            this.drop = rate;
+        }
+
+        /**
+         * Set the rate of bodies cut off halfway.
+         *
+         * @param rate share of the requests
+         */
+        public synchronized void setTruncateRate(final double rate) {
+            this.check(rate, this.truncate);
+            this.truncate = rate;
+        }
+
+        /**
+         * Set the rate of bodies replaced by something that is not JSON.
+         *
+         * @param rate share of the requests
+         */
+        public synchronized void setInvalidJsonRate(final double rate) {
+            this.check(rate, this.invalid);
+            this.invalid = rate;
+        }
+
+        /**
+         * Set the rate of an error status answered without reaching the
+         * server.
+         *
+         * @param status HTTP status code, such as 503 or 429
+         * @param rate   share of the requests
+         */
+        public synchronized void setStatusRate(
+                final int status, final double rate) {
+            if (status < 400 || status > 599) {
+                throw new IllegalArgumentException(
+                        "Status must be an error status.");
+            }
+            Double old = this.statuses.get(status);
+            if (old == null) {
+                old = 0.0;
+            }
+            this.check(rate, old);
+
+            Map<Integer, Double> copy =
+                    new LinkedHashMap<Integer, Double>(this.statuses);
+            if (rate == 0) {
+                copy.remove(status);
+            } else {
+                copy.put(status, rate);
+            }
+            this.statuses = copy;
+        }
+
+        /**
+         * Check that a rate keeps the total within bounds.
+         *
+         * @param rate     new rate
+         * @param replaced rate it replaces
+         */
+        private void check(final double rate, final double replaced) {
+            if (rate < 0 || rate > 1) {
+                throw new IllegalArgumentException(
+                        "Rate must be between 0 and 1.");
+            }
+            if (this.total() - replaced + rate > 1 + 1e-9) {
+                throw new IllegalArgumentException(
+                        "Rates may not add up to more than 1.");
+            }
+        }
+
+        /**
+         * Get the sum of all rates.
+         *
+         * @return total rate
+         */
+        private double total() {
+            double sum = this.drop + this.truncate + this.invalid;
+            for (double rate : this.statuses.values()) {
+                sum += rate;
+            }
+            return sum;
+        }
+
+        /**
+         * Draw the fault of a request.
+         *
+         * @param roll uniform number from 0 to 1
+         * @return the fault, or null for none
+         */
+        Fault draw(final double roll) {
+            double left = roll - this.drop;
+            if (left < 0) {
+                return Fault.DROP;
+            }
+            for (double rate : this.statuses.values()) {
+                left -= rate;
+            }
+            if (left < 0) {
+                return Fault.STATUS;
+            }
+            left -= this.truncate;
+            if (left < 0) {
+                return Fault.TRUNCATE;
+            }
+            left -= this.invalid;
+            if (left < 0) {
+                return Fault.INVALID_JSON;
+            }
+            return null;
+        }
+
+        /**
+         * Draw the error status of a request by the rates of the statuses.
+         *
+         * @param roll uniform number from 0 to 1
+         * @return the status code
+         */
+        int status(final double roll) {
+            Map<Integer, Double> current = this.statuses;
+            double sum = 0;
+            for (double rate : current.values()) {
+                sum += rate;
+            }
+
+            double left = roll * sum;
+            int status = 503;
+            for (Map.Entry<Integer, Double> entry : current.entrySet()) {
+                status = entry.getKey();
+                left -= entry.getValue();
+                if (left < 0) {
+                    break;
+                }
+            }
+            return status;
+        }
+    }
+
+    /**
+     * Response handler damaging the response before handing it on.
+     *
+     * @param <T> result of the handler
+     */
+    private final class Faulty<T> implements ResponseHandler<T> {
+
+        /**
+         * Fault to inject.
+         */
+        private final Fault fault;
+
+        /**
+         * Handler of the damaged response.
+         */
+        private final ResponseHandler<? extends T> handler;
+
+        /**
+         * Constructor.
+         *
+         * @param kind fault to inject
+         * @param next handler of the damaged response
+         */
+        Faulty(final Fault kind, final ResponseHandler<? extends T> next) {
+            this.fault = kind;
+            this.handler = next;
+        }
+
+        @Override
+        public T handleResponse(final HttpResponse response)
+                throws IOException {
+            HttpEntity entity = response.getEntity();
+            if (this.fault == Fault.DROP) {
+                injected.incrementAndGet(Fault.DROP.ordinal());
+                EntityUtils.consume(entity);
+                throw new NoHttpResponseException(
+                        "The target server failed to respond");
+            }
+            if (entity == null) {
+                return this.handler.handleResponse(response);
+            }
+
+            injected.incrementAndGet(this.fault.ordinal());
+            ContentType type = ContentType.get(entity);
+            byte[] body = EntityUtils.toByteArray(entity);
+            if (this.fault == Fault.TRUNCATE) {
+                response.setEntity(new InputStreamEntity(
+                        new Truncated(body), body.length, type));
+            } else {
+                response.setEntity(new StringEntity(INVALID_BODY, type));
+            }
+            return this.handler.handleResponse(response);
+        }
+    }
+
+    /**
+     * Body failing like a closed connection halfway through.
+     */
+    private static final class Truncated extends InputStream {
+
+        /**
+         * Part of the body read before failing.
+         */
+        private final ByteArrayInputStream kept;
+
+        /**
+         * Constructor.
+         *
+         * @param body complete body
+         */
+        Truncated(final byte[] body) {
+            this.kept = new ByteArrayInputStream(body, 0, body.length / 2);
+        }
+
+        @Override
+        public int read() throws IOException {
+            int next = this.kept.read();
+            if (next < 0) {
+                throw closed();
+            }
+            return next;
+        }
+
+        @Override
+        public int read(final byte[] b, final int off, final int len)
+                throws IOException {
+            if (len == 0) {
+                return 0;
+            }
+            int read = this.kept.read(b, off, len);
+            if (read < 0) {
+                throw closed();
+            }
+            return read;
+        }
+
+        /**
+         * Get the failure of a closed connection.
+         *
+         * @return the failure
+         */
+        private static IOException closed() {
+            return new ConnectionClosedException(
+                    "Premature end of Content-Length delimited message body");
+        }
+    }
+}
@@ -0,0 +1,131 @@
+/*
+ * Copyright 2015 Klarna AB
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.klarna.checkout.testing;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Distribution of added latency.
+ */
+public abstract class Latency {
+
+    /**
+     * Draw a latency.
+     *
+     * @param random source of randomness
+     * @return latency in nanoseconds, never negative
+     */
+    public abstract long next(Random random);
+
+    /**
+     * Get a latency that is always the same.
+     *
+     * @param duration latency
+     * @param unit     unit of the latency
+     * @return the distribution
+     */
+    public static Latency fixed(final long duration, final TimeUnit unit) {
+        final long nanos = nonNegative(unit.toNanos(duration));
+        return new Latency() {
+            @Override
+            public long next(final Random random) {
+                return nanos;
+            }
+        };
+    }
+
+    /**
+     * Get a latency spread evenly between two bounds.
+     *
+     * @param min  least latency
+     * @param max  most latency
+     * @param unit unit of the bounds
+     * @return the distribution
+     */
+    public static Latency uniform(
+            final long min, final long max, final TimeUnit unit) {
+        final long low = nonNegative(unit.toNanos(min));
+        final long high = unit.toNanos(max);
+        if (high < low) {
+            throw new IllegalArgumentException(
+                    "Max may not be less than min.");
+        }
+        return new Latency() {
+            @Override
+            public long next(final Random random) {
+                return low + (long) (random.nextDouble() * (high - low));
+            }
+        };
+    }
+
+    /**
+     * Get an exponentially distributed latency, like the time between
+     * independent events.
+     *
+     * @param mean mean latency
+     * @param unit unit of the mean
+     * @return the distribution
+     */
+    public static Latency exponential(final long mean, final TimeUnit unit) {
+        final long nanos = nonNegative(unit.toNanos(mean));
+        return new Latency() {
+            @Override
+            public long next(final Random random) {
+                return (long) (-Math.log(1 - random.nextDouble()) * nanos);
+            }
+        };
+    }
+
+    /**
+     * Get a log-normally distributed latency, the long tailed shape
+     * service times usually have.
+     *
+     * @param median median latency
+     * @param sigma  standard deviation of the logarithm, 1 makes the 99th
+     *               percentile about ten times the median
+     * @param unit   unit of the median
+     * @return the distribution
+     */
+    public static Latency logNormal(
+            final long median, final double sigma, final TimeUnit unit) {
+        final long nanos = nonNegative(unit.toNanos(median));
+        if (sigma < 0) {
+            throw new IllegalArgumentException("Sigma may not be negative.");
+        }
+        return new Latency() {
+            @Override
+            public long next(final Random random) {
+                return (long) (nanos * Math.exp(sigma * random.nextGaussian()));
+            }
+        };
+    }
+
+    /**
+     * Check that a duration is not negative.
+     *
+     * @param nanos duration in nanoseconds
+     * @return the duration
+     */
+    private static long nonNegative(final long nanos) {
+        if (nanos < 0) {
+            throw new IllegalArgumentException(
+                    "Latency may not be negative.");
+        }
+        return nanos;
+    }
+}
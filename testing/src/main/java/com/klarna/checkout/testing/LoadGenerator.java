@@ -0,0 +1,967 @@
+/*
+ * Copyright 2015 Klarna AB
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.klarna.checkout.testing;
+
+import com.klarna.checkout.Connector;
+import com.klarna.checkout.IConnector;
+import com.klarna.checkout.JsonFragment;
+import com.klarna.checkout.LatencyHistogram;
+import com.klarna.checkout.Order;
+import com.klarna.checkout.RecurringOrder;
+
+import java.io.IOException;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Load generator driving a mix of checkout calls through the connector.
+ *
+ * Two workload models are supported. In the open model requests are
+ * started at a fixed rate whether or not earlier ones have completed, and
+ * latency is measured from when a request was due to start, so time spent
+ * waiting for a free worker is counted like it would be for real
+ * customers. In the closed model a fixed number of workers each send their
+ * next request as soon as the previous one completed, and latencies are
+ * corrected for the requests a stalled worker did not send, using the mean
+ * service time of the worker as the expected interval.
+ *
+ * Run from the command line against a base URI, or without one against a
+ * {@link StandInServer} started in the same process:
+ *
+ * <pre>
+ * java -Dsun.net.httpserver.nodelay=true \
+ *     com.klarna.checkout.testing.LoadGenerator --base URI --secret S
+ *     [--rate PER_SECOND] [--concurrency N] [--duration SECONDS]
+ *     [--warmup SECONDS] [--mix create=1,fetch=4,update=2,recurring=1]
+ *     [--orders N] [--token RECURRING_TOKEN]
+ * </pre>
+ */
+public class LoadGenerator {
+
+    /**
+     * Calls the generator makes.
+     */
+    public enum Operation {
+        /**
+         * Create an order.
+         */
+        CREATE,
+        /**
+         * Fetch an existing order.
+         */
+        FETCH,
+        /**
+         * Update an existing order.
+         */
+        UPDATE,
+        /**
+         * Place a recurring order.
+         */
+        RECURRING
+    }
+
+    /**
+     * Recurring token known to the stand-in server.
+     */
+    static final String STAND_IN_TOKEN = "stand-in-token";
+
+    /**
+     * Shared secret used with the stand-in server.
+     */
+    static final String STAND_IN_SECRET = "sharedSecret";
+
+    /**
+     * Usage of the command line.
+     */
+    private static final String USAGE =
+            "Usage: LoadGenerator [--base URI --secret SECRET]"
+            + " [--rate PER_SECOND] [--concurrency N] [--duration SECONDS]"
+            + " [--warmup SECONDS] [--mix create=1,fetch=4,update=2]"
+            + " [--orders N] [--token RECURRING_TOKEN]";
+
+    /**
+     * Merchant block of created orders.
+     */
+    private static final JsonFragment MERCHANT = new JsonFragment(
+            "{\"id\":\"0\","
+            + "\"terms_uri\":\"http://example.com/terms.html\","
+            + "\"checkout_uri\":\"http://example.com/checkout.jsp\","
+            + "\"confirmation_uri\":\"http://example.com/thank-you.jsp"
+            + "?klarna_order_id={checkout.order.id}\","
+            + "\"push_uri\":\"http://example.com/push.jsp"
+            + "?klarna_order_id={checkout.order.id}\"}");
+
+    /**
+     * Cart of created and recurring orders.
+     */
+    private static final JsonFragment CART = new JsonFragment(
+            "{\"items\":[{\"quantity\":2,\"reference\":\"123456789\","
+            + "\"name\":\"Klarna t-shirt\",\"unit_price\":12300,"
+            + "\"discount_rate\":1000,\"tax_rate\":2500},"
+            + "{\"quantity\":1,\"type\":\"shipping_fee\","
+            + "\"reference\":\"SHIPPING\",\"name\":\"Shipping Fee\","
+            + "\"unit_price\":4900,\"tax_rate\":2500}]}");
+
+    /**
+     * Address of recurring orders.
+     */
+    private static final JsonFragment ADDRESS = new JsonFragment(
+            "{\"postal_code\":\"12345\","
+            + "\"email\":\"checkout-se@testdrive.klarna.accept\","
+            + "\"country\":\"se\",\"city\":\"Ankeborg\","
+            + "\"family_name\":\"Approved\",\"given_name\":\"Testperson-se\","
+            + "\"street_address\":\"St\\u00e5rgatan 1\","
+            + "\"phone\":\"070 111 11 11\"}");
+
+    /**
+     * Connector to send requests with.
+     */
+    private final IConnector connector;
+
+    /**
+     * Weight of each operation in the mix.
+     */
+    private final int[] weights = new int[Operation.values().length];
+
+    /**
+     * Number of orders created up front to fetch and update.
+     */
+    private int orderCount = 100;
+
+    /**
+     * Recurring token to place recurring orders with.
+     */
+    private String token;
+
+    /**
+     * Locations of orders to fetch and update, null until created.
+     */
+    private AtomicReferenceArray<URI> orders;
+
+    /**
+     * Constructor.
+     *
+     * @param conn connector to send requests with, which must be safe to
+     *             share between threads
+     */
+    public LoadGenerator(final IConnector conn) {
+        this.connector = conn;
+        this.weights[Operation.CREATE.ordinal()] = 1;
+        this.weights[Operation.FETCH.ordinal()] = 4;
+        this.weights[Operation.UPDATE.ordinal()] = 2;
+    }
+
+    /**
+     * Set the weight of an operation in the mix.
+     *
+     * @param operation operation to weigh
+     * @param weight    relative weight, 0 to leave it out
+     */
+    public void setWeight(final Operation operation, final int weight) {
+        if (weight < 0) {
+            throw new IllegalArgumentException("Weight may not be negative.");
+        }
+        this.weights[operation.ordinal()] = weight;
+    }
+
+    /**
+     * Set the mix from a description like "create=1,fetch=4".
+     *
+     * Operations left out get a weight of 0.
+     *
+     * @param mix comma separated operation weights
+     */
+    public void setMix(final String mix) {
+        int[] parsed = new int[this.weights.length];
+        for (String part : mix.split(",")) {
+            String[] pair = part.trim().split("=");
+            if (pair.length != 2) {
+                throw new IllegalArgumentException("Invalid mix " + mix);
+            }
+            Operation operation = Operation.valueOf(
+                    pair[0].trim().toUpperCase(Locale.ROOT));
+            parsed[operation.ordinal()] = Integer.parseInt(pair[1].trim());
+        }
+        for (Operation operation : Operation.values()) {
+            this.setWeight(operation, parsed[operation.ordinal()]);
+        }
+    }
+
+    /**
+     * Set the number of orders created up front to fetch and update.
+     *
+     * @param count number of orders
+     */
+    public void setOrderCount(final int count) {
+        if (count <= 0) {
+            throw new IllegalArgumentException("Count must be positive.");
+        }
+        this.orderCount = count;
+    }
+
+    /**
+     * Set the recurring token to place recurring orders with.
+     *
+     * @param recurringToken recurring token
+     */
+    public void setRecurringToken(final String recurringToken) {
+        this.token = recurringToken;
+    }
+
+    /**
+     * Run the open workload model.
+     *
+     * @param rate     requests started per second
+     * @param workers  most requests in flight
+     * @param duration time to start requests for
+     * @param unit     unit of the duration
+     * @return the results
+     * @throws IOException          if the orders could not be created
+     * @throws InterruptedException if interrupted while running
+     */
+    public Report runOpen(
+            final double rate,
+            final int workers,
+            final long duration,
+            final TimeUnit unit) throws IOException, InterruptedException {
+        if (rate <= 0) {
+            throw new IllegalArgumentException("Rate must be positive.");
+        }
+        String model = String.format(
+                Locale.ROOT, "open, %.1f/s, %d workers", rate, workers);
+        return this.run(model, (long) (1e9 / rate), workers,
+                unit.toNanos(duration));
+    }
+
+    /**
+     * Run the closed workload model.
+     *
+     * @param workers  requests in flight
+     * @param duration time to start requests for
+     * @param unit     unit of the duration
+     * @return the results
+     * @throws IOException          if the orders could not be created
+     * @throws InterruptedException if interrupted while running
+     */
+    public Report runClosed(
+            final int workers,
+            final long duration,
+            final TimeUnit unit) throws IOException, InterruptedException {
+        String model = String.format(
+                Locale.ROOT, "closed, %d workers", workers);
+        return this.run(model, 0, workers, unit.toNanos(duration));
+    }
+
+    /**
+     * Run a workload.
+     *
+     * @param model    description of the workload model
+     * @param interval nanoseconds between request starts, 0 for closed
+     * @param workers  number of worker threads
+     * @param duration nanoseconds to start requests for
+     * @return the results
+     * @throws IOException          if the orders could not be created
+     * @throws InterruptedException if interrupted while running
+     */
+    private Report run(
+            final String model,
+            final long interval,
+            final int workers,
+            final long duration) throws IOException, InterruptedException {
+        if (workers <= 0) {
+            throw new IllegalArgumentException(
+                    "Worker count must be positive.");
+        }
+        if (this.total() == 0) {
+            throw new IllegalStateException("Mix is empty.");
+        }
+        if (this.weights[Operation.RECURRING.ordinal()] > 0
+                && this.token == null) {
+            throw new IllegalStateException(
+                    "Recurring orders need a recurring token.");
+        }
+        this.prepare();
+
+        Run state = new Run(model, interval, duration);
+        Thread[] threads = new Thread[workers];
+        for (int i = 0; i < workers; i++) {
+            threads[i] = new Thread(new Worker(state), "load-" + i);
+            threads[i].start();
+        }
+        try {
+            for (Thread thread : threads) {
+                thread.join();
+            }
+        } finally {
+            for (Thread thread : threads) {
+                thread.interrupt();
+            }
+        }
+        return new Report(state);
+    }
+
+    /**
+     * Create the orders to fetch and update, once.
+     *
+     * @throws IOException if an order could not be created
+     */
+    private synchronized void prepare() throws IOException {
+        if (this.orders != null) {
+            return;
+        }
+        if (this.weights[Operation.FETCH.ordinal()] == 0
+                && this.weights[Operation.UPDATE.ordinal()] == 0) {
+            this.orders = new AtomicReferenceArray<URI>(0);
+            return;
+        }
+
+        AtomicReferenceArray<URI> created =
+                new AtomicReferenceArray<URI>(this.orderCount);
+        for (int i = 0; i < this.orderCount; i++) {
+            Order order = new Order(this.connector);
+            order.create(orderData());
+            created.set(i, order.getLocation());
+        }
+        this.orders = created;
+    }
+
+    /**
+     * Get the sum of the weights.
+     *
+     * @return total weight
+     */
+    private int total() {
+        int sum = 0;
+        for (int weight : this.weights) {
+            sum += weight;
+        }
+        return sum;
+    }
+
+    /**
+     * Pick an operation by weight.
+     *
+     * @param random source of randomness
+     * @return the operation
+     */
+    private Operation pick(final Random random) {
+        int roll = random.nextInt(this.total());
+        for (Operation operation : Operation.values()) {
+            roll -= this.weights[operation.ordinal()];
+            if (roll < 0) {
+                return operation;
+            }
+        }
+        throw new IllegalStateException("Mix changed while running.");
+    }
+
+    /**
+     * Perform an operation.
+     *
+     * @param operation operation to perform
+     * @param random    source of randomness
+     * @throws IOException if the request failed
+     */
+    private void perform(final Operation operation, final Random random)
+            throws IOException {
+        switch (operation) {
+            case CREATE:
+                Order created = new Order(this.connector);
+                created.create(orderData());
+                if (this.orders.length() > 0) {
+                    this.orders.set(random.nextInt(this.orders.length()),
+                            created.getLocation());
+                }
+                break;
+            case FETCH:
+                this.existing(random).fetch();
+                break;
+            case UPDATE:
+                Map<String, Object> reference = new HashMap<String, Object>();
+                reference.put("orderid1", Integer.toString(random.nextInt()));
+                Map<String, Object> changes = new HashMap<String, Object>();
+                changes.put("merchant_reference", reference);
+                this.existing(random).update(changes);
+                break;
+            default:
+                try {
+                    new RecurringOrder(this.connector, this.token)
+                            .create(recurringData());
+                } catch (URISyntaxException ex) {
+                    throw new IllegalStateException(ex);
+                }
+                break;
+        }
+    }
+
+    /**
+     * Get one of the orders created up front, or since replacing it.
+     *
+     * @param random source of randomness
+     * @return the order
+     */
+    private Order existing(final Random random) {
+        Order order = new Order(this.connector);
+        order.setLocation(
+                this.orders.get(random.nextInt(this.orders.length())));
+        return order;
+    }
+
+    /**
+     * Get the data of an order to create.
+     *
+     * @return the order data
+     */
+    private static Map<String, Object> orderData() {
+        Map<String, Object> gui = new HashMap<String, Object>();
+        gui.put("layout", "desktop");
+
+        Map<String, Object> data = new HashMap<String, Object>();
+        data.put("purchase_country", "SE");
+        data.put("purchase_currency", "SEK");
+        data.put("locale", "sv-se");
+        data.put("merchant", MERCHANT);
+        data.put("cart", CART);
+        data.put("gui", gui);
+        return data;
+    }
+
+    /**
+     * Get the data of a recurring order to place.
+     *
+     * @return the recurring order data
+     */
+    private static Map<String, Object> recurringData() {
+        Map<String, Object> merchant = new HashMap<String, Object>();
+        merchant.put("id", "0");
+
+        Map<String, Object> data = new HashMap<String, Object>();
+        data.put("purchase_country", "SE");
+        data.put("purchase_currency", "SEK");
+        data.put("locale", "sv-se");
+        data.put("merchant", merchant);
+        data.put("cart", CART);
+        data.put("billing_address", ADDRESS);
+        data.put("shipping_address", ADDRESS);
+        return data;
+    }
+
+    /**
+     * Run the load generator from the command line.
+     *
+     * @param args command line arguments
+     * @throws Exception if the run failed
+     */
+    public static void main(final String[] args) throws Exception {
+        Map<String, String> options;
+        try {
+            options = options(args);
+        } catch (IllegalArgumentException ex) {
+            System.err.println(ex.getMessage());
+            System.err.println(USAGE);
+            System.exit(2);
+            return;
+        }
+
+        String base = options.get("base");
+        String secret = options.get("secret");
+        String recurringToken = options.get("token");
+        StandInServer standIn = null;
+        if (base == null) {
+            if (secret == null) {
+                secret = STAND_IN_SECRET;
+            }
+            standIn = new StandInServer(secret);
+            standIn.start();
+            standIn.addRecurringToken(STAND_IN_TOKEN);
+            base = standIn.getBaseUri();
+            if (recurringToken == null) {
+                recurringToken = STAND_IN_TOKEN;
+            }
+        } else if (secret == null) {
+            System.err.println("A shared secret is needed with --base.");
+            System.err.println(USAGE);
+            System.exit(2);
+            return;
+        }
+
+        try {
+            int concurrency = integer(options, "concurrency", 16);
+            LoadGenerator generator = new LoadGenerator(
+                    Connector.create(secret, base, concurrency));
+            generator.setRecurringToken(recurringToken);
+            generator.setOrderCount(integer(options, "orders", 100));
+            if (options.containsKey("mix")) {
+                generator.setMix(options.get("mix"));
+            } else if (recurringToken != null) {
+                generator.setWeight(Operation.RECURRING, 1);
+            }
+
+            int warmup = integer(options, "warmup", 5);
+            int duration = integer(options, "duration", 30);
+            if (warmup > 0) {
+                generator.run(options, concurrency, warmup);
+            }
+            System.out.print(generator.run(options, concurrency, duration));
+        } finally {
+            if (standIn != null) {
+                standIn.stop();
+            }
+        }
+    }
+
+    /**
+     * Run the workload model chosen on the command line.
+     *
+     * @param options     command line options
+     * @param concurrency number of workers
+     * @param seconds     time to start requests for
+     * @return the results
+     * @throws IOException          if the orders could not be created
+     * @throws InterruptedException if interrupted while running
+     */
+    private Report run(
+            final Map<String, String> options,
+            final int concurrency,
+            final int seconds) throws IOException, InterruptedException {
+        String rate = options.get("rate");
+        if (rate == null) {
+            return this.runClosed(concurrency, seconds, TimeUnit.SECONDS);
+        }
+        return this.runOpen(Double.parseDouble(rate), concurrency, seconds,
+                TimeUnit.SECONDS);
+    }
+
+    /**
+     * Parse command line options of the form --name value.
+     *
+     * @param args command line arguments
+     * @return the options by name
+     */
+    static Map<String, String> options(final String[] args) {
+        Map<String, String> options = new HashMap<String, String>();
+        for (int i = 0; i < args.length; i += 2) {
+            if (!args[i].startsWith("--") || i + 1 == args.length) {
+                throw new IllegalArgumentException(
+                        "Invalid option " + args[i]);
+            }
+            options.put(args[i].substring(2), args[i + 1]);
+        }
+        return options;
+    }
+
+    /**
+     * Get an integer option.
+     *
+     * @param options  options by name
+     * @param name     name of the option
+     * @param fallback value if the option is not given
+     * @return the value
+     */
+    private static int integer(
+            final Map<String, String> options,
+            final String name,
+            final int fallback) {
+        String value = options.get(name);
+        if (value == null) {
+            return fallback;
+        }
+        return Integer.parseInt(value);
+    }
+
+    /**
+     * State of a run shared by its workers.
+     */
+    private static final class Run {
+
+        /**
+         * Description of the workload model.
+         */
+        private final String model;
+
+        /**
+         * Nanoseconds between request starts, 0 for the closed model.
+         */
+        private final long interval;
+
+        /**
+         * Time the run started.
+         */
+        private final long start;
+
+        /**
+         * Time after which no requests are started.
+         */
+        private final long end;
+
+        /**
+         * Next start slot of the open model.
+         */
+        private final AtomicLong slots = new AtomicLong();
+
+        /**
+         * Time the last request completed.
+         */
+        private final AtomicLong finished = new AtomicLong();
+
+        /**
+         * Corrected latency of each operation.
+         */
+        private final LatencyHistogram[] latencies =
+                new LatencyHistogram[Operation.values().length];
+
+        /**
+         * Time from sending a request until its response, uncorrected.
+         */
+        private final LatencyHistogram service = new LatencyHistogram();
+
+        /**
+         * Requests of each operation.
+         */
+        private final AtomicLongArray counts =
+                new AtomicLongArray(Operation.values().length);
+
+        /**
+         * Failed requests of each operation.
+         */
+        private final AtomicLongArray errors =
+                new AtomicLongArray(Operation.values().length);
+
+        /**
+         * Constructor.
+         *
+         * @param description description of the workload model
+         * @param pace        nanoseconds between request starts
+         * @param duration    nanoseconds to start requests for
+         */
+        Run(final String description, final long pace, final long duration) {
+            this.model = description;
+            this.interval = pace;
+            this.start = System.nanoTime();
+            this.end = this.start + duration;
+            this.finished.set(this.start);
+            for (int i = 0; i < this.latencies.length; i++) {
+                this.latencies[i] = new LatencyHistogram();
+            }
+        }
+    }
+
+    /**
+     * Worker sending requests until the run ends.
+     */
+    private final class Worker implements Runnable {
+
+        /**
+         * State of the run.
+         */
+        private final Run state;
+
+        /**
+         * Source of randomness of the worker.
+         */
+        private final Random random = new Random();
+
+        /**
+         * Constructor.
+         *
+         * @param run state of the run
+         */
+        Worker(final Run run) {
+            this.state = run;
+        }
+
+        @Override
+        public void run() {
+            long busy = 0;
+            long served = 0;
+            while (!Thread.currentThread().isInterrupted()) {
+                long due = this.due();
+                if (due < 0) {
+                    return;
+                }
+
+                Operation operation = pick(this.random);
+                long begin = System.nanoTime();
+                try {
+                    perform(operation, this.random);
+                } catch (IOException ex) {
+                    this.state.errors.incrementAndGet(operation.ordinal());
+                }
+                long done = System.nanoTime();
+
+                long expected = 0;
+                if (this.state.interval == 0 && served > 0) {
+                    expected = busy / served;
+                }
+                busy += done - begin;
+                served++;
+                this.state.counts.incrementAndGet(operation.ordinal());
+                this.state.service.record(done - begin);
+                this.state.latencies[operation.ordinal()].record(
+                        done - due, expected);
+
+                long last = this.state.finished.get();
+                while (done > last
+                        && !this.state.finished.compareAndSet(last, done)) {
+                    last = this.state.finished.get();
+                }
+            }
+        }
+
+        /**
+         * Wait until the next request is due.
+         *
+         * @return time the request was due, or -1 if the run is over
+         */
+        private long due() {
+            if (this.state.interval == 0) {
+                long now = System.nanoTime();
+                if (now - this.state.end >= 0) {
+                    return -1;
+                }
+                return now;
+            }
+
+            long due = this.state.start
+                    + this.state.slots.getAndIncrement() * this.state.interval;
+            if (due - this.state.end >= 0) {
+                return -1;
+            }
+            long wait = due - System.nanoTime();
+            while (wait > 0) {
+                LockSupport.parkNanos(wait);
+                if (Thread.currentThread().isInterrupted()) {
+                    return -1;
+                }
+                wait = due - System.nanoTime();
+            }
+            return due;
+        }
+    }
+
+    /**
+     * Results of a run.
+     */
+    public static final class Report {
+
+        /**
+         * Description of the workload model.
+         */
+        private final String model;
+
+        /**
+         * Nanoseconds from start until the last response.
+         */
+        private final long elapsed;
+
+        /**
+         * Corrected latency of each operation.
+         */
+        private final LatencyHistogram.Snapshot[] latencies;
+
+        /**
+         * Uncorrected service time of all requests.
+         */
+        private final LatencyHistogram.Snapshot service;
+
+        /**
+         * Requests of each operation.
+         */
+        private final long[] counts;
+
+        /**
+         * Failed requests of each operation.
+         */
+        private final long[] errors;
+
+        /**
+         * Constructor.
+         *
+         * @param run state of the finished run
+         */
+        private Report(final Run run) {
+            this.model = run.model;
+            this.elapsed = run.finished.get() - run.start;
+            this.latencies =
+                    new LatencyHistogram.Snapshot[run.latencies.length];
+            this.counts = new long[run.latencies.length];
+            this.errors = new long[run.latencies.length];
+            for (int i = 0; i < this.latencies.length; i++) {
+                this.latencies[i] = run.latencies[i].snapshot();
+                this.counts[i] = run.counts.get(i);
+                this.errors[i] = run.errors.get(i);
+            }
+            this.service = run.service.snapshot();
+        }
+
+        /**
+         * Get the time from start until the last response.
+         *
+         * @param unit unit of the result
+         * @return the elapsed time
+         */
+        public long getElapsed(final TimeUnit unit) {
+            return unit.convert(this.elapsed, TimeUnit.NANOSECONDS);
+        }
+
+        /**
+         * Get the number of requests sent.
+         *
+         * @return number of requests
+         */
+        public long getCount() {
+            return this.service.getCount();
+        }
+
+        /**
+         * Get the number of requests of an operation sent.
+         *
+         * @param operation operation
+         * @return number of requests
+         */
+        public long getCount(final Operation operation) {
+            return this.counts[operation.ordinal()];
+        }
+
+        /**
+         * Get the number of failed requests.
+         *
+         * @return number of failed requests
+         */
+        public long getErrorCount() {
+            long sum = 0;
+            for (long count : this.errors) {
+                sum += count;
+            }
+            return sum;
+        }
+
+        /**
+         * Get the number of failed requests of an operation.
+         *
+         * @param operation operation
+         * @return number of failed requests
+         */
+        public long getErrorCount(final Operation operation) {
+            return this.errors[operation.ordinal()];
+        }
+
+        /**
+         * Get the number of responses per second.
+         *
+         * @return throughput
+         */
+        public double getThroughput() {
+            if (this.elapsed <= 0) {
+                return 0;
+            }
+            return this.getCount() * 1e9 / this.elapsed;
+        }
+
+        /**
+         * Get the latency of an operation, corrected for coordinated
+         * omission.
+         *
+         * @param operation operation
+         * @return the latency distribution
+         */
+        public LatencyHistogram.Snapshot getLatency(
+                final Operation operation) {
+            return this.latencies[operation.ordinal()];
+        }
+
+        /**
+         * Get the time from sending a request until its response, without
+         * correction, over all operations.
+         *
+         * @return the service time distribution
+         */
+        public LatencyHistogram.Snapshot getServiceTime() {
+            return this.service;
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder out = new StringBuilder();
+            out.append(String.format(Locale.ROOT,
+                    "model       %s%n"
+                    + "elapsed     %.1f s%n"
+                    + "requests    %d (%d errors)%n"
+                    + "throughput  %.1f/s%n%n",
+                    this.model, this.elapsed / 1e9, this.getCount(),
+                    this.getErrorCount(), this.getThroughput()));
+            out.append(String.format(Locale.ROOT,
+                    "%-10s %8s %7s %9s %9s %9s %9s %9s%n", "latency ms",
+                    "count", "errors", "p50", "p90", "p99", "p99.9", "max"));
+            for (Operation operation : Operation.values()) {
+                if (this.getCount(operation) > 0) {
+                    row(out, operation.name().toLowerCase(Locale.ROOT),
+                            this.getLatency(operation),
+                            this.getCount(operation),
+                            this.getErrorCount(operation));
+                }
+            }
+            row(out, "service", this.service, this.getCount(),
+                    this.getErrorCount());
+            return out.toString();
+        }
+
+        /**
+         * Append a row of latency percentiles.
+         *
+         * @param out      text to append to
+         * @param name     name of the row
+         * @param snapshot latency distribution
+         * @param sent     number of requests
+         * @param failed   number of failed requests
+         */
+        private static void row(
+                final StringBuilder out,
+                final String name,
+                final LatencyHistogram.Snapshot snapshot,
+                final long sent,
+                final long failed) {
+            out.append(String.format(Locale.ROOT,
+                    "%-10s %8d %7d %9.2f %9.2f %9.2f %9.2f %9.2f%n", name,
+                    sent, failed,
+                    millis(snapshot.getPercentile(50, TimeUnit.NANOSECONDS)),
+                    millis(snapshot.getPercentile(90, TimeUnit.NANOSECONDS)),
+                    millis(snapshot.getPercentile(99, TimeUnit.NANOSECONDS)),
+                    millis(snapshot.getPercentile(99.9, TimeUnit.NANOSECONDS)),
+                    millis(snapshot.getMax(TimeUnit.NANOSECONDS))));
+        }
+
+        /**
+         * Convert nanoseconds to milliseconds.
+         *
+         * @param nanos nanoseconds
+         * @return milliseconds
+         */
+        private static double millis(final long nanos) {
+            return nanos / 1e6;
+        }
+    }
+}
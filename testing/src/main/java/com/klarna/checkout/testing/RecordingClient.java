@@ -0,0 +1,401 @@
+/*
+ * Copyright 2015 Klarna AB
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.klarna.checkout.testing;
+
+import com.klarna.checkout.IHttpClient;
+import org.apache.http.Header;
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpEntityEnclosingRequest;
+import org.apache.http.HttpHost;
+import org.apache.http.HttpMessage;
+import org.apache.http.HttpRequest;
+import org.apache.http.HttpRequestInterceptor;
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpResponseInterceptor;
+import org.apache.http.client.ResponseHandler;
+import org.apache.http.client.methods.HttpUriRequest;
+import org.apache.http.conn.ClientConnectionManager;
+import org.apache.http.entity.ByteArrayEntity;
+import org.apache.http.params.HttpParams;
+import org.apache.http.protocol.HttpContext;
+import org.apache.http.util.EntityUtils;
+import org.json.simple.JSONValue;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * HTTP client decorator recording the exchanges of a connector.
+ *
+ * Every exchange is written as one JSON object per line, holding the
+ * request, the final response after any redirects and how long the
+ * response took. Authorization headers are
+ * redacted. Bodies are stored as UTF-8 text. A {@link ReplayClient} serves
+ * the recording back.
+ *
+ * Exchanges of the executes taking a response handler are recorded, which
+ * are the ones the connector uses. To put the client in front of a
+ * connector, override {@code createHttpClient} to decorate the client it
+ * creates.
+ */
+public class RecordingClient implements IHttpClient, Closeable {
+
+    /**
+     * Field of the nanoseconds the response took.
+     */
+    static final String NANOS = "nanos";
+
+    /**
+     * Field of the request method.
+     */
+    static final String METHOD = "method";
+
+    /**
+     * Field of the request URI.
+     */
+    static final String REQUEST_URI = "uri";
+
+    /**
+     * Field of the request headers.
+     */
+    static final String REQUEST_HEADERS = "request_headers";
+
+    /**
+     * Field of the request body.
+     */
+    static final String REQUEST_BODY = "request_body";
+
+    /**
+     * Field of the response status code.
+     */
+    static final String STATUS = "status";
+
+    /**
+     * Field of the response reason phrase.
+     */
+    static final String REASON = "reason";
+
+    /**
+     * Field of the response headers.
+     */
+    static final String HEADERS = "headers";
+
+    /**
+     * Field of the response body.
+     */
+    static final String BODY = "body";
+
+    /**
+     * Value replacing redacted headers.
+     */
+    static final String REDACTED = "REDACTED";
+
+    /**
+     * Client the requests are sent with.
+     */
+    private final IHttpClient client;
+
+    /**
+     * Destination of the recording, guarded by itself.
+     */
+    private final OutputStream out;
+
+    /**
+     * Number of exchanges recorded.
+     */
+    private final AtomicLong recorded = new AtomicLong();
+
+    /**
+     * Constructor.
+     *
+     * @param delegate client to send the requests with
+     * @param file     path of the recording, overwritten if it exists
+     * @throws IOException if the file could not be opened
+     */
+    public RecordingClient(final IHttpClient delegate, final String file)
+            throws IOException {
+        this(delegate, new FileOutputStream(file));
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param delegate    client to send the requests with
+     * @param destination stream to write the recording to
+     */
+    public RecordingClient(
+            final IHttpClient delegate, final OutputStream destination) {
+        if (delegate == null) {
+            throw new IllegalArgumentException("Client may not be null.");
+        }
+        this.client = delegate;
+        this.out = new BufferedOutputStream(destination);
+    }
+
+    /**
+     * Get the number of exchanges recorded.
+     *
+     * @return number of exchanges
+     */
+    public long getRecordedCount() {
+        return this.recorded.get();
+    }
+
+    /**
+     * Write the exchanges recorded so far to the destination.
+     *
+     * @throws IOException if writing fails
+     */
+    public void flush() throws IOException {
+        synchronized (this.out) {
+            this.out.flush();
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        synchronized (this.out) {
+            this.out.close();
+        }
+    }
+
+    @Override
+    public void addResponseInterceptor(final HttpResponseInterceptor hri) {
+        this.client.addResponseInterceptor(hri);
+    }
+
+    @Override
+    public void addRequestInterceptor(final HttpRequestInterceptor hri) {
+        this.client.addRequestInterceptor(hri);
+    }
+
+    @Override
+    public HttpParams getParams() {
+        return this.client.getParams();
+    }
+
+    @Override
+    public ClientConnectionManager getConnectionManager() {
+        return this.client.getConnectionManager();
+    }
+
+    @Override
+    public HttpResponse execute(final HttpUriRequest request)
+            throws IOException {
+        return this.client.execute(request);
+    }
+
+    @Override
+    public HttpResponse execute(
+            final HttpUriRequest request, final HttpContext context)
+            throws IOException {
+        return this.client.execute(request, context);
+    }
+
+    @Override
+    public HttpResponse execute(
+            final HttpHost target, final HttpRequest request)
+            throws IOException {
+        return this.client.execute(target, request);
+    }
+
+    @Override
+    public HttpResponse execute(
+            final HttpHost target,
+            final HttpRequest request,
+            final HttpContext context) throws IOException {
+        return this.client.execute(target, request, context);
+    }
+
+    @Override
+    public <T> T execute(
+            final HttpUriRequest request,
+            final ResponseHandler<? extends T> handler) throws IOException {
+        return this.execute(request, handler, null);
+    }
+
+    @Override
+    public <T> T execute(
+            final HttpUriRequest request,
+            final ResponseHandler<? extends T> handler,
+            final HttpContext context) throws IOException {
+        return this.client.execute(
+                request, new Recorder<T>(request, handler), context);
+    }
+
+    @Override
+    public <T> T execute(
+            final HttpHost target,
+            final HttpRequest request,
+            final ResponseHandler<? extends T> handler) throws IOException {
+        return this.client.execute(target, request, handler);
+    }
+
+    @Override
+    public <T> T execute(
+            final HttpHost target,
+            final HttpRequest request,
+            final ResponseHandler<? extends T> handler,
+            final HttpContext context) throws IOException {
+        return this.client.execute(target, request, handler, context);
+    }
+
+    /**
+     * Write an exchange.
+     *
+     * Failing to write is logged rather than failing the request.
+     *
+     * @param exchange the exchange
+     */
+    private void write(final Map<String, Object> exchange) {
+        byte[] line;
+        try {
+            line = (JSONValue.toJSONString(exchange) + "\n").getBytes("UTF-8");
+            synchronized (this.out) {
+                this.out.write(line);
+            }
+            this.recorded.incrementAndGet();
+        } catch (IOException ex) {
+            Logger.getLogger(RecordingClient.class.getName()).log(
+                    Level.WARNING, "Failed to record exchange", ex);
+        }
+    }
+
+    /**
+     * Get the headers of a message as name and value pairs.
+     *
+     * @param message the message
+     * @return the headers, with authorization redacted
+     */
+    private static List<List<String>> headers(final HttpMessage message) {
+        List<List<String>> headers = new ArrayList<List<String>>();
+        for (Header header : message.getAllHeaders()) {
+            List<String> pair = new ArrayList<String>(2);
+            pair.add(header.getName());
+            if (header.getName().equalsIgnoreCase("Authorization")
+                    || header.getName().equalsIgnoreCase(
+                            "Proxy-Authorization")) {
+                pair.add(REDACTED);
+            } else {
+                pair.add(header.getValue());
+            }
+            headers.add(pair);
+        }
+        return headers;
+    }
+
+    /**
+     * Get a body as text.
+     *
+     * @param body body bytes, may be null
+     * @return the text, or null if there is no body
+     * @throws IOException if UTF-8 is not supported
+     */
+    private static String text(final byte[] body) throws IOException {
+        if (body == null) {
+            return null;
+        }
+        return new String(body, "UTF-8");
+    }
+
+    /**
+     * Response handler recording the exchange before handing it on.
+     *
+     * @param <T> result of the handler
+     */
+    private final class Recorder<T> implements ResponseHandler<T> {
+
+        /**
+         * The request.
+         */
+        private final HttpUriRequest request;
+
+        /**
+         * Handler of the response.
+         */
+        private final ResponseHandler<? extends T> handler;
+
+        /**
+         * Time the request was sent.
+         */
+        private final long sent;
+
+        /**
+         * Constructor.
+         *
+         * @param req  the request
+         * @param next handler of the response
+         */
+        Recorder(
+                final HttpUriRequest req,
+                final ResponseHandler<? extends T> next) {
+            this.request = req;
+            this.handler = next;
+            this.sent = System.nanoTime();
+        }
+
+        @Override
+        public T handleResponse(final HttpResponse response)
+                throws IOException {
+            HttpEntity entity = response.getEntity();
+            byte[] body = null;
+            if (entity != null) {
+                body = EntityUtils.toByteArray(entity);
+                ByteArrayEntity copy = new ByteArrayEntity(body);
+                copy.setContentType(entity.getContentType());
+                copy.setContentEncoding(entity.getContentEncoding());
+                response.setEntity(copy);
+            }
+            long done = System.nanoTime();
+
+            byte[] sentBody = null;
+            if (this.request instanceof HttpEntityEnclosingRequest) {
+                HttpEntity payload =
+                        ((HttpEntityEnclosingRequest) this.request)
+                                .getEntity();
+                if (payload != null && payload.isRepeatable()) {
+                    sentBody = EntityUtils.toByteArray(payload);
+                }
+            }
+
+            Map<String, Object> exchange = new LinkedHashMap<String, Object>();
+            exchange.put(NANOS, done - this.sent);
+            // Written first, so a replay can index without reading on.
+            exchange.put(METHOD, this.request.getMethod());
+            exchange.put(REQUEST_URI, this.request.getURI().toString());
+            exchange.put(REQUEST_HEADERS, headers(this.request));
+            exchange.put(REQUEST_BODY, text(sentBody));
+            exchange.put(STATUS, response.getStatusLine().getStatusCode());
+            exchange.put(REASON, response.getStatusLine().getReasonPhrase());
+            exchange.put(HEADERS, headers(response));
+            exchange.put(BODY, text(body));
+            write(exchange);
+
+            return this.handler.handleResponse(response);
+        }
+    }
+}
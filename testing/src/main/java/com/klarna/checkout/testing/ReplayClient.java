@@ -0,0 +1,700 @@
+/*
+ * Copyright 2015 Klarna AB
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.klarna.checkout.testing;
+
+import com.klarna.checkout.IHttpClient;
+import org.apache.http.HttpException;
+import org.apache.http.HttpHost;
+import org.apache.http.HttpRequest;
+import org.apache.http.HttpRequestInterceptor;
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpResponseInterceptor;
+import org.apache.http.HttpVersion;
+import org.apache.http.client.ClientProtocolException;
+import org.apache.http.client.ResponseHandler;
+import org.apache.http.client.methods.HttpUriRequest;
+import org.apache.http.conn.ClientConnectionManager;
+import org.apache.http.entity.ByteArrayEntity;
+import org.apache.http.message.BasicHttpResponse;
+import org.apache.http.params.BasicHttpParams;
+import org.apache.http.params.HttpParams;
+import org.apache.http.protocol.BasicHttpContext;
+import org.apache.http.protocol.HttpContext;
+import org.apache.http.util.EntityUtils;
+import org.json.simple.parser.ContentHandler;
+import org.json.simple.parser.JSONParser;
+import org.json.simple.parser.ParseException;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.InterruptedIOException;
+import java.io.RandomAccessFile;
+import java.io.Reader;
+import java.net.URI;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * HTTP client serving the exchanges recorded by a {@link RecordingClient}.
+ *
+ * The recording is memory mapped and indexed by method and path, including
+ * any query, so the host it was recorded against does not matter. Requests
+ * for a method and path get the responses recorded for it in turn, wrapping
+ * around once all were served. Indexing reads an exchange only up to its
+ * method and URI, which the recorder writes first. The rest is decoded and
+ * kept once the exchange is served, so exchanges that are never asked for
+ * stay out of the heap, and one that is broken past its URI fails when it
+ * is served.
+ *
+ * Responses are delayed by the time they originally took multiplied by the
+ * time scale, 1 by default. Interceptors run like they do in the real
+ * client, so the connector signs requests and picks up the locations of
+ * created resources as usual.
+ */
+public class ReplayClient implements IHttpClient, Closeable {
+
+    /**
+     * UTF-8 character set.
+     */
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    /**
+     * File the recording is mapped from.
+     */
+    private final RandomAccessFile file;
+
+    /**
+     * Mapped recording.
+     */
+    private final MappedByteBuffer buffer;
+
+    /**
+     * Positions of the exchanges by method and path.
+     */
+    private final Map<String, Slots> index = new HashMap<String, Slots>();
+
+    /**
+     * Number of exchanges in the recording.
+     */
+    private final int size;
+
+    /**
+     * Parameters of the client.
+     */
+    private final HttpParams params = new BasicHttpParams();
+
+    /**
+     * Request interceptors.
+     */
+    private final List<HttpRequestInterceptor> requestInterceptors =
+            new CopyOnWriteArrayList<HttpRequestInterceptor>();
+
+    /**
+     * Response interceptors.
+     */
+    private final List<HttpResponseInterceptor> responseInterceptors =
+            new CopyOnWriteArrayList<HttpResponseInterceptor>();
+
+    /**
+     * Number of exchanges served.
+     */
+    private final AtomicLong served = new AtomicLong();
+
+    /**
+     * Multiplier of the recorded response times.
+     */
+    private volatile double scale = 1;
+
+    /**
+     * Constructor.
+     *
+     * @param path path of the recording
+     * @throws IOException if the recording could not be read, or is larger
+     *                     than 2 GB
+     */
+    public ReplayClient(final String path) throws IOException {
+        this.file = new RandomAccessFile(path, "r");
+        try {
+            FileChannel channel = this.file.getChannel();
+            if (channel.size() > Integer.MAX_VALUE) {
+                throw new IOException("Recording is larger than 2 GB");
+            }
+            this.buffer = channel.map(
+                    FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            this.size = this.load();
+            for (Slots slots : this.index.values()) {
+                slots.seal();
+            }
+        } catch (IOException ex) {
+            this.file.close();
+            throw ex;
+        }
+    }
+
+    /**
+     * Set the multiplier of the recorded response times.
+     *
+     * @param factor 1 for the original timing, 0 to respond at once
+     */
+    public void setTimeScale(final double factor) {
+        if (factor < 0) {
+            throw new IllegalArgumentException(
+                    "Time scale may not be negative.");
+        }
+        this.scale = factor;
+    }
+
+    /**
+     * Get the number of exchanges in the recording.
+     *
+     * @return number of exchanges
+     */
+    public int getExchangeCount() {
+        return this.size;
+    }
+
+    /**
+     * Get the number of exchanges served.
+     *
+     * @return number of exchanges
+     */
+    public long getServedCount() {
+        return this.served.get();
+    }
+
+    @Override
+    public void close() throws IOException {
+        this.file.close();
+    }
+
+    @Override
+    public void addResponseInterceptor(final HttpResponseInterceptor hri) {
+        this.responseInterceptors.add(hri);
+    }
+
+    @Override
+    public void addRequestInterceptor(final HttpRequestInterceptor hri) {
+        this.requestInterceptors.add(hri);
+    }
+
+    @Override
+    public HttpParams getParams() {
+        return this.params;
+    }
+
+    @Override
+    public ClientConnectionManager getConnectionManager() {
+        return null;
+    }
+
+    @Override
+    public HttpResponse execute(final HttpUriRequest request)
+            throws IOException {
+        return this.serve(request, null);
+    }
+
+    @Override
+    public HttpResponse execute(
+            final HttpUriRequest request, final HttpContext context)
+            throws IOException {
+        return this.serve(request, context);
+    }
+
+    @Override
+    public HttpResponse execute(
+            final HttpHost target, final HttpRequest request)
+            throws IOException {
+        return this.serve(request, null);
+    }
+
+    @Override
+    public HttpResponse execute(
+            final HttpHost target,
+            final HttpRequest request,
+            final HttpContext context) throws IOException {
+        return this.serve(request, context);
+    }
+
+    @Override
+    public <T> T execute(
+            final HttpUriRequest request,
+            final ResponseHandler<? extends T> handler) throws IOException {
+        return handle(this.serve(request, null), handler);
+    }
+
+    @Override
+    public <T> T execute(
+            final HttpUriRequest request,
+            final ResponseHandler<? extends T> handler,
+            final HttpContext context) throws IOException {
+        return handle(this.serve(request, context), handler);
+    }
+
+    @Override
+    public <T> T execute(
+            final HttpHost target,
+            final HttpRequest request,
+            final ResponseHandler<? extends T> handler) throws IOException {
+        return handle(this.serve(request, null), handler);
+    }
+
+    @Override
+    public <T> T execute(
+            final HttpHost target,
+            final HttpRequest request,
+            final ResponseHandler<? extends T> handler,
+            final HttpContext context) throws IOException {
+        return handle(this.serve(request, context), handler);
+    }
+
+    /**
+     * Index the exchanges of the recording.
+     *
+     * @return number of exchanges
+     * @throws IOException if an exchange has no method and URI
+     */
+    private int load() throws IOException {
+        ByteBuffer view = this.buffer.duplicate();
+        int count = 0;
+        int begin = 0;
+        int limit = view.limit();
+        for (int i = 0; i <= limit; i++) {
+            if (i < limit && view.get(i) != '\n') {
+                continue;
+            }
+            if (i > begin) {
+                Head head = this.scan(begin, i - begin);
+                String key = key(head.method, URI.create(head.uri));
+                Slots slots = this.index.get(key);
+                if (slots == null) {
+                    slots = new Slots();
+                    this.index.put(key, slots);
+                }
+                slots.add(begin, i - begin);
+                count++;
+            }
+            begin = i + 1;
+        }
+        return count;
+    }
+
+    /**
+     * Read the method and URI of the exchange at a position of the
+     * recording.
+     *
+     * @param offset position of the exchange
+     * @param length length of the exchange in bytes
+     * @return the method and URI
+     * @throws IOException if the exchange has no method and URI
+     */
+    private Head scan(final int offset, final int length) throws IOException {
+        Head head = new Head();
+        try {
+            new JSONParser().parse(this.reader(offset, length), head);
+        } catch (ParseException ex) {
+            throw new IOException(
+                    "Invalid exchange at byte " + offset + ": " + ex);
+        }
+        if (!head.object || head.method == null || head.uri == null) {
+            throw new IOException("Invalid exchange at byte " + offset);
+        }
+        return head;
+    }
+
+    /**
+     * Decode the exchange at a position of the recording.
+     *
+     * @param offset position of the exchange
+     * @param length length of the exchange in bytes
+     * @return the exchange
+     * @throws IOException if the exchange is not valid JSON
+     */
+    private Map<?, ?> decode(final int offset, final int length)
+            throws IOException {
+        Object json;
+        try {
+            json = new JSONParser().parse(this.reader(offset, length));
+        } catch (ParseException ex) {
+            throw new IOException(
+                    "Invalid exchange at byte " + offset + ": " + ex);
+        }
+        if (!(json instanceof Map)) {
+            throw new IOException("Invalid exchange at byte " + offset);
+        }
+        return (Map<?, ?>) json;
+    }
+
+    /**
+     * Read the exchange at a position of the recording as it is needed.
+     *
+     * @param offset position of the exchange
+     * @param length length of the exchange in bytes
+     * @return reader of the exchange
+     */
+    private Reader reader(final int offset, final int length) {
+        final ByteBuffer line = this.buffer.duplicate();
+        line.position(offset);
+        line.limit(offset + length);
+        return new InputStreamReader(new InputStream() {
+            @Override
+            public int read() {
+                if (!line.hasRemaining()) {
+                    return -1;
+                }
+                return line.get() & 0xff;
+            }
+
+            @Override
+            public int read(final byte[] into, final int off, final int len) {
+                if (len == 0) {
+                    return 0;
+                }
+                if (!line.hasRemaining()) {
+                    return -1;
+                }
+                int count = Math.min(len, line.remaining());
+                line.get(into, off, count);
+                return count;
+            }
+        }, UTF8);
+    }
+
+    /**
+     * Serve the next recorded response to a request.
+     *
+     * @param request the request
+     * @param context HTTP context, may be null
+     * @return the recorded response
+     * @throws IOException if nothing was recorded for the request
+     */
+    private HttpResponse serve(
+            final HttpRequest request, final HttpContext context)
+            throws IOException {
+        HttpContext ctex = context;
+        if (ctex == null) {
+            ctex = new BasicHttpContext();
+        }
+        try {
+            for (HttpRequestInterceptor hri : this.requestInterceptors) {
+                hri.process(request, ctex);
+            }
+        } catch (HttpException ex) {
+            throw new ClientProtocolException(ex);
+        }
+
+        String method = request.getRequestLine().getMethod();
+        String key = key(method, URI.create(request.getRequestLine().getUri()));
+        Slots slots = this.index.get(key);
+        if (slots == null) {
+            throw new ClientProtocolException(
+                    "No exchange recorded for " + key);
+        }
+        Exchange exchange = slots.next();
+
+        HttpResponse response = new BasicHttpResponse(
+                HttpVersion.HTTP_1_1, exchange.status, exchange.reason);
+        for (String[] header : exchange.headers) {
+            response.addHeader(header[0], header[1]);
+        }
+        if (exchange.body != null) {
+            ByteArrayEntity entity = new ByteArrayEntity(exchange.body);
+            entity.setContentType(response.getFirstHeader("Content-Type"));
+            response.setEntity(entity);
+        }
+
+        this.delay(exchange.nanos);
+
+        try {
+            for (HttpResponseInterceptor hri : this.responseInterceptors) {
+                hri.process(response, ctex);
+            }
+        } catch (HttpException ex) {
+            throw new ClientProtocolException(ex);
+        }
+        this.served.incrementAndGet();
+        return response;
+    }
+
+    /**
+     * Wait for the scaled time a response took.
+     *
+     * @param nanos recorded time in nanoseconds
+     * @throws InterruptedIOException if interrupted while waiting
+     */
+    private void delay(final long nanos) throws InterruptedIOException {
+        long wait = (long) (nanos * this.scale);
+        if (wait <= 0) {
+            return;
+        }
+        try {
+            TimeUnit.NANOSECONDS.sleep(wait);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while replaying");
+        }
+    }
+
+    /**
+     * Hand a response to a handler and release its body.
+     *
+     * @param <T>      result of the handler
+     * @param response the response
+     * @param handler  handler of the response
+     * @return result of the handler
+     * @throws IOException if the handler failed
+     */
+    private static <T> T handle(
+            final HttpResponse response,
+            final ResponseHandler<? extends T> handler) throws IOException {
+        try {
+            return handler.handleResponse(response);
+        } finally {
+            EntityUtils.consume(response.getEntity());
+        }
+    }
+
+    /**
+     * Get the index key of a request.
+     *
+     * @param method request method
+     * @param uri    request URI
+     * @return method and path, including any query
+     */
+    private static String key(final String method, final URI uri) {
+        String path = uri.getRawPath();
+        if (uri.getRawQuery() != null) {
+            path = path + "?" + uri.getRawQuery();
+        }
+        return method + " " + path;
+    }
+
+    /**
+     * Reads the method and URI of an exchange, stopping once both are seen.
+     */
+    private static final class Head implements ContentHandler {
+
+        /**
+         * Number of containers open.
+         */
+        private int depth;
+
+        /**
+         * Key of the innermost object entry.
+         */
+        private String key;
+
+        /**
+         * Whether the exchange is an object.
+         */
+        private boolean object;
+
+        /**
+         * Request method, null until seen.
+         */
+        private String method;
+
+        /**
+         * Request URI, null until seen.
+         */
+        private String uri;
+
+        @Override
+        public void startJSON() {
+        }
+
+        @Override
+        public void endJSON() {
+        }
+
+        @Override
+        public boolean startObject() {
+            if (this.depth == 0) {
+                this.object = true;
+            }
+            this.depth++;
+            return true;
+        }
+
+        @Override
+        public boolean endObject() {
+            this.depth--;
+            return true;
+        }
+
+        @Override
+        public boolean startObjectEntry(final String name) {
+            if (this.depth == 1) {
+                this.key = name;
+            }
+            return true;
+        }
+
+        @Override
+        public boolean endObjectEntry() {
+            return this.method == null || this.uri == null;
+        }
+
+        @Override
+        public boolean startArray() {
+            this.depth++;
+            return true;
+        }
+
+        @Override
+        public boolean endArray() {
+            this.depth--;
+            return true;
+        }
+
+        @Override
+        public boolean primitive(final Object value) {
+            if (this.depth != 1 || !(value instanceof String)) {
+                return true;
+            }
+            if (RecordingClient.METHOD.equals(this.key)) {
+                this.method = (String) value;
+            } else if (RecordingClient.REQUEST_URI.equals(this.key)) {
+                this.uri = (String) value;
+            }
+            return true;
+        }
+    }
+
+    /**
+     * A recorded response, decoded.
+     */
+    private static final class Exchange {
+
+        /**
+         * HTTP status code.
+         */
+        private final int status;
+
+        /**
+         * Reason phrase.
+         */
+        private final String reason;
+
+        /**
+         * Header names and values.
+         */
+        private final List<String[]> headers;
+
+        /**
+         * Body, null if there was none.
+         */
+        private final byte[] body;
+
+        /**
+         * Time the response took in nanoseconds.
+         */
+        private final long nanos;
+
+        /**
+         * Constructor.
+         *
+         * @param json the recorded exchange
+         */
+        Exchange(final Map<?, ?> json) {
+            this.status =
+                    ((Number) json.get(RecordingClient.STATUS)).intValue();
+            this.reason = (String) json.get(RecordingClient.REASON);
+            this.headers = new ArrayList<String[]>();
+            for (Object header : (List<?>) json.get(RecordingClient.HEADERS)) {
+                List<?> pair = (List<?>) header;
+                this.headers.add(new String[] {
+                        (String) pair.get(0), (String) pair.get(1)});
+            }
+            String text = (String) json.get(RecordingClient.BODY);
+            if (text == null) {
+                this.body = null;
+            } else {
+                this.body = text.getBytes(UTF8);
+            }
+            this.nanos = ((Number) json.get(RecordingClient.NANOS)).longValue();
+        }
+    }
+
+    /**
+     * Exchanges recorded for a method and path.
+     */
+    private final class Slots {
+
+        /**
+         * Positions of the exchanges.
+         */
+        private final List<int[]> positions = new ArrayList<int[]>();
+
+        /**
+         * Exchanges decoded so far, by turn.
+         */
+        private AtomicReferenceArray<Exchange> decoded;
+
+        /**
+         * Number of exchanges served.
+         */
+        private final AtomicLong turn = new AtomicLong();
+
+        /**
+         * Add an exchange.
+         *
+         * @param offset position of the exchange
+         * @param length length of the exchange in bytes
+         */
+        void add(final int offset, final int length) {
+            this.positions.add(new int[] {offset, length});
+        }
+
+        /**
+         * Make room for the decoded exchanges, once all were added.
+         */
+        void seal() {
+            this.decoded =
+                    new AtomicReferenceArray<Exchange>(this.positions.size());
+        }
+
+        /**
+         * Get the exchange whose turn it is, decoding it on its first turn.
+         *
+         * @return the exchange
+         * @throws IOException if the exchange is not valid JSON
+         */
+        Exchange next() throws IOException {
+            int slot = (int) (
+                    this.turn.getAndIncrement() % this.positions.size());
+            Exchange exchange = this.decoded.get(slot);
+            if (exchange == null) {
+                int[] position = this.positions.get(slot);
+                exchange = new Exchange(decode(position[0], position[1]));
+                this.decoded.set(slot, exchange);
+            }
+            return exchange;
+        }
+    }
+}
@@ -0,0 +1,794 @@
+/*
+ * Copyright 2015 Klarna AB
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.klarna.checkout.testing;
+
+import com.klarna.checkout.Digest;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import org.json.simple.JSONValue;
+import org.json.simple.parser.JSONParser;
+import org.json.simple.parser.ParseException;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.security.NoSuchAlgorithmException;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * In-process stand-in for the Klarna Checkout API.
+ *
+ * Serves the order and recurring endpoints from memory over loopback, so
+ * integrations can be load tested offline with the real connector:
+ *
+ * <ul>
+ * <li>POST /checkout/orders creates an order, 201 with its Location</li>
+ * <li>GET /checkout/orders/{id} fetches it, 200 or 304 when unchanged</li>
+ * <li>POST /checkout/orders/{id} updates it, 200 with the order, or 303
+ * to it when updates are redirected</li>
+ * <li>GET /checkout/recurring/{token} fetches a recurring status</li>
+ * <li>POST /checkout/recurring/{token}/orders places a recurring order</li>
+ * </ul>
+ *
+ * Every request must be signed with the shared secret of the server and
+ * payloads must carry the content type of the resource, like the real API
+ * demands. Errors come back as Klarna error objects.
+ *
+ * Nagle's algorithm can stall responses by tens of milliseconds; load tests
+ * measuring latency should start the JVM with
+ * {@code -Dsun.net.httpserver.nodelay=true} to turn it off.
+ */
+public class StandInServer {
+
+    /**
+     * Content type of orders.
+     */
+    public static final String ORDER_TYPE =
+            "application/vnd.klarna.checkout.aggregated-order-v2+json";
+
+    /**
+     * Content type of recurring statuses.
+     */
+    public static final String STATUS_TYPE =
+            "application/vnd.klarna.checkout.recurring-status-v1+json";
+
+    /**
+     * Content type of recurring orders.
+     */
+    public static final String RECURRING_TYPE =
+            "application/vnd.klarna.checkout.recurring-order-v1+json";
+
+    /**
+     * Content type of accepted recurring orders.
+     */
+    public static final String ACCEPTED_TYPE =
+            "application/vnd.klarna.checkout.recurring-order-accepted-v1+json";
+
+    /**
+     * Default number of threads serving requests.
+     */
+    public static final int DEFAULT_THREADS = 16;
+
+    /**
+     * Path of the orders.
+     */
+    private static final String ORDERS = "/checkout/orders";
+
+    /**
+     * Path of the recurring tokens.
+     */
+    private static final String RECURRING = "/checkout/recurring/";
+
+    /**
+     * Shared secret requests must be signed with.
+     */
+    private final String secret;
+
+    /**
+     * Number of threads serving requests.
+     */
+    private final int threads;
+
+    /**
+     * Digest per serving thread.
+     */
+    private final ThreadLocal<Digest> digests = new ThreadLocal<Digest>();
+
+    /**
+     * Orders by id.
+     */
+    private final Map<String, Stored> orders =
+            new ConcurrentHashMap<String, Stored>();
+
+    /**
+     * Recurring tokens in use.
+     */
+    private final Map<String, Boolean> tokens =
+            new ConcurrentHashMap<String, Boolean>();
+
+    /**
+     * Source of order ids and recurring references.
+     */
+    private final AtomicLong sequence = new AtomicLong();
+
+    /**
+     * Number of requests served.
+     */
+    private final AtomicLong requests = new AtomicLong();
+
+    /**
+     * Number of requests refused for a bad signature.
+     */
+    private final AtomicLong rejected = new AtomicLong();
+
+    /**
+     * Whether updates are answered with a redirect to the order.
+     */
+    private volatile boolean redirectUpdates;
+
+    /**
+     * Running server, null while stopped.
+     */
+    private HttpServer server;
+
+    /**
+     * Threads of the running server.
+     */
+    private ExecutorService executor;
+
+    /**
+     * Constructor.
+     *
+     * @param sharedSecret secret requests must be signed with
+     */
+    public StandInServer(final String sharedSecret) {
+        this(sharedSecret, DEFAULT_THREADS);
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param sharedSecret secret requests must be signed with
+     * @param workers      number of threads serving requests
+     */
+    public StandInServer(final String sharedSecret, final int workers) {
+        if (sharedSecret == null) {
+            throw new IllegalArgumentException("Secret may not be null.");
+        }
+        if (workers <= 0) {
+            throw new IllegalArgumentException(
+                    "Thread count must be positive.");
+        }
+
+        this.secret = sharedSecret;
+        this.threads = workers;
+    }
+
+    /**
+     * Start serving on a free loopback port.
+     *
+     * @throws IOException if the server could not be started
+     */
+    public void start() throws IOException {
+        this.start(0);
+    }
+
+    /**
+     * Start serving on a loopback port.
+     *
+     * Nagle's algorithm is turned off for the HTTP servers of the JVM unless
+     * configured otherwise, as it delays every response with a body by the
+     * delayed acknowledgement time of the client.
+     *
+     * @param port port to listen on, 0 for a free one
+     * @throws IOException if the server could not be started
+     */
+    public synchronized void start(final int port) throws IOException {
+        if (this.server != null) {
+            throw new IllegalStateException("Already started.");
+        }
+        HttpServer http = HttpServer.create(
+                new InetSocketAddress("127.0.0.1", port), 1024);
+        http.createContext("/checkout/", new Router());
+        this.executor = Executors.newFixedThreadPool(this.threads);
+        http.setExecutor(this.executor);
+        http.start();
+        this.server = http;
+    }
+
+    /**
+     * Stop serving.
+     */
+    public synchronized void stop() {
+        if (this.server == null) {
+            return;
+        }
+        this.server.stop(0);
+        this.executor.shutdownNow();
+        this.server = null;
+        this.executor = null;
+    }
+
+    /**
+     * Get the base URI to give the connector.
+     *
+     * @return base URI of the running server
+     */
+    public synchronized String getBaseUri() {
+        if (this.server == null) {
+            throw new IllegalStateException("Not started.");
+        }
+        return "http://127.0.0.1:" + this.server.getAddress().getPort();
+    }
+
+    /**
+     * Answer updates with a 303 redirect to the order instead of the order.
+     *
+     * @param enabled true to redirect updates
+     */
+    public void setRedirectUpdates(final boolean enabled) {
+        this.redirectUpdates = enabled;
+    }
+
+    /**
+     * Complete an order as if the customer finished the checkout.
+     *
+     * @param id order id
+     * @return the recurring token of the order, or null if not recurring
+     */
+    public String complete(final String id) {
+        Stored order = this.orders.get(id);
+        if (order == null) {
+            throw new IllegalArgumentException("Unknown order " + id);
+        }
+
+        synchronized (order) {
+            order.data.put("status", "checkout_complete");
+            order.data.put("completed_at", now());
+            String token = null;
+            if (Boolean.TRUE.equals(order.data.get("recurring"))) {
+                token = "RT" + this.sequence.incrementAndGet();
+                order.data.put("recurring_token", token);
+                this.tokens.put(token, Boolean.TRUE);
+            }
+            order.touch();
+            return token;
+        }
+    }
+
+    /**
+     * Make a recurring token usable.
+     *
+     * @param token recurring token
+     */
+    public void addRecurringToken(final String token) {
+        this.tokens.put(token, Boolean.TRUE);
+    }
+
+    /**
+     * Get a copy of an order.
+     *
+     * @param id order id
+     * @return the order data, or null if unknown
+     */
+    public Map<String, Object> getOrder(final String id) {
+        Stored order = this.orders.get(id);
+        if (order == null) {
+            return null;
+        }
+        synchronized (order) {
+            return new LinkedHashMap<String, Object>(order.data);
+        }
+    }
+
+    /**
+     * Get the number of orders created.
+     *
+     * @return number of orders
+     */
+    public int getOrderCount() {
+        return this.orders.size();
+    }
+
+    /**
+     * Get the number of requests served.
+     *
+     * @return number of requests
+     */
+    public long getRequestCount() {
+        return this.requests.get();
+    }
+
+    /**
+     * Get the number of requests refused for a bad signature.
+     *
+     * @return number of refused requests
+     */
+    public long getRejectedCount() {
+        return this.rejected.get();
+    }
+
+    /**
+     * Get the current time formatted like the API does.
+     *
+     * @return the time
+     */
+    private static String now() {
+        return new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ssZ")
+                .format(new Date());
+    }
+
+    /**
+     * Check the signature of a request.
+     *
+     * @param exchange the request
+     * @param body     payload of the request
+     * @return true if signed with the shared secret
+     * @throws IOException if the digest could not be made
+     */
+    private boolean authorized(final HttpExchange exchange, final byte[] body)
+            throws IOException {
+        String header = exchange.getRequestHeaders().getFirst("Authorization");
+        if (header == null || !header.startsWith("Klarna ")) {
+            return false;
+        }
+
+        Digest digest = this.digests.get();
+        if (digest == null) {
+            try {
+                digest = new Digest(this.secret);
+            } catch (NoSuchAlgorithmException ex) {
+                throw new IOException(ex);
+            }
+            this.digests.set(digest);
+        }
+
+        String expected = digest.create(new ByteArrayInputStream(body));
+        return header.substring("Klarna ".length()).equals(expected);
+    }
+
+    /**
+     * An order kept in memory.
+     */
+    private static final class Stored {
+
+        /**
+         * Order data, guarded by the order.
+         */
+        private final Map<String, Object> data;
+
+        /**
+         * Version of the data, guarded by the order.
+         */
+        private long version;
+
+        /**
+         * Constructor.
+         *
+         * @param order order data
+         */
+        Stored(final Map<String, Object> order) {
+            this.data = order;
+        }
+
+        /**
+         * Record a change to the order.
+         */
+        void touch() {
+            this.version++;
+            this.data.put("last_modified_at", now());
+        }
+
+        /**
+         * Get the entity tag of the current version.
+         *
+         * @return the entity tag
+         */
+        String etag() {
+            return "\"" + this.data.get("id") + "-" + this.version + "\"";
+        }
+    }
+
+    /**
+     * Refusal of a request, answered with a Klarna error object.
+     */
+    private static final class Refusal extends Exception {
+
+        /**
+         * Serialization version.
+         */
+        private static final long serialVersionUID = 1L;
+
+        /**
+         * HTTP status code.
+         */
+        private final int status;
+
+        /**
+         * Constructor.
+         *
+         * @param code    HTTP status code
+         * @param message internal message
+         */
+        Refusal(final int code, final String message) {
+            super(message);
+            this.status = code;
+        }
+    }
+
+    /**
+     * Routes requests to the resources.
+     */
+    private final class Router implements HttpHandler {
+
+        @Override
+        public void handle(final HttpExchange exchange) throws IOException {
+            requests.incrementAndGet();
+            try {
+                byte[] body = read(exchange.getRequestBody());
+                if (!authorized(exchange, body)) {
+                    rejected.incrementAndGet();
+                    throw new Refusal(401, "Bad shared secret");
+                }
+                this.route(exchange, body);
+            } catch (Refusal ex) {
+                this.error(exchange, ex.status, ex.getMessage());
+            } catch (RuntimeException ex) {
+                Logger.getLogger(StandInServer.class.getName()).log(
+                        Level.SEVERE, "Failed to serve request", ex);
+                this.error(exchange, 500, String.valueOf(ex));
+            } finally {
+                exchange.close();
+            }
+        }
+
+        /**
+         * Serve a request.
+         *
+         * @param exchange the request
+         * @param body     payload of the request
+         * @throws IOException if the response could not be sent
+         * @throws Refusal     if the request is refused
+         */
+        private void route(final HttpExchange exchange, final byte[] body)
+                throws IOException, Refusal {
+            String path = exchange.getRequestURI().getPath();
+            boolean post = exchange.getRequestMethod().equals("POST");
+            if (!post && !exchange.getRequestMethod().equals("GET")) {
+                throw new Refusal(405, "Method not allowed");
+            }
+
+            if (path.equals(ORDERS) && post) {
+                this.create(exchange, body);
+            } else if (path.startsWith(ORDERS + "/")) {
+                String id = path.substring(ORDERS.length() + 1);
+                if (post) {
+                    this.update(exchange, id, body);
+                } else {
+                    this.fetch(exchange, id);
+                }
+            } else if (path.startsWith(RECURRING) && path.endsWith("/orders")
+                    && post) {
+                String token = path.substring(
+                        RECURRING.length(), path.length() - "/orders".length());
+                this.recur(exchange, token, body);
+            } else if (path.startsWith(RECURRING) && !post) {
+                this.status(exchange, path.substring(RECURRING.length()));
+            } else {
+                throw new Refusal(404, "Not found");
+            }
+        }
+
+        /**
+         * Create an order.
+         *
+         * @param exchange the request
+         * @param body     order data
+         * @throws IOException if the response could not be sent
+         * @throws Refusal     if the request is refused
+         */
+        private void create(final HttpExchange exchange, final byte[] body)
+                throws IOException, Refusal {
+            Map<String, Object> data = this.parse(exchange, body, ORDER_TYPE);
+
+            String id = "SI" + sequence.incrementAndGet();
+            data.put("id", id);
+            data.put("status", "checkout_incomplete");
+            data.put("started_at", now());
+            Map<String, Object> gui = new LinkedHashMap<String, Object>();
+            gui.put("layout", "desktop");
+            gui.put("snippet", "<div id=\"klarna-checkout-container\""
+                    + " data-order=\"" + id + "\"></div>");
+            data.put("gui", gui);
+
+            Stored order = new Stored(data);
+            order.touch();
+            orders.put(id, order);
+
+            exchange.getResponseHeaders().set(
+                    "Location", getBaseUri() + ORDERS + "/" + id);
+            exchange.sendResponseHeaders(201, -1);
+        }
+
+        /**
+         * Fetch an order.
+         *
+         * @param exchange the request
+         * @param id       order id
+         * @throws IOException if the response could not be sent
+         * @throws Refusal     if the request is refused
+         */
+        private void fetch(final HttpExchange exchange, final String id)
+                throws IOException, Refusal {
+            Stored order = this.find(id);
+            String tag;
+            byte[] json;
+            synchronized (order) {
+                tag = order.etag();
+                json = utf8(JSONValue.toJSONString(order.data));
+            }
+
+            exchange.getResponseHeaders().set("ETag", tag);
+            if (tag.equals(
+                    exchange.getRequestHeaders().getFirst("If-None-Match"))) {
+                exchange.sendResponseHeaders(304, -1);
+                return;
+            }
+            this.send(exchange, 200, ORDER_TYPE, json);
+        }
+
+        /**
+         * Update an order.
+         *
+         * @param exchange the request
+         * @param id       order id
+         * @param body     changed order data
+         * @throws IOException if the response could not be sent
+         * @throws Refusal     if the request is refused
+         */
+        private void update(
+                final HttpExchange exchange, final String id, final byte[] body)
+                throws IOException, Refusal {
+            Stored order = this.find(id);
+            Map<String, Object> changes =
+                    this.parse(exchange, body, ORDER_TYPE);
+            changes.remove("id");
+
+            byte[] json;
+            synchronized (order) {
+                order.data.putAll(changes);
+                order.touch();
+                json = utf8(JSONValue.toJSONString(order.data));
+            }
+
+            if (redirectUpdates) {
+                exchange.getResponseHeaders().set(
+                        "Location", getBaseUri() + ORDERS + "/" + id);
+                exchange.sendResponseHeaders(303, -1);
+                return;
+            }
+            this.send(exchange, 200, ORDER_TYPE, json);
+        }
+
+        /**
+         * Fetch a recurring status.
+         *
+         * @param exchange the request
+         * @param token    recurring token
+         * @throws IOException if the response could not be sent
+         * @throws Refusal     if the request is refused
+         */
+        private void status(final HttpExchange exchange, final String token)
+                throws IOException, Refusal {
+            if (!tokens.containsKey(token)) {
+                throw new Refusal(404, "Unknown recurring token");
+            }
+
+            Map<String, Object> method = new LinkedHashMap<String, Object>();
+            method.put("type", "invoice");
+            Map<String, Object> status = new LinkedHashMap<String, Object>();
+            status.put("payment_method", method);
+            this.send(exchange, 200, STATUS_TYPE,
+                    utf8(JSONValue.toJSONString(status)));
+        }
+
+        /**
+         * Place a recurring order.
+         *
+         * @param exchange the request
+         * @param token    recurring token
+         * @param body     recurring order data
+         * @throws IOException if the response could not be sent
+         * @throws Refusal     if the request is refused
+         */
+        private void recur(
+                final HttpExchange exchange,
+                final String token,
+                final byte[] body) throws IOException, Refusal {
+            if (!tokens.containsKey(token)) {
+                throw new Refusal(404, "Unknown recurring token");
+            }
+            this.parse(exchange, body, RECURRING_TYPE);
+
+            Map<String, Object> accepted =
+                    new LinkedHashMap<String, Object>();
+            accepted.put("reservation", "R" + sequence.incrementAndGet());
+            this.send(exchange, 200, ACCEPTED_TYPE,
+                    utf8(JSONValue.toJSONString(accepted)));
+        }
+
+        /**
+         * Find an order.
+         *
+         * @param id order id
+         * @return the order
+         * @throws Refusal if there is no such order
+         */
+        private Stored find(final String id) throws Refusal {
+            Stored order = orders.get(id);
+            if (order == null) {
+                throw new Refusal(404, "Unknown order " + id);
+            }
+            return order;
+        }
+
+        /**
+         * Parse a JSON object payload of a content type.
+         *
+         * @param exchange the request
+         * @param body     payload of the request
+         * @param type     content type the payload must have
+         * @return the parsed payload
+         * @throws Refusal if the payload is not acceptable
+         */
+        private Map<String, Object> parse(
+                final HttpExchange exchange,
+                final byte[] body,
+                final String type) throws Refusal {
+            String actual = exchange.getRequestHeaders().getFirst(
+                    "Content-Type");
+            if (!type.equals(actual)) {
+                throw new Refusal(415, "Expected content type " + type);
+            }
+
+            try {
+                Object json = new JSONParser().parse(new String(body, "UTF-8"));
+                if (json instanceof Map) {
+                    Map<String, Object> data =
+                            new LinkedHashMap<String, Object>();
+                    Map<?, ?> object = (Map<?, ?>) json;
+                    for (Map.Entry<?, ?> entry : object.entrySet()) {
+                        data.put((String) entry.getKey(), entry.getValue());
+                    }
+                    return data;
+                }
+            } catch (ParseException ex) {
+                throw new Refusal(400, "Invalid JSON: " + ex);
+            } catch (IOException ex) {
+                throw new Refusal(400, "Invalid payload: " + ex);
+            }
+            throw new Refusal(400, "Expected a JSON object");
+        }
+
+        /**
+         * Send a response with a payload.
+         *
+         * @param exchange the request
+         * @param status   HTTP status code
+         * @param type     content type of the payload
+         * @param json     payload
+         * @throws IOException if the response could not be sent
+         */
+        private void send(
+                final HttpExchange exchange,
+                final int status,
+                final String type,
+                final byte[] json) throws IOException {
+            exchange.getResponseHeaders().set("Content-Type", type);
+            exchange.sendResponseHeaders(status, json.length);
+            exchange.getResponseBody().write(json);
+        }
+
+        /**
+         * Send a Klarna error object.
+         *
+         * @param exchange the request
+         * @param status   HTTP status code
+         * @param message  internal message
+         */
+        private void error(
+                final HttpExchange exchange,
+                final int status,
+                final String message) {
+            Map<String, Object> error = new LinkedHashMap<String, Object>();
+            error.put("http_status_code", status);
+            error.put("http_status_message", reason(status));
+            error.put("internal_message", message);
+            try {
+                this.send(exchange, status, "application/json",
+                        utf8(JSONValue.toJSONString(error)));
+            } catch (IOException ex) {
+                Logger.getLogger(StandInServer.class.getName()).log(
+                        Level.WARNING, "Failed to send error", ex);
+            }
+        }
+    }
+
+    /**
+     * Get the reason phrase of an error status.
+     *
+     * @param status HTTP status code
+     * @return the reason phrase
+     */
+    private static String reason(final int status) {
+        switch (status) {
+            case 400:
+                return "Bad Request";
+            case 401:
+                return "Unauthorized";
+            case 404:
+                return "Not Found";
+            case 405:
+                return "Method Not Allowed";
+            case 415:
+                return "Unsupported Media Type";
+            default:
+                return "Internal Server Error";
+        }
+    }
+
+    /**
+     * Read a request body to the end.
+     *
+     * @param in request body
+     * @return the bytes read
+     * @throws IOException if reading fails
+     */
+    private static byte[] read(final InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[8192];
+        int count = in.read(buffer);
+        while (count >= 0) {
+            out.write(buffer, 0, count);
+            count = in.read(buffer);
+        }
+        return out.toByteArray();
+    }
+
+    /**
+     * Encode a string as UTF-8.
+     *
+     * @param text string to encode
+     * @return the bytes
+     * @throws IOException if UTF-8 is not supported
+     */
+    private static byte[] utf8(final String text) throws IOException {
+        return text.getBytes("UTF-8");
+    }
+}
@@ -0,0 +1,268 @@
+/*
+ * Copyright 2015 Klarna AB
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.klarna.checkout.testing;
+
+import com.klarna.checkout.BasicConnector;
+import com.klarna.checkout.Digest;
+import com.klarna.checkout.ErrorResponseException;
+import com.klarna.checkout.IHttpClient;
+import com.klarna.checkout.Order;
+import com.klarna.checkout.RecurringStatus;
+import com.klarna.checkout.testing.FaultInjectingClient.Fault;
+import com.klarna.checkout.testing.FaultInjectingClient.Faults;
+import org.apache.http.ConnectionClosedException;
+import org.apache.http.NoHttpResponseException;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Tests for the FaultInjectingClient class.
+ */
+public class FaultInjectingClientTest {
+
+    /**
+     * Shared secret of the server.
+     */
+    private static final String SECRET = "sharedSecret";
+
+    /**
+     * Server behind the faults.
+     */
+    private StandInServer server;
+
+    /**
+     * Connector sending through the faults.
+     */
+    private BasicConnector connector;
+
+    /**
+     * Client under test.
+     */
+    private FaultInjectingClient faulty;
+
+    /**
+     * Start the server and set up the connector.
+     *
+     * @throws Exception but not really
+     */
+    @Before
+    public void setUp() throws Exception {
+        this.server = new StandInServer(SECRET, 2);
+        this.server.start();
+        this.connector = new BasicConnector(new Digest(SECRET)) {
+            @Override
+            protected IHttpClient createHttpClient() {
+                faulty = new FaultInjectingClient(
+                        super.createHttpClient(), 42);
+                return faulty;
+            }
+        };
+        this.connector.setBaseUri(this.server.getBaseUri());
+        this.connector.getClient();
+    }
+
+    /**
+     * Stop the server.
+     */
+    @After
+    public void tearDown() {
+        this.server.stop();
+    }
+
+    /**
+     * Create an order without faults.
+     *
+     * @return the order
+     * @throws IOException if the create failed
+     */
+    private Order createOrder() throws IOException {
+        HashMap<String, Object> data = new HashMap<String, Object>();
+        data.put("purchase_country", "SE");
+        Order order = new Order(this.connector);
+        order.create(data);
+        return order;
+    }
+
+    /**
+     * Test that an error status is answered without reaching the server.
+     *
+     * @throws Exception but not really
+     */
+    @Test
+    public void testStatus() throws Exception {
+        this.faulty.getFaults("/checkout/orders").setStatusRate(503, 1);
+
+        try {
+            this.createOrder();
+            fail("Expected an error response");
+        } catch (ErrorResponseException ex) {
+            assertEquals(503, ex.getStatusCode());
+            assertEquals("Injected fault",
+                    ex.getJson().get("internal_message"));
+        }
+        assertEquals(0, this.server.getRequestCount());
+        assertEquals(1, this.faulty.getCount(Fault.STATUS));
+    }
+
+    /**
+     * Test that a dropped connection fails after the server handled it.
+     *
+     * @throws Exception but not really
+     */
+    @Test
+    public void testDrop() throws Exception {
+        this.faulty.getFaults("/").setDropRate(1);
+
+        try {
+            this.createOrder();
+            fail("Expected the connection to be dropped");
+        } catch (NoHttpResponseException ex) {
+            assertEquals(1, this.server.getOrderCount());
+        }
+        assertEquals(1, this.faulty.getCount(Fault.DROP));
+    }
+
+    /**
+     * Test that a truncated body fails like a closed connection.
+     *
+     * @throws Exception but not really
+     */
+    @Test
+    public void testTruncate() throws Exception {
+        Order order = this.createOrder();
+        this.faulty.getFaults("/checkout/orders").setTruncateRate(1);
+
+        try {
+            order.fetch();
+            fail("Expected the body to be cut off");
+        } catch (ConnectionClosedException ex) {
+            assertNull(order.get("id"));
+        }
+        assertEquals(1, this.faulty.getCount(Fault.TRUNCATE));
+    }
+
+    /**
+     * Test that a body that is not JSON fails to parse.
+     *
+     * @throws Exception but not really
+     */
+    @Test
+    public void testInvalidJson() throws Exception {
+        Order order = this.createOrder();
+        this.faulty.getFaults("/checkout/orders").setInvalidJsonRate(1);
+
+        try {
+            order.fetch();
+            fail("Expected the body not to parse");
+        } catch (IOException ex) {
+            assertFalse(ex instanceof ErrorResponseException);
+        }
+        assertEquals(1, this.faulty.getCount(Fault.INVALID_JSON));
+    }
+
+    /**
+     * Test that the faults of the longest matching prefix apply.
+     *
+     * @throws Exception but not really
+     */
+    @Test
+    public void testLongestPrefix() throws Exception {
+        this.server.addRecurringToken("ABC");
+        this.faulty.getFaults("/").setStatusRate(500, 1);
+        this.faulty.getFaults("/checkout/recurring");
+
+        RecurringStatus status = new RecurringStatus(this.connector, "ABC");
+        status.fetch();
+
+        assertEquals(0, this.faulty.getCount(Fault.STATUS));
+    }
+
+    /**
+     * Test that latency is added.
+     *
+     * @throws Exception but not really
+     */
+    @Test
+    public void testLatency() throws Exception {
+        this.faulty.getFaults("/").setLatency(
+                Latency.fixed(50, TimeUnit.MILLISECONDS));
+
+        long start = System.nanoTime();
+        this.createOrder();
+
+        assertTrue(System.nanoTime() - start
+                >= TimeUnit.MILLISECONDS.toNanos(50));
+        assertEquals(1, this.faulty.getCount(Fault.DELAY));
+        assertEquals(1, this.server.getOrderCount());
+    }
+
+    /**
+     * Test drawing faults by their rates.
+     */
+    @Test
+    public void testDraw() {
+        Faults faults = this.faulty.getFaults("/");
+        faults.setDropRate(0.1);
+        faults.setStatusRate(429, 0.2);
+        faults.setStatusRate(503, 0.2);
+        faults.setTruncateRate(0.1);
+        faults.setInvalidJsonRate(0.1);
+
+        assertEquals(Fault.DROP, faults.draw(0.05));
+        assertEquals(Fault.STATUS, faults.draw(0.45));
+        assertEquals(Fault.TRUNCATE, faults.draw(0.55));
+        assertEquals(Fault.INVALID_JSON, faults.draw(0.65));
+        assertNull(faults.draw(0.75));
+        assertEquals(429, faults.status(0.4));
+        assertEquals(503, faults.status(0.6));
+    }
+
+    /**
+     * Test that rates adding up to more than 1 are refused.
+     */
+    @Test(expected = IllegalArgumentException.class)
+    public void testRatesOverOne() {
+        Faults faults = this.faulty.getFaults("/");
+        faults.setDropRate(0.6);
+        faults.setStatusRate(503, 0.5);
+    }
+
+    /**
+     * Test that a rate can be replaced by one keeping the total within 1.
+     */
+    @Test
+    public void testReplaceRate() {
+        Faults faults = this.faulty.getFaults("/");
+        faults.setDropRate(0.6);
+        faults.setStatusRate(503, 0.4);
+        faults.setStatusRate(503, 0.3);
+        faults.setDropRate(0.7);
+
+        assertEquals(Fault.STATUS, faults.draw(0.95));
+    }
+}
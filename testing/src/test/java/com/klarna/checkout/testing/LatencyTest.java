@@ -0,0 +1,128 @@
+/*
+ * Copyright 2015 Klarna AB
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.klarna.checkout.testing;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests for the Latency class.
+ */
+public class LatencyTest {
+
+    /**
+     * Number of values drawn.
+     */
+    private static final int DRAWS = 20000;
+
+    /**
+     * Draw sorted values from a distribution.
+     *
+     * @param latency distribution
+     * @return the values in nanoseconds
+     */
+    private static long[] draw(final Latency latency) {
+        Random random = new Random(7);
+        long[] values = new long[DRAWS];
+        for (int i = 0; i < DRAWS; i++) {
+            values[i] = latency.next(random);
+            assertTrue(values[i] >= 0);
+        }
+        Arrays.sort(values);
+        return values;
+    }
+
+    /**
+     * Get the mean of values.
+     *
+     * @param values values
+     * @return the mean
+     */
+    private static double mean(final long[] values) {
+        double sum = 0;
+        for (long value : values) {
+            sum += value;
+        }
+        return sum / values.length;
+    }
+
+    /**
+     * Test a fixed latency.
+     */
+    @Test
+    public void testFixed() {
+        long[] values = draw(Latency.fixed(3, TimeUnit.MILLISECONDS));
+
+        assertEquals(3000000, values[0]);
+        assertEquals(3000000, values[DRAWS - 1]);
+    }
+
+    /**
+     * Test a uniform latency.
+     */
+    @Test
+    public void testUniform() {
+        long[] values = draw(Latency.uniform(10, 20, TimeUnit.MICROSECONDS));
+
+        assertTrue(values[0] >= 10000);
+        assertTrue(values[DRAWS - 1] < 20000);
+        assertEquals(15000, mean(values), 200);
+    }
+
+    /**
+     * Test an exponential latency.
+     */
+    @Test
+    public void testExponential() {
+        long[] values = draw(Latency.exponential(1, TimeUnit.MILLISECONDS));
+
+        assertEquals(1000000, mean(values), 30000);
+    }
+
+    /**
+     * Test a log-normal latency.
+     */
+    @Test
+    public void testLogNormal() {
+        long[] values = draw(Latency.logNormal(1, 1, TimeUnit.MILLISECONDS));
+
+        assertEquals(1000000, values[DRAWS / 2], 50000);
+        assertEquals(10.2, values[DRAWS * 99 / 100] / 1e6, 1);
+    }
+
+    /**
+     * Test that a negative latency is refused.
+     */
+    @Test(expected = IllegalArgumentException.class)
+    public void testNegative() {
+        Latency.fixed(-1, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Test that inverted bounds are refused.
+     */
+    @Test(expected = IllegalArgumentException.class)
+    public void testInvertedBounds() {
+        Latency.uniform(2, 1, TimeUnit.MILLISECONDS);
+    }
+}
@@ -0,0 +1,175 @@
+/*
+ * Copyright 2015 Klarna AB
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.klarna.checkout.testing;
+
+import com.klarna.checkout.Connector;
+import com.klarna.checkout.testing.LoadGenerator.Operation;
+import com.klarna.checkout.testing.LoadGenerator.Report;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests for the LoadGenerator class, run against the stand-in server.
+ */
+public class LoadGeneratorTest {
+
+    /**
+     * Server to load.
+     */
+    private StandInServer server;
+
+    /**
+     * Generator under test.
+     */
+    private LoadGenerator generator;
+
+    /**
+     * Start the server.
+     *
+     * @throws Exception but not really
+     */
+    @Before
+    public void setUp() throws Exception {
+        this.server = new StandInServer(LoadGenerator.STAND_IN_SECRET, 4);
+        this.server.start();
+        this.server.addRecurringToken(LoadGenerator.STAND_IN_TOKEN);
+        this.generator = new LoadGenerator(Connector.create(
+                LoadGenerator.STAND_IN_SECRET, this.server.getBaseUri(), 4));
+        this.generator.setOrderCount(5);
+    }
+
+    /**
+     * Stop the server.
+     */
+    @After
+    public void tearDown() {
+        this.server.stop();
+    }
+
+    /**
+     * Test that the closed model sends only the operations of the mix.
+     *
+     * @throws Exception but not really
+     */
+    @Test
+    public void testClosed() throws Exception {
+        this.generator.setMix("fetch=1, update=1");
+
+        Report report = this.generator.runClosed(
+                2, 300, TimeUnit.MILLISECONDS);
+
+        assertTrue(report.getCount() > 0);
+        assertEquals(0, report.getErrorCount());
+        assertEquals(0, report.getCount(Operation.CREATE));
+        assertEquals(0, report.getCount(Operation.RECURRING));
+        assertEquals(report.getCount(),
+                report.getCount(Operation.FETCH)
+                        + report.getCount(Operation.UPDATE));
+        assertEquals(5, this.server.getOrderCount());
+        assertTrue(report.getLatency(Operation.FETCH).getCount()
+                >= report.getCount(Operation.FETCH));
+    }
+
+    /**
+     * Test that the open model starts requests at the rate.
+     *
+     * @throws Exception but not really
+     */
+    @Test
+    public void testOpen() throws Exception {
+        this.generator.setMix("create=1,recurring=1");
+        this.generator.setRecurringToken(LoadGenerator.STAND_IN_TOKEN);
+
+        Report report = this.generator.runOpen(
+                100, 4, 500, TimeUnit.MILLISECONDS);
+
+        assertEquals(50, report.getCount());
+        assertEquals(0, report.getErrorCount());
+        assertEquals(report.getCount(Operation.CREATE),
+                this.server.getOrderCount());
+        assertEquals(report.getCount(Operation.CREATE),
+                report.getLatency(Operation.CREATE).getCount());
+        assertTrue(report.getThroughput() > 0);
+        assertTrue(report.toString().contains("open, 100.0/s, 4 workers"));
+    }
+
+    /**
+     * Test that failed requests are counted.
+     *
+     * @throws Exception but not really
+     */
+    @Test
+    public void testErrors() throws Exception {
+        this.generator.setMix("recurring=1");
+        this.generator.setRecurringToken("unknown");
+
+        Report report = this.generator.runClosed(
+                1, 100, TimeUnit.MILLISECONDS);
+
+        assertTrue(report.getCount() > 0);
+        assertEquals(report.getCount(), report.getErrorCount());
+        assertEquals(report.getCount(),
+                report.getErrorCount(Operation.RECURRING));
+    }
+
+    /**
+     * Test that recurring orders need a token.
+     *
+     * @throws Exception but not really
+     */
+    @Test(expected = IllegalStateException.class)
+    public void testRecurringWithoutToken() throws Exception {
+        this.generator.setMix("recurring=1");
+
+        this.generator.runClosed(1, 100, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Test that an invalid mix is refused.
+     */
+    @Test(expected = IllegalArgumentException.class)
+    public void testInvalidMix() {
+        this.generator.setMix("create");
+    }
+
+    /**
+     * Test parsing command line options.
+     */
+    @Test
+    public void testOptions() {
+        Map<String, String> options = LoadGenerator.options(
+                new String[] {"--rate", "200", "--mix", "fetch=1"});
+
+        assertEquals("200", options.get("rate"));
+        assertEquals("fetch=1", options.get("mix"));
+    }
+
+    /**
+     * Test that an option without a value is refused.
+     */
+    @Test(expected = IllegalArgumentException.class)
+    public void testOptionWithoutValue() {
+        LoadGenerator.options(new String[] {"--rate"});
+    }
+}
@@ -0,0 +1,239 @@
+/*
+ * Copyright 2015 Klarna AB
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.klarna.checkout.testing;
+
+import com.klarna.checkout.BasicConnector;
+import com.klarna.checkout.Digest;
+import com.klarna.checkout.ErrorResponseException;
+import com.klarna.checkout.IHttpClient;
+import com.klarna.checkout.Order;
+import org.apache.http.client.HttpResponseException;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.impl.client.BasicResponseHandler;
+import org.json.simple.JSONObject;
+import org.json.simple.parser.JSONParser;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Tests for the RecordingClient class.
+ */
+public class RecordingClientTest {
+
+    /**
+     * Shared secret of the server.
+     */
+    private static final String SECRET = "sharedSecret";
+
+    /**
+     * Folder of the recordings.
+     */
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    /**
+     * Server recorded against.
+     */
+    private StandInServer server;
+
+    /**
+     * Recording file.
+     */
+    private File file;
+
+    /**
+     * Client under test.
+     */
+    private RecordingClient recording;
+
+    /**
+     * Connector sending through the recording client.
+     */
+    private BasicConnector connector;
+
+    /**
+     * Start the server and set up the connector.
+     *
+     * @throws Exception but not really
+     */
+    @Before
+    public void setUp() throws Exception {
+        this.server = new StandInServer(SECRET, 2);
+        this.server.start();
+        this.file = this.folder.newFile("exchanges.ndjson");
+        this.connector = new BasicConnector(new Digest(SECRET)) {
+            @Override
+            protected IHttpClient createHttpClient() {
+                try {
+                    recording = new RecordingClient(
+                            super.createHttpClient(), file.getPath());
+                } catch (IOException ex) {
+                    throw new IllegalStateException(ex);
+                }
+                return recording;
+            }
+        };
+        this.connector.setBaseUri(this.server.getBaseUri());
+        this.connector.getClient();
+    }
+
+    /**
+     * Stop the server.
+     */
+    @After
+    public void tearDown() {
+        this.server.stop();
+    }
+
+    /**
+     * Read the recorded exchanges.
+     *
+     * @return the exchanges
+     * @throws Exception but not really
+     */
+    private List<JSONObject> exchanges() throws Exception {
+        this.recording.close();
+        List<JSONObject> exchanges = new ArrayList<JSONObject>();
+        BufferedReader reader = new BufferedReader(new InputStreamReader(
+                new FileInputStream(this.file), "UTF-8"));
+        try {
+            String line = reader.readLine();
+            while (line != null) {
+                exchanges.add((JSONObject) new JSONParser().parse(line));
+                line = reader.readLine();
+            }
+        } finally {
+            reader.close();
+        }
+        return exchanges;
+    }
+
+    /**
+     * Get a header of a recorded exchange.
+     *
+     * @param exchange the exchange
+     * @param field    field of the headers
+     * @param name     header name
+     * @return the header value, or null if missing
+     */
+    private static String header(
+            final JSONObject exchange, final String field, final String name) {
+        for (Object header : (List<?>) exchange.get(field)) {
+            List<?> pair = (List<?>) header;
+            if (name.equalsIgnoreCase((String) pair.get(0))) {
+                return (String) pair.get(1);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Test that exchanges are recorded while the connector works as usual.
+     *
+     * @throws Exception but not really
+     */
+    @Test
+    public void testRecord() throws Exception {
+        Map<String, Object> data = new HashMap<String, Object>();
+        data.put("purchase_country", "SE");
+        Order order = new Order(this.connector);
+        order.create(data);
+        order.fetch();
+        assertEquals("SE", order.get("purchase_country"));
+
+        List<JSONObject> exchanges = this.exchanges();
+        assertEquals(2, exchanges.size());
+        assertEquals(2, this.recording.getRecordedCount());
+
+        JSONObject create = exchanges.get(0);
+        assertEquals("POST", create.get(RecordingClient.METHOD));
+        assertEquals(this.server.getBaseUri() + "/checkout/orders",
+                create.get(RecordingClient.REQUEST_URI));
+        assertEquals("{\"purchase_country\":\"SE\"}",
+                create.get(RecordingClient.REQUEST_BODY));
+        assertEquals(201L, create.get(RecordingClient.STATUS));
+        assertEquals(order.getLocation().toString(),
+                header(create, RecordingClient.HEADERS, "Location"));
+        assertTrue((Long) create.get(RecordingClient.NANOS) > 0);
+
+        JSONObject fetch = exchanges.get(1);
+        assertEquals("GET", fetch.get(RecordingClient.METHOD));
+        assertEquals(StandInServer.ORDER_TYPE,
+                header(fetch, RecordingClient.HEADERS, "Content-Type"));
+        assertTrue(((String) fetch.get(RecordingClient.BODY))
+                .contains("\"purchase_country\":\"SE\""));
+        assertTrue((Long) fetch.get(RecordingClient.NANOS) > 0);
+    }
+
+    /**
+     * Test that error responses are recorded and still handled.
+     *
+     * @throws Exception but not really
+     */
+    @Test
+    public void testRecordError() throws Exception {
+        try {
+            new Order(this.connector, "missing").fetch();
+            fail("Expected an error response");
+        } catch (ErrorResponseException ex) {
+            assertEquals(404L, ex.getJson().get("http_status_code"));
+        }
+
+        JSONObject exchange = this.exchanges().get(0);
+        assertEquals(404L, exchange.get(RecordingClient.STATUS));
+    }
+
+    /**
+     * Test that authorization headers are redacted.
+     *
+     * @throws Exception but not really
+     */
+    @Test
+    public void testRedact() throws Exception {
+        HttpGet get = new HttpGet(this.server.getBaseUri() + "/checkout/x");
+        get.setHeader("Authorization", "Klarna c2VjcmV0");
+        try {
+            this.recording.execute(get, new BasicResponseHandler());
+            fail("Expected an error response");
+        } catch (HttpResponseException ex) {
+            assertEquals(401, ex.getStatusCode());
+        }
+
+        JSONObject exchange = this.exchanges().get(0);
+        assertEquals(RecordingClient.REDACTED, header(exchange,
+                RecordingClient.REQUEST_HEADERS, "Authorization"));
+        assertFalse(exchange.toJSONString().contains("c2VjcmV0"));
+    }
+}
@@ -0,0 +1,308 @@
+/*
+ * Copyright 2015 Klarna AB
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.klarna.checkout.testing;
+
+import com.klarna.checkout.BasicConnector;
+import com.klarna.checkout.Digest;
+import com.klarna.checkout.ErrorResponseException;
+import com.klarna.checkout.IHttpClient;
+import com.klarna.checkout.Order;
+import org.apache.http.client.ClientProtocolException;
+import org.junit.After;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Tests for the ReplayClient class.
+ */
+public class ReplayClientTest {
+
+    /**
+     * Shared secret of the server.
+     */
+    private static final String SECRET = "sharedSecret";
+
+    /**
+     * Folder of the recordings.
+     */
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    /**
+     * Client under test.
+     */
+    private ReplayClient replay;
+
+    /**
+     * Close the replay client.
+     *
+     * @throws IOException but not really
+     */
+    @After
+    public void tearDown() throws IOException {
+        if (this.replay != null) {
+            this.replay.close();
+        }
+    }
+
+    /**
+     * Make a connector sending through a client.
+     *
+     * @param http client to send through
+     * @param base base URI of the connector
+     * @return the connector
+     * @throws Exception but not really
+     */
+    private static BasicConnector connector(
+            final IHttpClient http, final String base) throws Exception {
+        BasicConnector conn = new BasicConnector(new Digest(SECRET)) {
+            @Override
+            protected IHttpClient createHttpClient() {
+                return http;
+            }
+        };
+        conn.setBaseUri(base);
+        return conn;
+    }
+
+    /**
+     * Create, fetch, update and fetch an order.
+     *
+     * @param conn connector to use
+     * @return the order
+     * @throws Exception but not really
+     */
+    private static Order session(final BasicConnector conn)
+            throws Exception {
+        Map<String, Object> data = new HashMap<String, Object>();
+        data.put("purchase_country", "SE");
+        Order order = new Order(conn);
+        order.create(data);
+        order.fetch();
+        assertEquals("SE", order.get("purchase_country"));
+
+        Map<String, Object> changes = new HashMap<String, Object>();
+        changes.put("locale", "sv-se");
+        order.update(changes);
+        order.fetch();
+        return order;
+    }
+
+    /**
+     * Record a session against the stand-in server.
+     *
+     * @return the recording
+     * @throws Exception but not really
+     */
+    private File record() throws Exception {
+        File file = this.folder.newFile("session.ndjson");
+        StandInServer server = new StandInServer(SECRET, 2);
+        server.start();
+        try {
+            BasicConnector conn = new BasicConnector(new Digest(SECRET));
+            RecordingClient recording = new RecordingClient(
+                    conn.getClient(), file.getPath());
+            session(connector(recording, server.getBaseUri()));
+            recording.close();
+        } finally {
+            server.stop();
+        }
+        return file;
+    }
+
+    /**
+     * Write a recording.
+     *
+     * @param lines exchanges, one per line
+     * @return the recording
+     * @throws IOException if writing fails
+     */
+    private File write(final String... lines) throws IOException {
+        File file = this.folder.newFile("written.ndjson");
+        OutputStream out = new FileOutputStream(file);
+        try {
+            for (String line : lines) {
+                out.write((line + "\n").getBytes("UTF-8"));
+            }
+        } finally {
+            out.close();
+        }
+        return file;
+    }
+
+    /**
+     * Get a recorded exchange of a fetch.
+     *
+     * @param nanos time the response took
+     * @param body  body of the response
+     * @return the exchange
+     */
+    private static String fetch(final long nanos, final String body) {
+        return "{\"nanos\":" + nanos + ",\"method\":\"GET\","
+                + "\"uri\":\"https://staging/checkout/orders/1\","
+                + "\"request_headers\":[],\"request_body\":null,"
+                + "\"status\":200,\"reason\":\"OK\",\"headers\":"
+                + "[[\"Content-Type\",\"" + StandInServer.ORDER_TYPE + "\"]],"
+                + "\"body\":\"" + body.replace("\"", "\\\"") + "\"}";
+    }
+
+    /**
+     * Test that a recorded session replays without the server.
+     *
+     * @throws Exception but not really
+     */
+    @Test
+    public void testReplaySession() throws Exception {
+        File file = this.record();
+        this.replay = new ReplayClient(file.getPath());
+        this.replay.setTimeScale(0);
+        assertEquals(4, this.replay.getExchangeCount());
+
+        Order order = session(connector(this.replay, "http://offline"));
+
+        assertEquals("sv-se", order.get("locale"));
+        assertEquals(4, this.replay.getServedCount());
+    }
+
+    /**
+     * Test that the responses of a request are served in turn.
+     *
+     * @throws Exception but not really
+     */
+    @Test
+    public void testTurns() throws Exception {
+        this.replay = new ReplayClient(this.write(
+                fetch(0, "{\"id\":\"1\",\"n\":1}"),
+                "",
+                fetch(0, "{\"id\":\"1\",\"n\":2}")).getPath());
+        Order order = new Order(
+                connector(this.replay, "http://offline"), "1");
+
+        order.fetch();
+        assertEquals(1L, order.get("n"));
+        order.fetch();
+        assertEquals(2L, order.get("n"));
+        order.fetch();
+        assertEquals(1L, order.get("n"));
+    }
+
+    /**
+     * Test that a request nothing was recorded for fails.
+     *
+     * @throws Exception but not really
+     */
+    @Test(expected = ClientProtocolException.class)
+    public void testNotRecorded() throws Exception {
+        this.replay = new ReplayClient(
+                this.write(fetch(0, "{}")).getPath());
+
+        new Order(connector(this.replay, "http://offline"), "2").fetch();
+    }
+
+    /**
+     * Test that recorded error responses are handled as errors.
+     *
+     * @throws Exception but not really
+     */
+    @Test
+    public void testError() throws Exception {
+        this.replay = new ReplayClient(this.write(fetch(0,
+                "{\"http_status_code\":503}").replace(
+                        "\"status\":200", "\"status\":503")).getPath());
+
+        try {
+            new Order(connector(this.replay, "http://offline"), "1").fetch();
+            fail("Expected an error response");
+        } catch (ErrorResponseException ex) {
+            assertEquals(503, ex.getStatusCode());
+        }
+    }
+
+    /**
+     * Test that responses take the scaled recorded time.
+     *
+     * @throws Exception but not really
+     */
+    @Test
+    public void testTimeScale() throws Exception {
+        this.replay = new ReplayClient(this.write(
+                fetch(TimeUnit.MILLISECONDS.toNanos(40), "{}")).getPath());
+        this.replay.setTimeScale(2);
+        Order order = new Order(
+                connector(this.replay, "http://offline"), "1");
+
+        long start = System.nanoTime();
+        order.fetch();
+
+        assertTrue(System.nanoTime() - start
+                >= TimeUnit.MILLISECONDS.toNanos(80));
+    }
+
+    /**
+     * Test that an invalid recording is refused.
+     *
+     * @throws Exception but not really
+     */
+    @Test(expected = IOException.class)
+    public void testInvalid() throws Exception {
+        this.replay = new ReplayClient(this.write("{\"nanos\":").getPath());
+    }
+
+    /**
+     * Test that a recording holding something other than objects is
+     * refused.
+     *
+     * @throws Exception but not really
+     */
+    @Test(expected = IOException.class)
+    public void testNotObject() throws Exception {
+        this.replay = new ReplayClient(this.write("[1]").getPath());
+    }
+
+    /**
+     * Test that an exchange broken past its URI fails once served.
+     *
+     * @throws Exception but not really
+     */
+    @Test
+    public void testBrokenBody() throws Exception {
+        String line = fetch(0, "{}");
+        this.replay = new ReplayClient(this.write(
+                line.substring(0, line.indexOf("\"status\""))).getPath());
+        assertEquals(1, this.replay.getExchangeCount());
+
+        try {
+            new Order(connector(this.replay, "http://offline"), "1").fetch();
+            fail("Expected IOException");
+        } catch (IOException ex) {
+            assertTrue(ex.getMessage().startsWith("Invalid exchange"));
+        }
+    }
+}
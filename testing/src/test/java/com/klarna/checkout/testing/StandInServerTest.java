@@ -0,0 +1,303 @@
+/*
+ * Copyright 2015 Klarna AB
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.klarna.checkout.testing;
+
+import com.klarna.checkout.Connector;
+import com.klarna.checkout.ErrorResponseException;
+import com.klarna.checkout.IConnector;
+import com.klarna.checkout.Order;
+import com.klarna.checkout.RecurringOrder;
+import com.klarna.checkout.RecurringStatus;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Tests for the StandInServer class, driven by the real connector.
+ */
+public class StandInServerTest {
+
+    /**
+     * Shared secret of the server.
+     */
+    private static final String SECRET = "sharedSecret";
+
+    /**
+     * Server under test.
+     */
+    private StandInServer server;
+
+    /**
+     * Connector talking to the server.
+     */
+    private IConnector connector;
+
+    /**
+     * Start the server.
+     *
+     * @throws Exception but not really
+     */
+    @Before
+    public void setUp() throws Exception {
+        this.server = new StandInServer(SECRET, 4);
+        this.server.start();
+        this.connector = Connector.create(
+                SECRET, this.server.getBaseUri(), 8);
+    }
+
+    /**
+     * Stop the server.
+     */
+    @After
+    public void tearDown() {
+        this.server.stop();
+    }
+
+    /**
+     * Create an order with some data.
+     *
+     * @param recurring whether the order is recurring
+     * @return the created order
+     * @throws Exception but not really
+     */
+    private Order createOrder(final boolean recurring) throws Exception {
+        Map<String, Object> data = new HashMap<String, Object>();
+        data.put("purchase_country", "SE");
+        data.put("recurring", recurring);
+
+        Order order = new Order(this.connector);
+        order.create(data);
+        return order;
+    }
+
+    /**
+     * Get the id at the end of an order location.
+     *
+     * @param order order to get the id of
+     * @return the id
+     */
+    private static String idOf(final Order order) {
+        String path = order.getLocation().getPath();
+        return path.substring(path.lastIndexOf('/') + 1);
+    }
+
+    /**
+     * Test that a created order can be fetched.
+     *
+     * @throws Exception but not really
+     */
+    @Test
+    public void testCreateAndFetch() throws Exception {
+        Order order = this.createOrder(false);
+
+        assertNotNull(order.getLocation());
+        assertTrue(order.getLocation().toString().startsWith(
+                this.server.getBaseUri() + "/checkout/orders/"));
+        assertEquals(1, this.server.getOrderCount());
+
+        order.fetch();
+
+        assertEquals(idOf(order), order.get("id"));
+        assertEquals("checkout_incomplete", order.get("status"));
+        assertEquals("SE", order.get("purchase_country"));
+        assertNotNull(((Map) order.get("gui")).get("snippet"));
+    }
+
+    /**
+     * Test that fetching an unchanged order keeps its data.
+     *
+     * @throws Exception but not really
+     */
+    @Test
+    public void testFetchUnchanged() throws Exception {
+        Order order = this.createOrder(false);
+        order.fetch();
+        assertNotNull(order.getETag());
+
+        order.fetch();
+
+        assertEquals("SE", order.get("purchase_country"));
+    }
+
+    /**
+     * Test that an update is merged and returned.
+     *
+     * @throws Exception but not really
+     */
+    @Test
+    public void testUpdate() throws Exception {
+        Order order = this.createOrder(false);
+        Map<String, Object> changes = new HashMap<String, Object>();
+        changes.put("locale", "sv-se");
+
+        order.update(changes);
+
+        assertEquals("sv-se", order.get("locale"));
+        assertEquals("SE", order.get("purchase_country"));
+        assertEquals("sv-se", this.server.getOrder(idOf(order)).get("locale"));
+    }
+
+    /**
+     * Test that a redirected update is followed to the order.
+     *
+     * @throws Exception but not really
+     */
+    @Test
+    public void testUpdateRedirected() throws Exception {
+        this.server.setRedirectUpdates(true);
+        Order order = this.createOrder(false);
+        Map<String, Object> changes = new HashMap<String, Object>();
+        changes.put("locale", "sv-se");
+
+        order.update(changes);
+
+        assertEquals("sv-se", order.get("locale"));
+        assertEquals(idOf(order), order.get("id"));
+    }
+
+    /**
+     * Test fetching an unknown order.
+     *
+     * @throws Exception but not really
+     */
+    @Test
+    public void testFetchUnknown() throws Exception {
+        Order order = new Order(this.connector, "missing");
+
+        try {
+            order.fetch();
+            fail("Expected an error response");
+        } catch (ErrorResponseException ex) {
+            assertEquals(404, ex.getStatusCode());
+            assertEquals(404L, ex.getJson().get("http_status_code"));
+        }
+    }
+
+    /**
+     * Test that requests signed with another secret are refused.
+     *
+     * @throws Exception but not really
+     */
+    @Test
+    public void testBadSecret() throws Exception {
+        IConnector other = Connector.create("wrong", this.server.getBaseUri());
+
+        try {
+            new Order(other).create(new HashMap<String, Object>());
+            fail("Expected an error response");
+        } catch (ErrorResponseException ex) {
+            assertEquals(401, ex.getStatusCode());
+            assertEquals("Unauthorized",
+                    ex.getJson().get("http_status_message"));
+        }
+        assertEquals(0, this.server.getOrderCount());
+        assertEquals(1, this.server.getRejectedCount());
+    }
+
+    /**
+     * Test that a completed recurring order can be charged again.
+     *
+     * @throws Exception but not really
+     */
+    @Test
+    public void testRecurring() throws Exception {
+        Order order = this.createOrder(true);
+        String token = this.server.complete(idOf(order));
+        assertNotNull(token);
+
+        RecurringStatus status = new RecurringStatus(this.connector, token);
+        status.fetch();
+        assertEquals("invoice",
+                ((Map) status.get("payment_method")).get("type"));
+
+        Map<String, Object> data = new HashMap<String, Object>();
+        data.put("purchase_country", "SE");
+        RecurringOrder recurring = new RecurringOrder(this.connector, token);
+        recurring.create(data);
+        assertNotNull(recurring.get("reservation"));
+    }
+
+    /**
+     * Test that only recurring orders get a token.
+     *
+     * @throws Exception but not really
+     */
+    @Test
+    public void testCompleteNotRecurring() throws Exception {
+        Order order = this.createOrder(false);
+
+        assertNull(this.server.complete(idOf(order)));
+        order.fetch();
+        assertEquals("checkout_complete", order.get("status"));
+    }
+
+    /**
+     * Test fetching the status of an unknown recurring token.
+     *
+     * @throws Exception but not really
+     */
+    @Test
+    public void testUnknownToken() throws Exception {
+        try {
+            new RecurringStatus(this.connector, "missing").fetch();
+            fail("Expected an error response");
+        } catch (ErrorResponseException ex) {
+            assertEquals(404, ex.getStatusCode());
+        }
+    }
+
+    /**
+     * Test creating orders from several threads.
+     *
+     * @throws Exception but not really
+     */
+    @Test
+    public void testConcurrentCreate() throws Exception {
+        ExecutorService pool = Executors.newFixedThreadPool(8);
+        Future<?>[] results = new Future<?>[40];
+        for (int i = 0; i < results.length; i++) {
+            results[i] = pool.submit(new Callable<Void>() {
+                @Override
+                public Void call() throws Exception {
+                    createOrder(false).fetch();
+                    return null;
+                }
+            });
+        }
+        for (Future<?> result : results) {
+            result.get(10, TimeUnit.SECONDS);
+        }
+        pool.shutdown();
+
+        assertEquals(40, this.server.getOrderCount());
+        assertEquals(80, this.server.getRequestCount());
+    }
+}